@@ -0,0 +1,84 @@
+package nvisio.cip;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+import ij.ImagePlus;
+import net.imglib2.Interval;
+import nvisio.cip.filter.Parallel;
+
+
+/**
+ *
+ * Runs a chain of CIP functions on each image of a list, one image per thread. The threads pick the next image as
+ * soon as they are done with one, so that images of different sizes keep all the threads busy. An image starts once
+ * the memory it is estimated to need (the input and one float image per step) fits in the memory budget, the
+ * outputs are returned in the order of the images.
+ *
+ * @author Benoit Lombardot
+ *
+ */
+final class Batch {
+
+	private Batch() {}
+
+
+	/**
+	 * @param images the images
+	 * @param functions the functions applied one after the other
+	 * @param arguments the arguments of each function, the image is inserted before them
+	 * @param nThread number of images processed at the same time
+	 * @param memory memory budget, in bytes
+	 * @return the output of the last function for each image, null if a function failed on the image
+	 */
+	static List<Object> run( final List<?> images, final CIP.Prepared[] functions, final Object[][] arguments, int nThread, long memory )
+	{
+		final Object[] results = new Object[ images.size() ];
+		final int permits = (int) Math.max( 1, Math.min( Integer.MAX_VALUE, memory >> 10 ) ); // in KB
+		final Semaphore budget = new Semaphore( permits );
+
+		Parallel.run( images.size(), nThread, (i)-> {
+			final int cost = (int) Math.max( 1, Math.min( permits, footprint( images.get(i), functions.length ) >> 10 ) );
+			budget.acquireUninterruptibly( cost );
+			try {
+				Object image = images.get(i);
+				for( int s=0; s<functions.length && image != null; s++ )
+				{
+					final Object[] args = new Object[ arguments[s].length + 1 ];
+					args[0] = image;
+					System.arraycopy( arguments[s], 0, args, 1, arguments[s].length );
+					image = functions[s].run( args );
+				}
+				results[i] = image;
+			}
+			catch( RuntimeException e ) {
+				// an image that fails does not stop the others
+				System.err.println( "CIP batch: image " + i + " failed, " + e );
+			}
+			finally {
+				budget.release( cost );
+			}
+		});
+
+		return new ArrayList<Object>( Arrays.asList( results ) );
+	}
+
+
+	private static long footprint( Object image, int nStep )
+	{
+		long nPixel = 1;
+		if( image instanceof Interval ) {
+			final Interval interval = (Interval) image;
+			for( int d=0; d<interval.numDimensions(); d++ )
+				nPixel *= interval.dimension(d);
+		}
+		else if( image instanceof ImagePlus ) {
+			final ImagePlus imp = (ImagePlus) image;
+			nPixel = (long) imp.getWidth() * imp.getHeight() * imp.getStackSize();
+		}
+		return nPixel * 4 * ( nStep + 1 );
+	}
+
+}
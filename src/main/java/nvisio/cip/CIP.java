@@ -1,6 +1,11 @@
 package nvisio.cip;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 
 import nvisio.cip.filter.ClosingCIP;
@@ -8,18 +13,29 @@ import nvisio.cip.filter.DilationCIP;
 import nvisio.cip.filter.DistanceCIP;
 import nvisio.cip.filter.ErosionCIP;
 import nvisio.cip.filter.GaussCIP;
+import nvisio.cip.filter.GradientCIP;
+import nvisio.cip.filter.HessianCIP;
 import nvisio.cip.filter.InvertCIP;
+import nvisio.cip.filter.LaplacianCIP;
 import nvisio.cip.filter.MedianCIP;
 import nvisio.cip.filter.OpeningCIP;
+import nvisio.cip.filter.TiledFilter;
 import nvisio.cip.filter.TophatCIP;
+import nvisio.cip.math.ExpressionCIP;
+import nvisio.cip.math.LogicOperationCIP;
+import nvisio.cip.measure.MeasureCIP;
 import nvisio.cip.misc.CreateCIP;
 import nvisio.cip.misc.DuplicateCIP;
+import nvisio.cip.misc.OpenCIP;
 import nvisio.cip.misc.Project2CIP;
 import nvisio.cip.misc.ProjectCIP;
+import nvisio.cip.parameters.Checks;
 import nvisio.cip.parameters.DefaultParameter2;
 import nvisio.cip.parameters.FunctionParameters2;
 import nvisio.cip.segment.HWatershedCIP;
 import nvisio.cip.segment.LabelCIP;
+import nvisio.cip.segment.MaxTree;
+import nvisio.cip.segment.MaxTreeCIP;
 import nvisio.cip.segment.SeededWatershedCIP;
 import nvisio.cip.segment.ThresholdAutoCIP;
 import nvisio.cip.segment.ThresholdManualCIP;
@@ -33,9 +49,14 @@ import net.imagej.ops.Op;
 import net.imagej.ops.OpMethod;
 import net.imglib2.Cursor;
 import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.stats.ComputeMinMax;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.view.Views;
 
 
 
@@ -69,23 +90,27 @@ import net.imglib2.type.numeric.real.DoubleType;
  *  		[x] implement tophat
  *  		[x] implement invert
  *  		[x] implement median
- *  		[-] implement gradient
- *  		[-] implement laplacian
- *  		[-] implement hessian
+ *  		[x] implement gradient
+ *  		[x] implement laplacian
+ *  		[x] implement hessian
  *  	[-] implement math operations
  *  		[x] binary operation (add, mul, div, sub, min, max)
  *  		[x] unary operations (trigo, log, exp, pow, sqrt, abs, round, floor, ceil  )
- *  		[-] and, or, not, logic sub, >, >=, ==, <, <=, !=
+ *  		[x] and, or, not, logic sub, >, >=, ==, <, <=, !=
  *  	[-] implement miscellaneous
  *  		[x] create 
  *  		[x] duplicate/slice
- *			[-] projection ( min, max, sum, median, stdev )
+ *			[x] projection ( min, max, sum, median, stdev )
  *  		[-] concat (repeat the same image along a dim, or concat image along a dim)
  *  		[-] resample
+ *  		[x] out-of-core filters on disk-backed cell images (tiled)
+ *  		[x] memory-mapped uncompressed tiff and raw files (open)
+ *  		[x] apply functions to a list of images, one image per thread (batch)
  *  
  *  	[-] implement toPoints
  *  	[-] implement toRegions
- *  	[-] study measures
+ *  	[x] study measures
+ *  		[x] per label size, centroid, bounding box, second moments and intensity statistics (measure)
  */
 
 
@@ -104,6 +129,13 @@ public class CIP extends AbstractNamespace{
 
 	int nThread; // if the function called can be multithreaded, this is the number of thread that will be used
 	
+	String tileDirectory = null; // directory of the disk-backed images created by tiled, a temporary file is used if null
+	long cacheSize = Runtime.getRuntime().maxMemory() / 4; // memory used by the cell cache of these images, in bytes
+	
+	long batchMemory = Runtime.getRuntime().maxMemory() / 2; // memory budget of the images processed at the same time by batch, in bytes
+	
+	private final OpCache opCache; // ops matched by the previous calls, cf. runOp
+	
 	@Parameter
 	private CIPService cipService;
 	
@@ -112,6 +144,19 @@ public class CIP extends AbstractNamespace{
 	public CIP() {
 		super();
 		nThread = Runtime.getRuntime().availableProcessors();
+		opCache = new OpCache();
+	}
+	
+	// CIP used by the threads of batch, it shares the settings and the matched ops of its parent
+	private CIP( CIP parent, int nThread ) {
+		super();
+		this.nThread = nThread;
+		tileDirectory = parent.tileDirectory;
+		cacheSize = parent.cacheSize;
+		batchMemory = parent.batchMemory;
+		opCache = parent.opCache;
+		setContext( parent.getContext() );
+		setEnvironment( parent.ops() );
 	}
 	
 	
@@ -145,13 +190,20 @@ public class CIP extends AbstractNamespace{
 	 * @cip-param T (optional - number) Threshold
 	 * @cip-param H (optional - number) hMin
 	 * @cip-param Method (optional - string) 'Binary', 'Gray'
+	 * @cip-param connectivity (optional - string) 'face', 'full', for the seeded watershed
+	 * @cip-param nthread (optional - number) number of threads, for the seeded and binary watersheds
 	 * @return a segmented image
+	 *
+	 * the input image can be replaced by a max-tree (cf. maxtree), the h-watershed is then computed from the tree
 	 */
 	@OpMethod(op = CIP.WATERSHED.class )
 	public Object watershed(final Object... args) {
 		
 		Object results = null;
 		
+		if( args.length > 0 && args[0] instanceof MaxTree )
+			return treeWatershed( (MaxTree) args[0], Arrays.copyOfRange( args, 1, args.length ) );
+		
 		// depending on the input we'll orient toward:
 		//	* HWatershedOp
 		//	* SeededWatershedOp
@@ -164,20 +216,23 @@ public class CIP extends AbstractNamespace{
 		paramsHWS.addOptional("hMin", 			DefaultParameter2.Type.scalar , 	null	);
 		paramsHWS.addOptional("PeakFlooding", 	DefaultParameter2.Type.scalar , 	100f 	);
 		paramsHWS.addOptional("Method", 		DefaultParameter2.Type.string , 	"gray"	);
+		paramsHWS.addOptional("nthread", 		DefaultParameter2.Type.numeric , 	nThread	);
 		
 		
 		FunctionParameters2 paramsSeededWS = new FunctionParameters2("Seeded Watershed");
 		paramsSeededWS.addRequired("inputImage", DefaultParameter2.Type.image 	);
 		paramsSeededWS.addRequired("Seed", 		DefaultParameter2.Type.image 	);
 		paramsSeededWS.addOptional("threshold", DefaultParameter2.Type.scalar , 	null	);
+		paramsSeededWS.addOptional("connectivity", DefaultParameter2.Type.string , 	null	);
+		paramsSeededWS.addOptional("nthread", 	DefaultParameter2.Type.numeric , 	nThread	);
 		
 		if ( paramsHWS.parseInput( args ) )
 		{
-			results = ops().run(HWatershedCIP.class, paramsHWS.getParsedInput() );
+			results = runOp( HWatershedCIP.class, paramsHWS.getParsedInput() );
 		}
 		else if ( paramsSeededWS.parseInput( args ) )
 		{
-			results = ops().run(SeededWatershedCIP.class, paramsSeededWS.getParsedInput() );
+			results = runOp( SeededWatershedCIP.class, paramsSeededWS.getParsedInput() );
 		}
 		else
 		{	
@@ -190,6 +245,27 @@ public class CIP extends AbstractNamespace{
 		return results;
 	}
 	
+	
+	private Object treeWatershed( MaxTree tree, Object[] args ) {
+		
+		FunctionParameters2 params = new FunctionParameters2("HWatershed");
+		params.addOptional("threshold", 	DefaultParameter2.Type.scalar , 	null	);
+		params.addOptional("hMin", 			DefaultParameter2.Type.scalar , 	null	);
+		params.addOptional("PeakFlooding", 	DefaultParameter2.Type.scalar , 	100f 	);
+		
+		if ( !params.parseInput( args ) ) {
+			params.printFeedback();
+			return null;
+		}
+		
+		// same defaults as HWatershedCIP: the image minimum and 5% of the image range
+		double threshold = params.get("threshold").value == null ? tree.min() : ((Number) params.get("threshold").value).doubleValue();
+		double hMin = params.get("hMin").value == null ? 0.05 * ( tree.max() - tree.min() ) : ((Number) params.get("hMin").value).doubleValue();
+		double peakFlooding = ((Number) params.get("PeakFlooding").value).doubleValue();
+		
+		return tree.hWatershed( threshold, hMin, peakFlooding );
+	}
+	
 
 	
 	
@@ -223,10 +299,12 @@ public class CIP extends AbstractNamespace{
 		paramsDist.addRequired("inputImage", 	DefaultParameter2.Type.image 	);
 		paramsDist.addOptional("threshold", 	DefaultParameter2.Type.scalar , 		null	);
 		paramsDist.addOptional("pixelSize", 	DefaultParameter2.Type.numeric , 		1f		);
+		paramsDist.addOptional("nthread", 		DefaultParameter2.Type.numeric , 		nThread	);
+		paramsDist.addOptional("output", 		DefaultParameter2.Type.string , 		null	);
 		
 		if ( paramsDist.parseInput( args ) )
 		{
-			results = ops().run(DistanceCIP.class, paramsDist.getParsedInput() );
+			results = runOp( DistanceCIP.class, paramsDist.getParsedInput() );
 		}
 		return results; 
 	}
@@ -266,6 +344,9 @@ public class CIP extends AbstractNamespace{
 		
 		Object results = null;
 		
+		if( args.length > 0 && args[0] instanceof MaxTree )
+			return treeMaxima( (MaxTree) args[0], Arrays.copyOfRange( args, 1, args.length ) );
+		
 		FunctionParameters2 params = new FunctionParameters2("Maxima");
 		params.addRequired("inputImage", 	DefaultParameter2.Type.image 	);
 		params.addOptional("threshold", 	DefaultParameter2.Type.scalar , 	null	);
@@ -284,7 +365,80 @@ public class CIP extends AbstractNamespace{
 		
 		if ( params.parseInput( args ) )
 		{
-			results = ops().run( CIP.MAXIMA.class, params.getParsedInput() );
+			results = runOp( CIP.MAXIMA.class, params.getParsedInput() );
+		}
+		return results; 
+	}
+	
+	
+	private Object treeMaxima( MaxTree tree, Object[] args ) {
+		
+		FunctionParameters2 params = new FunctionParameters2("Maxima");
+		params.addOptional("threshold", 	DefaultParameter2.Type.scalar , 	null	);
+		params.addOptional("HeightMin", 	DefaultParameter2.Type.scalar , 	null	);
+		params.get( "HeightMin" ).aliases.add( "hmin" );
+		params.addOptional("AreaMin",		DefaultParameter2.Type.scalar , 	null 	);
+		params.get( "AreaMin" ).aliases.add( "amin" );
+		params.addOptional("Method", 		DefaultParameter2.Type.string , 	null	);
+		
+		if ( !params.parseInput( args ) ) {
+			params.printFeedback();
+			return null;
+		}
+		
+		Object hMin = params.get("HeightMin").value;
+		Object aMin = params.get("AreaMin").value;
+		String method = (String) params.get("Method").value;
+		if( method == null ) {
+			method = "classic";
+			if( hMin != null )
+				method = ((Number) hMin).doubleValue() > 0 ? "height" : "classic";
+			else if( aMin != null )
+				method = "area";
+		}
+		
+		// same defaults as MaximaCIP
+		double threshold = params.get("threshold").value == null ? tree.min() : ((Number) params.get("threshold").value).doubleValue();
+		switch( method.toLowerCase() ) {
+		case "classic":
+			return tree.hMaxima( threshold, 0 );
+		case "height":
+			return tree.hMaxima( threshold, hMin == null ? 0.05 * ( tree.max() - tree.min() ) : ((Number) hMin).doubleValue() );
+		case "area":
+			return tree.areaMaxima( threshold, aMin == null ? Math.pow( 3, tree.numDimensions() ) + 1 : ((Number) aMin).doubleValue() );
+		default:
+			System.out.println("Maxima: method " + method + " is not available on a max-tree, use 'classic', 'height' or 'area'");
+			return null;
+		}
+	}
+	
+	
+	
+	/********************************************************************************
+	 * 	max-tree 																	*
+	 ********************************************************************************/
+	
+	/**
+	 * maxtree method, the tree can be passed to maxima and watershed in place of the image to run several queries
+	 * without sorting the image again
+	 *
+	 * @author Benoit Lombardot
+	 *
+	 * @param args an image, an optional number of threads
+	 * @return the max-tree of the image
+	 */
+	@OpMethod(op = MaxTreeCIP.class)
+	public Object maxtree( final Object... args ) {
+		
+		Object results = null;
+		
+		FunctionParameters2 params = new FunctionParameters2("MaxTree");
+		params.addRequired("inputImage", 	DefaultParameter2.Type.image 	);
+		params.addOptional("nthread", 		DefaultParameter2.Type.numeric , 	nThread	);
+		
+		if ( params.parseInput( args ) )
+		{
+			results = runOp( MaxTreeCIP.class, params.getParsedInput() );
 		}
 		return results; 
 	}
@@ -327,10 +481,44 @@ public class CIP extends AbstractNamespace{
  		FunctionParameters2 params = new FunctionParameters2("Maxima");
 		params.addRequired("inputImage", 	DefaultParameter2.Type.image 	);
 		params.addOptional("threshold", 	DefaultParameter2.Type.scalar , 	null	); // not needed if the image is of boolean type
+		params.addOptional("connectivity", 	DefaultParameter2.Type.string , 	null	);
+		params.addOptional("nthread", 		DefaultParameter2.Type.numeric , 	nThread	);
+		
+		if ( params.parseInput( args ) )
+		{
+			results = runOp( LabelCIP.class, params.getParsedInput() );
+		}
+		return results; 
+	}
+
+
+    
+    
+    /********************************************************************************
+	 * 	region measures 													*
+	 ********************************************************************************/
+
+	/**
+	 * measure method
+	 *
+	 * @author Benoit Lombardot
+	 *
+	 * @param args a label map, an optional intensity image
+	 * @return a table (map from measure name to column) with one row per label
+	 */
+    @OpMethod(op = MeasureCIP.class)
+ 	public Object measure( final Object... args ) {
+ 		
+ 		Object results = null;
+ 	
+ 		FunctionParameters2 params = new FunctionParameters2("Measure");
+		params.addRequired("labelMap", 		DefaultParameter2.Type.image 	);
+		params.addOptional("intensityImage", DefaultParameter2.Type.image , 	null	);
+		params.addOptional("nthread", 		DefaultParameter2.Type.numeric , 	nThread	);
 		
 		if ( params.parseInput( args ) )
 		{
-			results = ops().run( LabelCIP.class, params.getParsedInput() );
+			results = runOp( MeasureCIP.class, params.getParsedInput() );
 		}
 		return results; 
 	}
@@ -355,6 +543,8 @@ public class CIP extends AbstractNamespace{
 	 * @author Benoit Lombardot
 	 *
 	 * @param args
+	 * @cip-param method (string) a threshold method name, 'all' or a comma separated list of methods to get a map from
+	 * 			the method names to their threshold value, computed on a single histogram
 	 * @return
 	 */
     @OpMethod(ops = { 	ThresholdManualCIP.class 	,
@@ -372,15 +562,16 @@ public class CIP extends AbstractNamespace{
 		params2.addRequired("inputImage", 	DefaultParameter2.Type.image 	);
 		params2.addRequired("method",	 	DefaultParameter2.Type.string );
 		params2.addOptional("output",	 	DefaultParameter2.Type.string , 	null	); // not needed if the image is of boolean type
+		params2.addOptional("nthread", 		DefaultParameter2.Type.numeric , 	nThread	);
 		
 		
 		if ( params1.parseInput( args ) )
 		{
-			results = ops().run( ThresholdManualCIP.class, params1.getParsedInput() );
+			results = runOp( ThresholdManualCIP.class, params1.getParsedInput() );
 		}
 		else if ( params2.parseInput( args ) )
 		{
-			List<Object> resultsTemp = (List<Object>) ops().run( ThresholdAutoCIP.class, params2.getParsedInput() );
+			List<Object> resultsTemp = (List<Object>) runOp( ThresholdAutoCIP.class, params2.getParsedInput() );
 			
 			
 			///////////////////////////////////////////////////////////////////////////////
@@ -433,10 +624,103 @@ public class CIP extends AbstractNamespace{
    		params.addRequired("radius", 		DefaultParameter2.Type.numeric );
    		params.addOptional("boundary", 		DefaultParameter2.Type.string  , 	null	);
    		params.addOptional("pixelSize", 	DefaultParameter2.Type.numeric , 	null	);
+   		params.addOptional("method", 		DefaultParameter2.Type.string  , 	null	);
+   		params.addOptional("nthread", 		DefaultParameter2.Type.numeric ,	nThread	);
+   		
+   		if ( params.parseInput( args ) )
+   		{
+   			results = runOp( GaussCIP.class, params.getParsedInput() );
+   		}
+   		return results; 
+   	}
+
+
+	/**
+	 * Gradient method, gaussian derivatives with standard deviation radius
+	 *
+	 * @author Benoit Lombardot
+	 *
+	 * @param args
+	 * @cip-param output (optional - string) 'vector' (components along an extra last dimension) or 'norm'
+	 * @return
+	 */
+       @OpMethod(op = GradientCIP.class)
+    	public Object gradient( final Object... args ) {
+    		
+    		Object results = null;
+    	
+    	FunctionParameters2 params = new FunctionParameters2("gradient");
+   		params.addRequired("inputImage", 	DefaultParameter2.Type.image 	);
+   		params.addRequired("radius", 		DefaultParameter2.Type.numeric );
+   		params.addOptional("boundary", 		DefaultParameter2.Type.string  , 	null	);
+   		params.addOptional("pixelSize", 	DefaultParameter2.Type.numeric , 	null	);
+   		params.addOptional("method", 		DefaultParameter2.Type.string  , 	null	);
+   		params.addOptional("nthread", 		DefaultParameter2.Type.numeric ,	nThread	);
+   		params.addOptional("output", 		DefaultParameter2.Type.string  ,	null	);
    		
    		if ( params.parseInput( args ) )
    		{
-   			results = ops().run( GaussCIP.class, params.getParsedInput() );
+   			results = runOp( GradientCIP.class, params.getParsedInput() );
+   		}
+   		return results; 
+   	}
+
+
+	/**
+	 * Laplacian method, gaussian derivatives with standard deviation radius
+	 *
+	 * @author Benoit Lombardot
+	 *
+	 * @param args
+	 * @return
+	 */
+       @OpMethod(op = LaplacianCIP.class)
+    	public Object laplacian( final Object... args ) {
+    		
+    		Object results = null;
+    	
+    	FunctionParameters2 params = new FunctionParameters2("laplacian");
+   		params.addRequired("inputImage", 	DefaultParameter2.Type.image 	);
+   		params.addRequired("radius", 		DefaultParameter2.Type.numeric );
+   		params.addOptional("boundary", 		DefaultParameter2.Type.string  , 	null	);
+   		params.addOptional("pixelSize", 	DefaultParameter2.Type.numeric , 	null	);
+   		params.addOptional("method", 		DefaultParameter2.Type.string  , 	null	);
+   		params.addOptional("nthread", 		DefaultParameter2.Type.numeric ,	nThread	);
+   		
+   		if ( params.parseInput( args ) )
+   		{
+   			results = runOp( LaplacianCIP.class, params.getParsedInput() );
+   		}
+   		return results; 
+   	}
+
+
+	/**
+	 * Hessian method, gaussian derivatives with standard deviation radius
+	 *
+	 * @author Benoit Lombardot
+	 *
+	 * @param args
+	 * @cip-param output (optional - string) 'matrix' (upper triangle along an extra last dimension) or 'eigenvalues' (increasing order)
+	 * @return
+	 */
+       @OpMethod(op = HessianCIP.class)
+    	public Object hessian( final Object... args ) {
+    		
+    		Object results = null;
+    	
+    	FunctionParameters2 params = new FunctionParameters2("hessian");
+   		params.addRequired("inputImage", 	DefaultParameter2.Type.image 	);
+   		params.addRequired("radius", 		DefaultParameter2.Type.numeric );
+   		params.addOptional("boundary", 		DefaultParameter2.Type.string  , 	null	);
+   		params.addOptional("pixelSize", 	DefaultParameter2.Type.numeric , 	null	);
+   		params.addOptional("method", 		DefaultParameter2.Type.string  , 	null	);
+   		params.addOptional("nthread", 		DefaultParameter2.Type.numeric ,	nThread	);
+   		params.addOptional("output", 		DefaultParameter2.Type.string  ,	null	);
+   		
+   		if ( params.parseInput( args ) )
+   		{
+   			results = runOp( HessianCIP.class, params.getParsedInput() );
    		}
    		return results; 
    	}
@@ -461,11 +745,12 @@ public class CIP extends AbstractNamespace{
  		params.addOptional("shape", 		DefaultParameter2.Type.string  , 	null	);
  		params.addOptional("boundary", 		DefaultParameter2.Type.string  , 	null	);
  		params.addOptional("pixelSize", 	DefaultParameter2.Type.numeric , 	null	);
+ 		params.addOptional("nthread", 		DefaultParameter2.Type.numeric ,	nThread	);
  		
  		
  		if ( params.parseInput( args ) )
  		{
- 			results = ops().run( MedianCIP.class, params.getParsedInput() );
+ 			results = runOp( MedianCIP.class, params.getParsedInput() );
  		}
  		return results; 
  	}
@@ -490,7 +775,7 @@ public class CIP extends AbstractNamespace{
  		
  		if ( params.parseInput( args ) )
  		{
- 			results = ops().run( InvertCIP.class, params.getParsedInput() );
+ 			results = runOp( InvertCIP.class, params.getParsedInput() );
  		}
  		return results; 
  	}
@@ -530,7 +815,7 @@ public class CIP extends AbstractNamespace{
   		
   		if ( params.parseInput( args ) )
   		{
-  			results = ops().run( DilationCIP.class, params.getParsedInput() );
+  			results = runOp( DilationCIP.class, params.getParsedInput() );
   		}
   		return results; 
   	}
@@ -561,7 +846,7 @@ public class CIP extends AbstractNamespace{
   		
   		if ( params.parseInput( args ) )
   		{
-  			results = ops().run( ErosionCIP.class, params.getParsedInput() );
+  			results = runOp( ErosionCIP.class, params.getParsedInput() );
   		}
   		return results; 
   	}
@@ -591,7 +876,7 @@ public class CIP extends AbstractNamespace{
   		
   		if ( params.parseInput( args ) )
   		{
-  			results = ops().run( OpeningCIP.class, params.getParsedInput() );
+  			results = runOp( OpeningCIP.class, params.getParsedInput() );
   		}
   		return results; 
   	}
@@ -623,7 +908,7 @@ public class CIP extends AbstractNamespace{
   		
   		if ( params.parseInput( args ) )
   		{
-  			results = ops().run( ClosingCIP.class, params.getParsedInput() );
+  			results = runOp( ClosingCIP.class, params.getParsedInput() );
   		}
   		return results; 
   	}
@@ -654,16 +939,187 @@ public class CIP extends AbstractNamespace{
   		
   		if ( params.parseInput( args ) )
   		{
-  			results = ops().run( TophatCIP.class, params.getParsedInput() );
+  			results = runOp( TophatCIP.class, params.getParsedInput() );
   		}
   		return results; 
   	}
        
        
        
+    /********************************************************************************
+  	* out-of-core filtering															*
+  	*********************************************************************************/
+    
+	/**
+	 * Tiled method, applies a filter to an image that does not fit in memory. The image is processed cell by cell,
+	 * each cell with a halo derived from the filter radius, and the result is written in a disk-backed cell image
+	 * (cf. setOutOfCore), e.g. cip.tiled("gauss", img, 5)
+	 *
+	 * @author Benoit Lombardot
+	 *
+	 * @param args the name of a filter (gauss, gradient, laplacian, hessian, median, dilate, erode, opening, closing,
+	 * 			tophat) followed by the arguments of the filter. The output of the filter should have the size of its
+	 * 			input (e.g. gradient with the 'norm' output), the 'min' and 'max' boundaries use the min and max of the
+	 * 			whole image
+	 * @return a disk-backed image
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public Object tiled( final Object... args ) {
+		
+		if( args.length < 3 || !( args[0] instanceof String ) ) {
+			System.err.println("CIP tiled: the name of a filter followed by its arguments is expected");
+			return null;
+		}
+		final String filter = ((String) args[0]).toLowerCase();
+		final Object[] filterArgs = Arrays.copyOfRange( args, 1, args.length );
+		
+		// the parameters of the filter, only the image, radius and pixel size are used here
+		FunctionParameters2 params = new FunctionParameters2("tiled " + filter);
+		params.addRequired("inputImage", 	DefaultParameter2.Type.image 	);
+		params.addRequired("radius", 		DefaultParameter2.Type.numeric );
+		switch( filter ) {
+		case "gauss":
+		case "gradient":
+		case "laplacian":
+		case "hessian":
+			params.addOptional("boundary", 		DefaultParameter2.Type.string  , 	null	);
+			params.addOptional("pixelSize", 	DefaultParameter2.Type.numeric , 	null	);
+			params.addOptional("method", 		DefaultParameter2.Type.string  , 	null	);
+			params.addOptional("nthread", 		DefaultParameter2.Type.numeric ,	null	);
+			params.addOptional("output", 		DefaultParameter2.Type.string  ,	null	);
+			break;
+		case "median":
+			params.addOptional("shape", 		DefaultParameter2.Type.string  , 	null	);
+			params.addOptional("boundary", 		DefaultParameter2.Type.string  , 	null	);
+			params.addOptional("pixelSize", 	DefaultParameter2.Type.numeric , 	null	);
+			params.addOptional("nthread", 		DefaultParameter2.Type.numeric ,	null	);
+			break;
+		case "dilate":
+		case "erode":
+		case "opening":
+		case "closing":
+		case "tophat":
+			params.addOptional("shape", 		DefaultParameter2.Type.string  , 	null	);
+			params.addOptional("boundary", 		DefaultParameter2.Type.string  , 	null	);
+			params.addOptional("output", 		DefaultParameter2.Type.string  ,	null	);
+			params.addOptional("pixelSize", 	DefaultParameter2.Type.numeric , 	null	);
+			params.addOptional("nthread", 		DefaultParameter2.Type.numeric ,	null	);
+			break;
+		default:
+			System.err.println("CIP tiled: " + filter + " cannot be computed by cells");
+			return null;
+		}
+		
+		if ( !params.parseInput( filterArgs ) )
+			return null;
+		
+		// the image argument is replaced by each cell of the image
+		final Object image = params.get("inputImage").value;
+		int index = 0;
+		while( index < filterArgs.length && filterArgs[index] != image )
+			index++;
+		if( index == filterArgs.length ) {
+			System.err.println("CIP tiled: the input image should be one of the arguments of " + filter );
+			return null;
+		}
+		final int imageIndex = index;
+		
+		cipService.toImglib2Image( params.get("inputImage") );
+		RandomAccessibleInterval input = (RandomAccessibleInterval) params.get("inputImage").value;
+		int nDim = input.numDimensions();
+		double[] radius = perDimension( params.get("radius").value, nDim );
+		double[] pixelSize = params.get("pixelSize").value == null ? null : perDimension( params.get("pixelSize").value, nDim );
+		if( radius == null || ( params.get("pixelSize").value != null && pixelSize == null ) ) {
+			System.err.println("CIP tiled: the radius and pixel size should have one value or one value per dimension");
+			return null;
+		}
+		for( int d=0; d<nDim; d++ )
+			radius[d] /= pixelSize == null ? 1 : pixelSize[d];
+		
+		// the min and max of the whole image, the blocks at the border see them out of the image (cf. TiledFilter)
+		Object boundary = params.get("boundary").value;
+		RealType outside = null;
+		if( "min".equals( boundary ) || "max".equals( boundary ) ) {
+			final RealType min = (RealType) Views.iterable( input ).firstElement();
+			final RealType max = (RealType) min.createVariable();
+			outside = (RealType) min.createVariable();
+			ComputeMinMax.computeMinMax( input, (RealType) outside, max );
+			if( "max".equals( boundary ) )
+				outside = max;
+		}
+		
+		final String shape = params.containsKey("shape") ? (String) params.get("shape").value : null;
+		
+		long[] dims = new long[nDim];
+		input.dimensions( dims );
+		try {
+			File file = null;
+			if( tileDirectory != null )
+				file = File.createTempFile( "cip", ".cells", new File( tileDirectory ) );
+			
+			return TiledFilter.process( input, TiledFilter.halo( filter, radius, shape ), (block)-> {
+				Object[] blockArgs = filterArgs.clone();
+				blockArgs[imageIndex] = block;
+				Object result = tiledFilter( filter, blockArgs );
+				return result instanceof RandomAccessibleInterval ? (RandomAccessibleInterval<?>) result : null;
+			}, TiledFilter.cellDimensions( dims ), file, cacheSize, (RealType & NativeType) outside );
+		}
+		catch( IOException e ) {
+			System.err.println("CIP tiled: " + e.getMessage() );
+			return null;
+		}
+		catch( IllegalArgumentException e ) {
+			// the filter failed on a cell or its output cannot be stored by cells, the message starts with CIP tiled
+			System.err.println( e.getMessage() );
+			return null;
+		}
+	}
+    
+    
+    private Object tiledFilter( String filter, Object[] args ) {
+    	
+    	switch( filter ) {
+    	case "gauss":		return gauss( args );
+    	case "gradient":	return gradient( args );
+    	case "laplacian":	return laplacian( args );
+    	case "hessian":		return hessian( args );
+    	case "median":		return median( args );
+    	case "dilate":		return dilate( args );
+    	case "erode":		return erode( args );
+    	case "opening":		return opening( args );
+    	case "closing":		return closing( args );
+    	default:			return tophat( args );
+    	}
+    }
+    
+    
+    // a number or a list of numbers as one value per dimension, null if the number of values does not match nDim
+    private static double[] perDimension( Object value, int nDim ) {
+    	
+    	List<Object> values = new ArrayList<Object>();
+    	if( value instanceof Object[] )
+    		values.addAll( Arrays.asList( (Object[]) value ) );
+    	else if( value instanceof Iterable )
+    		for( Object v : (Iterable<?>) value )
+    			values.add( v );
+    	else
+    		values.add( value );
+    	if( values.size() != 1 && values.size() < nDim )
+    		return null;
+    	double[] result = new double[nDim];
+    	for( int d=0; d<nDim; d++ )
+    		result[d] = ((Number) values.get( values.size()==1 ? 0 : d )).doubleValue();
+    	return result;
+    }
+       
+       
+       
     /********************************************************************************
   	* math : add, mul, sub, div, min, max 											*
   	*********************************************************************************/
+    
+    // all the math methods accept the optional pairs "out", image to write the result in an existing image of the same
+    // size, and "inplace", true to write the result in the input image (the first image operand)
    	
     public interface MathBinary extends Op {
 		// Note that the name and aliases are prepended with Namespace.getName
@@ -725,7 +1181,10 @@ public class CIP extends AbstractNamespace{
     
     
     @OpMethod(op = CIP.MathBinary.class )
-   	private Object math2Operation( String operationType , final Object[] args ) {
+   	private Object math2Operation( String operationType , Object[] args ) {
+   		
+   		Object[] output = new Object[2];
+   		args = outputArguments( args, output );
    		
    		FunctionParameters2 paramsImage = new FunctionParameters2("addImage");
   		paramsImage.addRequired("inputImage1", 	DefaultParameter2.Type.image 	);
@@ -739,12 +1198,14 @@ public class CIP extends AbstractNamespace{
   		paramsNumber2.addRequired("value", 		DefaultParameter2.Type.scalar	);
   		paramsNumber2.addRequired("inputImage", DefaultParameter2.Type.image 	);
   		
-  		Object[] parametersFinal = new Object[3];
+  		Object[] parametersFinal = new Object[5];
 		parametersFinal[0] = operationType;
+		parametersFinal[4] = nThread;
 		String opName = null;
 		
   		if ( paramsImage.parseInput( args ) )
   		{
+  			parametersFinal[3] = outputImage( paramsImage.get("inputImage1"), output );
   			cipService.convertToMajorType(paramsImage.get("inputImage1") , paramsImage.get("inputImage2"), operationType );
   			parametersFinal[1] = paramsImage.get("inputImage1").value;
   			parametersFinal[2] = paramsImage.get("inputImage2").value;
@@ -753,6 +1214,7 @@ public class CIP extends AbstractNamespace{
   		else if (  paramsNumber.parseInput( args )   )
   		{
   			// adapt input data structure (Img for image, net.Imglib2.Type for scalar) type and return type string
+  			parametersFinal[3] = outputImage( paramsNumber.get("inputImage"), output );
   			cipService.convertToMajorType(paramsNumber.get("inputImage") , paramsNumber.get("value"), operationType );
   			parametersFinal[1] = paramsNumber.get("inputImage").value;
   			parametersFinal[2] = paramsNumber.get("value").value;
@@ -761,6 +1223,7 @@ public class CIP extends AbstractNamespace{
   		else if ( paramsNumber2.parseInput( args )  )
   		{
   			// adapt input data structure (Img for image, net.Imglib2.Type for scalar) type and return type string
+  			parametersFinal[3] = outputImage( paramsNumber2.get("inputImage"), output );
   			cipService.convertToMajorType(paramsNumber2.get("inputImage") , paramsNumber2.get("value"), operationType );
   			parametersFinal[1] = paramsNumber2.get("value").value;
   			parametersFinal[2] = paramsNumber2.get("inputImage").value;
@@ -771,7 +1234,7 @@ public class CIP extends AbstractNamespace{
   			return null;
   		}
   		
-  		return ops().run( opName , parametersFinal ); 
+  		return runOp( opName , parametersFinal ); 
   		
   	}   
        
@@ -821,7 +1284,10 @@ public class CIP extends AbstractNamespace{
 
     
     @OpMethod(op = CIP.MathBinary.class )
-   	private Object moreMath2Operation( String operationType , final Object[] args ) {
+   	private Object moreMath2Operation( String operationType , Object[] args ) {
+   		
+   		Object[] output = new Object[2];
+   		args = outputArguments( args, output );
    		
    		FunctionParameters2 paramsImage = new FunctionParameters2("MinImageImage");
   		paramsImage.addRequired("inputImage1", 	DefaultParameter2.Type.image 	);
@@ -835,12 +1301,14 @@ public class CIP extends AbstractNamespace{
   		paramsNumber2.addRequired("value", 		DefaultParameter2.Type.scalar	);
   		paramsNumber2.addRequired("inputImage", DefaultParameter2.Type.image 	);
   		
-  		Object[] parametersFinal = new Object[3];
+  		Object[] parametersFinal = new Object[5];
 		parametersFinal[0] = operationType;
+		parametersFinal[4] = nThread;
 		String opName = null;
 		String opBaseName = "MoreMathOperationCIP";
   		if ( paramsImage.parseInput( args ) )
   		{
+  			parametersFinal[3] = outputImage( paramsImage.get("inputImage1"), output );
   			cipService.convertToMajorType(paramsImage.get("inputImage1") , paramsImage.get("inputImage2"), operationType );
   			parametersFinal[1] = paramsImage.get("inputImage1").value;
   			parametersFinal[2] = paramsImage.get("inputImage2").value;
@@ -849,6 +1317,7 @@ public class CIP extends AbstractNamespace{
   		else if (  paramsNumber.parseInput( args )   )
   		{
   			// adapt input data structure (Img for image, net.Imglib2.Type for scalar) type and return type string
+  			parametersFinal[3] = outputImage( paramsNumber.get("inputImage"), output );
   			cipService.convertToMajorType(paramsNumber.get("inputImage") , paramsNumber.get("value"), operationType );
   			parametersFinal[1] = paramsNumber.get("inputImage").value;
   			parametersFinal[2] = paramsNumber.get("value").value;
@@ -857,6 +1326,7 @@ public class CIP extends AbstractNamespace{
   		else if ( paramsNumber2.parseInput( args )  )
   		{
   			// adapt input data structure (Img for image, net.Imglib2.Type for scalar) type and return type string
+  			parametersFinal[3] = outputImage( paramsNumber2.get("inputImage"), output );
   			cipService.convertToMajorType(paramsNumber2.get("inputImage") , paramsNumber2.get("value"), operationType );
   			parametersFinal[1] = paramsNumber2.get("value").value;
   			parametersFinal[2] = paramsNumber2.get("inputImage").value;
@@ -867,7 +1337,7 @@ public class CIP extends AbstractNamespace{
   			return null;
   		}
   		
-  		return ops().run( opName , parametersFinal ); 
+  		return runOp( opName , parametersFinal ); 
   		
   	}
     
@@ -1065,8 +1535,55 @@ public class CIP extends AbstractNamespace{
     
     
     
+    // the math methods accept the pairs "out", image to write the result in an existing image and "inplace", true
+    // to write it in the input image, these pairs are removed from args and their values stored in output
+    private static Object[] outputArguments( Object[] args, Object[] output ) {
+    	
+    	List<Object> remaining = new ArrayList<Object>();
+    	for( int i=0; i<args.length; i++ ) {
+    		if( i+1 < args.length && args[i] instanceof String ) {
+    			String key = ((String) args[i]).toLowerCase();
+    			if( key.equals("out") && Checks.isImage( args[i+1] ) ) {
+    				output[0] = args[++i];
+    				continue;
+    			}
+    			if( key.equals("inplace") && args[i+1] instanceof Boolean ) {
+    				output[1] = args[++i];
+    				continue;
+    			}
+    		}
+    		remaining.add( args[i] );
+    	}
+    	return remaining.toArray();
+    }
+    
+    
+    // the image receiving the result of a math operation, null if a new image should be created
+    private Object outputImage( DefaultParameter2 inputImage, Object[] output ) {
+    	
+    	DefaultParameter2 out = null;
+    	if( output[0] != null ) {
+    		out = new DefaultParameter2( "out", DefaultParameter2.Type.image );
+    		out.value = output[0];
+    	}
+    	else if( Boolean.TRUE.equals( output[1] ) ) {
+    		// the input before its conversion to the operation type
+    		cipService.toImglib2Image( inputImage );
+    		out = inputImage;
+    	}
+    	if( out == null )
+    		return null;
+    	cipService.toImglib2Image( out );
+    	return out.value;
+    }
+    
+    
+    
     @OpMethod(op = CIP.MathUnary.class )
-   	private Object math1Operation( String operationType , final Object[] args ) {
+   	private Object math1Operation( String operationType , Object[] args ) {
+   		
+   		Object[] output = new Object[2];
+   		args = outputArguments( args, output );
    		
    		FunctionParameters2 paramsImage = new FunctionParameters2("image function");
   		paramsImage.addRequired("param1", 	DefaultParameter2.Type.image 	);
@@ -1081,6 +1598,7 @@ public class CIP extends AbstractNamespace{
 		String opBaseName = "Math1OperationCIP";
   		if ( paramsImage.parseInput( args ) )
   		{
+  			parametersFinal = new Object[] { operationType, null, outputImage( paramsImage.get("param1"), output ), nThread };
   			parametersFinal[1] = paramsImage.get("param1").value;
   			opName = "Image_"+opBaseName;
   		}
@@ -1094,10 +1612,328 @@ public class CIP extends AbstractNamespace{
   			return null;
   		}
   		
-  		return ops().run( opName , parametersFinal ); 
+  		return runOp( opName , parametersFinal ); 
+  		
+  	}
+    
+    
+    
+	/**
+	 * Expression method, evaluates an arithmetic expression of images and numbers in a single pass over the pixels
+	 * e.g. cip.expr("sqrt(a*a + b*b) - 3", "a", img1, "b", img2)
+	 *
+	 * @author Benoit Lombardot
+	 *
+	 * @param args an expression followed by pairs of variable name and value (image or number), the pair
+	 * 			"nthread", number sets the number of threads
+	 * @return a float image, or a number if no variable is an image
+	 */
+    @OpMethod(op = ExpressionCIP.class )
+   	public Object expr( final Object... args ) {
+   		
+   		if( args.length < 1 || !( args[0] instanceof String ) || args.length % 2 != 1 ) {
+   			System.err.println("CIP expr: an expression followed by pairs of variable name and value is expected");
+   			return null;
+   		}
+   		
+   		LinkedHashMap<String, Object> variables = new LinkedHashMap<String, Object>();
+   		Integer nThreadExpr = nThread;
+   		for( int i=1; i<args.length; i+=2 ) {
+   			if( !( args[i] instanceof String ) ) {
+   				System.err.println("CIP expr: variable name expected at position " + i );
+   				return null;
+   			}
+   			String name = (String) args[i];
+   			Object value = args[i+1];
+   			if( name.toLowerCase().equals("nthread") && Checks.isScalar( value ) ) {
+   				nThreadExpr = ((Number) value).intValue();
+   				continue;
+   			}
+   			if( Checks.isImage( value ) ) {
+   				DefaultParameter2 param = new DefaultParameter2( name, DefaultParameter2.Type.image );
+   				param.value = value;
+   				cipService.toImglib2Image( param );
+   				value = param.value;
+   			}
+   			variables.put( name, value );
+   		}
+   		
+   		List<?> outputs = (List<?>) runOp( ExpressionCIP.class, args[0], variables, nThreadExpr );
+   		for( Object output : outputs )
+   			if( output != null )
+   				return output;
+   		return null;
+  	}
+
+
+
+
+    /********************************************************************************
+  	* logic : and, or, xor, andNot, not, gt, ge, eq, lt, le, ne						*
+  	*********************************************************************************/
+    
+    // the results are bit masks packed 64 pixels per long, for the logical operators a pixel is true if it is not 0
+    
+	/**
+	 * And method, cip.and(mask1, mask2)
+	 *
+	 * @author Benoit Lombardot
+	 *
+	 * @param args
+	 * @return
+	 */
+    public Object and( final Object... args ) {
+    	
+    	return logicOperation("and", args );
+    }
+
+	/**
+	 * Or method, cip.or(mask1, mask2)
+	 *
+	 * @author Benoit Lombardot
+	 *
+	 * @param args
+	 * @return
+	 */
+    public Object or( final Object... args ) {
+    	
+    	return logicOperation("or", args );
+    }
+
+	/**
+	 * Xor method, cip.xor(mask1, mask2)
+	 *
+	 * @author Benoit Lombardot
+	 *
+	 * @param args
+	 * @return
+	 */
+    public Object xor( final Object... args ) {
+    	
+    	return logicOperation("xor", args );
+    }
+
+	/**
+	 * Logic subtraction, cip.andNot(mask1, mask2) is true where mask1 is true and mask2 is false
+	 *
+	 * @author Benoit Lombardot
+	 *
+	 * @param args
+	 * @return
+	 */
+    public Object andNot( final Object... args ) {
+    	
+    	return logicOperation("andnot", args );
+    }
+
+	/**
+	 * Not method, cip.not(mask)
+	 *
+	 * @author Benoit Lombardot
+	 *
+	 * @param args
+	 * @return
+	 */
+    public Object not( final Object... args ) {
+    	
+    	return logicOperation("not", args );
+    }
+
+	/**
+	 * Greater than, cip.gt(img1, img2), cip.gt(img, value) or cip.gt(value, img)
+	 *
+	 * @author Benoit Lombardot
+	 *
+	 * @param args
+	 * @return
+	 */
+    public Object gt( final Object... args ) {
+    	
+    	return logicOperation("gt", args );
+    }
+
+	/**
+	 * Greater or equal
+	 *
+	 * @author Benoit Lombardot
+	 *
+	 * @param args
+	 * @return
+	 */
+    public Object ge( final Object... args ) {
+    	
+    	return logicOperation("ge", args );
+    }
+
+	/**
+	 * Equal
+	 *
+	 * @author Benoit Lombardot
+	 *
+	 * @param args
+	 * @return
+	 */
+    public Object eq( final Object... args ) {
+    	
+    	return logicOperation("eq", args );
+    }
+
+	/**
+	 * Lower than
+	 *
+	 * @author Benoit Lombardot
+	 *
+	 * @param args
+	 * @return
+	 */
+    public Object lt( final Object... args ) {
+    	
+    	return logicOperation("lt", args );
+    }
+
+	/**
+	 * Lower or equal
+	 *
+	 * @author Benoit Lombardot
+	 *
+	 * @param args
+	 * @return
+	 */
+    public Object le( final Object... args ) {
+    	
+    	return logicOperation("le", args );
+    }
+
+	/**
+	 * Not equal
+	 *
+	 * @author Benoit Lombardot
+	 *
+	 * @param args
+	 * @return
+	 */
+    public Object ne( final Object... args ) {
+    	
+    	return logicOperation("ne", args );
+    }
+    
+    
+    
+    @OpMethod(op = LogicOperationCIP.class )
+   	private Object logicOperation( String operationType , Object[] args ) {
+   		
+   		FunctionParameters2 paramsImage = new FunctionParameters2("logic image");
+  		paramsImage.addRequired("inputImage1", 	DefaultParameter2.Type.image 	);
+  		paramsImage.addRequired("inputImage2", 	DefaultParameter2.Type.image 	);
+  		paramsImage.addOptional("nthread", 		DefaultParameter2.Type.numeric ,	nThread	);
+
+   		FunctionParameters2 paramsNumber = new FunctionParameters2("logic number");
+  		paramsNumber.addRequired("inputImage", 	DefaultParameter2.Type.image 	);
+  		paramsNumber.addRequired("value", 		DefaultParameter2.Type.scalar	);
+  		paramsNumber.addOptional("nthread", 	DefaultParameter2.Type.numeric ,	nThread	);
+  		
+  		FunctionParameters2 paramsNumber2 = new FunctionParameters2("logic number2");
+  		paramsNumber2.addRequired("value", 		DefaultParameter2.Type.scalar	);
+  		paramsNumber2.addRequired("inputImage", DefaultParameter2.Type.image 	);
+  		paramsNumber2.addOptional("nthread", 	DefaultParameter2.Type.numeric ,	nThread	);
+  		
+   		FunctionParameters2 paramsNot = new FunctionParameters2("logic not");
+  		paramsNot.addRequired("inputImage", 	DefaultParameter2.Type.image 	);
+  		paramsNot.addOptional("nthread", 		DefaultParameter2.Type.numeric ,	nThread	);
+  		
+  		Object[] parametersFinal = new Object[4];
+		parametersFinal[0] = operationType;
+		
+		if ( operationType.equals("not") && paramsNot.parseInput( args ) )
+		{
+			cipService.toImglib2Image( paramsNot.get("inputImage") );
+			parametersFinal[1] = paramsNot.get("inputImage").value;
+			parametersFinal[3] = paramsNot.get("nthread").value;
+		}
+		else if ( paramsImage.parseInput( args ) )
+  		{
+  			cipService.toImglib2Image( paramsImage.get("inputImage1") );
+  			cipService.toImglib2Image( paramsImage.get("inputImage2") );
+  			parametersFinal[1] = paramsImage.get("inputImage1").value;
+  			parametersFinal[2] = paramsImage.get("inputImage2").value;
+  			parametersFinal[3] = paramsImage.get("nthread").value;
+  		}
+  		else if (  paramsNumber.parseInput( args )   )
+  		{
+  			cipService.toImglib2Image( paramsNumber.get("inputImage") );
+  			parametersFinal[1] = paramsNumber.get("inputImage").value;
+  			parametersFinal[2] = paramsNumber.get("value").value;
+  			parametersFinal[3] = paramsNumber.get("nthread").value;
+  		}
+  		else if ( paramsNumber2.parseInput( args )  )
+  		{
+  			// value op image is evaluated as image op' value, op' being the mirrored comparison
+  			cipService.toImglib2Image( paramsNumber2.get("inputImage") );
+  			parametersFinal[0] = mirroredComparison( operationType );
+  			parametersFinal[1] = paramsNumber2.get("inputImage").value;
+  			parametersFinal[2] = paramsNumber2.get("value").value;
+  			parametersFinal[3] = paramsNumber2.get("nthread").value;
+  		}
+  		else
+  		{
+  			return null;
+  		}
+  		
+  		if( parametersFinal[3] instanceof Number )
+  			parametersFinal[3] = ((Number) parametersFinal[3]).intValue();
+  		
+  		return runOp( LogicOperationCIP.class , parametersFinal ); 
   		
   	}
+    
+    
+    private static String mirroredComparison( String operationType ) {
+    	
+    	switch( operationType ) {
+    	case "gt": return "lt";
+    	case "ge": return "le";
+    	case "lt": return "gt";
+    	case "le": return "ge";
+    	default: return operationType;
+    	}
+    }
+
+
+
+	/**
+	 * Open method, maps the planes of an uncompressed tiff or raw file in memory without reading them: the pixels are
+	 * read from the file when they are first used. The image is read only, cip.duplicate(img, "deep") gives a
+	 * writable copy, e.g. cip.open("stack.tif") or cip.open("stack.raw", [512, 512, 100], "uint16")
+	 *
+	 * @author Benoit Lombardot
+	 *
+	 * @param args the path of a file, for a raw file the image size followed optionally by the pixel type (uint8 by
+	 * 			default), the position of the first pixel in bytes (0 by default) and the byte order (little or big)
+	 * @return a read only image
+	 */
+    @OpMethod(op = OpenCIP.class)
+    public Object open( final Object... args ) {
+
+   		Object results = null;
+
+   		FunctionParameters2 params = new FunctionParameters2("openCIP");
+		params.addRequired("path", 			DefaultParameter2.Type.string	);
+		params.addOptional("dimensions", 	DefaultParameter2.Type.numeric,	null		);
+		params.addOptional("type",			DefaultParameter2.Type.string, 	"uint8"		);
+		params.addOptional("offset",		DefaultParameter2.Type.scalar, 	0			);
+		params.addOptional("byteOrder",		DefaultParameter2.Type.string, 	"little"	);
+
+		if ( params.parseInput( args ) )
+		{
+			results = runOp( OpenCIP.class , params.getParsedInput() );
+		}
+		else
+		{
+			System.err.println("CIP open: the path of a tiff or raw file is expected");
+		}
 
+   		return results;
+    }
 
 
 
@@ -1150,7 +1986,7 @@ public class CIP extends AbstractNamespace{
   			//TODO: error message
   			return null;
   		}
-		results = ops().run( CreateCIP.class, paramsFinal );
+		results = runOp( CreateCIP.class, paramsFinal );
 
   		return results; 
   	}
@@ -1177,7 +2013,7 @@ public class CIP extends AbstractNamespace{
 		
 		if ( params.parseInput( args ) )
 		{
-			results = ops().run( ProjectCIP.class , params.getParsedInput() );
+			results = runOp( ProjectCIP.class , params.getParsedInput() );
 		}
 		else 
 		{
@@ -1208,7 +2044,7 @@ public class CIP extends AbstractNamespace{
 
 		if ( params.parseInput( args ) )
 		{
-			results = ops().run( DuplicateCIP.class , params.getParsedInput() );
+			results = runOp( DuplicateCIP.class , params.getParsedInput() );
 		}
 		else 
 		{
@@ -1225,7 +2061,9 @@ public class CIP extends AbstractNamespace{
 	 *
 	 * @author Benoit Lombardot
 	 *
-	 * @param args
+	 * @param args an image, the projected dimension, optionally the method (max, min, sum, argmax, argmin, mean,
+	 * 			stdev, median, percentile), the output type (projection, argument, both), the number of threads and
+	 * 			the percentile (in [0, 100]) of the percentile method
 	 * @return
 	 */
     @OpMethod(op = Project2CIP.class)
@@ -1238,10 +2076,12 @@ public class CIP extends AbstractNamespace{
 		params.addRequired("dimension", 	DefaultParameter2.Type.scalar	);
 		params.addOptional("method",		DefaultParameter2.Type.string, 	"max"		);
 		params.addOptional("outputType",	DefaultParameter2.Type.string, 	"projection");
+		params.addOptional("nthread", 		DefaultParameter2.Type.numeric,	nThread		);
+		params.addOptional("percentile", 	DefaultParameter2.Type.scalar,	50.0		);
 		
 		if ( params.parseInput( args ) )
 		{
-			List<Object> resultsTemp = (List<Object>) ops().run( Project2CIP.class , params.getParsedInput() );
+			List<Object> resultsTemp = (List<Object>) runOp( Project2CIP.class , params.getParsedInput() );
 			
 			///////////////////////////////////////////////////////////////////////////////
 			// check if one of the output is null and discard it from the results list
@@ -1380,6 +2220,135 @@ public class CIP extends AbstractNamespace{
 		nThread = Math.max(1 , nThread);
 		this.nThread = nThread;
 	}
+
+	/**
+	 * Set where the disk-backed images of the tiled method are stored
+	 *
+	 * @author Benoit Lombardot
+	 *
+	 * @param directory directory of the image files, null for temporary files deleted at exit
+	 * @param cacheSize maximum memory used by the cells of one image, in bytes
+	 */
+	public void setOutOfCore( String directory, long cacheSize )
+	{
+		this.tileDirectory = directory;
+		this.cacheSize = Math.max(1 , cacheSize);
+	}
+
+
+	/**
+	 * Set the memory budget of the batch method
+	 *
+	 * @author Benoit Lombardot
+	 *
+	 * @param memory memory that the images processed at the same time can use, in bytes
+	 */
+	public void setBatchMemory( long memory )
+	{
+		this.batchMemory = Math.max(1 , memory);
+	}
+
+	/**
+	 * A CIP function prepared by the prepare method
+	 */
+	public interface Prepared {
+		Object run( Object... args );
+	}
+
+	/**
+	 * Prepare method, looks up a CIP function once and returns it as an object that can be called repeatedly, e.g.
+	 * gauss = cip.prepare("gauss") then gauss.run(tile, 2) for each tile. The first call parses the arguments and
+	 * matches the op. The next calls with images of the same classes and number of dimensions and the same other
+	 * arguments run that op directly on the new images, without parsing nor matching. Functions that run several ops
+	 * or compute the inputs of their op (e.g. watershed, threshold, tiled) are called as usual and only reuse the
+	 * matched ops (as every CIP function, prepared or not), cf. PreparedFunction
+	 *
+	 * @author Benoit Lombardot
+	 *
+	 * @param function the name of a CIP function, e.g. gauss, add, watershed
+	 * @return the prepared function, or null if CIP has no function of that name
+	 */
+	public Prepared prepare( String function )
+	{
+		final Method method;
+		try {
+			method = CIP.class.getMethod( function, Object[].class );
+		}
+		catch( NoSuchMethodException e ) {
+			System.err.println("CIP prepare: there is no CIP function called " + function );
+			return null;
+		}
+		return new PreparedFunction( this, method, opCache );
+	}
+
+	/**
+	 * Forget the ops matched by the previous calls, e.g. after new ops were added to the context
+	 *
+	 * @author Benoit Lombardot
+	 */
+	public void clearOpCache()
+	{
+		opCache.clear();
+	}
+
+	/**
+	 * Batch method, applies a CIP function, or a chain of functions, to each image of a list. The images are processed
+	 * at the same time, one per thread (cf. setNumberOfthread), as long as they fit in the memory budget (cf.
+	 * setBatchMemory). This is faster than the multithreading of each function for many small images. Each step is
+	 * prepared once (cf. prepare): its arguments are parsed and its op matched on the first image, the next images
+	 * of the same type and number of dimensions run the op directly. Functions running several ops are called for
+	 * each image. e.g. cip.batch(images, "gauss", 2) or cip.batch(images, ["gauss", 2], ["threshold", 100])
+	 *
+	 * @author Benoit Lombardot
+	 *
+	 * @param args a list of images followed by the name of a function and its arguments without the image, or by
+	 * 			several steps, each a list with the name of a function and its arguments, the output of a step is the
+	 * 			image of the next one
+	 * @return the list of the outputs of the last function, in the order of the images (null for an image on which
+	 * 			a function failed)
+	 */
+	public Object batch( final Object... args )
+	{
+		if( args.length < 2 || !( args[0] instanceof List || args[0] instanceof Object[] ) ) {
+			System.err.println("CIP batch: a list of images followed by a function and its arguments is expected");
+			return null;
+		}
+		final List<?> images = args[0] instanceof List ? (List<?>) args[0] : Arrays.asList( (Object[]) args[0] );
+
+		final List<Object[]> steps = new ArrayList<Object[]>();
+		if( args[1] instanceof String )
+			steps.add( Arrays.copyOfRange( args, 1, args.length ) );
+		else
+			for( int i=1; i<args.length; i++ ) {
+				final Object[] step = args[i] instanceof List ? ((List<?>) args[i]).toArray() : args[i] instanceof Object[] ? (Object[]) args[i] : null;
+				if( step == null || step.length == 0 || !( step[0] instanceof String ) ) {
+					System.err.println("CIP batch: each step should be a list starting with the name of a function");
+					return null;
+				}
+				steps.add( step );
+			}
+
+		// the threads left when there are fewer images than threads are given to the functions
+		final int nThreadBatch = Math.max( 1, Math.min( nThread, images.size() ) );
+		final CIP worker = new CIP( this, Math.max( 1, nThread / nThreadBatch ) );
+		final Prepared[] functions = new Prepared[ steps.size() ];
+		final Object[][] arguments = new Object[ steps.size() ][];
+		for( int s=0; s<steps.size(); s++ ) {
+			final Object[] step = steps.get(s);
+			functions[s] = worker.prepare( (String) step[0] );
+			if( functions[s] == null )
+				return null;
+			arguments[s] = Arrays.copyOfRange( step, 1, step.length );
+		}
+
+		return Batch.run( images, functions, arguments, nThreadBatch, batchMemory );
+	}
+
+	// runs an op given by its name or its type through the cache of matched ops
+	private Object runOp( Object op, Object... args )
+	{
+		return opCache.run( ops(), op, args );
+	}
 	
 	
 	
@@ -20,14 +20,22 @@ import net.imagej.ImageJService;
 import net.imagej.ops.OpService;
 import net.imglib2.IterableInterval;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converter;
+import net.imglib2.converter.Converters;
 import net.imglib2.img.Img;
 import net.imglib2.type.Type;
 import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.ByteType;
 import net.imglib2.type.numeric.integer.IntType;
 import net.imglib2.type.numeric.integer.LongType;
 import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.view.Views;
  
@@ -130,6 +138,19 @@ public class CIPService extends AbstractService implements ImageJService {
 	
 	
 	
+	// if true, images are promoted to the major type with a read-only converted view instead of a converted copy
+	boolean lazyConversion = true;
+	
+	public boolean isLazyConversion() {
+		return lazyConversion;
+	}
+	
+	public void setLazyConversion( boolean lazyConversion ) {
+		this.lazyConversion = lazyConversion;
+	}
+	
+	
+	
 	public void convertToMajorType( DefaultParameter2 parameter1 , DefaultParameter2 parameter2, String operationType )
 	{
 		toImglib2Object( parameter1 );
@@ -288,6 +309,16 @@ public class CIPService extends AbstractService implements ImageJService {
 	@SuppressWarnings("unchecked")
 	public <T extends RealType<T>> void updateImgType( DefaultParameter2 parameter , String type)
 	{
+		if( lazyConversion && parameter.value instanceof RandomAccessibleInterval )
+		{
+			RealType<?> majorType = createType( type );
+			if( majorType != null ) {
+				// the values are converted when they are read, no image is allocated
+				parameter.value = convertedView( (RandomAccessibleInterval<T>) parameter.value, majorType );
+				return;
+			}
+		}
+		
 		IterableInterval<T> input = null;
 		if( parameter.value instanceof RandomAccessibleInterval )
 		{
@@ -424,6 +455,46 @@ public class CIPService extends AbstractService implements ImageJService {
 	
 		
 	
+	/**
+	 * @return a read-only view of the input with the given pixel type, integer values are copied as long to keep their
+	 * 			precision. The conversion casts the values like the op.convert() ops.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public static <T extends RealType<T>> RandomAccessibleInterval<?> convertedView( RandomAccessibleInterval<T> input, RealType<?> type )
+	{
+		final boolean isInteger = input.randomAccess().get() instanceof IntegerType  &&  type instanceof IntegerType;
+		final Converter<T, RealType> converter;
+		if( isInteger )
+			converter = (i, o) -> ((IntegerType) o).setInteger( ((IntegerType<?>) i).getIntegerLong() );
+		else
+			converter = (i, o) -> o.setReal( i.getRealDouble() );
+		
+		return Converters.convert( input, converter, (RealType) type );
+	}
+	
+	
+	/**
+	 * @return a new pixel of the given type, null for the logical types which are converted with a copy
+	 */
+	static RealType<?> createType( String type )
+	{
+		switch( type ) {
+		case "ByteType":			return new ByteType();
+		case "UnsignedByteType":	return new UnsignedByteType();
+		case "ShortType":			return new ShortType();
+		case "UnsignedShortType":	return new UnsignedShortType();
+		case "IntType":				return new IntType();
+		case "UnsignedIntType":		return new UnsignedIntType();
+		case "FloatType":			return new FloatType();
+		case "LongType":			return new LongType();
+		case "UnsignedLongType":	return new UnsignedLongType();
+		case "DoubleType":			return new DoubleType();
+		default:					return null;
+		}
+	}
+	
+	
+	
 	public static String findCompatibleType( String type1 , String type2 )
 	{
 	
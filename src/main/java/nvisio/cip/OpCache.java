@@ -0,0 +1,191 @@
+package nvisio.cip;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.scijava.Context;
+import org.scijava.convert.ConvertService;
+import org.scijava.module.Module;
+import org.scijava.module.ModuleException;
+import org.scijava.module.ModuleInfo;
+import org.scijava.module.ModuleItem;
+import org.scijava.service.Service;
+
+import ij.ImagePlus;
+import net.imagej.ops.Environmental;
+import net.imagej.ops.Op;
+import net.imagej.ops.OpEnvironment;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.util.Util;
+
+
+/**
+ *
+ * Cache of the ops run by the CIP namespace. Ops matching looks at every op of the requested name or type and tries
+ * to convert the arguments to the inputs of each candidate, which can take longer than the op itself on small
+ * images. The cache keeps the op matched for an op name or type, the classes of the arguments and the pixel type
+ * and number of dimensions of the images. The next calls with the same key create this op directly, convert the arguments to the
+ * types of its inputs as the matching would and run it.
+ *
+ * @author Benoit Lombardot
+ *
+ */
+final class OpCache {
+
+	private final ConcurrentHashMap< List<Object>, ModuleInfo > infos = new ConcurrentHashMap< List<Object>, ModuleInfo >();
+
+	// ops run by the current thread while a prepared function records them, cf. PreparedFunction
+	private final ThreadLocal< List<Object[]> > calls = new ThreadLocal< List<Object[]> >();
+
+
+	/**
+	 * @param ops the op environment
+	 * @param op the name (String) or the type (Class) of the op
+	 * @param args the arguments of the op
+	 * @return the output of the op, or the list of its outputs if it has several (as OpEnvironment.run)
+	 */
+	@SuppressWarnings("unchecked")
+	Object run( OpEnvironment ops, Object op, Object... args )
+	{
+		final List<Object> key = key( op, args );
+		ModuleInfo info = infos.get( key );
+		final Module module;
+		if( info != null )
+			module = module( ops, info, args );
+		else {
+			module = op instanceof String ? ops.module( (String) op, args ) : ops.module( (Class<? extends Op>) op, args );
+			info = module.getInfo();
+			infos.putIfAbsent( key, info );
+		}
+
+		final Object result = ops.run( module );
+		final List<Object[]> recorded = calls.get();
+		if( recorded != null )
+			recorded.add( new Object[] { info, args, result } );
+		return result;
+	}
+
+
+	/**
+	 * runs an op already matched, without looking at the cache
+	 *
+	 * @param ops the op environment
+	 * @param info the op
+	 * @param args the arguments of the op
+	 * @return the output of the op, or the list of its outputs if it has several
+	 */
+	Object run( OpEnvironment ops, ModuleInfo info, Object... args )
+	{
+		return ops.run( module( ops, info, args ) );
+	}
+
+
+	/**
+	 * starts recording the ops run by the current thread, each as {ModuleInfo, arguments, output}
+	 *
+	 * @return the calls recorded before, to give back to stopRecording
+	 */
+	List<Object[]> startRecording()
+	{
+		final List<Object[]> previous = calls.get();
+		calls.set( new ArrayList<Object[]>() );
+		return previous;
+	}
+
+
+	/**
+	 * @param previous the value returned by startRecording
+	 * @return the ops run since startRecording
+	 */
+	List<Object[]> stopRecording( List<Object[]> previous )
+	{
+		final List<Object[]> recorded = calls.get();
+		calls.set( previous );
+		if( previous != null )
+			previous.addAll( recorded );
+		return recorded;
+	}
+
+
+	/** forgets the matched ops */
+	void clear()
+	{
+		infos.clear();
+	}
+
+
+	private static List<Object> key( Object op, Object[] args )
+	{
+		final List<Object> key = new ArrayList<Object>( 2*args.length + 1 );
+		key.add( op );
+		for( Object arg : args )
+			key.add( arg instanceof Interval || arg instanceof ImagePlus ? image( arg ) : arg == null ? null : arg.getClass() );
+		return key;
+	}
+
+
+	/**
+	 * @param image an image (Interval or ImagePlus)
+	 * @return what the matching and the type promotion of the CIP functions depend on: the class of the image, the
+	 * 			class of its pixels (the bit depth of an ImagePlus) and its number of dimensions
+	 */
+	static List<Object> image( Object image )
+	{
+		if( image instanceof ImagePlus )
+			return Arrays.asList( image.getClass(), ((ImagePlus) image).getBitDepth(), -1 );
+		final Interval interval = (Interval) image;
+		boolean empty = false;
+		for( int d=0; d<interval.numDimensions(); d++ )
+			empty |= interval.dimension(d) <= 0;
+		Object pixel = null;
+		if( interval instanceof RandomAccessibleInterval && !empty )
+			pixel = Util.getTypeFromInterval( (RandomAccessibleInterval<?>) interval ).getClass();
+		return Arrays.asList( image.getClass(), pixel, interval.numDimensions() );
+	}
+
+
+	// same steps as the op matching once the op is chosen: context injection, environment, conversion of the inputs
+	private static Module module( OpEnvironment ops, ModuleInfo info, Object[] args )
+	{
+		final Module module;
+		try {
+			module = info.createModule();
+		}
+		catch( ModuleException e ) {
+			throw new IllegalStateException( "CIP: the op " + info + " could not be created", e );
+		}
+		final Context context = ops.getContext();
+		final Object op = module.getDelegateObject();
+		context.inject( op );
+		if( op instanceof Environmental )
+			((Environmental) op).setEnvironment( ops );
+
+		ConvertService convert = null;
+		int i = 0;
+		for( ModuleItem<?> item : info.inputs() )
+		{
+			final Class<?> type = item.getType();
+			if( Service.class.isAssignableFrom( type ) || Context.class.isAssignableFrom( type ) )
+				continue; // filled by the context
+			final Object arg = i < args.length ? args[i] : null;
+			i++;
+			if( arg != null ) {
+				Object value = arg;
+				if( !type.isInstance( arg ) ) {
+					if( convert == null )
+						convert = context.service( ConvertService.class );
+					final Type genericType = item.getGenericType();
+					value = convert.convert( arg, genericType );
+				}
+				module.setInput( item.getName(), value );
+			}
+			module.resolveInput( item.getName() );
+		}
+		return module;
+	}
+
+}
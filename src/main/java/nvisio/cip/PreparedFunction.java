@@ -0,0 +1,170 @@
+package nvisio.cip;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.scijava.module.ModuleInfo;
+
+import ij.ImagePlus;
+import net.imglib2.Interval;
+
+
+/**
+ *
+ * A CIP function looked up once, cf. CIP.prepare. The first call with some arguments runs the CIP function and
+ * records the ops it runs. If the function parsed its arguments into a single op, whose inputs are the arguments
+ * themselves or constants, the op and the positions of the arguments in its inputs are kept as the plan of these
+ * arguments. The next calls with images of the same classes, pixel types and number of dimensions and with equal
+ * other arguments skip the parsing and the op matching and run the op on the new images. The other functions (several ops, inputs
+ * computed from the images, ...) are called as usual and only benefit from the op cache.
+ *
+ * @author Benoit Lombardot
+ *
+ */
+final class PreparedFunction implements CIP.Prepared {
+
+	private final CIP cip;
+	private final Method method;
+	private final OpCache opCache;
+	private final ConcurrentHashMap< List<Object>, Plan > plans = new ConcurrentHashMap< List<Object>, Plan >();
+
+	// the arguments have no plan, the function is called
+	private static final Plan NONE = new Plan( null, null, null );
+
+
+	PreparedFunction( CIP cip, Method method, OpCache opCache )
+	{
+		this.cip = cip;
+		this.method = method;
+		this.opCache = opCache;
+	}
+
+
+	@Override
+	public Object run( Object... args )
+	{
+		final List<Object> key = key( args );
+		final Plan plan = key == null ? NONE : plans.get( key );
+		if( plan == NONE )
+			return invoke( args );
+		if( plan != null )
+			return opCache.run( cip.ops(), plan.info, plan.opArgs( args ) );
+
+		// a call that fails leaves no plan, the next call with these arguments records again
+		final List<Object[]> previous = opCache.startRecording();
+		final Object result;
+		final List<Object[]> calls;
+		try {
+			result = invoke( args );
+		}
+		finally {
+			calls = opCache.stopRecording( previous );
+		}
+		plans.putIfAbsent( key, plan( args, calls, result ) );
+		return result;
+	}
+
+
+	private Object invoke( Object[] args )
+	{
+		try {
+			return method.invoke( cip, new Object[] { args } );
+		}
+		catch( InvocationTargetException e ) {
+			if( e.getCause() instanceof RuntimeException )
+				throw (RuntimeException) e.getCause();
+			throw new IllegalStateException( e.getCause() );
+		}
+		catch( IllegalAccessException e ) {
+			throw new IllegalStateException( e );
+		}
+	}
+
+
+	// images are described by their class, pixel type and number of dimensions (cf. OpCache.image), the other
+	// arguments by their value. null if an argument cannot be compared (e.g. a mutable object), then the function is
+	// always called
+	private static List<Object> key( Object[] args )
+	{
+		final List<Object> key = new ArrayList<Object>( 2*args.length );
+		for( Object arg : args ) {
+			if( arg instanceof Interval || arg instanceof ImagePlus )
+				key.add( OpCache.image( arg ) );
+			else if( arg instanceof Object[] ) {
+				final List<Object> values = new ArrayList<Object>();
+				for( Object value : (Object[]) arg ) {
+					if( !isConstant( value ) )
+						return null;
+					values.add( value );
+				}
+				key.add( arg.getClass() );
+				key.add( values );
+			}
+			else if( isConstant( arg ) ) {
+				key.add( arg == null ? null : arg.getClass() );
+				key.add( arg );
+			}
+			else
+				return null;
+		}
+		return key;
+	}
+
+
+	private static boolean isConstant( Object value )
+	{
+		return value == null || value instanceof Number || value instanceof String || value instanceof Boolean || value instanceof Character;
+	}
+
+
+	// the function is replaced by its op if it ran a single op, returned its output and gave it only its own
+	// arguments or constants
+	private static Plan plan( Object[] args, List<Object[]> calls, Object result )
+	{
+		if( calls.size() != 1 )
+			return NONE;
+		final Object[] call = calls.get(0);
+		final Object[] opArgs = (Object[]) call[1];
+		if( call[2] != result )
+			return NONE;
+
+		final int[] source = new int[ opArgs.length ];
+		for( int i=0; i<opArgs.length; i++ ) {
+			source[i] = -1;
+			for( int j=0; j<args.length && source[i] < 0; j++ )
+				if( opArgs[i] == args[j] && args[j] != null )
+					source[i] = j;
+			if( source[i] < 0 && !isConstant( opArgs[i] ) )
+				return NONE;
+		}
+		return new Plan( (ModuleInfo) call[0], opArgs.clone(), source );
+	}
+
+
+	private static final class Plan {
+
+		final ModuleInfo info;
+		final Object[] constants;
+		final int[] source; // argument of the function given to each input of the op, -1 for a constant
+
+		Plan( ModuleInfo info, Object[] constants, int[] source )
+		{
+			this.info = info;
+			this.constants = constants;
+			this.source = source;
+		}
+
+		Object[] opArgs( Object[] args )
+		{
+			final Object[] opArgs = constants.clone();
+			for( int i=0; i<opArgs.length; i++ )
+				if( source[i] >= 0 )
+					opArgs[i] = args[ source[i] ];
+			return opArgs;
+		}
+	}
+
+}
@@ -0,0 +1,229 @@
+package nvisio.cip.filter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.scijava.ItemIO;
+import org.scijava.plugin.Parameter;
+
+import nvisio.cip.parameters.Format;
+import net.imagej.ops.AbstractOp;
+
+import net.imglib2.FinalDimensions;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.stats.ComputeMinMax;
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+
+// TODO:
+	//	[x] create an abstract class to centralize parameter handling (should be the same for gradient, laplacian, hessian )
+	//	[-] scale normalized derivatives
+
+	// derivatives are computed with separable passes shared between the components (cf. GaussDerivatives)
+
+	/**
+	 *
+	 * @author Benoit Lombardot
+	 *
+	 */
+
+	abstract class AbstractDerivativeCIP  < T extends RealType<T> & NativeType< T > > extends AbstractOp
+	{
+
+
+
+		@Parameter (type = ItemIO.INPUT)
+		protected RandomAccessibleInterval<T> inputImage;
+
+		@Parameter( label="radius/radii", persist=false, required=false ) // with persist and required set to false the parameter become optional
+		protected Float[] radius;
+
+		@Parameter( label="Boundary handling", persist=false, required=false ) // with persist and required set to false the parameter become optional
+		protected String boundaryMethod;
+
+		String[] boundaryMethods = new String[] {"zero", "one", "min", "max", "same", "mirror", "periodic"};
+
+
+
+		@Parameter( label="Pixel size", persist=false, required=false ) // with persist and required set to false the parameter become optional
+		protected Float[] pixelSize;
+
+		@Parameter( label="Method", persist=false, required=false ) // with persist and required set to false the parameter become optional
+		protected String method;
+
+		String[] methods = new String[] {"fir", "iir", "auto"};
+
+
+		@Parameter( label="number of Threads", persist=false, required=false ) // with persist and required set to false the parameter become optional
+		protected Integer nThread = 1 ;
+
+		@Parameter( label="output", persist=false, required=false ) // with persist and required set to false the parameter become optional
+		protected String outputType; // meaning depends on the derivative, cf. subclasses
+
+
+
+		@Parameter (type = ItemIO.OUTPUT)
+		protected	RandomAccessibleInterval<FloatType> outputImage;
+
+
+
+		T minT;
+		T maxT;
+
+		// gaussian standard deviation in pixel
+		protected double[] sigma;
+
+		protected double[] pixSize;
+
+		// value out of the image if boundaryMethod is "value"
+		protected T boundaryValue;
+
+		public abstract void processInput();
+
+
+		@Override
+		public void run() {
+
+			if ( inputImage == null){
+				//TODO: Error! no image was provided
+				return;
+			}
+
+
+			int nDim = inputImage.numDimensions();
+
+			pixelSize = Format.perDim(pixelSize, nDim);
+			if (pixelSize == null )
+				return;
+
+			radius = Format.perDim(radius, nDim);
+			if (radius == null )
+				return;
+
+			// radius is assumed to in the same unit as pixelSize
+			sigma = new double[nDim];
+			pixSize = new double[nDim];
+			for(int d=0; d<nDim; d++ ) {
+				sigma[d] = radius[d] / pixelSize[d];
+				pixSize[d] = pixelSize[d];
+			}
+
+
+			if( boundaryMethod == null  ||  !Arrays.asList( boundaryMethods ).contains( boundaryMethod )  )
+				boundaryMethod = "mirror";
+
+			if ( boundaryMethod.equals("min") || boundaryMethod.equals("max") )
+				computeMinMax();
+
+			T valueT = inputImage.randomAccess().get().createVariable();
+
+			if ( boundaryMethod.equals( "min" ) ){
+				valueT = minT;
+				boundaryMethod="value";
+			}
+			else if ( boundaryMethod.equals( "max" ) ){
+				valueT = maxT;
+				boundaryMethod="value";
+			}
+			else if ( boundaryMethod.equals( "zero" ) ){
+				valueT.setZero();
+				boundaryMethod="value";
+			}
+			else if ( boundaryMethod.equals( "one" ) ){
+				valueT.setOne();
+				boundaryMethod="value";
+			}
+			boundaryValue = valueT;
+
+
+			if( method == null  ||  !Arrays.asList( methods ).contains( method.toLowerCase() )  )
+				method = "auto";
+			method = method.toLowerCase();
+
+			if( nThread == null || nThread < 1 )
+				nThread = 1;
+
+
+
+			///////////////////////////////////////////////////////////////////////
+			// process the input image
+			///////////////////////////////////////////////////////////////////////
+
+			processInput();
+
+		}
+
+
+
+		/**
+		 * @return a float image with the size of the input and an extra last dimension with nComponent elements
+		 */
+		protected Img<FloatType> createComponents( int nComponent )
+		{
+			int nDim = inputImage.numDimensions();
+			long[] dims = new long[nDim+1];
+			for(int d=0; d<nDim; d++)
+				dims[d] = inputImage.dimension(d);
+			dims[nDim] = nComponent;
+			return Util.getArrayOrCellImgFactory( new FinalDimensions( dims ), new FloatType() ).create( dims, new FloatType() );
+		}
+
+
+		/**
+		 * @return a float image with the size of the input
+		 */
+		protected Img<FloatType> createImage()
+		{
+			int nDim = inputImage.numDimensions();
+			long[] dims = new long[nDim];
+			inputImage.dimensions( dims );
+			return Util.getArrayOrCellImgFactory( new FinalDimensions( dims ), new FloatType() ).create( dims, new FloatType() );
+		}
+
+
+		/**
+		 * @return the slices of an image along its last dimension
+		 */
+		protected static List< RandomAccessibleInterval<FloatType> > components( RandomAccessibleInterval<FloatType> image )
+		{
+			int last = image.numDimensions()-1;
+			List< RandomAccessibleInterval<FloatType> > components = new ArrayList< RandomAccessibleInterval<FloatType> >();
+			for(long c=0; c<image.dimension(last); c++)
+				components.add( Views.hyperSlice( image, last, c ) );
+			return components;
+		}
+
+
+		/**
+		 * compute the gaussian derivatives of the input with the given orders (cf. GaussDerivatives)
+		 *
+		 * @return an image with one derivative per element of its last dimension
+		 */
+		protected Img<FloatType> derivatives( int[][] orders )
+		{
+			Img<FloatType> output = createComponents( orders.length );
+			GaussDerivatives.derivatives( inputImage, components( output ), orders, sigma, pixSize, method, boundaryMethod, boundaryValue, nThread );
+			return output;
+		}
+
+
+
+		private void computeMinMax(){
+
+			if( minT==null ) {
+				minT = inputImage.randomAccess().get().createVariable();
+				maxT = minT.createVariable();
+				ComputeMinMax.computeMinMax(inputImage, minT, maxT);
+			}
+		}
+
+
+
+
+}
@@ -13,6 +13,7 @@ import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.morphology.StructuringElements;
 import net.imglib2.algorithm.neighborhood.Shape;
 import net.imglib2.algorithm.stats.ComputeMinMax;
+import net.imglib2.img.Img;
 
 import net.imglib2.outofbounds.OutOfBoundsFactory;
 import net.imglib2.type.NativeType;
@@ -26,8 +27,9 @@ import net.imglib2.type.numeric.RealType;
 	//	[x] implement top hat
 	
 
-	//Current implementation relies on imglib2-algorithms
-	// plan to implement wilkinson/urbach strategy for random structuring element in ImgAlgo, possibly fast rectangle implementation by 
+	//Current implementation relies on imglib2-algorithms, except for rectangles and ellipsoids that are decomposed
+	// in segments and processed with van Herk/Gil-Werman algorithm (cf. LineMorphology)
+	// plan to implement wilkinson/urbach strategy for random structuring element in ImgAlgo
 	
 	/**
 	 * 
@@ -83,6 +85,12 @@ import net.imglib2.type.numeric.RealType;
 		T minT;
 		T maxT;
 		
+		// decomposition of the structuring element in segments, null if the strel is not decomposed in segments
+		protected List< LineMorphology.Segment > segments;
+		
+		// value out of the image if boundaryMethod is "value"
+		protected T boundaryValue;
+		
 		public abstract void processInput(RandomAccessibleInterval<T> source, List< Shape > strels , OutOfBoundsFactory<T,RandomAccessibleInterval<T>> outOfBoundFactory, int nThread );
 		
 		
@@ -128,6 +136,7 @@ import net.imglib2.type.numeric.RealType;
 				valueT = maxT;
 				boundaryMethod="value";
 			}
+			boundaryValue = valueT;
 
 			
 			
@@ -140,29 +149,12 @@ import net.imglib2.type.numeric.RealType;
 			// build the structuring element as required by user (cf. shape, pixRadius )
 			/////////////////////////////////////////////////////////////////////////////////////
 			
-			boolean isotropic=true;
-			for(int d=1 ; d<nDim; d++)
-				if (  (int)pixRadius[d-1] != (int)pixRadius[d]  )
-					isotropic = false;
-			
-			if ( shape == null )
-				shape = "rectangle";
-			shape = shape.toLowerCase();
+			shape = LineMorphology.shape( shape );
 			
 			List< Shape > strels = null;
 			int[] intPixRadius = new int[nDim];
 			boolean decompose = true;
 			
-			if ( shape.equals("square") || shape.equals("cube") || shape.equals("hyperrectangle") )
-				shape = "rectangle";
-			//
-			//else if ( shape.equals("sphere") || shape.equals("hypersphere") || shape.equals("ellipsoid") || shape.equals("hyperEllipsoid") )
-			//	shape = "disk";
-			
-			if( shape.equals("disk") ) // only works in 2D at the moment
-				if (nDim != 2 && !isotropic )
-					shape="rectangle";
-
 			
 			switch( shape ) {
 			
@@ -170,16 +162,21 @@ import net.imglib2.type.numeric.RealType;
 				for(int d=0; d<nDim; d++)
 					intPixRadius[d] = (int) pixRadius[d];
 				strels = StructuringElements.rectangle( intPixRadius , decompose );
+				segments = LineMorphology.rectangle( intPixRadius );
 				break;
 					
-			case "disk" : // only in isotropic 2D
-				strels = StructuringElements.disk( (long)pixRadius[0], nDim );
+			case "disk" : // ellipsoid with the radius of each dimension
+				if( LineMorphology.isSmallDisk( pixRadius ) ) // small disks are not well approximated by segments
+					strels = StructuringElements.disk( (long)pixRadius[0], nDim );
+				else
+					segments = LineMorphology.ellipsoid( pixRadius );
 				break;
 				
 			default : // rectangle
 				for(int d=0; d<nDim; d++)
 					intPixRadius[d] = (int) pixRadius[d];
 				strels = StructuringElements.rectangle( intPixRadius , decompose );
+				segments = LineMorphology.rectangle( intPixRadius );
 				break;
 				
 			}
@@ -203,6 +200,35 @@ import net.imglib2.type.numeric.RealType;
 
 		
 		
+		/**
+		 * process the source with the segments decomposition of the structuring element. The source is extended with
+		 * the boundary method and, for opening, closing and tophat, the first operation is computed over the padded
+		 * extent before the second one, as with erodeFull/dilateFull (cf. LineMorphology.apply). For "full" output the
+		 * source is first copied in a padded image which is processed in place, the only image allocated. For "same"
+		 * output, opening, closing and tophat allocate the output and a padded copy of the source.
+		 * 
+		 * @param nOperation number of erosion/dilation in the operation
+		 */
+		protected Img<T> segmentMorphology( RandomAccessibleInterval<T> source, LineMorphology.Operation operation, int nOperation, int nThread )
+		{
+			int nDim = source.numDimensions();
+			long[] padding = new long[nDim];
+			if( outputType.equals("full") ) {
+				long[] extent = LineMorphology.extent( segments, nDim );
+				for(int d=0; d<nDim; d++)
+					padding[d] = nOperation * extent[d];
+				Img<T> target = LineMorphology.copy( source, padding, boundaryMethod, boundaryValue, nThread );
+				LineMorphology.apply( target, target, segments, operation, boundaryMethod, boundaryValue, nThread );
+				return target;
+			}
+			
+			Img<T> target = LineMorphology.create( source, padding );
+			LineMorphology.apply( source, target, segments, operation, boundaryMethod, boundaryValue, nThread );
+			return target;
+		}
+		
+		
+		
 		private void computeMinMax(){
 			
 			if( minT==null ) {
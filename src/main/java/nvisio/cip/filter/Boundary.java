@@ -0,0 +1,83 @@
+package nvisio.cip.filter;
+
+
+/**
+ *
+ * Index based counterpart of {@link nvisio.cip.parameters.Format#outOfBoundFactory(String, net.imglib2.type.numeric.RealType)}.
+ * Array based filters use it to resolve out of bounds positions along one axis without going
+ * through an extended view. The mirror method follows imglib2 OutOfBoundsMirrorFactory.Boundary.SINGLE
+ * (the border pixel is not repeated).
+ *
+ * @author Benoit Lombardot
+ *
+ */
+public final class Boundary {
+
+	private Boundary() {}
+
+
+	/**
+	 * @param method a boundary method as accepted by Format.outOfBoundFactory ("value", "zeros", "same", "periodic", "mirror")
+	 * @return true if out of bounds pixels take a constant value
+	 */
+	public static boolean isConstant( String method )
+	{
+		return method.equals("value") || method.equals("zeros");
+	}
+
+
+	/**
+	 * map a position along an axis of the given size to an in bounds position
+	 *
+	 * @param method boundary method
+	 * @param pos position to map
+	 * @param size size of the axis
+	 * @return the in bounds position or -1 if the position is out of bounds and the boundary is constant
+	 */
+	public static int map( String method, long pos, long size )
+	{
+		if( pos>=0 && pos<size )
+			return (int)pos;
+
+		if( isConstant(method) )
+			return -1;
+
+		switch( method ) {
+
+		case "same":
+			return pos<0 ? 0 : (int)(size-1);
+
+		case "periodic":
+			long p = pos % size;
+			return (int)( p<0 ? p+size : p );
+
+		default: // "mirror"
+			if( size == 1 )
+				return 0;
+			long period = 2*size-2;
+			long q = pos % period;
+			if( q<0 )
+				q += period;
+			return (int)( q<size ? q : period-q );
+		}
+	}
+
+
+	/**
+	 *
+	 * @param method boundary method
+	 * @param size size of the axis
+	 * @param before number of out of bounds position needed before the axis start
+	 * @param after number of out of bounds position needed after the axis end
+	 * @return map[ pos + before ] is the in bound position of pos (or -1 for a constant boundary), for pos in [-before, size-1+after]
+	 */
+	public static int[] indexMap( String method, int size, int before, int after )
+	{
+		int[] map = new int[before + size + after];
+		for( int i=0; i<map.length; i++)
+			map[i] = map(method, i-before, size);
+
+		return map;
+	}
+
+}
@@ -49,6 +49,12 @@ import net.imglib2.util.Util;
 			// process the input image											
 			///////////////////////////////////////////////////////////////////////
 			
+			if( segments != null )
+			{
+				outputImage = segmentMorphology( source, LineMorphology.Operation.closing, 2, nThread );
+				return;
+			}
+			
 			RandomAccessibleInterval<T> target = source;
 			for ( final Shape strel : strels )
 			{
@@ -1,12 +1,12 @@
 package nvisio.cip.filter;
 
+import java.util.Arrays;
 import java.util.List;
 
 import org.scijava.ItemIO;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
-import invizio.imgalgo.util.RAI;
 import ij.IJ;
 import ij.ImagePlus;
 import nvisio.cip.CIP;
@@ -18,11 +18,8 @@ import net.imglib2.img.Img;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.type.BooleanType;
 import net.imglib2.type.NativeType;
-import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.type.numeric.integer.IntType;
 import net.imglib2.type.numeric.real.FloatType;
-import net.imglib2.view.Views;
 
 
 /**
@@ -31,6 +28,11 @@ import net.imglib2.view.Views;
  *
  */
 
+	// output "distance" (default): distance of the foreground pixels to the background
+	// output "signed": signed distance to the object boundaries, negative inside the objects
+	// output "feature": value of the closest foreground pixel, i.e. the label of the closest object for a label image
+	// output "index": linear index (flat iteration order) of the closest foreground pixel, -1 if there is no foreground
+
 	
 	@Plugin(type = CIP.DISTANCE.class, name=CIP.DISTANCE.NAME, headless = true)
 	public class DistanceCIP  < T extends RealType<T> & NativeType< T > > extends AbstractOp 
@@ -44,8 +46,16 @@ import net.imglib2.view.Views;
 		@Parameter( label="Pixel size", persist=false, required=false ) // with persist and required set to false the parameter become optional
 		private Float[] pixelSize;
 		
+		@Parameter( label="number of Threads", persist=false, required=false ) // with persist and required set to false the parameter become optional
+		private Integer nThread = 1;
+		
+		@Parameter( label="output", persist=false, required=false ) // with persist and required set to false the parameter become optional
+		private String outputType;
+		
+		String[] outputTypes = new String[] { "distance", "signed", "feature", "index" };
+		
 		@Parameter (type = ItemIO.OUTPUT)
-		private	RandomAccessibleInterval<IntType> distanceMap;
+		private	RandomAccessibleInterval<?> distanceMap;
 		
 		@Parameter
 		OpService op;
@@ -95,6 +105,7 @@ import net.imglib2.view.Views;
 			else if( pixelSize.length < nDim )
 			{
 				//TODO: Error, the pixelSize is not consistent with the image dimension ( pixelSize.length vs. nDim )
+				return;
 			}
 			else if( pixelSize.length > nDim )
 			{
@@ -107,39 +118,32 @@ import net.imglib2.view.Views;
 				//TODO: Warning! to many elements in pixelSize, only the nDim first will be used 
 			}
 
-			// TODO: Not compile with <BitType> casting, please consider it again
-			// RandomAccessibleInterval<BitType> mask;
-			RandomAccessibleInterval mask;
+			// build a distance map, foreground pixels are above the threshold (true pixels for a logical image)
+			double[] pixSize = new double[nDim];
+			for(int d=0 ; d<nDim ; d++)
+				pixSize[d] = pixelSize[d];
 			
-			if( imageType.equals("numeric") )
-			{
-				// duplicate the original image
-				RandomAccessibleInterval<T> inputCopy = RAI.duplicate( inputImage );
-				
-				// threshold the input image
-				T T_threshold = inputCopy.randomAccess().get().createVariable();
-				T_threshold.setReal( threshold );
-				
-				
-				mask = (RandomAccessibleInterval<BitType>) op.threshold().apply(Views.iterable(inputCopy), T_threshold);
-			}
-			else
-			{
-				// TODO: Not compile with <BitType> casting, temporarily remove <BitType> casting
-				// mask = (RandomAccessibleInterval<BitType>) inputImage;
-				mask =  inputImage;
-			}
+			if( nThread == null || nThread < 1 )
+				nThread = 1;
 			
-			// build a distance map
-			if( nDim==1)
-				distanceMap = op.image().distancetransform( mask , pixelSize[0]);
-			else if( nDim==2)
-				distanceMap = op.image().distancetransform( mask , pixelSize[0], pixelSize[1]);
-			else if( nDim==3)
-				distanceMap = op.image().distancetransform( mask , pixelSize[0], pixelSize[1], pixelSize[2]);
-			else if( nDim==4)
-				distanceMap = op.image().distancetransform( mask , pixelSize[0], pixelSize[1], pixelSize[2], pixelSize[3]);
+			if ( outputType == null  ||  !Arrays.asList( outputTypes ).contains( outputType.toLowerCase() ) )
+				outputType = "distance";
+			outputType = outputType.toLowerCase();
 			
+			double thresh = imageType.equals("boolean") ? 0 : threshold;
+			switch( outputType ) {
+			case "signed":
+				distanceMap = DistanceTransform.signedDistance( inputImage, thresh, pixSize, nThread );
+				break;
+			case "feature":
+				distanceMap = DistanceTransform.nearestValue( inputImage, thresh, pixSize, nThread );
+				break;
+			case "index":
+				distanceMap = DistanceTransform.nearestIndex( inputImage, thresh, pixSize, nThread );
+				break;
+			default:
+				distanceMap = DistanceTransform.distance( inputImage, thresh, pixSize, nThread );
+			}
 			
 		}
 
@@ -166,7 +170,7 @@ import net.imglib2.view.Views;
 			cip.setContext( ij.getContext() );
 			cip.setEnvironment( ij.op() );
 			@SuppressWarnings("unchecked")
-			RandomAccessibleInterval<IntType> distMap = (RandomAccessibleInterval<IntType>)
+			RandomAccessibleInterval<FloatType> distMap = (RandomAccessibleInterval<FloatType>)
 						cip.distance(img, threshold, CIP.asimg( 1, 0.5)  );
 			
 			String str = distMap==null ? "null" : distMap.toString();
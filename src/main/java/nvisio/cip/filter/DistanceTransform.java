@@ -0,0 +1,348 @@
+package nvisio.cip.filter;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+
+/**
+ *
+ * Exact euclidean distance transform, after Felzenszwalb and Huttenlocher "Distance transforms of sampled
+ * functions" (Theory of Computing, 2012). The squared distance is computed one axis after the other as the lower
+ * envelope of parabolas along each line, the lines of an axis being processed in parallel. The pixel size enters
+ * the parabolas so anisotropic images are handled without resampling.
+ * The distances to the foreground and to the background, and the position of the closest foreground pixel (feature
+ * transform), are propagated together so that the signed distance and the nearest seed come out of the same passes.
+ *
+ * @author Benoit Lombardot
+ *
+ */
+public final class DistanceTransform {
+
+	private DistanceTransform() {}
+
+
+	/**
+	 * @param input image, pixels above threshold are foreground
+	 * @param threshold pixels above this value are foreground
+	 * @param pixelSize size of the pixels along each dimension
+	 * @param nThread number of threads
+	 * @return the distance of each foreground pixel to the closest background pixel (0 on the background, infinity
+	 * 			if the image has no background)
+	 */
+	public static < T extends RealType<T> > Img<FloatType> distance( RandomAccessibleInterval<T> input, double threshold, double[] pixelSize, int nThread )
+	{
+		Img<FloatType> output = Util.getArrayOrCellImgFactory( input, new FloatType(0) ).create( input, new FloatType(0) );
+		distance( input, threshold, output, pixelSize, nThread );
+		return output;
+	}
+
+
+	/**
+	 * same as {@link #distance(RandomAccessibleInterval, double, double[], int)}, in a given output of the size of the input
+	 */
+	public static < T extends RealType<T> > void distance( RandomAccessibleInterval<T> input, final double threshold, RandomAccessibleInterval<FloatType> output,
+			double[] pixelSize, int nThread )
+	{
+		transform( input, threshold, pixelSize, output, null, null, false, nThread );
+	}
+
+
+	/**
+	 * @return the signed distance to the object boundary, negative on the foreground (distance to the closest
+	 * 			background pixel) and positive on the background (distance to the closest foreground pixel)
+	 */
+	public static < T extends RealType<T> > Img<FloatType> signedDistance( RandomAccessibleInterval<T> input, double threshold, double[] pixelSize, int nThread )
+	{
+		Img<FloatType> inside = Util.getArrayOrCellImgFactory( input, new FloatType(0) ).create( input, new FloatType(0) );
+		Img<FloatType> output = Util.getArrayOrCellImgFactory( input, new FloatType(0) ).create( input, new FloatType(0) );
+		transform( input, threshold, pixelSize, inside, output, null, true, nThread );
+		return output;
+	}
+
+
+	/**
+	 * @return for each pixel the linear index (in flat iteration order of the input) of the closest foreground
+	 * 			pixel, -1 if the image has no foreground
+	 */
+	public static < T extends RealType<T> > Img<LongType> nearestIndex( RandomAccessibleInterval<T> input, double threshold, double[] pixelSize, int nThread )
+	{
+		Img<FloatType> outside = Util.getArrayOrCellImgFactory( input, new FloatType(0) ).create( input, new FloatType(0) );
+		Img<LongType> feature = Util.getArrayOrCellImgFactory( input, new LongType() ).create( input, new LongType() );
+		transform( input, threshold, pixelSize, null, outside, feature, false, nThread );
+		return feature;
+	}
+
+
+	/**
+	 * @return for each pixel the value of the input at the closest foreground pixel, i.e. the label of the closest
+	 * 			object for a label image (0 if the image has no foreground)
+	 */
+	public static < T extends RealType<T> & NativeType<T> > Img<T> nearestValue( final RandomAccessibleInterval<T> input, double threshold, double[] pixelSize, int nThread )
+	{
+		final Img<LongType> feature = nearestIndex( input, threshold, pixelSize, nThread );
+		final T type = input.randomAccess().get().createVariable();
+		final Img<T> output = Util.getArrayOrCellImgFactory( input, type ).create( input, type );
+
+		final int nDim = input.numDimensions();
+		final long[] dims = new long[nDim];
+		final long[] min = new long[nDim];
+		input.dimensions( dims );
+		input.min( min );
+		final long nPixel = numElements( dims );
+
+		final int nChunk = Parallel.nChunk( nPixel, nThread );
+		Parallel.run( nChunk, nThread, (chunk)-> {
+			final long start = nPixel*chunk/nChunk;
+			final long end = nPixel*(chunk+1)/nChunk;
+			final Cursor<LongType> index = Views.flatIterable( feature ).cursor();
+			final Cursor<T> out = Views.flatIterable( output ).cursor();
+			index.jumpFwd( start );
+			out.jumpFwd( start );
+			final RandomAccess<T> in = input.randomAccess();
+			for( long i=start; i<end; i++ ) {
+				long l = index.next().get();
+				T value = out.next();
+				if( l < 0 ) {
+					value.setZero();
+					continue;
+				}
+				for( int d=0; d<nDim; d++ ) {
+					in.setPosition( min[d] + l % dims[d], d );
+					l /= dims[d];
+				}
+				value.set( in.get() );
+			}
+		});
+		return output;
+	}
+
+
+	/**
+	 * Compute in a single set of axis passes the squared distances to the background (inside) and to the foreground
+	 * (outside), and the index of the closest foreground pixel (feature). Each map is optional (null) but the feature
+	 * requires the outside map. The distances are square rooted during the last pass. If signed is true, the outside
+	 * map receives the signed distance, it then requires both maps.
+	 */
+	static < T extends RealType<T> > void transform( final RandomAccessibleInterval<T> input, final double threshold, final double[] pixelSize,
+			final RandomAccessibleInterval<FloatType> inside, final RandomAccessibleInterval<FloatType> outside,
+			final RandomAccessibleInterval<LongType> feature, final boolean signed, int nThread )
+	{
+		final int nDim = input.numDimensions();
+		final long[] dims = new long[nDim];
+		final long[] srcMin = new long[nDim];
+		input.dimensions( dims );
+		input.min( srcMin );
+		final long[] stride = new long[nDim];
+		for( int d=0; d<nDim; d++ )
+			stride[d] = d==0 ? 1 : stride[d-1]*dims[d-1];
+		final long nPixel = numElements( dims );
+
+		for( int d0=0; d0<nDim; d0++ ) {
+			final int d = d0;
+			final double weight = pixelSize[d]*pixelSize[d];
+			final boolean first = d == 0;
+			final boolean last = d == nDim-1;
+			final int L = (int) dims[d];
+			final long nLine = nPixel / L;
+
+			final int nChunk = Parallel.nChunk( nLine, nThread );
+			Parallel.run( nChunk, nThread, (chunk)-> {
+				final long start = nLine*chunk/nChunk;
+				final long end = nLine*(chunk+1)/nChunk;
+				final RandomAccess<T> src = input.randomAccess();
+				final RandomAccess<FloatType> in = inside == null ? null : inside.randomAccess();
+				final RandomAccess<FloatType> out = outside == null ? null : outside.randomAccess();
+				final RandomAccess<LongType> feat = feature == null ? null : feature.randomAccess();
+				final Envelope envelope = new Envelope();
+				final long[] pos = new long[nDim];
+				final double[] inLine = new double[L];
+				final double[] outLine = new double[L];
+				final long[] featLine = new long[L];
+				for( long i=start; i<end; i++ ) {
+					long l = i;
+					long base = 0;
+					for( int e=0; e<nDim; e++ ) {
+						if( e == d )
+							continue;
+						pos[e] = l % dims[e];
+						l /= dims[e];
+						base += pos[e]*stride[e];
+					}
+
+					// read the line
+					if( first ) {
+						setLine( src, srcMin, pos, d );
+						for( int k=0; k<L; k++ ) {
+							final boolean fg = src.get().getRealDouble() > threshold;
+							inLine[k] = fg ? Double.POSITIVE_INFINITY : 0;
+							outLine[k] = fg ? 0 : Double.POSITIVE_INFINITY;
+							featLine[k] = fg ? base + k*stride[d] : -1;
+							src.fwd( d );
+						}
+					}
+					else {
+						if( in != null ) {
+							setLine( in, inside, pos, d );
+							for( int k=0; k<L; k++ ) {
+								inLine[k] = in.get().getRealDouble();
+								in.fwd( d );
+							}
+						}
+						if( out != null ) {
+							setLine( out, outside, pos, d );
+							for( int k=0; k<L; k++ ) {
+								outLine[k] = out.get().getRealDouble();
+								out.fwd( d );
+							}
+						}
+						if( feat != null ) {
+							setLine( feat, feature, pos, d );
+							for( int k=0; k<L; k++ ) {
+								featLine[k] = feat.get().get();
+								feat.fwd( d );
+							}
+						}
+					}
+
+					// process the line
+					if( in != null )
+						envelope.squaredDistance( inLine, L, weight );
+					if( out != null )
+						envelope.squaredDistance( outLine, L, weight, feat == null ? null : featLine );
+					if( last ) {
+						for( int k=0; k<L; k++ ) {
+							inLine[k] = Math.sqrt( inLine[k] );
+							outLine[k] = signed && outLine[k] == 0 ? -inLine[k] : Math.sqrt( outLine[k] );
+						}
+					}
+
+					// write the line
+					if( in != null ) {
+						setLine( in, inside, pos, d );
+						for( int k=0; k<L; k++ ) {
+							in.get().setReal( inLine[k] );
+							in.fwd( d );
+						}
+					}
+					if( out != null ) {
+						setLine( out, outside, pos, d );
+						for( int k=0; k<L; k++ ) {
+							out.get().setReal( outLine[k] );
+							out.fwd( d );
+						}
+					}
+					if( feat != null ) {
+						setLine( feat, feature, pos, d );
+						for( int k=0; k<L; k++ ) {
+							feat.get().set( featLine[k] );
+							feat.fwd( d );
+						}
+					}
+				}
+			});
+		}
+	}
+
+
+	private static void setLine( RandomAccess<?> access, RandomAccessibleInterval<?> image, long[] pos, int d )
+	{
+		final long[] min = new long[ pos.length ];
+		image.min( min );
+		setLine( access, min, pos, d );
+	}
+
+
+	private static void setLine( RandomAccess<?> access, long[] min, long[] pos, int d )
+	{
+		for( int e=0; e<pos.length; e++ )
+			access.setPosition( min[e] + ( e==d ? 0 : pos[e] ), e );
+	}
+
+
+	private static long numElements( long[] dims )
+	{
+		long size = 1;
+		for( long dim : dims )
+			size *= dim;
+		return size;
+	}
+
+
+	/**
+	 * lower envelope of parabolas, work arrays are kept between lines
+	 */
+	static class Envelope
+	{
+		int[] v = new int[0];
+		double[] z = new double[0];
+		double[] f = new double[0];
+		long[] g = new long[0];
+
+
+		/**
+		 * replace f[q] by min over p of ( weight*(q-p)^2 + f[p] ), infinite values of f are skipped
+		 */
+		void squaredDistance( double[] line, int n, double weight )
+		{
+			squaredDistance( line, n, weight, null );
+		}
+
+
+		/**
+		 * same as above, feature[q] additionally receives the feature of the minimizing p (if feature is not null)
+		 */
+		void squaredDistance( double[] line, int n, double weight, long[] feature )
+		{
+			if( v.length < n ) {
+				v = new int[n];
+				z = new double[n+1];
+				f = new double[n];
+				g = new long[n];
+			}
+			System.arraycopy( line, 0, f, 0, n );
+			if( feature != null )
+				System.arraycopy( feature, 0, g, 0, n );
+
+			int k = -1;
+			for( int q=0; q<n; q++ ) {
+				if( f[q] == Double.POSITIVE_INFINITY )
+					continue;
+				double s = 0;
+				while( k >= 0 ) {
+					final int p = v[k];
+					s = ( ( f[q] + weight*q*q ) - ( f[p] + weight*p*p ) ) / ( 2*weight*(q-p) );
+					if( s > z[k] )
+						break;
+					k--;
+				}
+				k++;
+				v[k] = q;
+				z[k] = k==0 ? Double.NEGATIVE_INFINITY : s;
+				z[k+1] = Double.POSITIVE_INFINITY;
+			}
+
+			// no finite value on the line
+			if( k < 0 )
+				return;
+
+			k = 0;
+			for( int q=0; q<n; q++ ) {
+				while( z[k+1] < q )
+					k++;
+				final double dq = q - v[k];
+				line[q] = weight*dq*dq + f[ v[k] ];
+				if( feature != null )
+					feature[q] = g[ v[k] ];
+			}
+		}
+	}
+
+}
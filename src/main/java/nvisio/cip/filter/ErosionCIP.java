@@ -51,6 +51,12 @@ import net.imglib2.view.Views;
 			// process the input image											
 			///////////////////////////////////////////////////////////////////////
 			
+			if( segments != null )
+			{
+				outputImage = segmentMorphology( source, LineMorphology.Operation.erosion, 1, nThread );
+				return;
+			}
+			
 			RandomAccessibleInterval<T> target = source;
 			for ( final Shape strel : strels )
 			{
@@ -39,6 +39,7 @@ import net.imglib2.util.Util;
 // TODO
 //	[x] control the number of threads used -> it uses threadService
 //	[x] ops implementation relies on imglib2 gauss3
+//	[x] recursive implementation for large sigma, cost independent of sigma (cf. RecursiveGauss)
 	
 	@Plugin(type = Op.class, name="Gauss Convolution", headless = true)
 	public class GaussCIP  < T extends RealType<T> & NativeType< T > > extends AbstractOp 
@@ -61,6 +62,17 @@ import net.imglib2.util.Util;
 		
 		@Parameter( label="Pixel size", persist=false, required=false ) // with persist and required set to false the parameter become optional
 		private Float[] pixelSize;
+		
+		@Parameter( label="Method", persist=false, required=false ) // with persist and required set to false the parameter become optional
+		private String method;
+		
+		String[] methods = new String[] {"fir", "iir", "auto"};
+		
+		@Parameter( label="number of Threads", persist=false, required=false ) // with persist and required set to false the parameter become optional
+		private Integer nThread = 1;
+		
+		// with the auto method, the recursive filter is used if a sigma is at least this size, in pixel
+		static final double IIR_MIN_SIGMA = 3;
 				
 		
 		@Parameter (type = ItemIO.OUTPUT)
@@ -139,7 +151,24 @@ import net.imglib2.util.Util;
 			outputImage = imgFactory.create( inputImage, new FloatType(0) );
 			
 			
-			op.filter().gauss(outputImage, inputImage, pixRadius, outOfBoundFactory );
+			if( method == null  ||  !Arrays.asList( methods ).contains( method.toLowerCase() )  )
+				method = "fir";
+			method = method.toLowerCase();
+			
+			if( method.equals("auto") ) {
+				method = "fir";
+				for(int d=0; d<nDim; d++ )
+					if( pixRadius[d] >= IIR_MIN_SIGMA )
+						method = "iir";
+			}
+			
+			if( nThread == null || nThread < 1 )
+				nThread = 1;
+			
+			if( method.equals("iir") )
+				RecursiveGauss.gauss( inputImage, outputImage, pixRadius, boundaryMethod, valueT, nThread );
+			else
+				op.filter().gauss(outputImage, inputImage, pixRadius, outOfBoundFactory );
 			
 			
 			
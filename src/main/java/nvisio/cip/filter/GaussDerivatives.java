@@ -0,0 +1,340 @@
+package nvisio.cip.filter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+
+/**
+ *
+ * Gaussian derivatives of an image, computed with separable passes. A derivative is described by its order along
+ * each axis. Axes are processed one after the other and each pass smoothes the lines of its source only once, the
+ * derivatives of order 0, 1 and 2 along the axis being obtained with central differences of the smoothed line.
+ * Derivatives that have the same orders along the first axes share the passes over these axes: the 6 components
+ * of a 3D hessian need 10 smoothing passes instead of 18.
+ *
+ * @author Benoit Lombardot
+ *
+ */
+public final class GaussDerivatives {
+
+	private GaussDerivatives() {}
+
+	// with the auto method, an axis is smoothed with the recursive filter if its sigma is at least this size, in pixel
+	static final double IIR_MIN_SIGMA = 3;
+
+
+	/**
+	 * compute gaussian derivatives of the input
+	 *
+	 * @param input image to derive
+	 * @param outputs one image per derivative, with the same size as input
+	 * @param orders orders[c][d] is the derivation order (0, 1 or 2) of output c along axis d
+	 * @param sigma standard deviation of the gaussian along each dimension, in pixel
+	 * @param pixelSize derivatives are expressed per unit of pixelSize
+	 * @param method "fir", "iir" or "auto", cf. GaussCIP
+	 * @param boundaryMethod one of "value", "same", "mirror", "periodic"
+	 * @param boundaryValue value of the out of bounds pixels if boundaryMethod is "value"
+	 * @param nThread number of threads
+	 */
+	public static < T extends RealType<T> > void derivatives( RandomAccessibleInterval<T> input, List< RandomAccessibleInterval<FloatType> > outputs, int[][] orders,
+			double[] sigma, double[] pixelSize, String method, String boundaryMethod, T boundaryValue, int nThread )
+	{
+		final double constant = boundaryValue==null ? 0 : boundaryValue.getRealDouble();
+		List<Integer> components = new ArrayList<Integer>();
+		for( int c=0; c<orders.length; c++ )
+			components.add( c );
+
+		derivatives( input, 0, components, outputs, orders, sigma, pixelSize, method, boundaryMethod, constant, nThread );
+	}
+
+
+	/**
+	 * process axis d for components having the same orders along the axes before d
+	 */
+	private static < S extends RealType<S> > void derivatives( RandomAccessibleInterval<S> source, int d, List<Integer> components,
+			List< RandomAccessibleInterval<FloatType> > outputs, int[][] orders, double[] sigma, double[] pixelSize, String method,
+			String boundaryMethod, double constant, int nThread )
+	{
+		final int nDim = source.numDimensions();
+		final boolean last = d == nDim-1;
+
+		// orders needed along axis d
+		List<Integer> axisOrders = new ArrayList<Integer>();
+		for( int c : components )
+			if( !axisOrders.contains( orders[c][d] ) )
+				axisOrders.add( orders[c][d] );
+
+		List< RandomAccessibleInterval<FloatType> > targets = new ArrayList< RandomAccessibleInterval<FloatType> >();
+		for( int k : axisOrders ) {
+			if( last ) {
+				for( int c : components )
+					if( orders[c][d] == k )
+						targets.add( outputs.get(c) );
+			}
+			else
+				targets.add( LineMorphology.create( outputs.get(0), new long[nDim] ) );
+		}
+
+		final int[] ks = new int[ axisOrders.size() ];
+		for( int i=0; i<ks.length; i++ )
+			ks[i] = axisOrders.get(i);
+		pass( source, targets, ks, d, sigma[d], pixelSize[d], method, boundaryMethod, constant, nThread );
+
+		if( last )
+			return;
+
+		for( int i=0; i<ks.length; i++ ) {
+			List<Integer> branch = new ArrayList<Integer>();
+			for( int c : components )
+				if( orders[c][d] == ks[i] )
+					branch.add( c );
+			derivatives( targets.get(i), d+1, branch, outputs, orders, sigma, pixelSize, method, boundaryMethod, constant, nThread );
+			targets.set( i, null );
+		}
+	}
+
+
+	/**
+	 * @return true if the axis is smoothed with the recursive filter
+	 */
+	static boolean recursive( double sigma, String method )
+	{
+		if( method.equals("iir") )
+			return true;
+		if( method.equals("auto") )
+			return sigma >= IIR_MIN_SIGMA;
+		return false;
+	}
+
+
+	/**
+	 * smooth the lines of the source parallel to axis d once and write the derivatives of order ks[i] to targets.get(i)
+	 */
+	static < S extends RealType<S> > void pass( final RandomAccessibleInterval<S> source, final List< RandomAccessibleInterval<FloatType> > targets,
+			final int[] ks, final int d, final double sigma, final double pixelSize, final String method, final String boundary, final double constant, int nThread )
+	{
+		final int nDim = source.numDimensions();
+		final long[] dims = new long[nDim];
+		final long[] srcMin = new long[nDim];
+		source.dimensions( dims );
+		source.min( srcMin );
+		final int nTarget = targets.size();
+		final long[][] tgtMin = new long[nTarget][nDim];
+		for( int t=0; t<nTarget; t++ )
+			targets.get(t).min( tgtMin[t] );
+
+		// one more sample on each side for the central differences
+		final RecursiveGauss.LineFilter smoothing;
+		final int padding;
+		if( sigma <= 0 ) {
+			smoothing = (line, length)->{};
+			padding = 1;
+		}
+		else if( recursive( sigma, method ) ) {
+			smoothing = RecursiveGauss.lineFilter( sigma );
+			padding = RecursiveGauss.padding( sigma ) + 1;
+		}
+		else {
+			final double[] kernel = RecursiveGauss.kernel( sigma );
+			smoothing = (line, length) -> RecursiveGauss.convolve( line, length, kernel );
+			padding = kernel.length;
+		}
+
+		final int L = (int) dims[d];
+		final int[] map = Boundary.indexMap( boundary, L, padding, padding );
+		long size = 1;
+		for( int e=0; e<nDim; e++ )
+			size *= dims[e];
+		final long nLine = size / L;
+
+		final int nChunk = Parallel.nChunk( nLine, nThread );
+		Parallel.run( nChunk, nThread, (chunk)-> {
+			final long start = nLine*chunk/nChunk;
+			final long end = nLine*(chunk+1)/nChunk;
+			final RandomAccess<S> in = source.randomAccess();
+			final List< RandomAccess<FloatType> > out = new ArrayList< RandomAccess<FloatType> >();
+			for( RandomAccessibleInterval<FloatType> target : targets )
+				out.add( target.randomAccess() );
+			final long[] pos = new long[nDim];
+			final double[] values = new double[L];
+			final double[] line = new double[map.length];
+			for( long i=start; i<end; i++ ) {
+				long l = i;
+				for( int e=0; e<nDim; e++ ) {
+					if( e == d )
+						continue;
+					pos[e] = l % dims[e];
+					l /= dims[e];
+				}
+
+				for( int e=0; e<nDim; e++ )
+					in.setPosition( srcMin[e] + ( e==d ? 0 : pos[e] ), e );
+				for( int k=0; k<L; k++ ) {
+					values[k] = in.get().getRealDouble();
+					in.fwd( d );
+				}
+				for( int k=0; k<map.length; k++ )
+					line[k] = map[k]<0 ? constant : values[ map[k] ];
+
+				smoothing.filter( line, map.length );
+
+				for( int t=0; t<nTarget; t++ ) {
+					final RandomAccess<FloatType> ra = out.get(t);
+					for( int e=0; e<nDim; e++ )
+						ra.setPosition( tgtMin[t][e] + ( e==d ? 0 : pos[e] ), e );
+					for( int k=padding; k<padding+L; k++ ) {
+						final double v;
+						switch( ks[t] ) {
+						case 0 :
+							v = line[k];
+							break;
+						case 1 :
+							v = 0.5*( line[k+1] - line[k-1] ) / pixelSize;
+							break;
+						default :
+							v = ( line[k+1] - 2*line[k] + line[k-1] ) / ( pixelSize*pixelSize );
+							break;
+						}
+						ra.get().setReal( v );
+						ra.fwd( d );
+					}
+				}
+			}
+		});
+	}
+
+
+	/**
+	 * combine the values of several images pixel per pixel
+	 */
+	interface Combiner
+	{
+		void combine( double[] in, double[] out );
+	}
+
+
+	/**
+	 * apply a combiner to images of identical size and iteration order
+	 */
+	static void combine( final List< RandomAccessibleInterval<FloatType> > inputs, final List< RandomAccessibleInterval<FloatType> > outputs,
+			final Combiner combiner, int nThread )
+	{
+		long size = 1;
+		for( int d=0; d<inputs.get(0).numDimensions(); d++ )
+			size *= inputs.get(0).dimension(d);
+		final long nPixel = size;
+
+		final int nChunk = Parallel.nChunk( nPixel, nThread );
+		Parallel.run( nChunk, nThread, (chunk)-> {
+			final long start = nPixel*chunk/nChunk;
+			final long end = nPixel*(chunk+1)/nChunk;
+			final List< Cursor<FloatType> > in = new ArrayList< Cursor<FloatType> >();
+			for( RandomAccessibleInterval<FloatType> input : inputs ) {
+				Cursor<FloatType> cursor = Views.flatIterable( input ).cursor();
+				cursor.jumpFwd( start );
+				in.add( cursor );
+			}
+			final List< Cursor<FloatType> > out = new ArrayList< Cursor<FloatType> >();
+			for( RandomAccessibleInterval<FloatType> output : outputs ) {
+				Cursor<FloatType> cursor = Views.flatIterable( output ).cursor();
+				cursor.jumpFwd( start );
+				out.add( cursor );
+			}
+			final double[] inValues = new double[ in.size() ];
+			final double[] outValues = new double[ out.size() ];
+			for( long i=start; i<end; i++ ) {
+				for( int j=0; j<inValues.length; j++ )
+					inValues[j] = in.get(j).next().getRealDouble();
+				combiner.combine( inValues, outValues );
+				for( int j=0; j<outValues.length; j++ )
+					out.get(j).next().setReal( outValues[j] );
+			}
+		});
+	}
+
+
+	/**
+	 * @return the orders of the hessian components, (0,0), (0,1), ..., (0,n-1), (1,1), ..., (n-1,n-1)
+	 */
+	static int[][] hessianOrders( int nDim )
+	{
+		int[][] orders = new int[ nDim*(nDim+1)/2 ][nDim];
+		int c = 0;
+		for( int d=0; d<nDim; d++ )
+			for( int e=d; e<nDim; e++ ) {
+				orders[c][d]++;
+				orders[c][e]++;
+				c++;
+			}
+		return orders;
+	}
+
+
+	/**
+	 * eigenvalues of a symmetric matrix, cyclic Jacobi rotations
+	 *
+	 * @param upper upper triangle of the matrix, in the order of hessianOrders
+	 * @param n size of the matrix
+	 * @param eigenvalues filled with the eigenvalues in increasing order
+	 * @param a work array of size n*n
+	 */
+	static void symmetricEigenvalues( double[] upper, int n, double[] eigenvalues, double[] a )
+	{
+		int c = 0;
+		for( int i=0; i<n; i++ )
+			for( int j=i; j<n; j++ ) {
+				a[i*n+j] = upper[c];
+				a[j*n+i] = upper[c];
+				c++;
+			}
+
+		for( int sweep=0; sweep<50; sweep++ ) {
+			double off = 0;
+			double norm = 0;
+			for( int i=0; i<n; i++ )
+				for( int j=0; j<n; j++ ) {
+					norm += a[i*n+j]*a[i*n+j];
+					if( i != j )
+						off += a[i*n+j]*a[i*n+j];
+				}
+			if( off <= 1e-24*norm )
+				break;
+
+			for( int p=0; p<n; p++ )
+				for( int q=p+1; q<n; q++ ) {
+					final double apq = a[p*n+q];
+					if( apq == 0 )
+						continue;
+					final double theta = ( a[q*n+q] - a[p*n+p] ) / ( 2*apq );
+					final double t = Math.signum( theta==0 ? 1 : theta ) / ( Math.abs(theta) + Math.sqrt( theta*theta + 1 ) );
+					final double cos = 1 / Math.sqrt( t*t + 1 );
+					final double sin = t*cos;
+					for( int k=0; k<n; k++ ) {
+						final double akp = a[k*n+p];
+						final double akq = a[k*n+q];
+						a[k*n+p] = cos*akp - sin*akq;
+						a[k*n+q] = sin*akp + cos*akq;
+					}
+					for( int k=0; k<n; k++ ) {
+						final double apk = a[p*n+k];
+						final double aqk = a[q*n+k];
+						a[p*n+k] = cos*apk - sin*aqk;
+						a[q*n+k] = sin*apk + cos*aqk;
+					}
+				}
+		}
+
+		for( int i=0; i<n; i++ )
+			eigenvalues[i] = a[i*n+i];
+		Arrays.sort( eigenvalues, 0, n );
+	}
+
+}
@@ -0,0 +1,59 @@
+package nvisio.cip.filter;
+
+import java.util.Arrays;
+
+import org.scijava.plugin.Plugin;
+
+import net.imagej.ops.Op;
+
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ *
+ * @author Benoit Lombardot
+ *
+ */
+
+	// output "vector" (default): the gradient components are stacked along an extra last dimension
+	// output "norm": the gradient norm
+
+	@Plugin(type = Op.class, name="Gradient", headless = true)
+	public class GradientCIP  < T extends RealType<T> & NativeType< T > > extends AbstractDerivativeCIP<T>
+	{
+
+		String[] outputTypes = new String[] { "vector" , "norm" };
+
+
+		@Override
+		public void processInput()
+		{
+			if ( outputType == null  ||  !Arrays.asList( outputTypes ).contains( outputType.toLowerCase() ) )
+				outputType = "vector";
+			outputType = outputType.toLowerCase();
+
+			int nDim = inputImage.numDimensions();
+			int[][] orders = new int[nDim][nDim];
+			for(int d=0; d<nDim; d++)
+				orders[d][d] = 1;
+
+			Img<FloatType> gradient = derivatives( orders );
+
+			if( outputType.equals("vector") ) {
+				outputImage = gradient;
+				return;
+			}
+
+			Img<FloatType> norm = createImage();
+			GaussDerivatives.combine( components( gradient ), Arrays.asList( norm ), (in, out) -> {
+				double sum = 0;
+				for( double v : in )
+					sum += v*v;
+				out[0] = Math.sqrt( sum );
+			}, nThread );
+			outputImage = norm;
+		}
+
+}
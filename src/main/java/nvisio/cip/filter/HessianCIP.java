@@ -0,0 +1,54 @@
+package nvisio.cip.filter;
+
+import java.util.Arrays;
+
+import org.scijava.plugin.Plugin;
+
+import net.imagej.ops.Op;
+
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ *
+ * @author Benoit Lombardot
+ *
+ */
+
+	// output "matrix" (default): the upper triangle of the hessian, (0,0), (0,1), ..., (0,n-1), (1,1), ..., (n-1,n-1),
+	//							  stacked along an extra last dimension
+	// output "eigenvalues": the eigenvalues of the hessian in increasing order, stacked along an extra last dimension
+
+	@Plugin(type = Op.class, name="Hessian", headless = true)
+	public class HessianCIP  < T extends RealType<T> & NativeType< T > > extends AbstractDerivativeCIP<T>
+	{
+
+		String[] outputTypes = new String[] { "matrix" , "eigenvalues" };
+
+
+		@Override
+		public void processInput()
+		{
+			if ( outputType == null  ||  !Arrays.asList( outputTypes ).contains( outputType.toLowerCase() ) )
+				outputType = "matrix";
+			outputType = outputType.toLowerCase();
+
+			final int nDim = inputImage.numDimensions();
+			Img<FloatType> hessian = derivatives( GaussDerivatives.hessianOrders( nDim ) );
+
+			if( outputType.equals("matrix") ) {
+				outputImage = hessian;
+				return;
+			}
+
+			Img<FloatType> eigenvalues = createComponents( nDim );
+			final ThreadLocal<double[]> work = ThreadLocal.withInitial( () -> new double[nDim*nDim] );
+			GaussDerivatives.combine( components( hessian ), components( eigenvalues ), (in, out) -> {
+				GaussDerivatives.symmetricEigenvalues( in, nDim, out, work.get() );
+			}, nThread );
+			outputImage = eigenvalues;
+		}
+
+}
@@ -0,0 +1,569 @@
+package nvisio.cip.filter;
+
+import java.util.Arrays;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+
+/**
+ *
+ * Sliding histogram median filter for 1D, 2D and 3D images.
+ *
+ * Pixel values are first mapped to at most 65536 histogram bins: integer images whose value range fits in
+ * 16 bits are binned exactly, other images (float, 32 bits integers) are quantized linearly between their min
+ * and max. The histogram of the window is then updated incrementally while the window slides along x:
+ *	- Huang et al. for any window made of x runs (rectangle, disk, ellipse, ellipsoid): each step removes
+ *	  and adds one pixel per window row.
+ *	- Perreault and Hebert for rectangles: one histogram is kept per image column and the window histogram
+ *	  is updated by adding/removing whole column histograms, so the cost of a step does not depend on the
+ *	  radius along y. The column histograms of a thread are limited to maxColumnHistogramSize: with many bins
+ *	  (e.g. 16 bits or float images) the image is processed in strips along x, each strip keeping the column
+ *	  histograms of its width plus the window overlap.
+ * The method with the lowest estimated cost is used, so the cost per pixel is bounded whatever the radius of a
+ * rectangle: it is the one of Huang (2 updates per window row) for small windows and the one of Perreault and
+ * Hebert for large ones. This bound still grows with the radius along z (each column update costs 2*(2rz+1)
+ * per pixel) and along x when the strips are narrow (the strips overlap by 2rx columns). Disks and ellipsoids
+ * always use Huang, whose cost grows with the number of window rows.
+ * In both cases the histogram is split in coarse and fine bins to find the median in a few hundred
+ * operations at most.
+ *
+ * @author Benoit Lombardot
+ *
+ */
+public class HistogramMedian {
+
+	/** maximum number of char in the column histograms of the Perreault-Hebert method (per thread) */
+	static final long maxColumnHistogramSize = 1L << 22 ;
+
+	static final int maxBins = 1 << 16;
+
+	final int W, H, D;
+	final int rx, ry, rz;
+	final char[][] planes;
+
+	int nBins;
+	int shift;
+	int nCoarse;
+	int constBin;
+
+	double min;
+	double scale;
+	boolean exact;
+
+	int[] xmap, ymap, zmap; // boundary maps, with an offset of r+1
+	int[] kdy, kdz, khw; // window rows: offset along y, z and half width along x
+	boolean rectangle;
+	int rank;
+
+
+
+	private HistogramMedian( long[] dims, int[] radius )
+	{
+		W = (int) dims[0];
+		H = dims.length>1 ? (int)dims[1] : 1;
+		D = dims.length>2 ? (int)dims[2] : 1;
+		rx = radius[0];
+		ry = radius.length>1 ? radius[1] : 0;
+		rz = radius.length>2 ? radius[2] : 0;
+		planes = new char[D][W*H];
+	}
+
+
+	/**
+	 * @param input an image
+	 * @return true if the input can be processed by the histogram median
+	 */
+	public static boolean isApplicable( RandomAccessibleInterval<?> input )
+	{
+		int nDim = input.numDimensions();
+		if( nDim<1 || nDim>3 )
+			return false;
+
+		long planeSize = input.dimension(0) * ( nDim>1 ? input.dimension(1) : 1 );
+		long depth = nDim>2 ? input.dimension(2) : 1;
+		return planeSize < Integer.MAX_VALUE-8 && depth < Integer.MAX_VALUE ;
+	}
+
+
+
+	/**
+	 *
+	 * @param input image to filter (1D, 2D or 3D)
+	 * @param output image with the same dimensions as input
+	 * @param radius window radius in pixel along each dimension
+	 * @param ellipsoid if true the window is an ellipse/ellipsoid of the given radii else a rectangle
+	 * @param boundaryMethod one of "value", "zeros", "same", "periodic", "mirror"
+	 * @param boundaryValue value used if boundaryMethod is "value" or "zeros"
+	 * @param nThread number of threads to use
+	 */
+	public static <T extends RealType<T>, U extends RealType<U>> void median(
+			final RandomAccessibleInterval<T> input, final RandomAccessibleInterval<U> output, int[] radius, boolean ellipsoid,
+			String boundaryMethod, T boundaryValue, int nThread )
+	{
+		final long[] dims = new long[ input.numDimensions() ];
+		input.dimensions(dims);
+
+		final HistogramMedian median = new HistogramMedian(dims, radius);
+		median.buildWindow( ellipsoid );
+		median.buildBoundary( boundaryMethod );
+
+		Double constValue = null;
+		if( Boundary.isConstant(boundaryMethod) )
+			constValue = boundaryValue==null || boundaryMethod.equals("zeros") ? 0.0 : boundaryValue.getRealDouble();
+
+		median.toBins( input , constValue, nThread );
+		median.process( output, nThread );
+	}
+
+
+
+	private void buildWindow( boolean ellipsoid )
+	{
+		int nRowMax = (2*ry+1) * (2*rz+1);
+		int[] dy = new int[nRowMax];
+		int[] dz = new int[nRowMax];
+		int[] hw = new int[nRowMax];
+		int n=0;
+		int count = 0;
+		for( int z=-rz; z<=rz; z++ ) {
+			for( int y=-ry; y<=ry; y++ ) {
+				int halfWidth = rx;
+				if( ellipsoid ) {
+					double t = 1.0;
+					if( ry>0 )
+						t -= ((double)y/ry) * ((double)y/ry);
+					if( rz>0 )
+						t -= ((double)z/rz) * ((double)z/rz);
+					if( t < -1e-9 )
+						continue;
+					halfWidth = (int) Math.floor( rx * Math.sqrt( Math.max(0, t) ) + 1e-9 );
+				}
+				dy[n] = y;
+				dz[n] = z;
+				hw[n] = halfWidth;
+				count += 2*halfWidth+1;
+				n++;
+			}
+		}
+		kdy = Arrays.copyOf(dy, n);
+		kdz = Arrays.copyOf(dz, n);
+		khw = Arrays.copyOf(hw, n);
+		rank = count/2;
+		rectangle = !ellipsoid;
+	}
+
+
+
+	private void buildBoundary( String boundaryMethod )
+	{
+		xmap = Boundary.indexMap( boundaryMethod, W, rx+1, rx+1 );
+		ymap = Boundary.indexMap( boundaryMethod, H, ry+1, ry+1 );
+		zmap = Boundary.indexMap( boundaryMethod, D, rz+1, rz+1 );
+	}
+
+
+
+	private <T extends RealType<T>> void toBins( final RandomAccessibleInterval<T> input, Double constValue, int nThread )
+	{
+		final long planeSize = (long)W*H;
+		final long size = planeSize * D;
+		final int nChunk = Parallel.nChunk( size , nThread );
+
+		// value range
+		final double[] mins = new double[nChunk];
+		final double[] maxs = new double[nChunk];
+		Parallel.run( nChunk, nThread, (chunk)-> {
+			final long start = size*chunk/nChunk;
+			final long end = size*(chunk+1)/nChunk;
+			final Cursor<T> cursor = Views.flatIterable( input ).cursor();
+			cursor.jumpFwd( start );
+			double cmin = Double.POSITIVE_INFINITY;
+			double cmax = Double.NEGATIVE_INFINITY;
+			for( long i=start; i<end; i++ ) {
+				final double v = cursor.next().getRealDouble();
+				if( v<cmin )
+					cmin = v;
+				if( v>cmax )
+					cmax = v;
+			}
+			mins[chunk] = cmin;
+			maxs[chunk] = cmax;
+		});
+
+		min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		for( int i=0; i<nChunk; i++ ) {
+			min = Math.min( min, mins[i] );
+			max = Math.max( max, maxs[i] );
+		}
+		if( constValue != null ) {
+			min = Math.min( min, constValue );
+			max = Math.max( max, constValue );
+		}
+
+		final T type = input.randomAccess().get();
+		exact = type instanceof IntegerType && max-min < maxBins ;
+		if( exact ) {
+			nBins = (int)(max-min) + 1;
+			scale = 1;
+		}
+		else if( max > min ) {
+			nBins = maxBins;
+			scale = (nBins-1) / (max-min);
+		}
+		else {
+			nBins = 1;
+			scale = 0;
+		}
+
+		int nBits = 32 - Integer.numberOfLeadingZeros( Math.max(1, nBins-1) );
+		shift = (nBits+1)/2;
+		nCoarse = ( (nBins-1) >>> shift ) + 1;
+		constBin = constValue==null ? 0 : toBin( constValue );
+
+		// binning
+		Parallel.run( nChunk, nThread, (chunk)-> {
+			final long start = size*chunk/nChunk;
+			final long end = size*(chunk+1)/nChunk;
+			final Cursor<T> cursor = Views.flatIterable( input ).cursor();
+			cursor.jumpFwd( start );
+			int z = (int)( start / planeSize );
+			int offset = (int)( start % planeSize );
+			char[] plane = planes[z];
+			for( long i=start; i<end; i++ ) {
+				plane[offset] = (char) toBin( cursor.next().getRealDouble() );
+				offset++;
+				if( offset == planeSize && i+1<end ) {
+					offset = 0;
+					z++;
+					plane = planes[z];
+				}
+			}
+		});
+	}
+
+
+	int toBin( double value )
+	{
+		int bin = exact ? (int)(value-min) : (int) Math.round( (value-min)*scale );
+		return bin<0 ? 0 : ( bin>=nBins ? nBins-1 : bin );
+	}
+
+
+	double toValue( int bin )
+	{
+		return scale==0 ? min : min + bin/scale;
+	}
+
+
+
+	private <U extends RealType<U>> void process( final RandomAccessibleInterval<U> output, int nThread )
+	{
+		final double[] lut = new double[nBins];
+		for( int b=0; b<nBins; b++ )
+			lut[b] = toValue(b);
+
+		// Perreault-Hebert if window is a rectangle and if it is cheaper. The column histograms of a strip cover
+		// its width plus 2rx columns, strips are as wide as the memory limit allows
+		final int F = 1<<shift;
+		final long stripColumns = maxColumnHistogramSize / ( nBins + nCoarse );
+		final int stripWidth = (int) Math.max( 0, Math.min( W, stripColumns - 2L*rx ) );
+		final long huangCost = 2L * khw.length;
+		long phCost = Long.MAX_VALUE;
+		if( stripWidth > 0 ) {
+			// column updates and window initialization of each row are shared by the pixels of the strip
+			final long rowCost = 2L*(2*rz+1)*( stripWidth + 2L*rx ) + (2L*rx+1)*nCoarse;
+			phCost = rowCost / stripWidth + 3L*nCoarse + 2L*F;
+		}
+		final boolean usePH = rectangle  &&  phCost < huangCost  &&  khw.length < Character.MAX_VALUE ;
+		final int nStrip = usePH ? ( W + stripWidth - 1 ) / stripWidth : 1;
+
+		// rows are split in chunks of consecutive y in a plane and of a strip
+		final int ySplit = (int) Math.max(1, Math.min( H, ( 4L*nThread + (long)D*nStrip - 1 ) / ( (long)D*nStrip ) ) );
+		final int nChunk = D * ySplit * nStrip;
+
+		Parallel.run( nChunk, nThread, (chunk)-> {
+			final int strip = chunk % nStrip;
+			final int z = chunk / nStrip / ySplit;
+			final int part = chunk / nStrip % ySplit;
+			final int y0 = (int)( (long)H*part/ySplit );
+			final int y1 = (int)( (long)H*(part+1)/ySplit );
+			final int x0 = (int)( (long)W*strip/nStrip );
+			final int x1 = (int)( (long)W*(strip+1)/nStrip );
+			if( y0>=y1 || x0>=x1 )
+				return;
+
+			final RandomAccess<U> ra = output.randomAccess();
+			final char[] row = new char[W];
+			final RowFilter filter = usePH ? new PerreaultHebert( x0, x1 ) : new Huang();
+			for( int y=y0; y<y1; y++ ) {
+				filter.filterRow( y, z, y==y0, row );
+
+				ra.setPosition( positionOf(output, y, z) );
+				ra.move( x0, 0 );
+				for( int x=x0; x<x1; x++ ) {
+					ra.get().setReal( lut[ row[x] ] );
+					ra.fwd(0);
+				}
+			}
+		});
+	}
+
+
+	private static long[] positionOf( RandomAccessibleInterval<?> output, int y, int z )
+	{
+		final long[] pos = new long[ output.numDimensions() ];
+		output.min( pos );
+		if( pos.length>1 )
+			pos[1] += y;
+		if( pos.length>2 )
+			pos[2] += z;
+		return pos;
+	}
+
+
+
+	private interface RowFilter
+	{
+		/**
+		 * compute the median of row y in plane z and store the bins in row (only the columns of the strip of the
+		 * filter are computed)
+		 */
+		void filterRow( int y, int z, boolean firstRow, char[] row );
+	}
+
+
+
+	/**
+	 * Huang sliding window for windows made of x runs
+	 */
+	private class Huang implements RowFilter
+	{
+		final int[] fine = new int[nBins];
+		final int[] coarse = new int[nCoarse];
+		int mBlock = 0; // coarse bin containing the median
+		int low = 0; // number of element in the coarse bins below mBlock
+
+		final char[][] rowPlanes = new char[khw.length][];
+		final int[] rowOffsets = new int[khw.length];
+
+
+		final void add( int b )
+		{
+			fine[b]++;
+			int k = b >>> shift;
+			coarse[k]++;
+			if( k < mBlock )
+				low++;
+		}
+
+		final void remove( int b )
+		{
+			fine[b]--;
+			int k = b >>> shift;
+			coarse[k]--;
+			if( k < mBlock )
+				low--;
+		}
+
+		final int median()
+		{
+			while( low > rank ) {
+				mBlock--;
+				low -= coarse[mBlock];
+			}
+			while( low + coarse[mBlock] <= rank ) {
+				low += coarse[mBlock];
+				mBlock++;
+			}
+			int b = mBlock << shift;
+			int cum = low;
+			while( cum + fine[b] <= rank ) {
+				cum += fine[b];
+				b++;
+			}
+			return b;
+		}
+
+		final int binAt( int k, int x )
+		{
+			final int xi = xmap[ x + rx + 1 ];
+			final char[] plane = rowPlanes[k];
+			return plane==null || xi<0 ? constBin : plane[ rowOffsets[k] + xi ];
+		}
+
+		@Override
+		public void filterRow( int y, int z, boolean firstRow, char[] row )
+		{
+			final int nRow = khw.length;
+			for( int k=0; k<nRow; k++ ) {
+				final int yi = ymap[ y + kdy[k] + ry + 1 ];
+				final int zi = zmap[ z + kdz[k] + rz + 1 ];
+				rowPlanes[k] = yi<0 || zi<0 ? null : planes[zi];
+				rowOffsets[k] = yi * W;
+			}
+
+			for( int k=0; k<nRow; k++ )
+				for( int x=-khw[k]; x<=khw[k]; x++ )
+					add( binAt(k, x) );
+			row[0] = (char) median();
+
+			for( int x=1; x<W; x++ ) {
+				for( int k=0; k<nRow; k++ ) {
+					final int bOut = binAt(k, x-1-khw[k]);
+					final int bIn = binAt(k, x+khw[k]);
+					if( bOut != bIn ) {
+						remove( bOut );
+						add( bIn );
+					}
+				}
+				row[x] = (char) median();
+			}
+
+			// empty the histogram
+			for( int k=0; k<nRow; k++ )
+				for( int x=W-1-khw[k]; x<=W-1+khw[k]; x++ )
+					remove( binAt(k, x) );
+		}
+	}
+
+
+
+	/**
+	 * Perreault and Hebert median for rectangular windows (constant time along y), on the strip of columns [x0, x1)
+	 */
+	private class PerreaultHebert implements RowFilter
+	{
+		final int F = 1 << shift;
+		final int x0, x1;
+		final int base; // window position of the first column histogram
+		final int nCol;
+		final int[] colX; // image column of each column histogram, -1 for the constant boundary
+		final char[] colFine;
+		final char[] colCoarse;
+		final int[] fine = new int[nBins];
+		final int[] coarse = new int[nCoarse];
+		final int[] lastUpdate = new int[nCoarse];
+
+		PerreaultHebert( int x0, int x1 )
+		{
+			this.x0 = x0;
+			this.x1 = x1;
+			base = x0 - rx;
+			nCol = x1 - x0 + 2*rx;
+			colX = new int[nCol];
+			colFine = new char[ nCol * nBins ];
+			colCoarse = new char[ nCol * nCoarse ];
+			final int colCount = (2*ry+1)*(2*rz+1);
+			for( int c=0; c<nCol; c++ ) {
+				colX[c] = xmap[ base + c + rx + 1 ];
+				if( colX[c] < 0 ) {
+					colFine[ c*nBins + constBin ] = (char) colCount;
+					colCoarse[ c*nCoarse + (constBin>>>shift) ] = (char) colCount;
+				}
+			}
+		}
+
+		final int col( int x )
+		{
+			return x - base;
+		}
+
+		final void updateColumns( int y, int z, int sign )
+		{
+			for( int dz=-rz; dz<=rz; dz++ ) {
+				final int zi = zmap[ z + dz + rz + 1 ];
+				final int yi = ymap[ y + ry + 1 ];
+				final char[] plane = yi<0 || zi<0 ? null : planes[zi];
+				final int offset = yi*W;
+				for( int c=0; c<nCol; c++ ) {
+					final int xi = colX[c];
+					if( xi < 0 )
+						continue;
+					final int b = plane==null ? constBin : plane[offset+xi];
+					colFine[ c*nBins + b ] += sign;
+					colCoarse[ c*nCoarse + (b>>>shift) ] += sign;
+				}
+			}
+		}
+
+		@Override
+		public void filterRow( int y, int z, boolean firstRow, char[] row )
+		{
+			if( firstRow ) {
+				for( int dy=-ry; dy<=ry; dy++ )
+					updateColumns( y+dy, z, 1);
+			}
+			else {
+				updateColumns( y-1-ry, z, -1 );
+				updateColumns( y+ry, z, 1 );
+			}
+
+			Arrays.fill( coarse, 0 );
+			Arrays.fill( lastUpdate, Integer.MIN_VALUE );
+			for( int x=x0-rx; x<=x0+rx; x++ ) {
+				final int c = col(x)*nCoarse;
+				for( int k=0; k<nCoarse; k++ )
+					coarse[k] += colCoarse[c+k];
+			}
+
+			for( int x=x0; x<x1; x++ ) {
+				if( x>x0 ) {
+					final int in = col(x+rx);
+					final int out = col(x-1-rx);
+					if( colX[in] != colX[out] ) {
+						final int cIn = in*nCoarse;
+						final int cOut = out*nCoarse;
+						for( int k=0; k<nCoarse; k++ )
+							coarse[k] += colCoarse[cIn+k] - colCoarse[cOut+k];
+					}
+				}
+
+				int k = 0;
+				int cum = 0;
+				while( cum + coarse[k] <= rank ) {
+					cum += coarse[k];
+					k++;
+				}
+
+				final int start = k*F;
+				final int end = Math.min( start+F, nBins );
+				final int last = lastUpdate[k];
+				if( last==Integer.MIN_VALUE || 2L*(x-last) > 2*rx+1 ) {
+					Arrays.fill( fine, start, end, 0 );
+					for( int xx=x-rx; xx<=x+rx; xx++ ) {
+						final int c = col(xx)*nBins;
+						for( int b=start; b<end; b++ )
+							fine[b] += colFine[c+b];
+					}
+				}
+				else {
+					for( int xx=last+1; xx<=x; xx++ ) {
+						final int in = col(xx+rx);
+						final int out = col(xx-1-rx);
+						if( colX[in] != colX[out] ) {
+							final int cIn = in*nBins;
+							final int cOut = out*nBins;
+							for( int b=start; b<end; b++ )
+								fine[b] += colFine[cIn+b] - colFine[cOut+b];
+						}
+					}
+				}
+				lastUpdate[k] = x;
+
+				int b = start;
+				while( cum + fine[b] <= rank ) {
+					cum += fine[b];
+					b++;
+				}
+				row[x] = (char) b;
+			}
+		}
+	}
+
+}
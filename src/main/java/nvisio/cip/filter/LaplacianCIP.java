@@ -0,0 +1,46 @@
+package nvisio.cip.filter;
+
+import java.util.Arrays;
+
+import org.scijava.plugin.Plugin;
+
+import net.imagej.ops.Op;
+
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ *
+ * @author Benoit Lombardot
+ *
+ */
+
+	// the output parameter is not used, the output is the sum of the second derivatives
+
+	@Plugin(type = Op.class, name="Laplacian", headless = true)
+	public class LaplacianCIP  < T extends RealType<T> & NativeType< T > > extends AbstractDerivativeCIP<T>
+	{
+
+		@Override
+		public void processInput()
+		{
+			int nDim = inputImage.numDimensions();
+			int[][] orders = new int[nDim][nDim];
+			for(int d=0; d<nDim; d++)
+				orders[d][d] = 2;
+
+			Img<FloatType> secondDerivatives = derivatives( orders );
+
+			Img<FloatType> laplacian = createImage();
+			GaussDerivatives.combine( components( secondDerivatives ), Arrays.asList( laplacian ), (in, out) -> {
+				double sum = 0;
+				for( double v : in )
+					sum += v;
+				out[0] = sum;
+			}, nThread );
+			outputImage = laplacian;
+		}
+
+}
@@ -0,0 +1,954 @@
+package nvisio.cip.filter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalDimensions;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+
+/**
+ *
+ * Erosion and dilation by structuring elements that decompose in line segments (e.g. rectangles). The image
+ * is processed in place, one segment direction after the other: each line of the image parallel to the segment is
+ * copied in a buffer, filtered with van Herk/Gil-Werman algorithm (prefix and suffix min/max over blocks of
+ * the segment length, i.e. 3 comparisons per pixel whatever the segment length) and written back. Erosion and
+ * dilation only allocate the output image and one line buffer per thread, opening, closing and tophat also need a
+ * copy of the input padded by the structuring element, unless opening and closing are applied in place to an image
+ * that is already padded (cf. apply).
+ *
+ * A segment is made of the points k*step for k in [from, to], step being any lattice vector. Lines that are
+ * not parallel to an axis are extended with the boundary method along the line itself. Rectangles decompose
+ * exactly in segments, ellipsoids are approximated by a sum of segments along a few lattice directions.
+ *
+ * @author Benoit Lombardot
+ *
+ */
+public class LineMorphology {
+
+
+	/**
+	 * the points k*step of the lattice, for k in [from, to]
+	 */
+	public static class Segment
+	{
+		final int[] step;
+		final int from;
+		final int to;
+
+		public Segment( int[] step, int from, int to )
+		{
+			this.step = step.clone();
+			this.from = Math.min(from, to);
+			this.to = Math.max(from, to);
+		}
+
+		/** @return the number of points in the segment */
+		public int length()
+		{
+			return to-from+1;
+		}
+
+		/** @return the maximum distance along dimension d between the segment and the origin */
+		public long extent( int d )
+		{
+			return (long)Math.max( Math.abs(from), Math.abs(to) ) * Math.abs( step[d] );
+		}
+	}
+
+
+
+	/**
+	 * @param radius radius of the rectangle along each dimension
+	 * @return the decomposition of the rectangle in one segment per dimension
+	 */
+	public static List<Segment> rectangle( int[] radius )
+	{
+		List<Segment> segments = new ArrayList<Segment>();
+		for( int d=0; d<radius.length; d++ ) {
+			if( radius[d] <= 0 )
+				continue;
+			int[] step = new int[radius.length];
+			step[d] = 1;
+			segments.add( new Segment( step, -radius[d], radius[d] ) );
+		}
+		return segments;
+	}
+
+
+
+	/**
+	 * Approximate an ellipsoid by a zonotope, i.e. a Minkowski sum of centered segments along lattice directions:
+	 * the axes, the diagonals of each pair of axes, and in 2D the knight moves, in 3D the diagonals of the cube
+	 * (8 directions in 2D, 13 in 3D). The segment lengths are fitted to the support function of the ellipsoid
+	 * (non negative least square weighted by the surface of the ellipsoid, so that the fit approximates the
+	 * volume difference), rounded and, for small ellipsoids, refined to minimize the number of pixels that differ
+	 * from the digital ellipsoid.
+	 *
+	 * @param radius ellipsoid radius in pixel along each dimension, dimensions with a radius below 1 are not filtered
+	 */
+	public static List<Segment> ellipsoid( double[] radius )
+	{
+		final int nDim = radius.length;
+		final int[] active = activeDimensions( radius );
+
+		List<Segment> segments = new ArrayList<Segment>();
+		if( active.length == 0 )
+			return segments;
+
+		final List<int[]> directions = directions( nDim, active );
+		final int nDir = directions.size();
+
+		// sample the unit sphere of the active dimensions, the weight 1/h^(k+1) is the surface of the ellipsoid
+		// per solid angle of its normal, up to a constant
+		final List<double[]> samples = sphereSamples( nDim, active );
+		final int nSample = samples.size();
+		final double[][] A = new double[nSample][nDir];
+		final double[] b = new double[nSample];
+		for( int j=0; j<nSample; j++ ) {
+			final double[] u = samples.get(j);
+			double h = 0;
+			for( int d=0; d<nDim; d++ )
+				h += radius[d]*radius[d]*u[d]*u[d];
+			h = Math.sqrt( h );
+			final double w = Math.pow( h, -(active.length+1)/2.0 );
+			b[j] = w * h;
+			for( int i=0; i<nDir; i++ ) {
+				double dot = 0;
+				for( int d=0; d<nDim; d++ )
+					dot += directions.get(i)[d] * u[d];
+				A[j][i] = w * Math.abs( dot );
+			}
+		}
+
+		// non negative least square, cyclic coordinate descent
+		final double[] x = new double[nDir];
+		final double[] residual = b.clone();
+		for( int iter=0; iter<1000; iter++ ) {
+			for( int i=0; i<nDir; i++ ) {
+				double num = 0;
+				double den = 0;
+				for( int j=0; j<nSample; j++ ) {
+					num += A[j][i] * residual[j];
+					den += A[j][i] * A[j][i];
+				}
+				final double dx = Math.max( 0, x[i] + num/den ) - x[i];
+				if( dx != 0 ) {
+					for( int j=0; j<nSample; j++ )
+						residual[j] -= dx * A[j][i];
+					x[i] += dx;
+				}
+			}
+		}
+
+		// rounding, lengths are averaged over directions exchanged by the symmetries of the ellipsoid so
+		// that the shape keeps these symmetries
+		final List<List<Integer>> groups = symmetryGroups( radius, active, directions );
+		final int[] n = new int[nDir];
+		for( List<Integer> group : groups ) {
+			double mean = 0;
+			for( int i : group )
+				mean += x[i] / group.size();
+			for( int i : group )
+				n[i] = (int) Math.round( mean );
+		}
+
+		// refinement on the digital shape, only for small ellipsoids. The lengths of a group of symmetric directions
+		// change together. All the lengths are tried if there are few combinations, otherwise a local search changes
+		// one or two groups at a time
+		long volume = 1;
+		for( int d : active )
+			volume *= 2*(long)Math.floor( radius[d] ) + 3;
+		if( volume <= 20000 ) {
+			final int nGroup = groups.size();
+			final int[] maxLength = new int[nGroup];
+			long nCombination = 1;
+			for( int g=0; g<nGroup; g++ ) {
+				final int[] v = directions.get( groups.get(g).get(0) );
+				maxLength[g] = Integer.MAX_VALUE;
+				for( int d : active )
+					if( v[d] != 0 )
+						maxLength[g] = Math.min( maxLength[g], (int)Math.floor( radius[d]/Math.abs(v[d]) ) );
+				nCombination *= maxLength[g] + 1;
+			}
+
+			int best = digitalDifference( radius, active, directions, n );
+			if( nCombination <= 1000 ) {
+				final int[] m = new int[nDir];
+				final int[] length = new int[nGroup];
+				for( long c=0; c<nCombination; c++ ) {
+					long q = c;
+					for( int g=0; g<nGroup; g++ ) {
+						length[g] = (int)( q % (maxLength[g]+1) );
+						q /= maxLength[g]+1;
+						for( int i : groups.get(g) )
+							m[i] = length[g];
+					}
+					boolean tooLarge = false;
+					for( int d : active ) {
+						long extent = 0;
+						for( int i=0; i<nDir; i++ )
+							extent += (long)m[i] * Math.abs( directions.get(i)[d] );
+						tooLarge |= extent > radius[d] + 1;
+					}
+					if( tooLarge )
+						continue;
+					int diff = digitalDifference( radius, active, directions, m );
+					if( diff < best ) {
+						best = diff;
+						System.arraycopy( m, 0, n, 0, nDir );
+					}
+				}
+			}
+			else {
+				boolean improved = true;
+				while( improved ) {
+					improved = false;
+					for( int g1=0; g1<nGroup; g1++ ) {
+						for( int g2=g1; g2<nGroup; g2++ ) {
+							for( int s1=-1; s1<=1; s1+=2 ) {
+								for( int s2=-1; s2<=1; s2+=2 ) {
+									if( g2==g1 && s2!=s1 )
+										continue;
+									if( !shift( n, groups, g1, s1, g2, g2==g1 ? 0 : s2 ) )
+										continue;
+									int diff = digitalDifference( radius, active, directions, n );
+									if( diff < best ) {
+										best = diff;
+										improved = true;
+									}
+									else
+										shift( n, groups, g1, -s1, g2, g2==g1 ? 0 : -s2 );
+								}
+							}
+						}
+					}
+				}
+			}
+		}
+
+		for( int i=0; i<nDir; i++ )
+			if( n[i] > 0 )
+				segments.add( new Segment( directions.get(i), -n[i], n[i] ) );
+
+		return segments;
+	}
+
+
+	private static int[] activeDimensions( double[] radius )
+	{
+		int nActive = 0;
+		for( double r : radius )
+			if( r >= 1 )
+				nActive++;
+		int[] active = new int[nActive];
+		nActive = 0;
+		for( int d=0; d<radius.length; d++ )
+			if( radius[d] >= 1 )
+				active[nActive++] = d;
+		return active;
+	}
+
+
+	/**
+	 * add s1 to the lengths of group g1 and s2 to the lengths of group g2
+	 * @return false, without changing n, if a length would become negative
+	 */
+	private static boolean shift( int[] n, List<List<Integer>> groups, int g1, int s1, int g2, int s2 )
+	{
+		if( n[ groups.get(g1).get(0) ] + s1 < 0 || n[ groups.get(g2).get(0) ] + s2 < 0 )
+			return false;
+		for( int i : groups.get(g1) )
+			n[i] += s1;
+		for( int i : groups.get(g2) )
+			n[i] += s2;
+		return true;
+	}
+
+
+	/**
+	 * @return groups of directions that are exchanged by flipping axes or by permuting axes of equal radius
+	 */
+	private static List<List<Integer>> symmetryGroups( double[] radius, int[] active, List<int[]> directions )
+	{
+		Map<String, List<Integer>> groups = new LinkedHashMap<String, List<Integer>>();
+		for( int i=0; i<directions.size(); i++ ) {
+			List<String> key = new ArrayList<String>();
+			for( int d : active )
+				key.add( radius[d] + ":" + Math.abs( directions.get(i)[d] ) );
+			Collections.sort( key );
+			String k = key.toString();
+			if( !groups.containsKey(k) )
+				groups.put( k, new ArrayList<Integer>() );
+			groups.get(k).add( i );
+		}
+		return new ArrayList<List<Integer>>( groups.values() );
+	}
+
+
+	/**
+	 * @return lattice directions in the subspace of the active dimensions
+	 */
+	private static List<int[]> directions( int nDim, int[] active )
+	{
+		List<int[]> directions = new ArrayList<int[]>();
+		for( int d : active ) {
+			int[] v = new int[nDim];
+			v[d] = 1;
+			directions.add( v );
+		}
+		for( int a=0; a<active.length; a++ ) {
+			for( int c=a+1; c<active.length; c++ ) {
+				for( int s=1; s>=-1; s-=2 ) {
+					int[] v = new int[nDim];
+					v[active[a]] = 1;
+					v[active[c]] = s;
+					directions.add( v );
+				}
+			}
+		}
+		if( active.length == 2 ) {
+			int[][] knights = new int[][] { {1,2}, {2,1}, {1,-2}, {2,-1} };
+			for( int[] k : knights ) {
+				int[] v = new int[nDim];
+				v[active[0]] = k[0];
+				v[active[1]] = k[1];
+				directions.add( v );
+			}
+		}
+		else if( active.length == 3 ) {
+			int[][] diagonals = new int[][] { {1,1,1}, {1,1,-1}, {1,-1,1}, {-1,1,1} };
+			for( int[] k : diagonals ) {
+				int[] v = new int[nDim];
+				for( int a=0; a<3; a++ )
+					v[active[a]] = k[a];
+				directions.add( v );
+			}
+		}
+		return directions;
+	}
+
+
+	/**
+	 * @return unit vectors covering half of the unit sphere of the active dimensions
+	 */
+	private static List<double[]> sphereSamples( int nDim, int[] active )
+	{
+		List<double[]> samples = new ArrayList<double[]>();
+		if( active.length == 1 ) {
+			double[] u = new double[nDim];
+			u[active[0]] = 1;
+			samples.add( u );
+		}
+		else if( active.length == 2 ) {
+			for( int j=0; j<180; j++ ) {
+				double t = Math.PI * j / 180;
+				double[] u = new double[nDim];
+				u[active[0]] = Math.cos(t);
+				u[active[1]] = Math.sin(t);
+				samples.add( u );
+			}
+		}
+		else if( active.length == 3 ) {
+			// Fibonacci lattice on the half sphere
+			final int N = 600;
+			for( int j=0; j<N; j++ ) {
+				double z = 1 - (j+0.5)/N;
+				double r = Math.sqrt( 1 - z*z );
+				double phi = j * Math.PI * ( 3 - Math.sqrt(5) );
+				double[] u = new double[nDim];
+				u[active[0]] = r * Math.cos(phi);
+				u[active[1]] = r * Math.sin(phi);
+				u[active[2]] = z;
+				samples.add( u );
+			}
+		}
+		else {
+			java.util.Random random = new java.util.Random( 0 );
+			for( int j=0; j<2000; j++ ) {
+				double[] u = new double[nDim];
+				double norm = 0;
+				for( int d : active ) {
+					u[d] = random.nextGaussian();
+					norm += u[d]*u[d];
+				}
+				norm = Math.sqrt( norm );
+				for( int d : active )
+					u[d] /= norm;
+				samples.add( u );
+			}
+		}
+		return samples;
+	}
+
+
+	/**
+	 * @return the number of pixels that differ between the digital ellipsoid and the Minkowski sum of the segments
+	 */
+	private static int digitalDifference( double[] radius, int[] active, List<int[]> directions, int[] n )
+	{
+		final int k = active.length;
+		int R = 0;
+		for( int a=0; a<k; a++ ) {
+			long extent = 0;
+			for( int i=0; i<n.length; i++ )
+				extent += (long)n[i] * Math.abs( directions.get(i)[active[a]] );
+			R = (int) Math.max( R, Math.max( extent, (long)Math.floor( radius[active[a]] ) ) );
+		}
+		R++;
+		final int S = 2*R + 1;
+		int N = 1;
+		for( int a=0; a<k; a++ )
+			N *= S;
+
+		final int[][] coordinate = new int[N][k];
+		for( int p=0; p<N; p++ ) {
+			int q = p;
+			for( int a=0; a<k; a++ ) {
+				coordinate[p][a] = q%S;
+				q /= S;
+			}
+		}
+
+		// dilation by each segment, a pixel is set if the distance along the segment direction to the
+		// shape is smaller than the segment half length (sweeping the image in both orientations)
+		boolean[] shape = new boolean[N];
+		shape[ (N-1)/2 ] = true;
+		final int[] distance = new int[N];
+		for( int i=0; i<n.length; i++ ) {
+			if( n[i] == 0 )
+				continue;
+			final int[] v = new int[k];
+			int offset = 0;
+			int stride = 1;
+			for( int a=0; a<k; a++ ) {
+				v[a] = directions.get(i)[active[a]];
+				offset += v[a] * stride;
+				stride *= S;
+			}
+			boolean[] dilated = new boolean[N];
+			for( int s=-1; s<=1; s+=2 ) {
+				final int o = s*offset;
+				for( int j=0; j<N; j++ ) {
+					final int p = o>0 ? j : N-1-j;
+					boolean previous = true;
+					for( int a=0; a<k; a++ ) {
+						final int c = coordinate[p][a] - s*v[a];
+						previous &= c>=0 && c<S;
+					}
+					distance[p] = shape[p] ? 0 : ( previous ? distance[p-o]+1 : Integer.MAX_VALUE/2 );
+					if( distance[p] <= n[i] )
+						dilated[p] = true;
+				}
+			}
+			shape = dilated;
+		}
+
+		int diff = 0;
+		for( int p=0; p<N; p++ ) {
+			int q = p;
+			double s = 0;
+			for( int a=0; a<k; a++ ) {
+				final double c = q%S - R;
+				q /= S;
+				final double r = radius[active[a]];
+				s += c*c / (r*r);
+			}
+			if( (s <= 1+1e-9) != shape[p] )
+				diff++;
+		}
+		return diff;
+	}
+
+
+
+	/**
+	 * @return the size of the Minkowski sum of the segments along each dimension, minus 1, divided by 2
+	 */
+	public static long[] extent( List<Segment> segments, int nDim )
+	{
+		long[] extent = new long[nDim];
+		for( Segment segment : segments )
+			for( int d=0; d<nDim; d++ )
+				extent[d] += segment.extent(d);
+		return extent;
+	}
+
+
+
+	/**
+	 * @param shape the shape of a structuring element: rectangle, disk or one of their aliases (square, cube,
+	 * 			sphere, ellipse, ...)
+	 * @return rectangle or disk, the other names are rectangles
+	 */
+	public static String shape( String shape )
+	{
+		if( shape == null )
+			return "rectangle";
+		shape = shape.toLowerCase();
+		switch( shape ) {
+		case "disk":
+		case "sphere":
+		case "hypersphere":
+		case "ellipse":
+		case "ellipsoid":
+		case "hyperellipsoid":
+			return "disk";
+		default:
+			return "rectangle";
+		}
+	}
+
+
+
+	/**
+	 * @return true for the isotropic disks too small to be approximated by segments, the morphological ops
+	 * 			use the disks of ImageJ Ops for them
+	 */
+	public static boolean isSmallDisk( double[] radius )
+	{
+		for( int d=1; d<radius.length; d++ )
+			if( (int)radius[d-1] != (int)radius[d] )
+				return false;
+		return radius[0] < 3;
+	}
+
+
+
+	/**
+	 * @param shape rectangle or disk (cf. shape)
+	 * @param radius radius in pixel along each dimension
+	 * @return the extent of the structuring element the morphological ops use for shape and radius (cf.
+	 * 			AbstractMathMorphoCIP), which for disks can exceed the radius along some dimensions
+	 */
+	public static long[] extent( String shape, double[] radius )
+	{
+		final int nDim = radius.length;
+		final long[] extent = new long[nDim];
+		if( shape( shape ).equals("disk") ) {
+			if( !isSmallDisk( radius ) )
+				return extent( ellipsoid( radius ), nDim );
+			for( int d=0; d<nDim; d++ )
+				extent[d] = (long) Math.ceil( radius[0] );
+			return extent;
+		}
+		for( int d=0; d<nDim; d++ )
+			extent[d] = (int) radius[d];
+		return extent;
+	}
+
+
+
+	/**
+	 * @return a new image with the type of the source, enlarged by padding on each side
+	 */
+	public static < T extends RealType<T> & NativeType< T > > Img<T> create( final RandomAccessibleInterval<T> source, final long[] padding )
+	{
+		final int nDim = source.numDimensions();
+		final long[] dims = new long[nDim];
+		for( int d=0; d<nDim; d++ )
+			dims[d] = source.dimension(d) + 2*padding[d];
+
+		final T type = source.randomAccess().get().createVariable();
+		return Util.getArrayOrCellImgFactory( new FinalDimensions( dims ), type ).create( dims, type );
+	}
+
+
+
+	/**
+	 * copy the source in a new image, enlarged by padding on each side, out of bounds pixels are filled according to the boundary method
+	 */
+	public static < T extends RealType<T> & NativeType< T > > Img<T> copy( final RandomAccessibleInterval<T> source, final long[] padding, final String boundary, final T value, int nThread )
+	{
+		final int nDim = source.numDimensions();
+		final long[] srcDims = new long[nDim];
+		final long[] srcMin = new long[nDim];
+		source.dimensions( srcDims );
+		source.min( srcMin );
+
+		final Img<T> target = create( source, padding );
+		final double constant = value==null ? 0 : value.getRealDouble();
+
+		final long size = target.size();
+		final int nChunk = Parallel.nChunk( size, nThread );
+		Parallel.run( nChunk, nThread, (chunk)-> {
+			final long start = size*chunk/nChunk;
+			final long end = size*(chunk+1)/nChunk;
+			final Cursor<T> cursor = Views.flatIterable( target ).localizingCursor();
+			cursor.jumpFwd( start );
+			final RandomAccess<T> in = source.randomAccess();
+			final long[] pos = new long[nDim];
+			for( long i=start; i<end; i++ ) {
+				cursor.fwd();
+				cursor.localize( pos );
+				boolean inside = true;
+				for( int d=0; d<nDim; d++ ) {
+					int p = Boundary.map( boundary, pos[d]-target.min(d)-padding[d], srcDims[d] );
+					if( p<0 ) {
+						inside = false;
+						break;
+					}
+					pos[d] = srcMin[d] + p;
+				}
+				if( inside ) {
+					in.setPosition( pos );
+					cursor.get().set( in.get() );
+				}
+				else
+					cursor.get().setReal( constant );
+			}
+		});
+
+		return target;
+	}
+
+
+
+	/**
+	 * Operations that can be applied by {@link #apply}. Opening, closing and tophat are fused: the last erosion
+	 * and the first dilation (or the reverse) are done on the same line buffer and the tophat residue is
+	 * computed while writing the result, so that no image is needed between the two operations.
+	 */
+	public enum Operation { erosion, dilation, opening, closing, tophat }
+
+
+	/**
+	 * erosion or dilation of a line by a segment, as part of a pass
+	 */
+	static class LineOperation
+	{
+		final Segment segment;
+		final boolean dilate;
+
+		LineOperation( Segment segment, boolean dilate )
+		{
+			this.segment = segment;
+			this.dilate = dilate;
+		}
+	}
+
+
+
+	/**
+	 * in place erosion of image by the Minkowski sum of the segments
+	 */
+	public static < T extends RealType<T> & NativeType< T > > void erode( RandomAccessibleInterval<T> image, List<Segment> segments, String boundary, T value, int nThread )
+	{
+		apply( image, image, segments, Operation.erosion, boundary, value, nThread );
+	}
+
+
+
+	/**
+	 * in place dilation of image by the Minkowski sum of the segments
+	 */
+	public static < T extends RealType<T> & NativeType< T > > void dilate( RandomAccessibleInterval<T> image, List<Segment> segments, String boundary, T value, int nThread )
+	{
+		apply( image, image, segments, Operation.dilation, boundary, value, nThread );
+	}
+
+
+
+	/**
+	 * Apply a morphological operation with the structuring element made of the Minkowski sum of the segments. Source
+	 * and target must have the same dimensions, they can be the same image.
+	 *
+	 * Erosion and dilation read the source directly, each line being extended with the boundary method. The second
+	 * operation of opening, closing and tophat needs the result of the first one out of the image: as with
+	 * erodeFull/dilateFull, the first operation is computed over the source extended with the boundary method, on a
+	 * copy padded by the extent of both operations, and the center of the result is written in the target. When source
+	 * and target are the same image, opening and closing are done in place without that copy: the image should then
+	 * already be padded by the extent of both operations (cf. copy), as the "full" output of the morphological ops.
+	 */
+	public static < T extends RealType<T> & NativeType< T > > void apply( RandomAccessibleInterval<T> source, RandomAccessibleInterval<T> target, List<Segment> segments,
+			Operation operation, String boundary, T value, int nThread )
+	{
+		List<LineOperation> operations = new ArrayList<LineOperation>();
+		boolean firstDilate = operation==Operation.dilation || operation==Operation.closing;
+		for( Segment segment : segments )
+			operations.add( new LineOperation( segment, firstDilate ) );
+		// the Minkowski sum does not depend on the order, reversing it lets the last pass of the first operation
+		// and the first pass of the second operation go through the same lines
+		final boolean compound = operation==Operation.opening || operation==Operation.closing || operation==Operation.tophat;
+		if( compound )
+			for( int i=segments.size()-1; i>=0; i-- )
+				operations.add( new LineOperation( segments.get(i), !firstDilate ) );
+
+		// group consecutive operations with the same step in passes
+		List< List<LineOperation> > passes = new ArrayList< List<LineOperation> >();
+		for( LineOperation lineOperation : operations ) {
+			List<LineOperation> last = passes.isEmpty() ? null : passes.get( passes.size()-1 );
+			if( last != null && Arrays.equals( last.get(0).segment.step, lineOperation.segment.step ) )
+				last.add( lineOperation );
+			else
+				passes.add( new ArrayList<LineOperation>( Collections.singletonList( lineOperation ) ) );
+		}
+
+		final double constant = value==null ? 0 : value.getRealDouble();
+		final boolean tophat = operation==Operation.tophat;
+		if( !compound || ( source == target && !tophat ) ) {
+			for( int i=0; i<passes.size(); i++ )
+				pass( i==0 ? source : target, target, passes.get(i), boundary, constant, nThread );
+			if( passes.isEmpty() && source != target )
+				write( source, target, null, new long[ target.numDimensions() ], nThread );
+			return;
+		}
+
+		final int nDim = target.numDimensions();
+		final long[] padding = extent( segments, nDim );
+		for( int d=0; d<nDim; d++ )
+			padding[d] *= 2;
+		final Img<T> padded = copy( source, padding, boundary, value, nThread );
+		for( List<LineOperation> pass : passes )
+			pass( padded, padded, pass, boundary, constant, nThread );
+		write( padded, target, tophat ? source : null, padding, nThread );
+	}
+
+
+
+	/**
+	 * write the center of the padded image in the target, or residue minus the center if residue is not null
+	 */
+	private static < T extends RealType<T> > void write( final RandomAccessibleInterval<T> padded, final RandomAccessibleInterval<T> target,
+			final RandomAccessibleInterval<T> residue, final long[] padding, int nThread )
+	{
+		final int nDim = target.numDimensions();
+		final long size = Views.iterable( target ).size();
+		final int nChunk = Parallel.nChunk( size, nThread );
+		Parallel.run( nChunk, nThread, (chunk)-> {
+			final long start = size*chunk/nChunk;
+			final long end = size*(chunk+1)/nChunk;
+			final Cursor<T> cursor = Views.flatIterable( target ).localizingCursor();
+			cursor.jumpFwd( start );
+			final RandomAccess<T> in = padded.randomAccess();
+			final RandomAccess<T> res = residue==null ? null : residue.randomAccess();
+			final long[] pos = new long[nDim];
+			final long[] pos2 = new long[nDim];
+			for( long i=start; i<end; i++ ) {
+				cursor.fwd();
+				cursor.localize( pos );
+				for( int d=0; d<nDim; d++ )
+					pos2[d] = pos[d] - target.min(d) + padded.min(d) + padding[d];
+				in.setPosition( pos2 );
+				if( res == null ) {
+					cursor.get().setReal( in.get().getRealDouble() );
+					continue;
+				}
+				for( int d=0; d<nDim; d++ )
+					pos2[d] = pos[d] - target.min(d) + residue.min(d);
+				res.setPosition( pos2 );
+				cursor.get().setReal( res.get().getRealDouble() - in.get().getRealDouble() );
+			}
+		});
+	}
+
+
+
+	/**
+	 * process all the lines of the target parallel to the operations step
+	 *
+	 * @param source image read by the pass
+	 * @param target image written by the pass, with the same dimensions as source
+	 */
+	static < T extends RealType<T> > void pass( final RandomAccessibleInterval<T> source, final RandomAccessibleInterval<T> target,
+			final List<LineOperation> operations, final String boundary, final double constant, int nThread )
+	{
+		final int nDim = target.numDimensions();
+		final long[] dims = new long[nDim];
+		final long[] srcMin = new long[nDim];
+		final long[] tgtMin = new long[nDim];
+		target.dimensions( dims );
+		target.min( tgtMin );
+		source.min( srcMin );
+		final int[] step = operations.get(0).segment.step;
+		final List<long[]> boxes = lineStarts( dims, step );
+		final long[] boxOffset = new long[ boxes.size()+1 ];
+		for( int b=0; b<boxes.size(); b++ ) {
+			long n = 1;
+			for( int d=0; d<nDim; d++ )
+				n *= boxes.get(b)[nDim+d];
+			boxOffset[b+1] = boxOffset[b] + n;
+		}
+
+		int maxW = 1;
+		for( LineOperation operation : operations )
+			maxW = Math.max( maxW, operation.segment.length() );
+		final int W = maxW;
+
+		final long nLine = boxOffset[ boxes.size() ];
+		final int nChunk = Parallel.nChunk( nLine, nThread );
+		Parallel.run( nChunk, nThread, (chunk)-> {
+			final long start = nLine*chunk/nChunk;
+			final long end = nLine*(chunk+1)/nChunk;
+			final RandomAccess<T> in = source.randomAccess();
+			final RandomAccess<T> out = target.randomAccess();
+			final long[] pos = new long[nDim];
+			final long[] pos2 = new long[nDim];
+			double[] line = new double[0];
+			double[] buffer = new double[0];
+			double[] prefix = new double[0];
+			double[] suffix = new double[0];
+			int b = 0;
+			for( long i=start; i<end; i++ ) {
+				while( i >= boxOffset[b+1] )
+					b++;
+				final long[] box = boxes.get(b);
+				long l = i - boxOffset[b];
+				for( int d=0; d<nDim; d++ ) {
+					pos[d] = box[d] + l % box[nDim+d];
+					l /= box[nDim+d];
+				}
+				final int m = lineLength( pos, dims, step );
+				if( buffer.length < m+W-1 ) {
+					line = new double[m];
+					buffer = new double[m+W-1];
+					prefix = new double[m+W-1];
+					suffix = new double[m+W-1];
+				}
+				else if( line.length < m )
+					line = new double[m];
+
+				// read the line
+				for( int d=0; d<nDim; d++ )
+					pos2[d] = srcMin[d] + pos[d];
+				in.setPosition( pos2 );
+				for( int k=0; k<m; k++ ) {
+					line[k] = in.get().getRealDouble();
+					move( in, step );
+				}
+
+				// dilation is computed as an erosion of the opposite
+				for( LineOperation operation : operations ) {
+					final Segment segment = operation.segment;
+					final double sign = operation.dilate ? -1 : 1;
+					final int L = m + segment.length() - 1;
+					for( int k=0; k<L; k++ ) {
+						final int p = Boundary.map( boundary, k+segment.from, m );
+						buffer[k] = sign * ( p<0 ? constant : line[p] );
+					}
+					minFilter( buffer, L, segment.length(), prefix, suffix, line, m );
+					if( operation.dilate )
+						for( int k=0; k<m; k++ )
+							line[k] = -line[k];
+				}
+
+				// write the line
+				for( int d=0; d<nDim; d++ )
+					pos2[d] = tgtMin[d] + pos[d];
+				out.setPosition( pos2 );
+				for( int k=0; k<m; k++ ) {
+					out.get().setReal( line[k] );
+					move( out, step );
+				}
+			}
+		});
+	}
+
+
+	private static void move( RandomAccess<?> ra, int[] step )
+	{
+		for( int d=0; d<step.length; d++ )
+			if( step[d] != 0 )
+				ra.move( step[d], d );
+	}
+
+
+
+	/**
+	 * van Herk/Gil-Werman min filter: out[j] = min( in[j], ..., in[j+W-1] ) for j in [0, m)
+	 *
+	 * @param in input values, L = m+W-1 values are used
+	 */
+	static void minFilter( double[] in, int L, int W, double[] prefix, double[] suffix, double[] out, int m )
+	{
+		if( W == 1 ) {
+			System.arraycopy( in, 0, out, 0, m );
+			return;
+		}
+
+		for( int s=0; s<L; s+=W ) {
+			final int e = Math.min( s+W, L );
+			prefix[s] = in[s];
+			for( int i=s+1; i<e; i++ )
+				prefix[i] = in[i] < prefix[i-1] ? in[i] : prefix[i-1];
+			suffix[e-1] = in[e-1];
+			for( int i=e-2; i>=s; i-- )
+				suffix[i] = in[i] < suffix[i+1] ? in[i] : suffix[i+1];
+		}
+		for( int j=0; j<m; j++ ) {
+			final double a = suffix[j];
+			final double b = prefix[j+W-1];
+			out[j] = a < b ? a : b;
+		}
+	}
+
+
+
+	/**
+	 * @return number of pixels on the line starting at pos and going in the direction step
+	 */
+	static int lineLength( long[] pos, long[] dims, int[] step )
+	{
+		long m = Long.MAX_VALUE;
+		for( int d=0; d<dims.length; d++ ) {
+			if( step[d] > 0 )
+				m = Math.min( m, ( dims[d]-1-pos[d] ) / step[d] );
+			else if( step[d] < 0 )
+				m = Math.min( m, pos[d] / (-step[d]) );
+		}
+		return (int)( m + 1 );
+	}
+
+
+
+	/**
+	 * The first pixel of each line is the one whose predecessor (pos-step) is out of the image. These pixels
+	 * are gathered in disjoint boxes: box k contains the pixels that enter the image through dimension k but
+	 * not through the previous dimensions.
+	 *
+	 * @return a list of box, each box is stored as {min_0, ..., min_n-1, size_0, ..., size_n-1}
+	 */
+	static List<long[]> lineStarts( long[] dims, int[] step )
+	{
+		final int nDim = dims.length;
+		List<long[]> boxes = new ArrayList<long[]>();
+		for( int k=0; k<nDim; k++ ) {
+			if( step[k] == 0 )
+				continue;
+
+			long[] box = new long[2*nDim];
+			for( int d=0; d<nDim; d++ )
+				box[nDim+d] = dims[d];
+
+			long entry = Math.min( Math.abs(step[k]), dims[k] );
+			box[k] = step[k]>0 ? 0 : dims[k]-entry;
+			box[nDim+k] = entry;
+
+			boolean empty = false;
+			for( int j=0; j<k; j++ ) {
+				if( step[j] == 0 )
+					continue;
+				long size = dims[j] - Math.abs(step[j]);
+				box[j] = step[j]>0 ? step[j] : 0;
+				box[nDim+j] = size;
+				if( size <= 0 )
+					empty = true;
+			}
+			if( !empty )
+				boxes.add( box );
+		}
+		return boxes;
+	}
+
+}
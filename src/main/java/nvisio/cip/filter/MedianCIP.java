@@ -42,10 +42,11 @@ import net.imglib2.view.Views;
 
 
 	// TODO:
-	// 	[-] faster implementation
+	// 	[x] faster implementation
 	//		[-] 2d image could rely on ij1
-	//		[-] histogram implementation could be extended to 2D
-	//	Current implementation is the naive one, processing is inspired from ops.filter architecture  
+	//		[x] histogram implementation could be extended to 2D
+	//	1D, 2D and 3D images are processed with a sliding histogram (cf. HistogramMedian), other images with the naive
+	//	implementation, processing is inspired from ops.filter architecture  
 	
 	
 	@Plugin(type = Op.class, name="MedianCIP", headless = true)
@@ -76,6 +77,10 @@ import net.imglib2.view.Views;
 		protected Float[] pixelSize;
 		
 		
+		@Parameter( label="number of Threads", persist=false, required=false ) // with persist and required set to false the parameter become optional
+		protected Integer nThread = 1 ;
+		
+		
 		
 		@Parameter (type = ItemIO.OUTPUT)
 		protected	RandomAccessibleInterval<T> outputImage;
@@ -155,6 +160,20 @@ import net.imglib2.view.Views;
 			//else if ( shape.equals("sphere") || shape.equals("hypersphere") || shape.equals("ellipsoid") || shape.equals("hyperEllipsoid") )
 			//	shape = "disk";
 			
+			if( nThread == null || nThread < 1 )
+				nThread = 1;
+			
+			// sliding histogram median, disk are processed as ellipse/ellipsoid with the radius of each dimension 
+			if( HistogramMedian.isApplicable( inputImage ) )
+			{
+				for(int d=0; d<nDim; d++)
+					intPixRadius[d] = (int) pixRadius[d];
+				
+				outputImage = opService.create().img( inputImage );
+				HistogramMedian.median( inputImage, outputImage, intPixRadius, shape.equals("disk"), boundaryMethod, valueT, nThread );
+				return;
+			}
+			
 			if( shape.equals("disk") ) // only works in 2D at the moment
 				if (nDim != 2 && !isotropic )
 					shape="rectangle";
@@ -48,6 +48,12 @@ import net.imglib2.util.Util;
 			// process the input image											
 			///////////////////////////////////////////////////////////////////////
 			
+			if( segments != null )
+			{
+				outputImage = segmentMorphology( source, LineMorphology.Operation.opening, 2, nThread );
+				return;
+			}
+			
 			RandomAccessibleInterval<T> target = source;
 			for ( final Shape strel : strels )
 			{
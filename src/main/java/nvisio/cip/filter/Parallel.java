@@ -0,0 +1,72 @@
+package nvisio.cip.filter;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
+
+import net.imglib2.multithreading.SimpleMultiThreading;
+
+
+/**
+ *
+ * Minimal task runner used by the array based filters: tasks are numbered from 0 to nTask-1
+ * and picked by the threads in increasing order. An exception thrown by a task is rethrown
+ * once all threads have terminated.
+ *
+ * @author Benoit Lombardot
+ *
+ */
+@SuppressWarnings("deprecation")
+public final class Parallel {
+
+	private Parallel() {}
+
+
+	public static void run( final int nTask, int nThread, final IntConsumer task )
+	{
+		nThread = Math.max( 1, Math.min( nThread, nTask ) );
+		if( nThread == 1 ) {
+			for( int i=0; i<nTask; i++)
+				task.accept(i);
+			return;
+		}
+
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+		final Thread[] threads = SimpleMultiThreading.newThreads( nThread );
+		for ( int i = 0; i < threads.length; i++ )
+		{
+			threads[ i ] = new Thread( "CIP worker " + i )
+			{
+				@Override
+				public void run()
+				{
+					int t;
+					while( failure.get()==null && ( t = next.getAndIncrement() ) < nTask )
+					{
+						try {
+							task.accept( t );
+						}
+						catch( RuntimeException e ) {
+							failure.compareAndSet( null, e );
+						}
+					}
+				}
+			};
+		}
+		SimpleMultiThreading.startAndJoin( threads );
+
+		if( failure.get() != null )
+			throw failure.get();
+	}
+
+
+	/**
+	 * @return the number of tasks to split a domain of the given size so that nThread threads stay busy
+	 */
+	public static int nChunk( long size, int nThread )
+	{
+		return (int) Math.max( 1, Math.min( size, 4L * Math.max(1, nThread) ) );
+	}
+
+}
@@ -0,0 +1,261 @@
+package nvisio.cip.filter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+
+
+/**
+ *
+ * Recursive (IIR) Gaussian filter, after Young and van Vliet "Recursive implementation of the Gaussian filter"
+ * (Signal Processing, 1995). Each axis is filtered with a third order causal filter followed by a third order
+ * anti-causal filter, so that the cost per pixel does not depend on sigma. The boundary is handled by extending
+ * each line with the boundary method over a few sigma on both sides, the filters start from the steady state of
+ * the first (resp. last) sample of the extended line. Axes with a sigma below 2 pixels, where the recursive
+ * approximation is less accurate and a kernel is short anyway, are filtered with a sampled kernel.
+ *
+ * @author Benoit Lombardot
+ *
+ */
+public final class RecursiveGauss {
+
+	private RecursiveGauss() {}
+
+	// below this sigma, in pixel, the lines are convolved with a sampled kernel
+	static final double MIN_SIGMA = 2;
+
+
+	/**
+	 * filter the lines of one axis, the line is padded with the boundary method before the call
+	 */
+	interface LineFilter
+	{
+		/**
+		 * @param line padded line, filtered in place
+		 * @param length number of values in the line, padding included
+		 */
+		void filter( double[] line, int length );
+	}
+
+
+	/**
+	 *
+	 * @param input image to filter
+	 * @param output image of the same size as input
+	 * @param sigma standard deviation of the gaussian along each dimension, in pixel
+	 * @param boundaryMethod one of "value", "same", "mirror", "periodic"
+	 * @param boundaryValue value of the out of bounds pixels if boundaryMethod is "value"
+	 * @param nThread number of threads
+	 */
+	public static < T extends RealType<T> > void gauss( RandomAccessibleInterval<T> input, RandomAccessibleInterval<FloatType> output, double[] sigma,
+			String boundaryMethod, T boundaryValue, int nThread )
+	{
+		final int nDim = input.numDimensions();
+		final double constant = boundaryValue==null ? 0 : boundaryValue.getRealDouble();
+
+		List<Integer> axes = new ArrayList<Integer>();
+		for( int d=0; d<nDim; d++ )
+			if( sigma[d] > 0 )
+				axes.add( d );
+
+		// nothing to smooth, the output is a copy of the input
+		if( axes.isEmpty() ) {
+			axisPass( input, output, 0, 0, boundaryMethod, constant, (line, length)->{}, nThread );
+			return;
+		}
+
+		boolean first = true;
+		for( int d : axes ) {
+			final int padding = padding( sigma[d] );
+			final LineFilter filter = lineFilter( sigma[d] );
+			if( first )
+				axisPass( input, output, d, padding, boundaryMethod, constant, filter, nThread );
+			else
+				axisPass( output, output, d, padding, boundaryMethod, constant, filter, nThread );
+			first = false;
+		}
+	}
+
+
+	/**
+	 * @return the number of samples added on each side of a line before filtering
+	 */
+	static int padding( double sigma )
+	{
+		if( sigma < MIN_SIGMA )
+			return (int) Math.ceil( 3*sigma );
+		return (int) Math.ceil( 5*sigma ) + 3;
+	}
+
+
+	/**
+	 * @return a filter smoothing a padded line with a gaussian of the given sigma, in pixel
+	 */
+	static LineFilter lineFilter( final double sigma )
+	{
+		if( sigma < MIN_SIGMA ) {
+			final double[] kernel = kernel( sigma );
+			return (line, length) -> convolve( line, length, kernel );
+		}
+		final double[] c = coefficients( sigma );
+		return (line, length) -> recursive( line, length, c );
+	}
+
+
+	/**
+	 * @return { B, b1/b0, b2/b0, b3/b0 } the normalized coefficients of Young and van Vliet recursive filter
+	 */
+	static double[] coefficients( double sigma )
+	{
+		double q;
+		if( sigma >= 2.5 )
+			q = 0.98711*sigma - 0.96330;
+		else
+			q = 3.97156 - 4.14554*Math.sqrt( 1 - 0.26891*sigma );
+
+		final double q2 = q*q;
+		final double q3 = q2*q;
+		final double b0 = 1.57825 + 2.44413*q + 1.4281*q2 + 0.422205*q3;
+		final double b1 = 2.44413*q + 2.85619*q2 + 1.26661*q3;
+		final double b2 = -( 1.4281*q2 + 1.26661*q3 );
+		final double b3 = 0.422205*q3;
+
+		return new double[] { 1 - (b1+b2+b3)/b0, b1/b0, b2/b0, b3/b0 };
+	}
+
+
+	/**
+	 * causal then anti-causal pass, each starting from the steady state of a constant signal
+	 */
+	static void recursive( double[] x, int length, double[] c )
+	{
+		final double B = c[0], a1 = c[1], a2 = c[2], a3 = c[3];
+
+		double w1 = x[0], w2 = x[0], w3 = x[0];
+		for( int i=0; i<length; i++ ) {
+			final double w = B*x[i] + a1*w1 + a2*w2 + a3*w3;
+			x[i] = w;
+			w3 = w2;
+			w2 = w1;
+			w1 = w;
+		}
+
+		w1 = x[length-1];
+		w2 = w1;
+		w3 = w1;
+		for( int i=length-1; i>=0; i-- ) {
+			final double w = B*x[i] + a1*w1 + a2*w2 + a3*w3;
+			x[i] = w;
+			w3 = w2;
+			w2 = w1;
+			w1 = w;
+		}
+	}
+
+
+	/**
+	 * @return the normalized half kernel of a sampled gaussian, kernel[k] is the weight at offset +/-k
+	 */
+	static double[] kernel( double sigma )
+	{
+		final int r = (int) Math.ceil( 3*sigma );
+		final double[] kernel = new double[r+1];
+		double sum = 0;
+		for( int k=0; k<=r; k++ ) {
+			kernel[k] = Math.exp( -0.5*k*k/(sigma*sigma) );
+			sum += k==0 ? kernel[k] : 2*kernel[k];
+		}
+		for( int k=0; k<=r; k++ )
+			kernel[k] /= sum;
+		return kernel;
+	}
+
+
+	/**
+	 * convolution with a symmetric kernel, the first and last kernel.length-1 values are left unchanged
+	 */
+	static void convolve( double[] x, int length, double[] kernel )
+	{
+		final int r = kernel.length-1;
+		if( r == 0 || length <= 2*r )
+			return;
+		final double[] y = new double[length];
+		for( int i=r; i<length-r; i++ ) {
+			double v = kernel[0]*x[i];
+			for( int k=1; k<=r; k++ )
+				v += kernel[k]*( x[i-k] + x[i+k] );
+			y[i] = v;
+		}
+		System.arraycopy( y, r, x, r, length-2*r );
+	}
+
+
+	/**
+	 * filter all the lines of the target parallel to axis d
+	 *
+	 * @param source image read by the pass
+	 * @param target image written by the pass, with the same dimensions as source
+	 * @param padding number of boundary samples added at both ends of the lines
+	 */
+	static < S extends RealType<S> > void axisPass( final RandomAccessibleInterval<S> source, final RandomAccessibleInterval<FloatType> target,
+			final int d, final int padding, final String boundary, final double constant, final LineFilter filter, int nThread )
+	{
+		final int nDim = target.numDimensions();
+		final long[] dims = new long[nDim];
+		final long[] srcMin = new long[nDim];
+		final long[] tgtMin = new long[nDim];
+		target.dimensions( dims );
+		source.min( srcMin );
+		target.min( tgtMin );
+
+		final int L = (int) dims[d];
+		final int[] map = Boundary.indexMap( boundary, L, padding, padding );
+		long size = 1;
+		for( int e=0; e<nDim; e++ )
+			size *= dims[e];
+		final long nLine = size / L;
+
+		final int nChunk = Parallel.nChunk( nLine, nThread );
+		Parallel.run( nChunk, nThread, (chunk)-> {
+			final long start = nLine*chunk/nChunk;
+			final long end = nLine*(chunk+1)/nChunk;
+			final RandomAccess<S> in = source.randomAccess();
+			final RandomAccess<FloatType> out = target.randomAccess();
+			final long[] pos = new long[nDim];
+			final double[] values = new double[L];
+			final double[] line = new double[map.length];
+			for( long i=start; i<end; i++ ) {
+				long l = i;
+				for( int e=0; e<nDim; e++ ) {
+					if( e == d )
+						continue;
+					pos[e] = l % dims[e];
+					l /= dims[e];
+				}
+
+				for( int e=0; e<nDim; e++ )
+					in.setPosition( srcMin[e] + ( e==d ? 0 : pos[e] ), e );
+				for( int k=0; k<L; k++ ) {
+					values[k] = in.get().getRealDouble();
+					in.fwd( d );
+				}
+				for( int k=0; k<map.length; k++ )
+					line[k] = map[k]<0 ? constant : values[ map[k] ];
+
+				filter.filter( line, map.length );
+
+				for( int e=0; e<nDim; e++ )
+					out.setPosition( tgtMin[e] + ( e==d ? 0 : pos[e] ), e );
+				for( int k=0; k<L; k++ ) {
+					out.get().setReal( line[ padding+k ] );
+					out.fwd( d );
+				}
+			}
+		});
+	}
+
+}
@@ -0,0 +1,188 @@
+package nvisio.cip.filter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.function.Function;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.Type;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+import nvisio.cip.misc.DiskCellImg;
+
+
+/**
+ *
+ * Out-of-core execution of a filter: the output is a disk-backed cell image (cf. DiskCellImg) and the filter is
+ * applied to one cell at a time. Each cell of the input is copied in memory with a halo, the part of the neighboring
+ * cells the filter needs to compute the cell (e.g. the radius of a morphological filter or a few sigma for a gaussian),
+ * the filter runs on that block and the result of the cell is copied to the output. The halo is clipped at the image
+ * border so that the boundary methods of the filter apply there as for the whole image. The boundaries depending on
+ * the image content ('min' and 'max') cannot be computed on a block: the halo then extends out of the image, filled
+ * with the extremum of the whole image, which is thus also the extremum of the border blocks seen by the filter.
+ *
+ * Only one block, its filtered copy and the cell caches of the input and output images are in memory. The cells are
+ * processed one after the other, the filters being multithreaded on each block.
+ *
+ * @author Benoit Lombardot
+ *
+ */
+public final class TiledFilter {
+
+	private TiledFilter() {}
+
+
+	/** number of pixels of the default cells */
+	public static final long defaultCellSize = 1L << 24;
+
+
+	/**
+	 * @return cells of about defaultCellSize pixels with the same size along each dimension, clipped to the image size
+	 */
+	public static int[] cellDimensions( long[] dims )
+	{
+		final int side = (int) Math.max( 1, Math.floor( Math.pow( defaultCellSize, 1.0 / dims.length ) ) );
+		final int[] cellDims = new int[dims.length];
+		for( int d=0; d<dims.length; d++ )
+			cellDims[d] = (int) Math.min( side, dims[d] );
+		return cellDims;
+	}
+
+
+	/**
+	 * @param filter one of gauss, gradient, laplacian, hessian, median, dilate, erode, opening, closing, tophat
+	 * @param pixelRadius the radius of the filter along each dimension, in pixel
+	 * @param shape the shape of the median and morphological filters (rectangle or disk), null for a rectangle
+	 * @return the halo needed to compute a cell with the filter, or null if the filter is unknown
+	 */
+	public static long[] halo( String filter, double[] pixelRadius, String shape )
+	{
+		final long[] halo = new long[pixelRadius.length];
+		// the structuring element of the morphological filters, a disk decomposed in segments can reach further
+		// than its radius along some dimensions
+		final long[] extent = LineMorphology.extent( shape, pixelRadius );
+		for( int d=0; d<halo.length; d++ ) {
+			final double r = pixelRadius[d];
+			switch( filter ) {
+			case "gauss":
+			case "gradient":
+			case "laplacian":
+			case "hessian":
+				// the sampled kernels stop at 3 sigma, the recursive filter is padded with 5 sigma (cf. RecursiveGauss.padding),
+				// one more pixel for the central differences of the derivatives
+				halo[d] = (long) Math.ceil( 5*r ) + 4;
+				break;
+			case "median":
+				halo[d] = (long) Math.ceil( r );
+				break;
+			case "dilate":
+			case "erode":
+				halo[d] = extent[d];
+				break;
+			case "opening":
+			case "closing":
+			case "tophat":
+				// an erosion followed by a dilation
+				halo[d] = 2 * extent[d];
+				break;
+			default:
+				return null;
+			}
+		}
+		return halo;
+	}
+
+
+	/**
+	 * @param input the image to filter, in memory or disk-backed
+	 * @param halo the number of pixels of the neighboring cells needed to filter a cell, along each dimension
+	 * @param filter the filter, its output should have the size of its input and a type supported by DiskCellImg
+	 * @param cellDims size of the cells processed at once, and of the output cells
+	 * @param file the file storing the output, or null for a temporary file
+	 * @param cacheSize maximum size of the output cells kept in memory, in bytes
+	 * @param outside value of the pixels out of the image, or null to clip the halo at the image border
+	 * @return the filtered image
+	 * @throws IOException if the output file cannot be created
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public static < T extends RealType<T> & NativeType<T> > DiskCellImg<?, ?> process( final RandomAccessibleInterval<T> input, long[] halo,
+			Function<Img<T>, RandomAccessibleInterval<?>> filter, int[] cellDims, File file, long cacheSize, T outside ) throws IOException
+	{
+		final int nDim = input.numDimensions();
+		final long[] dims = new long[nDim];
+		input.dimensions( dims );
+		final RandomAccessibleInterval<T> source = Views.zeroMin( input );
+		final RandomAccessible<T> extended = outside == null ? source : Views.extendValue( source, outside );
+		final T type = input.randomAccess().get().createVariable();
+
+		final CellGrid grid = new CellGrid( dims, cellDims );
+		long nCell = 1;
+		for( long n : grid.getGridDimensions() )
+			nCell *= n;
+
+		final long[] cellMin = new long[nDim];
+		final int[] cellSize = new int[nDim];
+		final long[] cellMax = new long[nDim];
+		final long[] blockMin = new long[nDim];
+		final long[] blockMax = new long[nDim];
+		final long[] blockDims = new long[nDim];
+		final long[] coreMin = new long[nDim];
+		DiskCellImg output = null;
+
+		for( long c=0; c<nCell; c++ ) {
+			grid.getCellDimensions( c, cellMin, cellSize );
+			for( int d=0; d<nDim; d++ ) {
+				cellMax[d] = cellMin[d] + cellSize[d] - 1;
+				blockMin[d] = outside == null ? Math.max( 0, cellMin[d] - halo[d] ) : cellMin[d] - halo[d];
+				blockMax[d] = outside == null ? Math.min( dims[d]-1, cellMax[d] + halo[d] ) : cellMax[d] + halo[d];
+				blockDims[d] = blockMax[d] - blockMin[d] + 1;
+				coreMin[d] = cellMin[d] - blockMin[d];
+			}
+
+			// the cell and its halo in memory
+			final Img<T> block = new ArrayImgFactory<T>().create( blockDims, type );
+			copy( Views.interval( extended, blockMin, blockMax ), block );
+
+			final RandomAccessibleInterval<?> result = filter.apply( block );
+			if( result == null )
+				throw new IllegalArgumentException( "CIP tiled: the filter failed on the cell " + c );
+			for( int d=0; d<nDim; d++ )
+				if( result.numDimensions() != nDim || result.dimension(d) != blockDims[d] )
+					throw new IllegalArgumentException( "CIP tiled: the output of the filter should have the size of its input" );
+
+			final RandomAccessibleInterval<?> resultZero = Views.zeroMin( (RandomAccessibleInterval) result );
+			if( output == null ) {
+				final Object resultType = resultZero.randomAccess().get();
+				if( !( resultType instanceof NativeType ) )
+					throw new IllegalArgumentException( "CIP tiled: unsupported output type " + resultType.getClass().getSimpleName() );
+				output = DiskCellImg.create( dims, (NativeType) ( (NativeType) resultType ).createVariable(), cellDims, file, cacheSize );
+			}
+
+			for( int d=0; d<nDim; d++ ) {
+				blockMin[d] = coreMin[d];
+				blockMax[d] = coreMin[d] + cellSize[d] - 1;
+			}
+			copy( Views.interval( (RandomAccessibleInterval) resultZero, blockMin, blockMax ), Views.interval( output, cellMin, cellMax ) );
+		}
+
+		output.flush();
+		return output;
+	}
+
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static void copy( RandomAccessibleInterval source, RandomAccessibleInterval target )
+	{
+		final Cursor<Type> in = Views.flatIterable( source ).cursor();
+		final Cursor<Type> out = Views.flatIterable( target ).cursor();
+		while( out.hasNext() )
+			out.next().set( in.next() );
+	}
+
+}
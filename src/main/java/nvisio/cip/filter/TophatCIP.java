@@ -52,6 +52,15 @@ import net.imglib2.view.Views;
 			// process the input image											
 			///////////////////////////////////////////////////////////////////////
 			
+			// output type parameter is ignored, output is always the size of the input
+			if( segments != null )
+			{
+				// opening and subtraction are fused, no intermediate image besides the padded copy of the input
+				outputType = "same";
+				outputImage = segmentMorphology( source, LineMorphology.Operation.tophat, 2, nThread );
+				return;
+			}
+			
 			RandomAccessibleInterval<T> target = source;
 			for ( final Shape strel : strels )
 			{
@@ -63,7 +72,6 @@ import net.imglib2.view.Views;
 				target = DilationCIP.dilateFull( target, strel, nThread, outOfBoundFactory );	
 			}
 			
-			// output type parameter is ignored, output is always the size of the input
 			ImgFactory<T> imgFactory = Util.getArrayOrCellImgFactory( target, target.randomAccess().get().createVariable() );
 			Img<T> target2 = ImgView.wrap( target, imgFactory);
 			target2 = TempUtils.copyCropped( target2, inputImage, nThread );
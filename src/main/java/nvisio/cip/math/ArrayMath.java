@@ -0,0 +1,248 @@
+package nvisio.cip.math;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.List;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import nvisio.cip.filter.Parallel;
+
+
+/**
+ *
+ * Element wise math on two ArrayImg of the same pixel type, computed with loops on the primitive arrays storing the
+ * pixels. The loops do not call any method per pixel so that the JIT can unroll and vectorize them, the image is
+ * cut in chunks processed in parallel.
+ *
+ * The results are the ones of the imglib2 types: integer additions, subtractions and multiplications wrap around, the
+ * min and max of unsigned types compare the unsigned values. Division and power are only handled for float and
+ * double images (CIP converts the integer operands of a division to float).
+ *
+ * @author Benoit Lombardot
+ *
+ */
+public final class ArrayMath {
+
+	private ArrayMath() {}
+
+
+	static final List<String> operations = Arrays.asList( "add", "subtract", "multiply", "divide", "min", "max", "pow" );
+	static final List<String> decimalOperations = Arrays.asList( "divide", "pow" );
+
+
+	/**
+	 * @return true if the operation can be computed on the primitive arrays of the two images
+	 */
+	public static boolean isSupported( String operation, RandomAccessibleInterval<?> img1, RandomAccessibleInterval<?> img2 )
+	{
+		if( !operations.contains( operation ) )
+			return false;
+		if( !( img1 instanceof ArrayImg ) || !( img2 instanceof ArrayImg ) )
+			return false;
+		final Object type1 = img1.randomAccess().get();
+		final Object type2 = img2.randomAccess().get();
+		if( type1.getClass() != type2.getClass() || !( type1 instanceof NativeType ) )
+			return false;
+		final int nDim = img1.numDimensions();
+		if( img2.numDimensions() != nDim )
+			return false;
+		for( int d=0; d<nDim; d++ )
+			if( img1.dimension(d) != img2.dimension(d) )
+				return false;
+		// one array element per pixel, excludes the packed (bit) and complex types
+		long size = 1;
+		for( int d=0; d<nDim; d++ )
+			size *= img1.dimension(d);
+		final Object array = storage( img1 );
+		if( array == null || Array.getLength( array ) != size )
+			return false;
+		if( decimalOperations.contains( operation ) )
+			return array instanceof float[] || array instanceof double[];
+		return array instanceof float[] || array instanceof double[] || array instanceof byte[] || array instanceof short[]
+				|| array instanceof int[] || array instanceof long[];
+	}
+
+
+	/**
+	 * @param operation one of add, subtract, multiply, divide, min, max, pow
+	 * @param img1 first operand (cf. {@link #isSupported(String, RandomAccessibleInterval, RandomAccessibleInterval)})
+	 * @param img2 second operand
+	 * @param nThread number of threads
+	 * @return a new ArrayImg with the result of img1 operation img2
+	 */
+	public static < T extends RealType<T> & NativeType<T> > Img<T> compute( String operation, RandomAccessibleInterval<T> img1,
+			RandomAccessibleInterval<T> img2, int nThread )
+	{
+		final long[] dims = new long[ img1.numDimensions() ];
+		img1.dimensions( dims );
+		final Img<T> output = new ArrayImgFactory<T>().create( dims, img1.randomAccess().get().createVariable() );
+		compute( operation, img1, img2, output, nThread );
+		return output;
+	}
+
+
+	/**
+	 * write img1 operation img2 in output, an ArrayImg of the same type and size as the operands. The output can be one
+	 * of the operands.
+	 */
+	public static < T extends RealType<T> > void compute( String operation, RandomAccessibleInterval<T> img1,
+			RandomAccessibleInterval<T> img2, RandomAccessibleInterval<T> output, int nThread )
+	{
+		final T type = img1.randomAccess().get();
+		final Object a = storage( img1 );
+		final Object b = storage( img2 );
+		final Object c = storage( output );
+		final boolean unsigned = type instanceof UnsignedByteType || type instanceof UnsignedShortType
+				|| type instanceof UnsignedIntType || type instanceof UnsignedLongType;
+		final int op = operations.indexOf( operation );
+
+		final int size = Array.getLength( a );
+		final int nTask = Parallel.nChunk( size, nThread );
+		Parallel.run( nTask, nThread, (task)-> {
+			final int start = (int) ( (long) size*task/nTask );
+			final int end = (int) ( (long) size*(task+1)/nTask );
+			if( a instanceof float[] )
+				compute( op, (float[]) a, (float[]) b, (float[]) c, start, end );
+			else if( a instanceof double[] )
+				compute( op, (double[]) a, (double[]) b, (double[]) c, start, end );
+			else if( a instanceof byte[] )
+				compute( op, (byte[]) a, (byte[]) b, (byte[]) c, start, end, unsigned );
+			else if( a instanceof short[] )
+				compute( op, (short[]) a, (short[]) b, (short[]) c, start, end, unsigned );
+			else if( a instanceof int[] )
+				compute( op, (int[]) a, (int[]) b, (int[]) c, start, end, unsigned );
+			else
+				compute( op, (long[]) a, (long[]) b, (long[]) c, start, end, unsigned );
+		});
+	}
+
+
+	private static Object storage( RandomAccessibleInterval<?> img )
+	{
+		return ( (ArrayDataAccess<?>) ( (ArrayImg<?, ?>) img ).update( null ) ).getCurrentStorageArray();
+	}
+
+
+	private static void compute( int op, float[] a, float[] b, float[] c, int start, int end )
+	{
+		switch( op ) {
+		case 0: for( int i=start; i<end; i++ ) c[i] = a[i] + b[i]; break;
+		case 1: for( int i=start; i<end; i++ ) c[i] = a[i] - b[i]; break;
+		case 2: for( int i=start; i<end; i++ ) c[i] = a[i] * b[i]; break;
+		case 3: for( int i=start; i<end; i++ ) c[i] = a[i] / b[i]; break;
+		case 4: for( int i=start; i<end; i++ ) c[i] = Math.min( a[i], b[i] ); break;
+		case 5: for( int i=start; i<end; i++ ) c[i] = Math.max( a[i], b[i] ); break;
+		default: for( int i=start; i<end; i++ ) c[i] = (float) Math.pow( a[i], b[i] );
+		}
+	}
+
+
+	private static void compute( int op, double[] a, double[] b, double[] c, int start, int end )
+	{
+		switch( op ) {
+		case 0: for( int i=start; i<end; i++ ) c[i] = a[i] + b[i]; break;
+		case 1: for( int i=start; i<end; i++ ) c[i] = a[i] - b[i]; break;
+		case 2: for( int i=start; i<end; i++ ) c[i] = a[i] * b[i]; break;
+		case 3: for( int i=start; i<end; i++ ) c[i] = a[i] / b[i]; break;
+		case 4: for( int i=start; i<end; i++ ) c[i] = Math.min( a[i], b[i] ); break;
+		case 5: for( int i=start; i<end; i++ ) c[i] = Math.max( a[i], b[i] ); break;
+		default: for( int i=start; i<end; i++ ) c[i] = Math.pow( a[i], b[i] );
+		}
+	}
+
+
+	// the low bits of sums and products do not depend on the sign, only min and max differ for unsigned types
+	private static void compute( int op, byte[] a, byte[] b, byte[] c, int start, int end, boolean unsigned )
+	{
+		switch( op ) {
+		case 0: for( int i=start; i<end; i++ ) c[i] = (byte) ( a[i] + b[i] ); break;
+		case 1: for( int i=start; i<end; i++ ) c[i] = (byte) ( a[i] - b[i] ); break;
+		case 2: for( int i=start; i<end; i++ ) c[i] = (byte) ( a[i] * b[i] ); break;
+		case 4:
+			if( unsigned )
+				for( int i=start; i<end; i++ ) c[i] = ( a[i] & 0xff ) < ( b[i] & 0xff ) ? a[i] : b[i];
+			else
+				for( int i=start; i<end; i++ ) c[i] = a[i] < b[i] ? a[i] : b[i];
+			break;
+		default: // max
+			if( unsigned )
+				for( int i=start; i<end; i++ ) c[i] = ( a[i] & 0xff ) > ( b[i] & 0xff ) ? a[i] : b[i];
+			else
+				for( int i=start; i<end; i++ ) c[i] = a[i] > b[i] ? a[i] : b[i];
+		}
+	}
+
+
+	private static void compute( int op, short[] a, short[] b, short[] c, int start, int end, boolean unsigned )
+	{
+		switch( op ) {
+		case 0: for( int i=start; i<end; i++ ) c[i] = (short) ( a[i] + b[i] ); break;
+		case 1: for( int i=start; i<end; i++ ) c[i] = (short) ( a[i] - b[i] ); break;
+		case 2: for( int i=start; i<end; i++ ) c[i] = (short) ( a[i] * b[i] ); break;
+		case 4:
+			if( unsigned )
+				for( int i=start; i<end; i++ ) c[i] = ( a[i] & 0xffff ) < ( b[i] & 0xffff ) ? a[i] : b[i];
+			else
+				for( int i=start; i<end; i++ ) c[i] = a[i] < b[i] ? a[i] : b[i];
+			break;
+		default: // max
+			if( unsigned )
+				for( int i=start; i<end; i++ ) c[i] = ( a[i] & 0xffff ) > ( b[i] & 0xffff ) ? a[i] : b[i];
+			else
+				for( int i=start; i<end; i++ ) c[i] = a[i] > b[i] ? a[i] : b[i];
+		}
+	}
+
+
+	private static void compute( int op, int[] a, int[] b, int[] c, int start, int end, boolean unsigned )
+	{
+		switch( op ) {
+		case 0: for( int i=start; i<end; i++ ) c[i] = a[i] + b[i]; break;
+		case 1: for( int i=start; i<end; i++ ) c[i] = a[i] - b[i]; break;
+		case 2: for( int i=start; i<end; i++ ) c[i] = a[i] * b[i]; break;
+		case 4:
+			if( unsigned )
+				for( int i=start; i<end; i++ ) c[i] = Integer.compareUnsigned( a[i], b[i] ) < 0 ? a[i] : b[i];
+			else
+				for( int i=start; i<end; i++ ) c[i] = Math.min( a[i], b[i] );
+			break;
+		default: // max
+			if( unsigned )
+				for( int i=start; i<end; i++ ) c[i] = Integer.compareUnsigned( a[i], b[i] ) > 0 ? a[i] : b[i];
+			else
+				for( int i=start; i<end; i++ ) c[i] = Math.max( a[i], b[i] );
+		}
+	}
+
+
+	private static void compute( int op, long[] a, long[] b, long[] c, int start, int end, boolean unsigned )
+	{
+		switch( op ) {
+		case 0: for( int i=start; i<end; i++ ) c[i] = a[i] + b[i]; break;
+		case 1: for( int i=start; i<end; i++ ) c[i] = a[i] - b[i]; break;
+		case 2: for( int i=start; i<end; i++ ) c[i] = a[i] * b[i]; break;
+		case 4:
+			if( unsigned )
+				for( int i=start; i<end; i++ ) c[i] = Long.compareUnsigned( a[i], b[i] ) < 0 ? a[i] : b[i];
+			else
+				for( int i=start; i<end; i++ ) c[i] = Math.min( a[i], b[i] );
+			break;
+		default: // max
+			if( unsigned )
+				for( int i=start; i<end; i++ ) c[i] = Long.compareUnsigned( a[i], b[i] ) > 0 ? a[i] : b[i];
+			else
+				for( int i=start; i<end; i++ ) c[i] = Math.max( a[i], b[i] );
+		}
+	}
+
+}
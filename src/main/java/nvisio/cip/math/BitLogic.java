@@ -0,0 +1,277 @@
+package nvisio.cip.math;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.List;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+import nvisio.cip.filter.Parallel;
+
+
+/**
+ *
+ * Logical operators (and, or, xor, and not, not) and comparisons (&gt;, &gt;=, ==, &lt;, &lt;=, !=) producing bit masks.
+ * The masks are ArrayImg of BitType whose pixels are packed 64 per long, pixel i being the bit i%64 of the word i/64.
+ * The results are written one word at a time and the image is cut in chunks of whole words processed in parallel.
+ * Logical operators on two packed masks of the same size are word operations, other inputs are read in blocks of 64
+ * values, a pixel is true if its value is not 0.
+ *
+ * @author Benoit Lombardot
+ *
+ */
+public final class BitLogic {
+
+	private BitLogic() {}
+
+
+	public static final List<String> logicOperations = Arrays.asList( "and", "or", "xor", "andnot", "not" );
+	public static final List<String> comparisons = Arrays.asList( "gt", "ge", "eq", "lt", "le", "ne" );
+
+
+	/**
+	 * @param operation one of and, or, xor, andnot (mask1 and not mask2), not (mask2 is ignored)
+	 * @param mask1 an image, pixels different from 0 are true
+	 * @param mask2 an image of the same size as mask1, or null for not
+	 * @param nThread number of threads
+	 * @return a packed bit mask
+	 */
+	public static ArrayImg<BitType, LongArray> logic( String operation, final RandomAccessibleInterval<? extends RealType<?>> mask1,
+			final RandomAccessibleInterval<? extends RealType<?>> mask2, int nThread )
+	{
+		final int op = logicOperations.indexOf( operation );
+		if( op < 0 )
+			throw new IllegalArgumentException( "CIP: unknown logical operation " + operation );
+		if( op < 4 && mask2 == null )
+			throw new IllegalArgumentException( "CIP: " + operation + " needs two masks" );
+
+		final ArrayImg<BitType, LongArray> output = createMask( mask1 );
+		final long[] c = words( output );
+		final long size = size( mask1 );
+		final long[] a = words( mask1 );
+		final long[] b = mask2 == null || op == 4 ? null : words( mask2 );
+
+		run( size, nThread, (start, end, reader1, reader2)-> {
+			final int w0 = (int) ( start >>> 6 );
+			final int w1 = (int) ( ( end + 63 ) >>> 6 );
+			if( a != null && ( b != null || op == 4 ) ) {
+				// packed inputs, word operations
+				switch( op ) {
+				case 0: for( int w=w0; w<w1; w++ ) c[w] = a[w] & b[w]; break;
+				case 1: for( int w=w0; w<w1; w++ ) c[w] = a[w] | b[w]; break;
+				case 2: for( int w=w0; w<w1; w++ ) c[w] = a[w] ^ b[w]; break;
+				case 3: for( int w=w0; w<w1; w++ ) c[w] = a[w] & ~b[w]; break;
+				default: for( int w=w0; w<w1; w++ ) c[w] = ~a[w];
+				}
+			}
+			else {
+				final double[] v1 = new double[64];
+				final double[] v2 = new double[64];
+				for( int w=w0; w<w1; w++ ) {
+					final int n = (int) Math.min( 64, size - ((long) w << 6) );
+					reader1.read( n, v1 );
+					if( reader2 != null )
+						reader2.read( n, v2 );
+					long word = 0;
+					for( int k=0; k<n; k++ ) {
+						final boolean p = v1[k] != 0;
+						final boolean q = reader2 != null && v2[k] != 0;
+						final boolean r;
+						switch( op ) {
+						case 0: r = p & q; break;
+						case 1: r = p | q; break;
+						case 2: r = p ^ q; break;
+						case 3: r = p & !q; break;
+						default: r = !p;
+						}
+						if( r )
+							word |= 1L << k;
+					}
+					c[w] = word;
+				}
+			}
+		}, mask1, op == 4 ? null : mask2 );
+
+		clearTail( c, size );
+		return output;
+	}
+
+
+	/**
+	 * @param operation one of gt, ge, eq, lt, le, ne
+	 * @param img1 an image
+	 * @param img2 an image of the same size, or null to compare to value
+	 * @param value the value compared to img1 if img2 is null
+	 * @param nThread number of threads
+	 * @return a packed bit mask, true where img1 operation img2 (or value) holds
+	 */
+	public static ArrayImg<BitType, LongArray> compare( String operation, final RandomAccessibleInterval<? extends RealType<?>> img1,
+			final RandomAccessibleInterval<? extends RealType<?>> img2, final double value, int nThread )
+	{
+		final int op = comparisons.indexOf( operation );
+		if( op < 0 )
+			throw new IllegalArgumentException( "CIP: unknown comparison " + operation );
+
+		final ArrayImg<BitType, LongArray> output = createMask( img1 );
+		final long[] c = words( output );
+		final long size = size( img1 );
+
+		run( size, nThread, (start, end, reader1, reader2)-> {
+			final int w0 = (int) ( start >>> 6 );
+			final int w1 = (int) ( ( end + 63 ) >>> 6 );
+			final double[] v1 = new double[64];
+			final double[] v2 = new double[64];
+			Arrays.fill( v2, value );
+			for( int w=w0; w<w1; w++ ) {
+				final int n = (int) Math.min( 64, size - ((long) w << 6) );
+				reader1.read( n, v1 );
+				if( reader2 != null )
+					reader2.read( n, v2 );
+				long word = 0;
+				switch( op ) {
+				case 0: for( int k=0; k<n; k++ ) if( v1[k] >  v2[k] ) word |= 1L << k; break;
+				case 1: for( int k=0; k<n; k++ ) if( v1[k] >= v2[k] ) word |= 1L << k; break;
+				case 2: for( int k=0; k<n; k++ ) if( v1[k] == v2[k] ) word |= 1L << k; break;
+				case 3: for( int k=0; k<n; k++ ) if( v1[k] <  v2[k] ) word |= 1L << k; break;
+				case 4: for( int k=0; k<n; k++ ) if( v1[k] <= v2[k] ) word |= 1L << k; break;
+				default: for( int k=0; k<n; k++ ) if( v1[k] != v2[k] ) word |= 1L << k;
+				}
+				c[w] = word;
+			}
+		}, img1, img2 );
+
+		return output;
+	}
+
+
+	/**
+	 * @return true if the two images have the same size
+	 */
+	public static boolean sameSize( RandomAccessibleInterval<?> img1, RandomAccessibleInterval<?> img2 )
+	{
+		return MathInto.sameSize( img1, img2 );
+	}
+
+
+	private static ArrayImg<BitType, LongArray> createMask( RandomAccessibleInterval<?> img )
+	{
+		final long[] dims = new long[ img.numDimensions() ];
+		img.dimensions( dims );
+		return ArrayImgs.bits( dims );
+	}
+
+
+	// the bits after the last pixel are kept at 0
+	private static void clearTail( long[] words, long size )
+	{
+		final int rest = (int) ( size & 63 );
+		if( rest != 0 )
+			words[ words.length-1 ] &= ( 1L << rest ) - 1;
+	}
+
+
+	/**
+	 * @return the words of a packed bit mask, null for any other image
+	 */
+	static long[] words( RandomAccessibleInterval<?> img )
+	{
+		if( !( img instanceof ArrayImg ) || !( img.randomAccess().get() instanceof BitType ) )
+			return null;
+		final Object storage = ( (ArrayDataAccess<?>) ( (ArrayImg<?, ?>) img ).update( null ) ).getCurrentStorageArray();
+		return storage instanceof long[] ? (long[]) storage : null;
+	}
+
+
+	private static long size( RandomAccessibleInterval<?> img )
+	{
+		long size = 1;
+		for( int d=0; d<img.numDimensions(); d++ )
+			size *= img.dimension(d);
+		return size;
+	}
+
+
+	interface Chunk
+	{
+		void run( long start, long end, Reader reader1, Reader reader2 );
+	}
+
+
+	// chunks start on a word boundary so that no word is shared by two threads
+	private static void run( final long size, int nThread, final Chunk chunk, final RandomAccessibleInterval<? extends RealType<?>> img1,
+			final RandomAccessibleInterval<? extends RealType<?>> img2 )
+	{
+		final long nWord = ( size + 63 ) >>> 6;
+		final int nTask = Parallel.nChunk( nWord, nThread );
+		Parallel.run( nTask, nThread, (task)-> {
+			final long start = Math.min( size, ( nWord*task/nTask ) << 6 );
+			final long end = Math.min( size, ( nWord*(task+1)/nTask ) << 6 );
+			if( start >= end )
+				return;
+			chunk.run( start, end, reader( img1, start ), img2 == null ? null : reader( img2, start ) );
+		});
+	}
+
+
+	/**
+	 * sequential reader of pixel values, from the primitive array of an ArrayImg or from a cursor
+	 */
+	static abstract class Reader
+	{
+		abstract void read( int n, double[] values );
+	}
+
+
+	static Reader reader( RandomAccessibleInterval<? extends RealType<?>> img, final long start )
+	{
+		final Object type = img.randomAccess().get();
+		Object storage = null;
+		if( img instanceof ArrayImg ) {
+			storage = ( (ArrayDataAccess<?>) ( (ArrayImg<?, ?>) img ).update( null ) ).getCurrentStorageArray();
+			if( storage == null || !storage.getClass().isArray() || Array.getLength( storage ) != size( img ) )
+				storage = null; // packed or complex types
+		}
+		final int[] pos = new int[] { (int) start };
+		if( storage instanceof float[] ) {
+			final float[] a = (float[]) storage;
+			return new Reader() { void read( int n, double[] v ) { for( int k=0; k<n; k++ ) v[k] = a[ pos[0]++ ]; } };
+		}
+		if( storage instanceof double[] ) {
+			final double[] a = (double[]) storage;
+			return new Reader() { void read( int n, double[] v ) { System.arraycopy( a, pos[0], v, 0, n ); pos[0] += n; } };
+		}
+		if( storage instanceof byte[] ) {
+			final byte[] a = (byte[]) storage;
+			if( type instanceof UnsignedByteType )
+				return new Reader() { void read( int n, double[] v ) { for( int k=0; k<n; k++ ) v[k] = a[ pos[0]++ ] & 0xff; } };
+			return new Reader() { void read( int n, double[] v ) { for( int k=0; k<n; k++ ) v[k] = a[ pos[0]++ ]; } };
+		}
+		if( storage instanceof short[] ) {
+			final short[] a = (short[]) storage;
+			if( type instanceof UnsignedShortType )
+				return new Reader() { void read( int n, double[] v ) { for( int k=0; k<n; k++ ) v[k] = a[ pos[0]++ ] & 0xffff; } };
+			return new Reader() { void read( int n, double[] v ) { for( int k=0; k<n; k++ ) v[k] = a[ pos[0]++ ]; } };
+		}
+		if( storage instanceof int[] ) {
+			final int[] a = (int[]) storage;
+			if( type instanceof UnsignedIntType )
+				return new Reader() { void read( int n, double[] v ) { for( int k=0; k<n; k++ ) v[k] = a[ pos[0]++ ] & 0xffffffffL; } };
+			return new Reader() { void read( int n, double[] v ) { for( int k=0; k<n; k++ ) v[k] = a[ pos[0]++ ]; } };
+		}
+
+		final Cursor<? extends RealType<?>> cursor = Views.flatIterable( img ).cursor();
+		cursor.jumpFwd( start );
+		return new Reader() { void read( int n, double[] v ) { for( int k=0; k<n; k++ ) v[k] = cursor.next().getRealDouble(); } };
+	}
+
+}
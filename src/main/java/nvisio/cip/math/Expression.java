@@ -0,0 +1,412 @@
+package nvisio.cip.math;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ *
+ * Arithmetic expression compiled to a small stack program and evaluated on blocks of values. Each instruction runs
+ * over a whole block before the next one starts, so that an expression on images is computed in one pass over the
+ * pixels without intermediate images.
+ *
+ * The grammar contains numbers, variables, the operators + - * / ^ (power, right associative), unary minus,
+ * parentheses and the functions of Math1OperationCIP (cos, sin, tan, acos, asin, atan, log, exp, sqrt, abs, round,
+ * floor, ceil, sign) and of MoreMathOperationCIP (min, max, pow).
+ *
+ * @author Benoit Lombardot
+ *
+ */
+public class Expression {
+
+	// instructions, followed by an argument for VAR, CONST and FUNC
+	static final int VAR = 0;
+	static final int CONST = 1;
+	static final int ADD = 2;
+	static final int SUB = 3;
+	static final int MUL = 4;
+	static final int DIV = 5;
+	static final int POW = 6;
+	static final int NEG = 7;
+	static final int FUNC1 = 8;
+	static final int FUNC2 = 9;
+
+	static final List<String> functions1 = Arrays.asList( "cos", "sin", "tan", "acos", "asin", "atan", "log", "exp",
+			"sqrt", "abs", "round", "floor", "ceil", "sign" );
+	static final List<String> functions2 = Arrays.asList( "min", "max", "pow" );
+
+	final String expression;
+	final List<String> variables;
+	final int[] code;
+	final double[] constants;
+	final int stackSize;
+
+
+	/**
+	 * @param expression the expression to compile
+	 * @param variables the names of the variables, the values are passed in that order to evaluate
+	 * @throws IllegalArgumentException if the expression can not be parsed or uses an unknown variable
+	 */
+	public Expression( String expression, List<String> variables )
+	{
+		this.expression = expression;
+		this.variables = new ArrayList<String>( variables );
+		Parser parser = new Parser( expression );
+		parser.parse();
+		code = parser.code.stream().mapToInt( Integer::intValue ).toArray();
+		constants = parser.constants.stream().mapToDouble( Double::doubleValue ).toArray();
+
+		int depth = 0;
+		int maxDepth = 0;
+		for( int i=0; i<code.length; i++ ) {
+			switch( code[i] ) {
+			case VAR: case CONST:
+				depth++;
+				i++;
+				break;
+			case FUNC1:
+				i++;
+				break;
+			case FUNC2:
+				depth--;
+				i++;
+				break;
+			case NEG:
+				break;
+			default:
+				depth--;
+			}
+			maxDepth = Math.max( maxDepth, depth );
+		}
+		stackSize = maxDepth;
+	}
+
+
+	/**
+	 * @return the indexes of the variables used in the expression
+	 */
+	public boolean[] usedVariables()
+	{
+		boolean[] used = new boolean[ variables.size() ];
+		for( int i=0; i<code.length; i++ ) {
+			if( code[i] == VAR )
+				used[ code[i+1] ] = true;
+			if( code[i] == VAR || code[i] == CONST || code[i] == FUNC1 || code[i] == FUNC2 )
+				i++;
+		}
+		return used;
+	}
+
+
+	/**
+	 * @return a work space to evaluate the expression on blocks of n values
+	 */
+	public double[][] createStack( int n )
+	{
+		return new double[ Math.max( 1, stackSize ) ][n];
+	}
+
+
+	/**
+	 * Evaluate the expression on n values of the variables
+	 *
+	 * @param values the values of each variable, one array per variable (null for unused variables)
+	 * @param n number of values to evaluate
+	 * @param stack a work space (cf. {@link #createStack(int)})
+	 * @return the array of the stack holding the n results
+	 */
+	public double[] evaluate( double[][] values, int n, double[][] stack )
+	{
+		int top = -1;
+		for( int i=0; i<code.length; i++ ) {
+			final int instruction = code[i];
+			switch( instruction ) {
+			case VAR:
+				System.arraycopy( values[ code[++i] ], 0, stack[++top], 0, n );
+				break;
+			case CONST:
+				Arrays.fill( stack[++top], 0, n, constants[ code[++i] ] );
+				break;
+			case NEG: {
+				final double[] a = stack[top];
+				for( int k=0; k<n; k++ )
+					a[k] = -a[k];
+				break;
+			}
+			case FUNC1:
+				function1( code[++i], stack[top], n );
+				break;
+			case FUNC2:
+				function2( code[++i], stack[top-1], stack[top], n );
+				top--;
+				break;
+			default:
+				operator( instruction, stack[top-1], stack[top], n );
+				top--;
+			}
+		}
+		return stack[0];
+	}
+
+
+	/**
+	 * Evaluate the expression on a single set of values
+	 */
+	public double evaluate( double... values )
+	{
+		double[][] columns = new double[values.length][];
+		for( int v=0; v<values.length; v++ )
+			columns[v] = new double[] { values[v] };
+		return evaluate( columns, 1, createStack(1) )[0];
+	}
+
+
+	private static void operator( int instruction, double[] a, double[] b, int n )
+	{
+		switch( instruction ) {
+		case ADD:
+			for( int k=0; k<n; k++ )
+				a[k] += b[k];
+			break;
+		case SUB:
+			for( int k=0; k<n; k++ )
+				a[k] -= b[k];
+			break;
+		case MUL:
+			for( int k=0; k<n; k++ )
+				a[k] *= b[k];
+			break;
+		case DIV:
+			for( int k=0; k<n; k++ )
+				a[k] /= b[k];
+			break;
+		default: // POW
+			for( int k=0; k<n; k++ )
+				a[k] = Math.pow( a[k], b[k] );
+		}
+	}
+
+
+	private static void function2( int function, double[] a, double[] b, int n )
+	{
+		switch( functions2.get( function ) ) {
+		case "min":
+			for( int k=0; k<n; k++ )
+				a[k] = Math.min( a[k], b[k] );
+			break;
+		case "max":
+			for( int k=0; k<n; k++ )
+				a[k] = Math.max( a[k], b[k] );
+			break;
+		default: // "pow"
+			operator( POW, a, b, n );
+		}
+	}
+
+
+	private static void function1( int function, double[] a, int n )
+	{
+		switch( functions1.get( function ) ) {
+		case "cos":		for( int k=0; k<n; k++ ) a[k] = Math.cos( a[k] );		break;
+		case "sin":		for( int k=0; k<n; k++ ) a[k] = Math.sin( a[k] );		break;
+		case "tan":		for( int k=0; k<n; k++ ) a[k] = Math.tan( a[k] );		break;
+		case "acos":	for( int k=0; k<n; k++ ) a[k] = Math.acos( a[k] );		break;
+		case "asin":	for( int k=0; k<n; k++ ) a[k] = Math.asin( a[k] );		break;
+		case "atan":	for( int k=0; k<n; k++ ) a[k] = Math.atan( a[k] );		break;
+		case "log":		for( int k=0; k<n; k++ ) a[k] = Math.log( a[k] );		break;
+		case "exp":		for( int k=0; k<n; k++ ) a[k] = Math.exp( a[k] );		break;
+		case "sqrt":	for( int k=0; k<n; k++ ) a[k] = Math.sqrt( a[k] );		break;
+		case "abs":		for( int k=0; k<n; k++ ) a[k] = Math.abs( a[k] );		break;
+		case "round":	for( int k=0; k<n; k++ ) a[k] = Math.round( a[k] );		break;
+		case "floor":	for( int k=0; k<n; k++ ) a[k] = Math.floor( a[k] );		break;
+		case "ceil":	for( int k=0; k<n; k++ ) a[k] = Math.ceil( a[k] );		break;
+		default: 		for( int k=0; k<n; k++ ) a[k] = Math.signum( a[k] );	// "sign"
+		}
+	}
+
+
+	@Override
+	public String toString() {
+		return expression;
+	}
+
+
+	/**
+	 * recursive descent parser writing the program in postfix order
+	 */
+	class Parser
+	{
+		final String str;
+		int pos = 0;
+		final List<Integer> code = new ArrayList<Integer>();
+		final List<Double> constants = new ArrayList<Double>();
+
+		Parser( String str )
+		{
+			this.str = str;
+		}
+
+		void parse()
+		{
+			sum();
+			skipSpaces();
+			if( pos < str.length() )
+				error( "unexpected character '" + str.charAt(pos) + "'" );
+		}
+
+		// sum := product ( ('+'|'-') product )*
+		void sum()
+		{
+			product();
+			while( true ) {
+				if( eat('+') ) {
+					product();
+					code.add( ADD );
+				}
+				else if( eat('-') ) {
+					product();
+					code.add( SUB );
+				}
+				else
+					return;
+			}
+		}
+
+		// product := unary ( ('*'|'/') unary )*
+		void product()
+		{
+			unary();
+			while( true ) {
+				if( eat('*') ) {
+					unary();
+					code.add( MUL );
+				}
+				else if( eat('/') ) {
+					unary();
+					code.add( DIV );
+				}
+				else
+					return;
+			}
+		}
+
+		// unary := ('-'|'+') unary | power
+		void unary()
+		{
+			if( eat('-') ) {
+				unary();
+				code.add( NEG );
+			}
+			else if( eat('+') )
+				unary();
+			else
+				power();
+		}
+
+		// power := atom ( '^' unary )?
+		void power()
+		{
+			atom();
+			if( eat('^') ) {
+				unary();
+				code.add( POW );
+			}
+		}
+
+		// atom := number | variable | function '(' sum (',' sum)? ')' | '(' sum ')'
+		void atom()
+		{
+			skipSpaces();
+			if( eat('(') ) {
+				sum();
+				expect(')');
+				return;
+			}
+			if( pos >= str.length() )
+				error( "unexpected end of expression" );
+
+			final int start = pos;
+			char c = str.charAt(pos);
+			if( Character.isDigit(c) || c == '.' ) {
+				while( pos < str.length() && ( Character.isDigit( str.charAt(pos) ) || str.charAt(pos) == '.' ) )
+					pos++;
+				if( pos < str.length() && ( str.charAt(pos) == 'e' || str.charAt(pos) == 'E' ) ) {
+					pos++;
+					if( pos < str.length() && ( str.charAt(pos) == '+' || str.charAt(pos) == '-' ) )
+						pos++;
+					while( pos < str.length() && Character.isDigit( str.charAt(pos) ) )
+						pos++;
+				}
+				try {
+					constants.add( Double.parseDouble( str.substring( start, pos ) ) );
+				}
+				catch( NumberFormatException e ) {
+					error( "invalid number " + str.substring( start, pos ) );
+				}
+				code.add( CONST );
+				code.add( constants.size()-1 );
+				return;
+			}
+			if( Character.isLetter(c) || c == '_' ) {
+				while( pos < str.length() && ( Character.isLetterOrDigit( str.charAt(pos) ) || str.charAt(pos) == '_' ) )
+					pos++;
+				final String name = str.substring( start, pos );
+				if( eat('(') ) {
+					final String function = name.toLowerCase();
+					if( functions1.contains( function ) ) {
+						sum();
+						expect(')');
+						code.add( FUNC1 );
+						code.add( functions1.indexOf( function ) );
+					}
+					else if( functions2.contains( function ) ) {
+						sum();
+						expect(',');
+						sum();
+						expect(')');
+						code.add( FUNC2 );
+						code.add( functions2.indexOf( function ) );
+					}
+					else
+						error( "unknown function " + name );
+					return;
+				}
+				if( !variables.contains( name ) )
+					error( "unknown variable " + name );
+				code.add( VAR );
+				code.add( variables.indexOf( name ) );
+				return;
+			}
+			error( "unexpected character '" + c + "'" );
+		}
+
+		boolean eat( char c )
+		{
+			skipSpaces();
+			if( pos < str.length() && str.charAt(pos) == c ) {
+				pos++;
+				return true;
+			}
+			return false;
+		}
+
+		void expect( char c )
+		{
+			if( !eat(c) )
+				error( "'" + c + "' expected" );
+		}
+
+		void skipSpaces()
+		{
+			while( pos < str.length() && Character.isWhitespace( str.charAt(pos) ) )
+				pos++;
+		}
+
+		void error( String message )
+		{
+			throw new IllegalArgumentException( "CIP expression \"" + str + "\": " + message + " at position " + pos );
+		}
+	}
+
+}
@@ -0,0 +1,176 @@
+package nvisio.cip.math;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.scijava.ItemIO;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import net.imagej.ops.AbstractOp;
+import net.imagej.ops.Op;
+import net.imglib2.Cursor;
+import net.imglib2.FinalDimensions;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+import nvisio.cip.filter.Parallel;
+
+
+/**
+ *
+ * @author Benoit Lombardot
+ *
+ */
+
+	// output "outputImage": a float image with the value of the expression at each pixel, all the operators are
+	//                       evaluated in a single pass over blocks of pixels (cf. Expression)
+	// output "value": the value of the expression if none of the variables is an image
+
+	@Plugin(type = Op.class, name="expression", headless = true)
+	public class ExpressionCIP extends AbstractOp
+	{
+		@Parameter (type = ItemIO.INPUT)
+		private String expression;
+
+		// variable names and their value, an image or a number
+		@Parameter (type = ItemIO.INPUT)
+		private LinkedHashMap<String, Object> variables;
+
+		@Parameter( label="number of Threads", persist=false, required=false ) // with persist and required set to false the parameter become optional
+		private Integer nThread = 1;
+
+		@Parameter (type = ItemIO.OUTPUT)
+		private	RandomAccessibleInterval<FloatType> outputImage;
+
+		@Parameter (type = ItemIO.OUTPUT)
+		private	Double value;
+
+
+		// number of pixels evaluated at once
+		static final int BLOCK = 4096;
+
+
+		@Override
+		public void run() {
+
+			if ( expression == null || variables == null ){
+				//TODO: Error! no expression was provided
+				return;
+			}
+
+			if( nThread == null || nThread < 1 )
+				nThread = 1;
+
+			final List<String> names = new ArrayList<String>( variables.keySet() );
+			final Expression program;
+			try {
+				program = new Expression( expression, names );
+			}
+			catch( IllegalArgumentException e ) {
+				System.err.println( e.getMessage() );
+				return;
+			}
+
+			// images and constants
+			final int nVar = names.size();
+			final boolean[] used = program.usedVariables();
+			final RandomAccessibleInterval<?>[] images = new RandomAccessibleInterval<?>[nVar];
+			final double[] constants = new double[nVar];
+			RandomAccessibleInterval<?> reference = null;
+			for( Entry<String, Object> entry : variables.entrySet() ) {
+				final int v = names.indexOf( entry.getKey() );
+				final Object obj = entry.getValue();
+				if( obj instanceof RandomAccessibleInterval ) {
+					images[v] = (RandomAccessibleInterval<?>) obj;
+					if( reference == null )
+						reference = images[v];
+					else if( !sameSize( reference, images[v] ) ) {
+						System.err.println( "CIP expression: the images should have the same size (" + entry.getKey() + ")" );
+						return;
+					}
+				}
+				else if( obj instanceof Number )
+					constants[v] = ((Number) obj).doubleValue();
+				else if( obj instanceof RealType )
+					constants[v] = ((RealType<?>) obj).getRealDouble();
+				else if( used[v] ) {
+					System.err.println( "CIP expression: variable " + entry.getKey() + " should be an image or a number" );
+					return;
+				}
+			}
+
+			if( reference == null ) {
+				value = program.evaluate( constants );
+				return;
+			}
+
+			final int nDim = reference.numDimensions();
+			final long[] dims = new long[nDim];
+			reference.dimensions( dims );
+			final Img<FloatType> output = Util.getArrayOrCellImgFactory( new FinalDimensions( dims ), new FloatType() ).create( dims, new FloatType() );
+			long size = 1;
+			for( int d=0; d<nDim; d++ )
+				size *= dims[d];
+			final long nPixel = size;
+
+			final int nTask = Parallel.nChunk( nPixel, nThread );
+			Parallel.run( nTask, nThread, (task)-> {
+				final long start = nPixel*task/nTask;
+				final long end = nPixel*(task+1)/nTask;
+				final int block = (int) Math.min( BLOCK, end - start );
+
+				final Cursor<?>[] cursors = new Cursor<?>[nVar];
+				final double[][] values = new double[nVar][];
+				for( int v=0; v<nVar; v++ ) {
+					if( !used[v] )
+						continue;
+					values[v] = new double[block];
+					if( images[v] != null ) {
+						cursors[v] = Views.flatIterable( images[v] ).cursor();
+						cursors[v].jumpFwd( start );
+					}
+					else
+						Arrays.fill( values[v], constants[v] );
+				}
+				final Cursor<FloatType> out = Views.flatIterable( output ).cursor();
+				out.jumpFwd( start );
+				final double[][] stack = program.createStack( block );
+
+				for( long i=start; i<end; i+=block ) {
+					final int n = (int) Math.min( block, end - i );
+					for( int v=0; v<nVar; v++ ) {
+						if( cursors[v] == null )
+							continue;
+						final double[] column = values[v];
+						final Cursor<?> cursor = cursors[v];
+						for( int k=0; k<n; k++ )
+							column[k] = ((RealType<?>) cursor.next()).getRealDouble();
+					}
+					final double[] result = program.evaluate( values, n, stack );
+					for( int k=0; k<n; k++ )
+						out.next().setReal( result[k] );
+				}
+			});
+
+			outputImage = output;
+		}
+
+
+		private static boolean sameSize( RandomAccessibleInterval<?> img1, RandomAccessibleInterval<?> img2 )
+		{
+			if( img1.numDimensions() != img2.numDimensions() )
+				return false;
+			for( int d=0; d<img1.numDimensions(); d++ )
+				if( img1.dimension(d) != img2.dimension(d) )
+					return false;
+			return true;
+		}
+
+}
@@ -28,6 +28,7 @@ import net.imglib2.view.Views;
 
 
 	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
 	@Plugin(type = CIP.MathBinary.class, name="Image_Image_MoreMathOperationCIP", headless = true)
 	public class Image_Image_MoreMathOperationCIP  < T extends RealType<T> > extends AbstractOp 
 	{
@@ -42,6 +43,12 @@ import net.imglib2.view.Views;
 		private RandomAccessibleInterval<T> inputImage2;
 		
 
+		@Parameter (type = ItemIO.INPUT, persist=false, required=false ) // with persist and required set to false the parameter become optional
+		private RandomAccessibleInterval<?> out;
+		
+		@Parameter( label="number of Threads", persist=false, required=false ) // with persist and required set to false the parameter become optional
+		private Integer nThread;
+		
 		@Parameter (type = ItemIO.OUTPUT)
 		private RandomAccessibleInterval<T> outputImage;
 
@@ -76,6 +83,9 @@ import net.imglib2.view.Views;
 					// TODO: error image should have the same number of dimensions
 					return;
 			
+			if( nThread == null || nThread < 1 )
+				nThread = 1;
+			
 			
 			AbstractBinaryComputerOp<T, T, T> mapper = null;
 			switch( operationType )
@@ -94,6 +104,23 @@ import net.imglib2.view.Views;
 				break;
 			}
 			
+			if( out != null )
+			{
+				// write in the image provided by the caller, possibly one of the inputs
+				if( !MathInto.sameSize( inputImage1, out ) )
+					return; //TODO: Error! the output image should have the same size as the input
+				MathInto.binary( operationType, inputImage1, inputImage2, (RandomAccessibleInterval) out, nThread );
+				outputImage = (RandomAccessibleInterval) out;
+				return;
+			}
+			
+			if( ArrayMath.isSupported( operationType, inputImage1, inputImage2 ) )
+			{
+				// same pixel type on both sides, compute on the primitive arrays
+				outputImage = ArrayMath.compute( operationType, (RandomAccessibleInterval) inputImage1, (RandomAccessibleInterval) inputImage2, nThread );
+				return;
+			}
+			
 			IterableInterval<T> in1Iter = Views.iterable(inputImage1);
 			IterableInterval<T> in2Iter = Views.iterable(inputImage2);
 			outputImage = (Img<T>) opService.create().img(inputImage1);
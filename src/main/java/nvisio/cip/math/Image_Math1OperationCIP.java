@@ -38,6 +38,7 @@ import net.imglib2.view.Views;
 	 */
 
 	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
 	@Plugin(type = CIP.MathBinary.class, name="Image_Math1OperationCIP", headless = true)
 	public class Image_Math1OperationCIP  < T extends RealType<T> , U extends RealType<U> > extends AbstractOp 
 	{
@@ -48,6 +49,12 @@ import net.imglib2.view.Views;
 		@Parameter (type = ItemIO.INPUT, persist=false)
 		private RandomAccessibleInterval<T> inputImage;
 		
+		@Parameter (type = ItemIO.INPUT, persist=false, required=false ) // with persist and required set to false the parameter become optional
+		private RandomAccessibleInterval<?> out;
+		
+		@Parameter( label="number of Threads", persist=false, required=false ) // with persist and required set to false the parameter become optional
+		private Integer nThread;
+		
 		@Parameter (type = ItemIO.OUTPUT)
 		private RandomAccessibleInterval outputImage;
 
@@ -64,6 +71,19 @@ import net.imglib2.view.Views;
 				return;
 			}
 			
+			if( nThread == null || nThread < 1 )
+				nThread = 1;
+			
+			if( out != null )
+			{
+				// write in the image provided by the caller, possibly one of the inputs
+				if( !MathInto.sameSize( inputImage, out ) )
+					return; //TODO: Error! the output image should have the same size as the input
+				MathInto.unary( operationType, inputImage, (RandomAccessibleInterval) out, nThread );
+				outputImage = (RandomAccessibleInterval) out;
+				return;
+			}
+			
 			final T valueT = inputImage.randomAccess().get().createVariable();
 			AbstractUnaryComputerOp<T, ? extends RealType<?> > mapper = null;
 			switch( operationType )
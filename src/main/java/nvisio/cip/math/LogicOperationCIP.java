@@ -0,0 +1,89 @@
+package nvisio.cip.math;
+
+import org.scijava.ItemIO;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import net.imagej.ops.AbstractOp;
+import net.imagej.ops.Op;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+
+
+/**
+ * 
+ * @author Benoit Lombardot
+ *
+ */
+
+	// output "mask": a bit mask packed 64 pixels per long (cf. BitLogic)
+	// operationType: and, or, xor, andnot, not, gt, ge, eq, lt, le, ne
+	// input2: an image for the logical operators, an image or a number for the comparisons, ignored by not
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	@Plugin(type = Op.class, name="LogicOperationCIP", headless = true)
+	public class LogicOperationCIP < T extends RealType<T> > extends AbstractOp 
+	{
+		@Parameter (type = ItemIO.INPUT, persist=false)
+		private  String operationType;
+		
+		@Parameter (type = ItemIO.INPUT, persist=false)
+		private RandomAccessibleInterval<T> inputImage;
+		
+		@Parameter (type = ItemIO.INPUT, persist=false, required=false ) // with persist and required set to false the parameter become optional
+		private Object input2;
+		
+		@Parameter( label="number of Threads", persist=false, required=false ) // with persist and required set to false the parameter become optional
+		private Integer nThread = 1;
+		
+		@Parameter (type = ItemIO.OUTPUT)
+		private RandomAccessibleInterval<BitType> mask;
+		
+		
+		@Override
+		public void run() {
+			
+			if ( inputImage == null || operationType == null ){
+				//TODO: Error! no image was provided
+				return;
+			}
+			
+			if( nThread == null || nThread < 1 )
+				nThread = 1;
+			
+			String operation = operationType.toLowerCase();
+			RandomAccessibleInterval image2 = input2 instanceof RandomAccessibleInterval ? (RandomAccessibleInterval) input2 : null;
+			if( image2 != null && !BitLogic.sameSize( inputImage, image2 ) ) {
+				System.err.println("CIP " + operation + ": the images should have the same size");
+				return;
+			}
+			
+			if( BitLogic.logicOperations.contains( operation ) )
+			{
+				if( image2 == null && !operation.equals("not") ) {
+					System.err.println("CIP " + operation + ": two images are expected");
+					return;
+				}
+				mask = BitLogic.logic( operation, inputImage, image2, nThread );
+			}
+			else if( BitLogic.comparisons.contains( operation ) )
+			{
+				double value = 0;
+				if( input2 instanceof Number )
+					value = ((Number) input2).doubleValue();
+				else if( input2 instanceof RealType )
+					value = ((RealType) input2).getRealDouble();
+				else if( image2 == null ) {
+					System.err.println("CIP " + operation + ": an image or a number is expected as second operand");
+					return;
+				}
+				mask = BitLogic.compare( operation, inputImage, image2, value, nThread );
+			}
+			else
+			{
+				System.err.println("CIP: unknown logical operation " + operation );
+			}
+		}
+		
+}
@@ -0,0 +1,194 @@
+package nvisio.cip.math;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.DoubleUnaryOperator;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+import nvisio.cip.filter.Parallel;
+
+
+/**
+ *
+ * Element wise math written in an image provided by the caller. The output can be one of the input images, the
+ * operation is then done in place. Binary operations are computed in the type of the operands (as the imglib2 and
+ * ops math) and then copied to the output, with setReal if the output has another type. Unary functions are computed
+ * in double as in Math1OperationCIP.
+ *
+ * @author Benoit Lombardot
+ *
+ */
+public final class MathInto {
+
+	private MathInto() {}
+
+
+	static final List<String> operations = Arrays.asList( "add", "subtract", "multiply", "divide", "min", "max", "pow" );
+
+
+	/**
+	 * @return true if the output has the size of the input
+	 */
+	public static boolean sameSize( RandomAccessibleInterval<?> input, RandomAccessibleInterval<?> output )
+	{
+		if( input.numDimensions() != output.numDimensions() )
+			return false;
+		for( int d=0; d<input.numDimensions(); d++ )
+			if( input.dimension(d) != output.dimension(d) )
+				return false;
+		return true;
+	}
+
+
+	/**
+	 * output = img1 operation img2, operation is one of add, subtract, multiply, divide, min, max, pow
+	 */
+	@SuppressWarnings("unchecked")
+	public static < T extends RealType<T> > void binary( String operation, RandomAccessibleInterval<T> img1,
+			RandomAccessibleInterval<T> img2, RandomAccessibleInterval<? extends RealType<?>> output, int nThread )
+	{
+		if( ArrayMath.isSupported( operation, img1, img2 ) && ArrayMath.isSupported( operation, img1, output ) ) {
+			ArrayMath.compute( operation, img1, img2, (RandomAccessibleInterval<T>) output, nThread );
+			return;
+		}
+		map( operation, img1, img2, null, false, output, nThread );
+	}
+
+
+	/**
+	 * output = image operation value, or value operation image if valueFirst is true
+	 */
+	public static < T extends RealType<T> > void imageNumber( String operation, RandomAccessibleInterval<T> image, T value,
+			boolean valueFirst, RandomAccessibleInterval<? extends RealType<?>> output, int nThread )
+	{
+		map( operation, image, null, value, valueFirst, output, nThread );
+	}
+
+
+	/**
+	 * output = function( image ), function is one of the Math1OperationCIP functions
+	 */
+	public static < T extends RealType<T> > void unary( String function, RandomAccessibleInterval<T> image,
+			RandomAccessibleInterval<? extends RealType<?>> output, int nThread )
+	{
+		final DoubleUnaryOperator f = function( function );
+		final long nPixel = size( image );
+		final int nTask = Parallel.nChunk( nPixel, nThread );
+		Parallel.run( nTask, nThread, (task)-> {
+			final long start = nPixel*task/nTask;
+			final long end = nPixel*(task+1)/nTask;
+			final Cursor<T> in = Views.flatIterable( image ).cursor();
+			final Cursor<? extends RealType<?>> out = Views.flatIterable( output ).cursor();
+			in.jumpFwd( start );
+			out.jumpFwd( start );
+			for( long i=start; i<end; i++ )
+				out.next().setReal( f.applyAsDouble( in.next().getRealDouble() ) );
+		});
+	}
+
+
+	@SuppressWarnings("unchecked")
+	private static < T extends RealType<T> > void map( String operation, RandomAccessibleInterval<T> img1, RandomAccessibleInterval<T> img2,
+			T value, boolean valueFirst, RandomAccessibleInterval<? extends RealType<?>> output, int nThread )
+	{
+		final int op = operations.indexOf( operation );
+		if( op < 0 )
+			throw new IllegalArgumentException( "CIP: unknown operation " + operation );
+		final boolean sameType = output.randomAccess().get().getClass() == img1.randomAccess().get().getClass();
+
+		final long nPixel = size( img1 );
+		final int nTask = Parallel.nChunk( nPixel, nThread );
+		Parallel.run( nTask, nThread, (task)-> {
+			final long start = nPixel*task/nTask;
+			final long end = nPixel*(task+1)/nTask;
+			final Cursor<T> in1 = Views.flatIterable( img1 ).cursor();
+			final Cursor<T> in2 = img2 == null ? null : Views.flatIterable( img2 ).cursor();
+			final Cursor<? extends RealType<?>> out = Views.flatIterable( output ).cursor();
+			in1.jumpFwd( start );
+			if( in2 != null )
+				in2.jumpFwd( start );
+			out.jumpFwd( start );
+			final T tmp = img1.randomAccess().get().createVariable();
+			for( long i=start; i<end; i++ ) {
+				final T a = in1.next();
+				final T b = in2 == null ? value : in2.next();
+				if( valueFirst )
+					apply( op, b, a, tmp );
+				else
+					apply( op, a, b, tmp );
+				// read before the write so that the output can be one of the inputs
+				if( sameType )
+					((T) out.next()).set( tmp );
+				else
+					out.next().setReal( tmp.getRealDouble() );
+			}
+		});
+	}
+
+
+	private static < T extends RealType<T> > void apply( int op, T a, T b, T result )
+	{
+		switch( op ) {
+		case 0:
+			result.set( a );
+			result.add( b );
+			break;
+		case 1:
+			result.set( a );
+			result.sub( b );
+			break;
+		case 2:
+			result.set( a );
+			result.mul( b );
+			break;
+		case 3:
+			result.set( a );
+			result.div( b );
+			break;
+		case 4:
+			result.setReal( Math.min( a.getRealDouble(), b.getRealDouble() ) );
+			break;
+		case 5:
+			result.setReal( Math.max( a.getRealDouble(), b.getRealDouble() ) );
+			break;
+		default:
+			result.setReal( Math.pow( a.getRealDouble(), b.getRealDouble() ) );
+		}
+	}
+
+
+	static DoubleUnaryOperator function( String function )
+	{
+		switch( function ) {
+		case "cos":		return Math::cos;
+		case "sin":		return Math::sin;
+		case "tan":		return Math::tan;
+		case "acos":	return Math::acos;
+		case "asin":	return Math::asin;
+		case "atan":	return Math::atan;
+		case "log":		return Math::log;
+		case "exp":		return Math::exp;
+		case "sqrt":	return Math::sqrt;
+		case "abs":		return Math::abs;
+		case "round":	return (x)-> Math.round( x );
+		case "floor":	return Math::floor;
+		case "ceil":	return Math::ceil;
+		case "sign":	return Math::signum;
+		default:
+			throw new IllegalArgumentException( "CIP: unknown function " + function );
+		}
+	}
+
+
+	private static long size( RandomAccessibleInterval<?> img )
+	{
+		long size = 1;
+		for( int d=0; d<img.numDimensions(); d++ )
+			size *= img.dimension(d);
+		return size;
+	}
+
+}
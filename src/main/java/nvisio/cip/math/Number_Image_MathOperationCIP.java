@@ -29,6 +29,7 @@ import net.imglib2.view.Views;
 
 
 	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
 	@Plugin(type=CIP.MathBinary.class, name="Number_Image_MathOperationCIP", headless = true)
 	public class Number_Image_MathOperationCIP  < T extends RealType<T> > extends AbstractOp 
 	{
@@ -42,6 +43,12 @@ import net.imglib2.view.Views;
 		private RandomAccessibleInterval<T> inputImage;
 		
 
+		@Parameter (type = ItemIO.INPUT, persist=false, required=false ) // with persist and required set to false the parameter become optional
+		private RandomAccessibleInterval<?> out;
+		
+		@Parameter( label="number of Threads", persist=false, required=false ) // with persist and required set to false the parameter become optional
+		private Integer nThread;
+		
 		@Parameter (type = ItemIO.OUTPUT)
 		private RandomAccessibleInterval<T> outputImage;
 
@@ -67,6 +74,19 @@ import net.imglib2.view.Views;
 			// process the image 
 			////////////////////////////////////////////////
 			
+			if( nThread == null || nThread < 1 )
+				nThread = 1;
+			
+			if( out != null )
+			{
+				// write in the image provided by the caller, possibly one of the inputs
+				if( !MathInto.sameSize( inputImage, out ) )
+					return; //TODO: Error! the output image should have the same size as the input
+				MathInto.imageNumber( operationType, inputImage, valueT, true, (RandomAccessibleInterval) out, nThread );
+				outputImage = (RandomAccessibleInterval) out;
+				return;
+			}
+			
 			IterableInterval<T> inIter2 = Views.iterable(inputImage);
 			
 			if ( operationType.equals( "subtract" ) ||  operationType.equals( "divide" ) )
@@ -0,0 +1,62 @@
+package nvisio.cip.measure;
+
+import java.util.LinkedHashMap;
+
+import org.scijava.ItemIO;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import net.imagej.ops.AbstractOp;
+import net.imagej.ops.Op;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+
+
+/**
+ *
+ * @author Benoit Lombardot
+ *
+ */
+
+	// the output is a table, i.e. a map from the measure names to columns with one element per label (cf. RegionStatistics)
+
+	@Plugin(type = Op.class, name="measure", headless = true)
+	public class MeasureCIP  < U extends RealType<U>, T extends RealType<T> > extends AbstractOp
+	{
+		@Parameter (type = ItemIO.INPUT)
+		private RandomAccessibleInterval<U> labelMap;
+
+		@Parameter (type = ItemIO.INPUT, persist=false, required=false ) // with persist and required set to false the parameter become optional
+		private RandomAccessibleInterval<T> intensityImage;
+
+		@Parameter( label="number of Threads", persist=false, required=false ) // with persist and required set to false the parameter become optional
+		private Integer nThread = 1;
+
+		@Parameter (type = ItemIO.OUTPUT)
+		private	LinkedHashMap<String, double[]> measures;
+
+
+		@Override
+		public void run() {
+
+			if ( labelMap == null){
+				//TODO: Error! no image was provided
+				return;
+			}
+
+			if( intensityImage != null ) {
+				int nDim = labelMap.numDimensions();
+				if( intensityImage.numDimensions() != nDim )
+					return; //TODO: Error! the intensity image and the label map should have the same size
+				for(int d=0; d<nDim; d++)
+					if( intensityImage.dimension(d) != labelMap.dimension(d) )
+						return; //TODO: Error! the intensity image and the label map should have the same size
+			}
+
+			if( nThread == null || nThread < 1 )
+				nThread = 1;
+
+			measures = RegionStatistics.measure( labelMap, intensityImage, nThread );
+		}
+
+}
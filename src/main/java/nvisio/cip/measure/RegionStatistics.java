@@ -0,0 +1,272 @@
+package nvisio.cip.measure;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+import nvisio.cip.filter.Parallel;
+
+
+/**
+ *
+ * Per label measurements gathered in a single pass over a label map (and optionally an intensity image). Each thread
+ * owns a set of primitive accumulators indexed by label, the accumulators are merged once all pixels are visited.
+ * The result is a table with one column per measure and one row per label present in the label map.
+ *
+ * @author Benoit Lombardot
+ *
+ */
+public final class RegionStatistics {
+
+	private RegionStatistics() {}
+
+
+	/**
+	 * @param labelMap label image, pixels with a value below 1 are background
+	 * @param intensity intensity image of the same size as labelMap, or null
+	 * @param nThread number of threads
+	 * @return the measures of each label as columns: label, area (2D) or volume, centroid, bounding box, the second
+	 * 			central moments of the pixel positions and, if an intensity image is given, the mean, min, max and sum
+	 * 			of the intensity
+	 */
+	public static < U extends RealType<U>, T extends RealType<T> > LinkedHashMap<String, double[]> measure(
+			final RandomAccessibleInterval<U> labelMap, final RandomAccessibleInterval<T> intensity, int nThread )
+	{
+		final int nDim = labelMap.numDimensions();
+		final long[] min = new long[nDim];
+		labelMap.min( min );
+		long size = 1;
+		for( int d=0; d<nDim; d++ )
+			size *= labelMap.dimension(d);
+		final long nPixel = size;
+
+		// one accumulator per thread to keep the memory proportional to the number of labels
+		final int nTask = (int) Math.max( 1, Math.min( nPixel, Math.max( 1, nThread ) ) );
+		final Accumulator[] accumulators = new Accumulator[nTask];
+		Parallel.run( nTask, nThread, (task)-> {
+			final long start = nPixel*task/nTask;
+			final long end = nPixel*(task+1)/nTask;
+			final Accumulator acc = new Accumulator( nDim, intensity != null );
+			final Cursor<U> label = Views.flatIterable( labelMap ).localizingCursor();
+			label.jumpFwd( start );
+			Cursor<T> value = null;
+			if( intensity != null ) {
+				value = Views.flatIterable( intensity ).cursor();
+				value.jumpFwd( start );
+			}
+			final long[] pos = new long[nDim];
+			for( long i=start; i<end; i++ ) {
+				final int l = (int) label.next().getRealDouble();
+				final double v = value == null ? 0 : value.next().getRealDouble();
+				if( l < 1 )
+					continue;
+				label.localize( pos );
+				for( int d=0; d<nDim; d++ )
+					pos[d] -= min[d];
+				acc.add( l, pos, v );
+			}
+			accumulators[task] = acc;
+		});
+
+		Accumulator acc = accumulators[0];
+		for( int t=1; t<nTask; t++ )
+			acc.merge( accumulators[t] );
+
+		return acc.table( min );
+	}
+
+
+	static String axisName( int d )
+	{
+		return d < 4 ? "" + "xyzt".charAt(d) : "d" + d;
+	}
+
+
+	/**
+	 * growable primitive arrays indexed by label
+	 */
+	static class Accumulator
+	{
+		final int nDim;
+		final int nMoment;
+		final boolean hasIntensity;
+
+		int capacity = 0;
+		long[] count = new long[0];
+		// mean position and sums of the products of the deviations to the mean, updated pixel by pixel (Welford) so
+		// that the moments of small regions far from the origin keep their precision
+		double[] meanPosition;	// nDim per label
+		double[] comoment;	// nMoment per label
+		long[] boxMin;
+		long[] boxMax;
+		final double[] delta;	// deviation to the mean, buffer of add and merge
+		double[] iSum = new double[0];
+		double[] iMin = new double[0];
+		double[] iMax = new double[0];
+
+		Accumulator( int nDim, boolean hasIntensity )
+		{
+			this.nDim = nDim;
+			this.nMoment = nDim*(nDim+1)/2;
+			this.hasIntensity = hasIntensity;
+			delta = new double[nDim];
+			meanPosition = new double[0];
+			comoment = new double[0];
+			boxMin = new long[0];
+			boxMax = new long[0];
+		}
+
+		void ensureCapacity( int label )
+		{
+			if( label < capacity )
+				return;
+			int old = capacity;
+			capacity = Math.max( label+1, 2*capacity );
+			count = Arrays.copyOf( count, capacity );
+			meanPosition = Arrays.copyOf( meanPosition, capacity*nDim );
+			comoment = Arrays.copyOf( comoment, capacity*nMoment );
+			boxMin = Arrays.copyOf( boxMin, capacity*nDim );
+			boxMax = Arrays.copyOf( boxMax, capacity*nDim );
+			Arrays.fill( boxMin, old*nDim, capacity*nDim, Long.MAX_VALUE );
+			Arrays.fill( boxMax, old*nDim, capacity*nDim, Long.MIN_VALUE );
+			if( hasIntensity ) {
+				iSum = Arrays.copyOf( iSum, capacity );
+				iMin = Arrays.copyOf( iMin, capacity );
+				iMax = Arrays.copyOf( iMax, capacity );
+				Arrays.fill( iMin, old, capacity, Double.POSITIVE_INFINITY );
+				Arrays.fill( iMax, old, capacity, Double.NEGATIVE_INFINITY );
+			}
+		}
+
+		void add( int label, long[] pos, double value )
+		{
+			ensureCapacity( label );
+			final double n = ++count[label];
+			final int o = label*nDim;
+			for( int d=0; d<nDim; d++ ) {
+				final int k = o + d;
+				delta[d] = pos[d] - meanPosition[k];
+				meanPosition[k] += delta[d] / n;
+				if( pos[d] < boxMin[k] )
+					boxMin[k] = pos[d];
+				if( pos[d] > boxMax[k] )
+					boxMax[k] = pos[d];
+			}
+			int m = label*nMoment;
+			for( int d=0; d<nDim; d++ )
+				for( int e=d; e<nDim; e++ )
+					comoment[m++] += delta[d] * ( pos[e] - meanPosition[o+e] );
+			if( hasIntensity ) {
+				iSum[label] += value;
+				if( value < iMin[label] )
+					iMin[label] = value;
+				if( value > iMax[label] )
+					iMax[label] = value;
+			}
+		}
+
+		void merge( Accumulator other )
+		{
+			ensureCapacity( other.capacity-1 );
+			for( int l=0; l<other.capacity; l++ ) {
+				if( other.count[l] == 0 )
+					continue;
+				// pairwise combination of the means and comoments (Chan et al. 1979)
+				final double na = count[l];
+				final double nb = other.count[l];
+				count[l] += other.count[l];
+				final double n = count[l];
+				for( int d=0; d<nDim; d++ ) {
+					final int k = l*nDim + d;
+					delta[d] = other.meanPosition[k] - meanPosition[k];
+					meanPosition[k] += delta[d] * nb / n;
+					boxMin[k] = Math.min( boxMin[k], other.boxMin[k] );
+					boxMax[k] = Math.max( boxMax[k], other.boxMax[k] );
+				}
+				int m = l*nMoment;
+				for( int d=0; d<nDim; d++ )
+					for( int e=d; e<nDim; e++ ) {
+						comoment[m] += other.comoment[m] + delta[d] * delta[e] * na * nb / n;
+						m++;
+					}
+				if( hasIntensity ) {
+					iSum[l] += other.iSum[l];
+					iMin[l] = Math.min( iMin[l], other.iMin[l] );
+					iMax[l] = Math.max( iMax[l], other.iMax[l] );
+				}
+			}
+		}
+
+		LinkedHashMap<String, double[]> table( long[] min )
+		{
+			int nLabel = 0;
+			for( int l=0; l<capacity; l++ )
+				if( count[l] > 0 )
+					nLabel++;
+
+			LinkedHashMap<String, double[]> table = new LinkedHashMap<String, double[]>();
+			double[] labels = column( table, "label", nLabel );
+			double[] area = column( table, nDim <= 2 ? "area" : "volume", nLabel );
+			double[][] centroid = new double[nDim][];
+			for( int d=0; d<nDim; d++ )
+				centroid[d] = column( table, "centroid_" + axisName(d), nLabel );
+			double[][] bMin = new double[nDim][];
+			for( int d=0; d<nDim; d++ )
+				bMin[d] = column( table, "bbox_min_" + axisName(d), nLabel );
+			double[][] bMax = new double[nDim][];
+			for( int d=0; d<nDim; d++ )
+				bMax[d] = column( table, "bbox_max_" + axisName(d), nLabel );
+			double[][] moment = new double[nMoment][];
+			int m = 0;
+			for( int d=0; d<nDim; d++ )
+				for( int e=d; e<nDim; e++ )
+					moment[m++] = column( table, "moment_" + axisName(d) + axisName(e), nLabel );
+			double[] mean = null, iMinCol = null, iMaxCol = null, iSumCol = null;
+			if( hasIntensity ) {
+				mean = column( table, "mean", nLabel );
+				iMinCol = column( table, "min", nLabel );
+				iMaxCol = column( table, "max", nLabel );
+				iSumCol = column( table, "sum", nLabel );
+			}
+
+			int r = 0;
+			for( int l=0; l<capacity; l++ ) {
+				if( count[l] == 0 )
+					continue;
+				final double n = count[l];
+				labels[r] = l;
+				area[r] = n;
+				for( int d=0; d<nDim; d++ ) {
+					centroid[d][r] = min[d] + meanPosition[l*nDim+d];
+					bMin[d][r] = min[d] + boxMin[l*nDim+d];
+					bMax[d][r] = min[d] + boxMax[l*nDim+d];
+				}
+				m = 0;
+				for( int d=0; d<nDim; d++ )
+					for( int e=d; e<nDim; e++ ) {
+						moment[m][r] = comoment[l*nMoment+m] / n;
+						m++;
+					}
+				if( hasIntensity ) {
+					mean[r] = iSum[l] / n;
+					iMinCol[r] = iMin[l];
+					iMaxCol[r] = iMax[l];
+					iSumCol[r] = iSum[l];
+				}
+				r++;
+			}
+			return table;
+		}
+
+		private static double[] column( LinkedHashMap<String, double[]> table, String name, int n )
+		{
+			double[] column = new double[n];
+			table.put( name, column );
+			return column;
+		}
+	}
+
+}
@@ -0,0 +1,298 @@
+package nvisio.cip.misc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.function.Function;
+
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.array.IntArray;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.img.cell.LazyCellImg;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Fraction;
+
+
+/**
+ *
+ * Cell image stored in a file, of which only a bounded number of cells are kept in memory. A cell is read from the
+ * file when a cursor or a random access first reaches it, the least recently used cells are written back to the
+ * file when the cache is full. Cells that were never written are not read, they are created with zeros.
+ *
+ * The cells are stored one after the other in the file, in the order of the cell grid, each with the size of a full
+ * cell and the native byte order. An evicted cell is written back even if it was only read (no write tracking), writes
+ * made through a random access that still points to an evicted cell are lost: an image written by several threads
+ * should have a cache holding at least the cells being written at the same time (cf. TiledFilter which writes the
+ * cells one at a time).
+ *
+ * @author Benoit Lombardot
+ *
+ */
+public class DiskCellImg< T extends NativeType<T>, A extends ArrayDataAccess<A> > extends LazyCellImg<T, A>
+{
+	final DiskCells<A> cells;
+
+
+	private DiskCellImg( CellGrid grid, DiskCells<A> cells )
+	{
+		super( grid, new Fraction(), cells );
+		this.cells = cells;
+	}
+
+
+	/**
+	 * @param dims the image size
+	 * @param type the pixel type, one of the byte, short, int, long (signed or unsigned), float and double types
+	 * @param cellDims the size of the cells
+	 * @param file the file storing the cells, or null for a temporary file deleted when the JVM exits
+	 * @param cacheSize maximum size of the cells kept in memory, in bytes (at least two cells are kept)
+	 * @return a disk-backed image filled with zeros
+	 * @throws IOException if the file cannot be created
+	 */
+	@SuppressWarnings("unchecked")
+	public static < T extends NativeType<T> > DiskCellImg<T, ?> create( long[] dims, T type, int[] cellDims, File file, long cacheSize ) throws IOException
+	{
+		final CellGrid grid = new CellGrid( dims, cellDims );
+		final Object t = type;
+		final Object img;
+		if( t instanceof UnsignedByteType )
+			img = create( grid, new ByteArray(0), 1, file, cacheSize, (DiskCellImg<UnsignedByteType, ByteArray> i)-> new UnsignedByteType(i) );
+		else if( t instanceof ByteType )
+			img = create( grid, new ByteArray(0), 1, file, cacheSize, (DiskCellImg<ByteType, ByteArray> i)-> new ByteType(i) );
+		else if( t instanceof UnsignedShortType )
+			img = create( grid, new ShortArray(0), 2, file, cacheSize, (DiskCellImg<UnsignedShortType, ShortArray> i)-> new UnsignedShortType(i) );
+		else if( t instanceof ShortType )
+			img = create( grid, new ShortArray(0), 2, file, cacheSize, (DiskCellImg<ShortType, ShortArray> i)-> new ShortType(i) );
+		else if( t instanceof UnsignedIntType )
+			img = create( grid, new IntArray(0), 4, file, cacheSize, (DiskCellImg<UnsignedIntType, IntArray> i)-> new UnsignedIntType(i) );
+		else if( t instanceof IntType )
+			img = create( grid, new IntArray(0), 4, file, cacheSize, (DiskCellImg<IntType, IntArray> i)-> new IntType(i) );
+		else if( t instanceof UnsignedLongType )
+			img = create( grid, new LongArray(0), 8, file, cacheSize, (DiskCellImg<UnsignedLongType, LongArray> i)-> new UnsignedLongType(i) );
+		else if( t instanceof LongType )
+			img = create( grid, new LongArray(0), 8, file, cacheSize, (DiskCellImg<LongType, LongArray> i)-> new LongType(i) );
+		else if( t instanceof FloatType )
+			img = create( grid, new FloatArray(0), 4, file, cacheSize, (DiskCellImg<FloatType, FloatArray> i)-> new FloatType(i) );
+		else if( t instanceof DoubleType )
+			img = create( grid, new DoubleArray(0), 8, file, cacheSize, (DiskCellImg<DoubleType, DoubleArray> i)-> new DoubleType(i) );
+		else
+			throw new IllegalArgumentException( "CIP: disk-backed images do not support the type " + type.getClass().getSimpleName() );
+		return (DiskCellImg<T, ?>) img;
+	}
+
+
+	private static < U extends NativeType<U>, B extends ArrayDataAccess<B> > DiskCellImg<U, B> create( CellGrid grid, B access, int bytesPerPixel,
+			File file, long cacheSize, Function<DiskCellImg<U, B>, U> linkedType ) throws IOException
+	{
+		final DiskCellImg<U, B> img = new DiskCellImg<U, B>( grid, new DiskCells<B>( grid, access, bytesPerPixel, file, cacheSize ) );
+		img.setLinkedType( linkedType.apply( img ) );
+		return img;
+	}
+
+
+	/** @return the file storing the cells */
+	public File getFile()
+	{
+		return cells.file;
+	}
+
+
+	/** writes the cells in memory to the file */
+	public void flush()
+	{
+		cells.flush();
+	}
+
+
+	/** writes the cells in memory to the file and closes it, the image cannot be used anymore */
+	public void close()
+	{
+		cells.close();
+	}
+
+
+
+	/**
+	 * loads the cells of the grid from the file, through a least recently used cache
+	 */
+	static class DiskCells< A extends ArrayDataAccess<A> > implements LazyCellImg.Get< Cell<A> >
+	{
+		final CellGrid grid;
+		final A access;
+		final int bytesPerPixel;
+		final int slotSize;
+		final int maxCells;
+		final File file;
+		final FileChannel channel;
+		final BitSet stored = new BitSet();
+		final LinkedHashMap<Long, Cell<A>> cache;
+		ByteBuffer buffer;
+
+		DiskCells( CellGrid grid, A access, int bytesPerPixel, File file, long cacheSize ) throws IOException
+		{
+			this.grid = grid;
+			this.access = access;
+			this.bytesPerPixel = bytesPerPixel;
+			final int nDim = grid.numDimensions();
+			long cellSize = bytesPerPixel;
+			for( int d=0; d<nDim; d++ )
+				cellSize *= grid.cellDimension(d);
+			if( cellSize > Integer.MAX_VALUE )
+				throw new IllegalArgumentException( "CIP: the cells of a disk-backed image should be smaller than 2GB" );
+			slotSize = (int) cellSize;
+			maxCells = (int) Math.max( 2, Math.min( Integer.MAX_VALUE, cacheSize / slotSize ) );
+
+			if( file == null ) {
+				file = File.createTempFile( "cip", ".cells" );
+				file.deleteOnExit();
+			}
+			this.file = file;
+			channel = FileChannel.open( file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING );
+
+			cache = new LinkedHashMap<Long, Cell<A>>( 16, 0.75f, true ) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry( Entry<Long, Cell<A>> eldest ) {
+					if( size() <= maxCells )
+						return false;
+					write( eldest.getKey(), eldest.getValue() );
+					return true;
+				}
+			};
+		}
+
+
+		@Override
+		public synchronized Cell<A> get( long index )
+		{
+			Cell<A> cell = cache.get( index );
+			if( cell != null )
+				return cell;
+
+			final int nDim = grid.numDimensions();
+			final long[] min = new long[nDim];
+			final int[] dims = new int[nDim];
+			grid.getCellDimensions( index, min, dims );
+			int size = 1;
+			for( int d=0; d<nDim; d++ )
+				size *= dims[d];
+			cell = new Cell<A>( dims, min, access.createArray( size ) );
+			if( stored.get( (int) index ) )
+				read( index, cell.getData().getCurrentStorageArray(), size );
+			cache.put( index, cell );
+			return cell;
+		}
+
+
+		synchronized void flush()
+		{
+			for( Entry<Long, Cell<A>> entry : cache.entrySet() )
+				write( entry.getKey(), entry.getValue() );
+		}
+
+
+		synchronized void close()
+		{
+			flush();
+			cache.clear();
+			try {
+				channel.close();
+			}
+			catch( IOException e ) {
+				throw new UncheckedIOException( e );
+			}
+		}
+
+
+		private ByteBuffer buffer( int size )
+		{
+			if( buffer == null )
+				buffer = ByteBuffer.allocate( slotSize ).order( ByteOrder.nativeOrder() );
+			buffer.clear();
+			buffer.limit( size * bytesPerPixel );
+			return buffer;
+		}
+
+
+		private void read( long index, Object array, int size )
+		{
+			final ByteBuffer buf = buffer( size );
+			try {
+				final long offset = index * slotSize;
+				while( buf.hasRemaining() && channel.read( buf, offset + buf.position() ) >= 0 );
+			}
+			catch( IOException e ) {
+				throw new UncheckedIOException( e );
+			}
+			buf.rewind();
+			if( array instanceof byte[] )
+				buf.get( (byte[]) array, 0, size );
+			else if( array instanceof short[] )
+				buf.asShortBuffer().get( (short[]) array, 0, size );
+			else if( array instanceof int[] )
+				buf.asIntBuffer().get( (int[]) array, 0, size );
+			else if( array instanceof long[] )
+				buf.asLongBuffer().get( (long[]) array, 0, size );
+			else if( array instanceof float[] )
+				buf.asFloatBuffer().get( (float[]) array, 0, size );
+			else
+				buf.asDoubleBuffer().get( (double[]) array, 0, size );
+		}
+
+
+		private void write( long index, Cell<A> cell )
+		{
+			final Object array = cell.getData().getCurrentStorageArray();
+			final int size = (int) cell.size();
+			final ByteBuffer buf = buffer( size );
+			if( array instanceof byte[] )
+				buf.put( (byte[]) array, 0, size );
+			else if( array instanceof short[] )
+				buf.asShortBuffer().put( (short[]) array, 0, size );
+			else if( array instanceof int[] )
+				buf.asIntBuffer().put( (int[]) array, 0, size );
+			else if( array instanceof long[] )
+				buf.asLongBuffer().put( (long[]) array, 0, size );
+			else if( array instanceof float[] )
+				buf.asFloatBuffer().put( (float[]) array, 0, size );
+			else
+				buf.asDoubleBuffer().put( (double[]) array, 0, size );
+			buf.rewind();
+			try {
+				final long offset = index * slotSize;
+				while( buf.hasRemaining() )
+					channel.write( buf, offset + buf.position() );
+			}
+			catch( IOException e ) {
+				throw new UncheckedIOException( e );
+			}
+			stored.set( (int) index );
+		}
+	}
+
+}
@@ -0,0 +1,566 @@
+package nvisio.cip.misc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.imglib2.img.basictypeaccess.ByteAccess;
+import net.imglib2.img.basictypeaccess.DoubleAccess;
+import net.imglib2.img.basictypeaccess.FloatAccess;
+import net.imglib2.img.basictypeaccess.IntAccess;
+import net.imglib2.img.basictypeaccess.LongAccess;
+import net.imglib2.img.basictypeaccess.ShortAccess;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.img.cell.LazyCellImg;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Fraction;
+
+
+/**
+ *
+ * Read only image whose pixels are mapped in memory from an uncompressed tiff or a raw file. Each plane (the first two
+ * dimensions) is a cell mapped with a MappedByteBuffer the first time a cursor or a random access reaches it: opening
+ * a file only reads its header and the system loads the pages of the file that are actually read, a slice or a
+ * shallow duplicate of a sub-volume only reads the bytes it covers. Writing a pixel throws a ReadOnlyBufferException,
+ * a deep duplicate gives a writable copy.
+ *
+ * Supported tiff files have one sample per pixel of 8, 16, 32 or 64 bits, no compression and the strips of a plane
+ * stored one after the other (tiles are not supported), in the classic or the BigTIFF format. ImageJ stacks are read
+ * from their first image directory since ImageJ writes the planes one after the other (this also opens the stacks
+ * larger than 4GB written by ImageJ), their channels, slices and frames give the dimensions after x and y.
+ *
+ * @author Benoit Lombardot
+ *
+ */
+public class MappedImg< T extends NativeType<T>, A > extends LazyCellImg<T, A>
+{
+	final Planes<A> planes;
+
+
+	private MappedImg( CellGrid grid, Planes<A> planes )
+	{
+		super( grid, new Fraction(), planes );
+		this.planes = planes;
+	}
+
+
+	/** @return the file mapped by the image */
+	public File getFile()
+	{
+		return planes.file;
+	}
+
+
+
+	/**
+	 * @param file an uncompressed tiff file
+	 * @return an image mapping the planes of the file
+	 * @throws IOException if the file cannot be read or is not a supported tiff
+	 */
+	public static MappedImg<?, ?> openTiff( File file ) throws IOException
+	{
+		try( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ ) )
+		{
+			final long fileSize = channel.size();
+			final ByteBuffer header = read( channel, 0, 16, ByteOrder.LITTLE_ENDIAN );
+			final ByteOrder order;
+			if( header.get(0) == 'I' && header.get(1) == 'I' )
+				order = ByteOrder.LITTLE_ENDIAN;
+			else if( header.get(0) == 'M' && header.get(1) == 'M' )
+				order = ByteOrder.BIG_ENDIAN;
+			else
+				throw new IOException( "CIP: " + file + " is not a tiff file" );
+			header.order( order );
+			final int version = header.getShort(2) & 0xffff;
+			if( version != 42 && version != 43 )
+				throw new IOException( "CIP: " + file + " is not a tiff file" );
+			final boolean big = version == 43;
+
+			Directory first = null;
+			final List<Long> offsets = new ArrayList<Long>();
+			long ifd = big ? header.getLong(8) : header.getInt(4) & 0xffffffffL;
+			while( ifd > 0 && ifd < fileSize )
+			{
+				final Directory dir = new Directory( channel, ifd, order, big );
+				if( first == null ) {
+					first = dir;
+					first.check( file );
+				}
+				else if( !dir.samePlane( first ) )
+					break; // thumbnail or reduced resolution, the stack ends here
+				offsets.add( dir.planeOffset( file ) );
+				if( first.imagejImages > 1 )
+					break; // ImageJ writes the planes one after the other, the other directories are not needed
+				if( offsets.size() >= fileSize / first.planeBytes )
+					break; // guards against a loop in the directories
+				ifd = dir.next;
+			}
+			if( first == null )
+				throw new IOException( "CIP: " + file + " contains no image" );
+
+			final int nPlane = Math.max( offsets.size(), first.imagejImages );
+			final long[] planeOffsets = new long[ nPlane ];
+			for( int p=0; p<nPlane; p++ )
+				planeOffsets[p] = p < offsets.size() ? offsets.get(p) : planeOffsets[0] + p * first.planeBytes;
+			if( planeOffsets[ nPlane-1 ] + first.planeBytes > fileSize )
+				throw new IOException( "CIP: " + file + " is truncated" );
+
+			final List<Long> dims = new ArrayList<Long>();
+			dims.add( first.width );
+			dims.add( first.height );
+			if( first.imagejChannels * first.imagejSlices * first.imagejFrames == nPlane ) {
+				for( long n : new long[] { first.imagejChannels, first.imagejSlices, first.imagejFrames } )
+					if( n > 1 )
+						dims.add( n );
+			}
+			else if( nPlane > 1 )
+				dims.add( (long) nPlane );
+			final long[] dimensions = new long[ dims.size() ];
+			for( int d=0; d<dimensions.length; d++ )
+				dimensions[d] = dims.get(d);
+
+			return create( file, dimensions, first.type, planeOffsets, order );
+		}
+	}
+
+
+	/**
+	 * @param file a raw file, the pixels are stored one after the other, x varying first
+	 * @param dims the image size
+	 * @param type the pixel type, one of the type names of cip.create (8 to 64 bits integers, float and double)
+	 * @param offset the position of the first pixel in the file, in bytes
+	 * @param order the byte order of the pixels
+	 * @return an image mapping the planes of the file
+	 * @throws IOException if the file cannot be read or is smaller than the image
+	 */
+	public static MappedImg<?, ?> openRaw( File file, long[] dims, String type, long offset, ByteOrder order ) throws IOException
+	{
+		type = typeName( type );
+		final long planeBytes = planeBytes( dims, type );
+		long nPlane = 1;
+		for( int d=2; d<dims.length; d++ )
+			nPlane *= dims[d];
+		if( nPlane > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "CIP: too many planes in " + file );
+		if( offset < 0 || offset + nPlane * planeBytes > file.length() )
+			throw new IOException( "CIP: " + file + " is smaller than the image" );
+		final long[] planeOffsets = new long[ (int) nPlane ];
+		for( int p=0; p<nPlane; p++ )
+			planeOffsets[p] = offset + p * planeBytes;
+		return create( file, dims, type, planeOffsets, order );
+	}
+
+
+	/**
+	 * @return the name used by the mapped images for a pixel type name of cip.create, null if the type cannot be mapped
+	 */
+	public static String typeName( String type )
+	{
+		if( type == null )
+			return null;
+		type = type.toLowerCase().trim();
+		if( type.equals("byte") || type.equals("bytetype") || type.equals("int8") )
+			return "int8";
+		if( type.equals("unsignedbyte") || type.equals("unsignedbytetype") || type.equals("uint8") || type.equals("ubyte") )
+			return "uint8";
+		if( type.equals("short") || type.equals("shorttype") || type.equals("int16") )
+			return "int16";
+		if( type.equals("unsignedshort") || type.equals("unsignedshorttype") || type.equals("uint16") || type.equals("ushort") )
+			return "uint16";
+		if( type.equals("int") || type.equals("inttype") || type.equals("int32") )
+			return "int32";
+		if( type.equals("unsignedint") || type.equals("unsignedinttype") || type.equals("uint32") || type.equals("uint") )
+			return "uint32";
+		if( type.equals("long") || type.equals("longtype") || type.equals("int64") )
+			return "int64";
+		if( type.equals("unsignedlong") || type.equals("unsignedlongtype") || type.equals("uint64") || type.equals("ulong") )
+			return "uint64";
+		if( type.equals("float") || type.equals("floattype") || type.equals("float32") || type.equals("single") )
+			return "float32";
+		if( type.equals("double") || type.equals("doubletype") || type.equals("float64") )
+			return "float64";
+		return null;
+	}
+
+
+	private static int bytesPerPixel( String type )
+	{
+		switch( type ) {
+		case "int8": case "uint8": return 1;
+		case "int16": case "uint16": return 2;
+		case "int32": case "uint32": case "float32": return 4;
+		default: return 8;
+		}
+	}
+
+
+	private static long planeBytes( long[] dims, String type )
+	{
+		if( type == null )
+			throw new IllegalArgumentException( "CIP: this pixel type cannot be mapped from a file" );
+		if( dims == null || dims.length == 0 )
+			throw new IllegalArgumentException( "CIP: the image size is missing" );
+		long planeBytes = bytesPerPixel( type );
+		for( int d=0; d<dims.length; d++ ) {
+			if( dims[d] < 1 )
+				throw new IllegalArgumentException( "CIP: the image size should be positive" );
+			if( d < 2 )
+				planeBytes *= dims[d];
+		}
+		if( planeBytes > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "CIP: the planes of a mapped image should be smaller than 2GB" );
+		return planeBytes;
+	}
+
+
+	private static MappedImg<?, ?> create( File file, long[] dims, String type, long[] planeOffsets, ByteOrder order )
+	{
+		final long planeBytes = planeBytes( dims, type );
+		final int[] cellDims = new int[ dims.length ];
+		for( int d=0; d<dims.length; d++ )
+			cellDims[d] = d < 2 ? (int) dims[d] : 1;
+		final CellGrid grid = new CellGrid( dims, cellDims );
+		switch( type ) {
+		case "uint8":
+			return create( grid, new Planes<MappedBytes>( grid, file, planeOffsets, (int) planeBytes, order, MappedBytes::new ), (MappedImg<UnsignedByteType, MappedBytes> i)-> new UnsignedByteType(i) );
+		case "int8":
+			return create( grid, new Planes<MappedBytes>( grid, file, planeOffsets, (int) planeBytes, order, MappedBytes::new ), (MappedImg<ByteType, MappedBytes> i)-> new ByteType(i) );
+		case "uint16":
+			return create( grid, new Planes<MappedShorts>( grid, file, planeOffsets, (int) planeBytes, order, MappedShorts::new ), (MappedImg<UnsignedShortType, MappedShorts> i)-> new UnsignedShortType(i) );
+		case "int16":
+			return create( grid, new Planes<MappedShorts>( grid, file, planeOffsets, (int) planeBytes, order, MappedShorts::new ), (MappedImg<ShortType, MappedShorts> i)-> new ShortType(i) );
+		case "uint32":
+			return create( grid, new Planes<MappedInts>( grid, file, planeOffsets, (int) planeBytes, order, MappedInts::new ), (MappedImg<UnsignedIntType, MappedInts> i)-> new UnsignedIntType(i) );
+		case "int32":
+			return create( grid, new Planes<MappedInts>( grid, file, planeOffsets, (int) planeBytes, order, MappedInts::new ), (MappedImg<IntType, MappedInts> i)-> new IntType(i) );
+		case "uint64":
+			return create( grid, new Planes<MappedLongs>( grid, file, planeOffsets, (int) planeBytes, order, MappedLongs::new ), (MappedImg<UnsignedLongType, MappedLongs> i)-> new UnsignedLongType(i) );
+		case "int64":
+			return create( grid, new Planes<MappedLongs>( grid, file, planeOffsets, (int) planeBytes, order, MappedLongs::new ), (MappedImg<LongType, MappedLongs> i)-> new LongType(i) );
+		case "float32":
+			return create( grid, new Planes<MappedFloats>( grid, file, planeOffsets, (int) planeBytes, order, MappedFloats::new ), (MappedImg<FloatType, MappedFloats> i)-> new FloatType(i) );
+		default:
+			return create( grid, new Planes<MappedDoubles>( grid, file, planeOffsets, (int) planeBytes, order, MappedDoubles::new ), (MappedImg<DoubleType, MappedDoubles> i)-> new DoubleType(i) );
+		}
+	}
+
+
+	private static < U extends NativeType<U>, B > MappedImg<U, B> create( CellGrid grid, Planes<B> planes, Function<MappedImg<U, B>, U> linkedType )
+	{
+		final MappedImg<U, B> img = new MappedImg<U, B>( grid, planes );
+		img.setLinkedType( linkedType.apply( img ) );
+		return img;
+	}
+
+
+	private static ByteBuffer read( FileChannel channel, long position, int size, ByteOrder order ) throws IOException
+	{
+		final ByteBuffer buffer = ByteBuffer.allocate( size ).order( order );
+		while( buffer.hasRemaining() && channel.read( buffer, position + buffer.position() ) >= 0 );
+		if( buffer.hasRemaining() )
+			throw new IOException( "CIP: unexpected end of file" );
+		buffer.rewind();
+		return buffer;
+	}
+
+
+
+	/**
+	 * maps the planes of the file when they are first reached, the mapping is kept as long as the image
+	 */
+	static class Planes<A> implements LazyCellImg.Get< Cell<A> >
+	{
+		final CellGrid grid;
+		final File file;
+		final long[] offsets;
+		final int planeBytes;
+		final ByteOrder order;
+		final Function<ByteBuffer, A> access;
+		final AtomicReferenceArray< Cell<A> > cells;
+
+		Planes( CellGrid grid, File file, long[] offsets, int planeBytes, ByteOrder order, Function<ByteBuffer, A> access )
+		{
+			this.grid = grid;
+			this.file = file;
+			this.offsets = offsets;
+			this.planeBytes = planeBytes;
+			this.order = order;
+			this.access = access;
+			cells = new AtomicReferenceArray< Cell<A> >( offsets.length );
+		}
+
+
+		@Override
+		public Cell<A> get( long index )
+		{
+			final Cell<A> cell = cells.get( (int) index );
+			if( cell != null )
+				return cell;
+
+			final int nDim = grid.numDimensions();
+			final long[] min = new long[nDim];
+			final int[] dims = new int[nDim];
+			grid.getCellDimensions( index, min, dims );
+			// a mapping does not depend on the channel that created it
+			try( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ ) ) {
+				final ByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY, offsets[ (int) index ], planeBytes ).order( order );
+				cells.compareAndSet( (int) index, null, new Cell<A>( dims, min, access.apply( buffer ) ) );
+			}
+			catch( IOException e ) {
+				throw new UncheckedIOException( e );
+			}
+			return cells.get( (int) index );
+		}
+	}
+
+
+
+	/**
+	 * the tags of a tiff image directory needed to map its plane
+	 */
+	static class Directory
+	{
+		static final Pattern imagejValue = Pattern.compile( "(images|channels|slices|frames)=(\\d+)" );
+		// size of the tiff field types, 0 for the types that are not read
+		static final int[] typeSize = { 0, 1, 1, 2, 4, 0, 1, 1, 2, 4, 0, 0, 0, 4, 0, 0, 8, 8, 8 };
+
+		long width = 0, height = 0;
+		int bits = 8, samples = 1, compression = 1, format = 1;
+		long[] stripOffsets, stripCounts;
+		boolean tiled = false;
+		int imagejImages = 1;
+		long imagejChannels = 1, imagejSlices = 1, imagejFrames = 1;
+		String type;
+		long planeBytes;
+		long next;
+
+		Directory( FileChannel channel, long position, ByteOrder order, boolean big ) throws IOException
+		{
+			final int entrySize = big ? 20 : 12;
+			final ByteBuffer count = read( channel, position, big ? 8 : 2, order );
+			final long nEntry = big ? count.getLong(0) : count.getShort(0) & 0xffff;
+			if( nEntry > 4096 )
+				throw new IOException( "CIP: invalid tiff directory" );
+			final long start = position + ( big ? 8 : 2 );
+			final ByteBuffer entries = read( channel, start, (int) nEntry * entrySize + ( big ? 8 : 4 ), order );
+			for( int e=0; e<nEntry; e++ )
+			{
+				final int pos = e * entrySize;
+				final int tag = entries.getShort(pos) & 0xffff;
+				switch( tag ) {
+				case 256: width = values( channel, entries, pos, order, big )[0]; break;
+				case 257: height = values( channel, entries, pos, order, big )[0]; break;
+				case 258: bits = (int) values( channel, entries, pos, order, big )[0]; break;
+				case 259: compression = (int) values( channel, entries, pos, order, big )[0]; break;
+				case 277: samples = (int) values( channel, entries, pos, order, big )[0]; break;
+				case 339: format = (int) values( channel, entries, pos, order, big )[0]; break;
+				case 273: stripOffsets = values( channel, entries, pos, order, big ); break;
+				case 279: stripCounts = values( channel, entries, pos, order, big ); break;
+				case 322: case 323: case 324: case 325: tiled = true; break;
+				case 270: description( text( channel, entries, pos, order, big ) ); break;
+				default:
+				}
+			}
+			final int nextPos = (int) nEntry * entrySize;
+			next = big ? entries.getLong( nextPos ) : entries.getInt( nextPos ) & 0xffffffffL;
+
+			switch( format ) {
+			case 1: type = bits == 8 ? "uint8" : bits == 16 ? "uint16" : bits == 32 ? "uint32" : bits == 64 ? "uint64" : null; break;
+			case 2: type = bits == 8 ? "int8" : bits == 16 ? "int16" : bits == 32 ? "int32" : bits == 64 ? "int64" : null; break;
+			case 3: type = bits == 32 ? "float32" : bits == 64 ? "float64" : null; break;
+			default: type = null;
+			}
+			planeBytes = width * height * ( bits / 8 );
+		}
+
+
+		void check( File file ) throws IOException
+		{
+			if( compression != 1 )
+				throw new IOException( "CIP: " + file + " is compressed, only uncompressed tiff files can be mapped" );
+			if( samples != 1 )
+				throw new IOException( "CIP: " + file + " has several samples per pixel, only one can be mapped" );
+			if( tiled )
+				throw new IOException( "CIP: " + file + " is tiled, only tiff files with strips can be mapped" );
+			if( type == null )
+				throw new IOException( "CIP: the " + bits + " bits pixels of " + file + " cannot be mapped" );
+			if( width < 1 || height < 1 || stripOffsets == null )
+				throw new IOException( "CIP: " + file + " contains no image" );
+			if( planeBytes > Integer.MAX_VALUE )
+				throw new IOException( "CIP: the planes of " + file + " are larger than 2GB" );
+		}
+
+
+		boolean samePlane( Directory first )
+		{
+			return width == first.width && height == first.height && bits == first.bits && format == first.format
+					&& samples == first.samples && compression == first.compression && !tiled && stripOffsets != null;
+		}
+
+
+		/**
+		 * @return the position of the plane in the file, its strips should be stored one after the other
+		 */
+		long planeOffset( File file ) throws IOException
+		{
+			long end = stripOffsets[0];
+			for( int s=0; s<stripOffsets.length; s++ ) {
+				if( stripOffsets[s] != end )
+					throw new IOException( "CIP: the strips of " + file + " are not contiguous, it cannot be mapped" );
+				end += stripCounts == null ? planeBytes / stripOffsets.length : stripCounts[s];
+			}
+			if( end - stripOffsets[0] < planeBytes )
+				throw new IOException( "CIP: the planes of " + file + " are truncated" );
+			return stripOffsets[0];
+		}
+
+
+		private void description( String text )
+		{
+			if( !text.startsWith( "ImageJ=" ) )
+				return;
+			final Matcher m = imagejValue.matcher( text );
+			while( m.find() ) {
+				final long value = Long.parseLong( m.group(2) );
+				switch( m.group(1) ) {
+				case "images": imagejImages = (int) Math.min( Integer.MAX_VALUE, value ); break;
+				case "channels": imagejChannels = value; break;
+				case "slices": imagejSlices = value; break;
+				default: imagejFrames = value;
+				}
+			}
+		}
+
+
+		/**
+		 * @return the values of an integer field, stored in the entry if they fit, elsewhere in the file otherwise
+		 */
+		private static long[] values( FileChannel channel, ByteBuffer entries, int pos, ByteOrder order, boolean big ) throws IOException
+		{
+			final int type = entries.getShort( pos+2 ) & 0xffff;
+			final long count = big ? entries.getLong( pos+4 ) : entries.getInt( pos+4 ) & 0xffffffffL;
+			final int size = type < typeSize.length ? typeSize[type] : 0;
+			if( size == 0 || type == 2 || count < 1 || count > ( 1 << 24 ) )
+				throw new IOException( "CIP: invalid tiff field " + ( entries.getShort(pos) & 0xffff ) );
+			final ByteBuffer buffer = data( channel, entries, pos, order, big, (int) count * size );
+			final long[] values = new long[ (int) count ];
+			for( int i=0; i<count; i++ ) {
+				switch( type ) {
+				case 1: case 7: values[i] = buffer.get( i ) & 0xff; break;
+				case 6: values[i] = buffer.get( i ); break;
+				case 3: values[i] = buffer.getShort( 2*i ) & 0xffff; break;
+				case 8: values[i] = buffer.getShort( 2*i ); break;
+				case 4: case 13: values[i] = buffer.getInt( 4*i ) & 0xffffffffL; break;
+				case 9: values[i] = buffer.getInt( 4*i ); break;
+				default: values[i] = buffer.getLong( 8*i );
+				}
+			}
+			return values;
+		}
+
+
+		private static String text( FileChannel channel, ByteBuffer entries, int pos, ByteOrder order, boolean big ) throws IOException
+		{
+			final long count = big ? entries.getLong( pos+4 ) : entries.getInt( pos+4 ) & 0xffffffffL;
+			// only the start of the description is needed for ImageJ stacks
+			final int size = (int) Math.min( count, 4096 );
+			final ByteBuffer buffer = data( channel, entries, pos, order, big, size );
+			final byte[] bytes = new byte[size];
+			buffer.get( bytes );
+			return new String( bytes, StandardCharsets.ISO_8859_1 );
+		}
+
+
+		private static ByteBuffer data( FileChannel channel, ByteBuffer entries, int pos, ByteOrder order, boolean big, int size ) throws IOException
+		{
+			final int valuePos = pos + ( big ? 12 : 8 );
+			if( size <= ( big ? 8 : 4 ) ) {
+				final ByteBuffer buffer = entries.duplicate().order( order );
+				buffer.position( valuePos );
+				return buffer.slice().order( order );
+			}
+			final long offset = big ? entries.getLong( valuePos ) : entries.getInt( valuePos ) & 0xffffffffL;
+			return read( channel, offset, size, order );
+		}
+	}
+
+
+
+	// accesses reading the pixels of a mapped plane, in the byte order of the file
+
+	static final class MappedBytes implements ByteAccess
+	{
+		final ByteBuffer buffer;
+		MappedBytes( ByteBuffer buffer ) { this.buffer = buffer; }
+		@Override public byte getValue( int index ) { return buffer.get( index ); }
+		@Override public void setValue( int index, byte value ) { buffer.put( index, value ); }
+	}
+
+	static final class MappedShorts implements ShortAccess
+	{
+		final ShortBuffer buffer;
+		MappedShorts( ByteBuffer buffer ) { this.buffer = buffer.asShortBuffer(); }
+		@Override public short getValue( int index ) { return buffer.get( index ); }
+		@Override public void setValue( int index, short value ) { buffer.put( index, value ); }
+	}
+
+	static final class MappedInts implements IntAccess
+	{
+		final IntBuffer buffer;
+		MappedInts( ByteBuffer buffer ) { this.buffer = buffer.asIntBuffer(); }
+		@Override public int getValue( int index ) { return buffer.get( index ); }
+		@Override public void setValue( int index, int value ) { buffer.put( index, value ); }
+	}
+
+	static final class MappedLongs implements LongAccess
+	{
+		final LongBuffer buffer;
+		MappedLongs( ByteBuffer buffer ) { this.buffer = buffer.asLongBuffer(); }
+		@Override public long getValue( int index ) { return buffer.get( index ); }
+		@Override public void setValue( int index, long value ) { buffer.put( index, value ); }
+	}
+
+	static final class MappedFloats implements FloatAccess
+	{
+		final FloatBuffer buffer;
+		MappedFloats( ByteBuffer buffer ) { this.buffer = buffer.asFloatBuffer(); }
+		@Override public float getValue( int index ) { return buffer.get( index ); }
+		@Override public void setValue( int index, float value ) { buffer.put( index, value ); }
+	}
+
+	static final class MappedDoubles implements DoubleAccess
+	{
+		final DoubleBuffer buffer;
+		MappedDoubles( ByteBuffer buffer ) { this.buffer = buffer.asDoubleBuffer(); }
+		@Override public double getValue( int index ) { return buffer.get( index ); }
+		@Override public void setValue( int index, double value ) { buffer.put( index, value ); }
+	}
+
+}
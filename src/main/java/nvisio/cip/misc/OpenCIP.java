@@ -0,0 +1,90 @@
+package nvisio.cip.misc;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+
+import org.scijava.ItemIO;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import net.imagej.ops.AbstractOp;
+import net.imagej.ops.Op;
+import net.imglib2.img.Img;
+
+
+/**
+ *
+ * @author Benoit Lombardot
+ *
+ */
+
+// output "outputImage": a read only image mapping the planes of the file, see MappedImg
+
+	@Plugin(type = Op.class, name="OpenCIP", headless = true)
+	public class OpenCIP extends AbstractOp
+	{
+
+		@Parameter (type = ItemIO.INPUT)
+		private String path;
+
+		@Parameter( label="dimensions", persist=false, required=false ) // with persist and required set to false the parameter become optional
+		private Long[] dimensions;
+
+		@Parameter( label="type", persist=false, required=false ) // with persist and required set to false the parameter become optional
+		private String type;
+
+		@Parameter( label="offset", persist=false, required=false ) // with persist and required set to false the parameter become optional
+		private Long offset;
+
+		@Parameter( label="byte order", persist=false, required=false ) // with persist and required set to false the parameter become optional
+		private String byteOrder;
+
+		@Parameter (type = ItemIO.OUTPUT)
+		private	Img<?> outputImage;
+
+
+
+		@Override
+		public void run() {
+
+			if( path == null )
+			{	//TODO: error message
+				return;
+			}
+			final File file = new File( path );
+
+			try {
+				if( dimensions == null )
+				{
+					// the file describes the image
+					outputImage = MappedImg.openTiff( file );
+					return;
+				}
+
+				// raw file
+				long[] dims = new long[dimensions.length];
+				for(int d=0; d<dims.length; d++)
+					dims[d] = dimensions[d];
+				if( type == null )
+					type = "uint8";
+				if( MappedImg.typeName( type ) == null ) {
+					System.err.println( "CIP: the pixel type " + type + " cannot be read from a raw file" );
+					return;
+				}
+				if( offset == null )
+					offset = 0L;
+				ByteOrder order = ByteOrder.LITTLE_ENDIAN;
+				if( byteOrder != null && byteOrder.toLowerCase().trim().startsWith("big") )
+					order = ByteOrder.BIG_ENDIAN;
+
+				outputImage = MappedImg.openRaw( file, dims, type, offset, order );
+			}
+			catch( IOException | UncheckedIOException | IllegalArgumentException e ) {
+				System.err.println( e.getMessage() );
+			}
+		}
+
+	}
@@ -13,9 +13,7 @@ import net.imagej.ops.AbstractOp;
 import net.imagej.ops.OpService;
 import net.imagej.ops.Op;
 
-import net.imglib2.Cursor;
 import net.imglib2.FinalDimensions;
-import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.img.display.imagej.ImageJFunctions;
@@ -24,7 +22,6 @@ import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.IntType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.numeric.real.FloatType;
-import net.imglib2.view.Views;
 
 
 /**
@@ -48,9 +45,15 @@ import net.imglib2.view.Views;
 		@Parameter( label="method", persist=false, required=false ) // with persist and required set to false the parameter become optional
 		private String method = "max";
 		
-		@Parameter( label="method", persist=false, required=false ) // with persist and required set to false the parameter become optional
+		@Parameter( label="output type", persist=false, required=false ) // with persist and required set to false the parameter become optional
 		private String outputType = "projection"; // "projection" , "argument" , "both"
 		
+		@Parameter( label="number of Threads", persist=false, required=false ) // with persist and required set to false the parameter become optional
+		private Integer nThread = 1;
+		
+		@Parameter( label="percentile", persist=false, required=false ) // with persist and required set to false the parameter become optional
+		private Double percentile = 50.0; // used by the percentile method, in [0, 100]
+		
 		
 		@Parameter (type = ItemIO.OUTPUT)
 		private	RandomAccessibleInterval<U> projImage;
@@ -74,168 +77,64 @@ import net.imglib2.view.Views;
 			
 			int nDim = inputImage.numDimensions();
 			
-			if (dimension < 0 || dimension>=nDim )
+			if (dimension < 0 || dimension>=nDim || nDim<2 )
 				return;
 			
-			int[] projDimIndex = new int[nDim-1];
+			if( nThread == null || nThread < 1 )
+				nThread = 1;
+			
 			long[] projSize = new long[nDim-1];
 			int count=0;
 			for( int d=0; d<nDim ; d++)
 			{
 				if( d != dimension ) {
-					projSize[d] = inputImage.dimension(d);
-					projDimIndex[count] = d;
+					projSize[count] = inputImage.dimension(d);
 					count++;
 				}
 			}
 			
 			
-			
-			Tester<T,U> projector = null;
 			method = method.toLowerCase();
+			outputType = outputType.toLowerCase();
 			
-			if ( method.equals("max") ) {
-				projector = new MaxTester<T,U>();
-				U valU =  (U)inputImage.randomAccess().get();
-				projImage = op.create().img( FinalDimensions.wrap(projSize) , valU );
-
+			// argmax and argmin are the argument output of max and min
+			if ( method.equals("argmax") || method.equals("argmin") ) {
+				method = method.substring(3);
+				outputType = "argument";
 			}
-			else if ( method.equals("min") ) {
-				projector = new MinTester<T,U>();
+			
+			if ( method.equals("max") || method.equals("min") ) {
 				U valU =  (U)inputImage.randomAccess().get();
 				projImage = op.create().img( FinalDimensions.wrap(projSize) , valU );
-
 			}
-			else if ( method.equals("add") || method.equals("sum") ) {
-				projector = new SumTester<T,U>();
+			else if ( method.equals("add") || method.equals("sum") || Projection.methods.indexOf( method ) > 2 ) {
+				// sum and statistics (mean, stdev, median, percentile)
+				if( method.equals("add") )
+					method = "sum";
 				U valU =  (U)new FloatType();
 				projImage = op.create().img( FinalDimensions.wrap(projSize) , valU );
 
 				outputType = "projection";
 			}
+			else {
+				//TODO: error message, unknown method
+				return;
+			}
 			
-			
-			
-			long[] pos = new long[nDim];
-			long[] pos2 = new long[nDim-1];
-			count=0;
-			RandomAccess<U> projImageRA = projImage.randomAccess();
-			Cursor<T> cIn = Views.flatIterable( inputImage ).cursor();
-			
-			outputType = outputType.toLowerCase();
 			if( outputType.equals("argument") || outputType.equals("both") )
-			{
 				argProjImage = op.create().img( FinalDimensions.wrap(projSize) , new IntType() );
-				RandomAccess<IntType> argProjImageRA = argProjImage.randomAccess();
-	
-				while( cIn.hasNext() )
-				{
-					final T in = cIn.next();
-					cIn.localize( pos );				
-					
-					count = 0;
-					for( int d :  projDimIndex ) {
-						pos2[count] = pos[d];
-						count++;
-					}
-					
-					projImageRA.setPosition( pos2 );
-					final U proj = projImageRA.get();
-					
-					final long slice = pos[dimension];
-					if( slice == 0 || projector.test(in, proj) )
-					{
-						projector.update(in, proj);
-						
-						argProjImageRA.setPosition( pos2 );
-						IntType argProj = argProjImageRA.get();
-						argProj.setInteger( slice );
-					}	
-				}
-				
-			}
-			else
-			{
-				while( cIn.hasNext() )
-				{
-					final T in = cIn.next();
-					cIn.localize( pos );				
-					
-					count = 0;
-					for( int d :  projDimIndex ) {
-						pos2[count] = pos[d];
-						count++;
-					}
-					
-					projImageRA.setPosition( pos2 );
-					final U proj = projImageRA.get();
-					
-					final long slice = pos[dimension];
-					if( slice == 0 || projector.test(in, proj) )
-						projector.update(in, proj);
-
-				}
-			}
 			
-			if ( outputType.toLowerCase().equals("argument") )
+			if ( outputType.equals("argument") )
 				projImage = null;
 			
+			// lines of the input are accumulated in primitive arrays, the rows of the projection are split between threads
+			Projection.project( inputImage, dimension, method, percentile == null ? 50 : percentile, projImage, argProjImage, nThread );
+			
 		}
 
 
 		
 		
-		interface Tester<W extends RealType<W> , V extends RealType<V> >
-		{	
-			void update(W in, V proj);
-			boolean test(W in , V proj);
-		}
-
-		
-		class MaxTester<W extends RealType<W> , V extends RealType<V>> implements Tester<W,V>
-		{
-			@Override
-			public void update(W in, V proj) {
-				proj.setReal( in.getRealFloat() );
-			}
-
-			@Override
-			public boolean test(W in, V proj) {
-				return proj.getRealFloat() < in.getRealFloat();
-			}
-		}
-		
-		
-		class MinTester<W extends RealType<W> , V extends RealType<V>> implements Tester<W,V>
-		{
-			@Override
-			public void update(W in, V proj) {
-				proj.setReal( in.getRealFloat() );
-			}
-
-			@Override
-			public boolean test(W in, V proj) {
-				return proj.getRealFloat() > in.getRealFloat();
-			}
-		}
-		
-		
-		class SumTester<W extends RealType<W> , V extends RealType<V>> implements Tester<W,V>
-		{
-			@Override
-			public void update(W in, V proj) {
-				proj.setReal( proj.getRealFloat() + in.getRealFloat() );
-			}
-			
-			@Override
-			public boolean test(W in, V proj) {
-				return true;
-			}
-		}
-		
-		
-		
-		
 		public static void main(final String... args)
 		{
 			
@@ -0,0 +1,580 @@
+package nvisio.cip.misc;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.List;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+import nvisio.cip.filter.Parallel;
+
+
+/**
+ *
+ * Projection of an image along one dimension. The image is read line by line along dimension 0, which is contiguous
+ * in memory for the array images, and the values are accumulated in primitive arrays:
+ *  - when projecting a dimension d>0, each row of the projection is the sum (max, ...) of the lines at the same
+ *    position in the slices 0 to n-1 of dimension d
+ *  - when projecting dimension 0, each line is reduced to a single value
+ * The rows (or pixels) of the projection are split in chunks processed in parallel.
+ *
+ * The arguments of max and min are the index of the first slice reaching the max (min). The mean and the standard
+ * deviation (n-1 normalization) are accumulated in one pass with Welford's update, which does not lose precision when
+ * the variance is small compared to the mean.
+ *
+ * Median and percentiles interpolate linearly between the two closest ranks (percentile p of n values is at rank
+ * p/100*(n-1)). They need all the values of a projected pixel: integer images with a small value range count them in
+ * one histogram per pixel, other images copy them in a buffer where the ranks are found by selection. The rows are
+ * processed in segments so that the histograms or the buffer of a thread stay below a fixed size.
+ *
+ * @author Benoit Lombardot
+ *
+ */
+public final class Projection {
+
+	private Projection() {}
+
+
+	public static final List<String> methods = Arrays.asList( "max", "min", "sum", "mean", "stdev", "median", "percentile" );
+
+	// number of values read at once along a projected dimension 0
+	static final int BLOCK = 4096;
+
+	// maximum number of histogram bins and of buffered values per thread for the median and percentiles
+	static final int maxHistogramSize = 1 << 22;
+	static final int maxBufferSize = 1 << 20;
+
+
+	/**
+	 * @param input the image to project
+	 * @param dimension the projected dimension
+	 * @param method one of max, min, sum, mean, stdev, median, percentile
+	 * @param percentile the percentile computed by the percentile method, in [0, 100]
+	 * @param projection image receiving the projection (the size of input without dimension), or null
+	 * @param argument image receiving the slice of the max or min, or null
+	 * @param nThread number of threads
+	 */
+	public static void project( final RandomAccessibleInterval<? extends RealType<?>> input, final int dimension, String method,
+			double percentile, final RandomAccessibleInterval<? extends RealType<?>> projection, final RandomAccessibleInterval<? extends IntegerType<?>> argument,
+			int nThread )
+	{
+		final int op = methods.indexOf( method );
+		if( op < 0 )
+			throw new IllegalArgumentException( "CIP: unknown projection method " + method );
+		final RandomAccessibleInterval<? extends IntegerType<?>> arg = op > 1 ? null : argument;
+
+		if( op >= 5 ) {
+			if( projection == null )
+				return;
+			final double p = op == 5 ? 50 : Math.max( 0, Math.min( 100, percentile ) );
+			if( dimension == 0 )
+				percentileLines( input, p, projection, nThread );
+			else
+				percentileRows( input, dimension, p, projection, nThread );
+		}
+		else if( dimension == 0 )
+			projectLines( op, input, projection, arg, nThread );
+		else
+			projectRows( op, input, dimension, projection, arg, nThread );
+	}
+
+
+	// dimension > 0: the lines of the slices are accumulated in the rows of the projection
+	private static void projectRows( final int op, final RandomAccessibleInterval<? extends RealType<?>> input, final int dimension,
+			final RandomAccessibleInterval<? extends RealType<?>> projection, final RandomAccessibleInterval<? extends IntegerType<?>> argument,
+			int nThread )
+	{
+		final int nDim = input.numDimensions();
+		final int width = (int) input.dimension(0);
+		final long depth = input.dimension( dimension );
+
+		final int[] rowDims = rowDimensions( input, dimension );
+		final long nRows = size( input ) / width / depth;
+
+		final int nTask = Parallel.nChunk( nRows, nThread );
+		Parallel.run( nTask, nThread, (task)-> {
+			final long start = nRows*task/nTask;
+			final long end = nRows*(task+1)/nTask;
+			final LineReader reader = reader( input );
+			final RandomAccess<? extends RealType<?>> projRA = projection == null ? null : projection.randomAccess();
+			final RandomAccess<? extends IntegerType<?>> argRA = argument == null ? null : argument.randomAccess();
+			final double[] acc = new double[width];
+			final double[] line = new double[width];
+			final double[] m2 = op == 4 ? new double[width] : null;
+			final int[] arg = new int[width];
+			final long[] pos = new long[nDim];
+			final long[] outPos = new long[nDim-1];
+
+			for( long r=start; r<end; r++ ) {
+				rowPosition( input, rowDims, r, pos );
+				pos[dimension] = 0;
+				reader.read( pos, width, acc );
+				Arrays.fill( arg, 0 );
+				if( m2 != null )
+					Arrays.fill( m2, 0 );
+				for( int z=1; z<depth; z++ ) {
+					final double n = z+1;
+					pos[dimension] = z;
+					reader.read( pos, width, line );
+					switch( op ) {
+					case 0:
+						for( int k=0; k<width; k++ )
+							if( line[k] > acc[k] ) {
+								acc[k] = line[k];
+								arg[k] = z;
+							}
+						break;
+					case 1:
+						for( int k=0; k<width; k++ )
+							if( line[k] < acc[k] ) {
+								acc[k] = line[k];
+								arg[k] = z;
+							}
+						break;
+					case 2:
+						for( int k=0; k<width; k++ )
+							acc[k] += line[k];
+						break;
+					case 3:
+						for( int k=0; k<width; k++ )
+							acc[k] += ( line[k] - acc[k] ) / n;
+						break;
+					default:
+						// Welford
+						for( int k=0; k<width; k++ ) {
+							final double delta = line[k] - acc[k];
+							acc[k] += delta / n;
+							m2[k] += delta * ( line[k] - acc[k] );
+						}
+					}
+				}
+				if( m2 != null )
+					for( int k=0; k<width; k++ )
+						acc[k] = depth > 1 ? Math.sqrt( m2[k] / (depth-1) ) : 0;
+
+				outPosition( pos, dimension, outPos );
+				if( projRA != null )
+					write( projRA, projection, outPos, acc, null );
+				if( argRA != null )
+					write( argRA, argument, outPos, null, arg );
+			}
+		});
+	}
+
+
+	// dimension 0: each line of the input is reduced to one pixel of the projection
+	private static void projectLines( final int op, final RandomAccessibleInterval<? extends RealType<?>> input,
+			final RandomAccessibleInterval<? extends RealType<?>> projection, final RandomAccessibleInterval<? extends IntegerType<?>> argument,
+			int nThread )
+	{
+		final int nDim = input.numDimensions();
+		final long depth = input.dimension(0);
+		final long nPixel = size( input ) / depth;
+		final int[] rowDims = rowDimensions( input, 0 );
+
+		final int nTask = Parallel.nChunk( nPixel, nThread );
+		Parallel.run( nTask, nThread, (task)-> {
+			final long start = nPixel*task/nTask;
+			final long end = nPixel*(task+1)/nTask;
+			final LineReader reader = reader( input );
+			final Cursor<? extends RealType<?>> projCursor = projection == null ? null : Views.flatIterable( projection ).cursor();
+			final Cursor<? extends IntegerType<?>> argCursor = argument == null ? null : Views.flatIterable( argument ).cursor();
+			if( projCursor != null )
+				projCursor.jumpFwd( start );
+			if( argCursor != null )
+				argCursor.jumpFwd( start );
+			final double[] line = new double[ (int) Math.min( BLOCK, depth ) ];
+			final long[] pos = new long[nDim];
+
+			for( long j=start; j<end; j++ ) {
+				rowPosition( input, rowDims, j, pos );
+				double acc = 0;
+				double m2 = 0;
+				long arg = 0;
+				for( long z0=0; z0<depth; z0+=line.length ) {
+					final int n = (int) Math.min( line.length, depth - z0 );
+					pos[0] = z0;
+					reader.read( pos, n, line );
+					int k = 0;
+					if( z0 == 0 ) {
+						acc = line[0];
+						k = 1;
+					}
+					switch( op ) {
+					case 0:
+						for( ; k<n; k++ )
+							if( line[k] > acc ) {
+								acc = line[k];
+								arg = z0 + k;
+							}
+						break;
+					case 1:
+						for( ; k<n; k++ )
+							if( line[k] < acc ) {
+								acc = line[k];
+								arg = z0 + k;
+							}
+						break;
+					case 2:
+						for( ; k<n; k++ )
+							acc += line[k];
+						break;
+					case 3:
+						for( ; k<n; k++ )
+							acc += ( line[k] - acc ) / ( z0 + k + 1 );
+						break;
+					default:
+						// Welford
+						for( ; k<n; k++ ) {
+							final double delta = line[k] - acc;
+							acc += delta / ( z0 + k + 1 );
+							m2 += delta * ( line[k] - acc );
+						}
+					}
+				}
+				if( op == 4 )
+					acc = depth > 1 ? Math.sqrt( m2 / (depth-1) ) : 0;
+
+				if( projCursor != null )
+					projCursor.next().setReal( acc );
+				if( argCursor != null )
+					argCursor.next().setInteger( arg );
+			}
+		});
+	}
+
+
+	// median and percentiles for dimension > 0, the rows are processed in segments of the histogram or buffer size
+	private static void percentileRows( final RandomAccessibleInterval<? extends RealType<?>> input, final int dimension, final double percentile,
+			final RandomAccessibleInterval<? extends RealType<?>> projection, int nThread )
+	{
+		final int nDim = input.numDimensions();
+		final int width = (int) input.dimension(0);
+		final int depth = (int) Math.min( Integer.MAX_VALUE, input.dimension( dimension ) );
+		final int[] rowDims = rowDimensions( input, dimension );
+		final long nRows = size( input ) / width / input.dimension( dimension );
+		final int nBins = histogramBins( input, depth );
+		final double binOffset = input.randomAccess().get().getMinValue();
+		final int segment = (int) Math.max( 1, Math.min( width, nBins > 0 ? maxHistogramSize / nBins : maxBufferSize / depth ) );
+
+		final int nTask = Parallel.nChunk( nRows, nThread );
+		Parallel.run( nTask, nThread, (task)-> {
+			final long start = nRows*task/nTask;
+			final long end = nRows*(task+1)/nTask;
+			final LineReader reader = reader( input );
+			final RandomAccess<? extends RealType<?>> projRA = projection.randomAccess();
+			final double[] line = new double[segment];
+			final double[] result = new double[width];
+			final int[] counts = nBins > 0 ? new int[ segment*nBins ] : null;
+			final double[] values = nBins > 0 ? null : new double[ segment*depth ];
+			final long[] pos = new long[nDim];
+			final long[] outPos = new long[nDim-1];
+
+			for( long r=start; r<end; r++ ) {
+				rowPosition( input, rowDims, r, pos );
+				for( int x0=0; x0<width; x0+=segment ) {
+					final int n = Math.min( segment, width-x0 );
+					pos[0] = x0;
+					if( counts != null )
+						Arrays.fill( counts, 0, n*nBins, 0 );
+					for( int z=0; z<depth; z++ ) {
+						pos[dimension] = z;
+						reader.read( pos, n, line );
+						if( counts != null )
+							for( int k=0; k<n; k++ )
+								counts[ k*nBins + (int) ( line[k] - binOffset ) ]++;
+						else
+							for( int k=0; k<n; k++ )
+								values[ k*depth + z ] = line[k];
+					}
+					for( int k=0; k<n; k++ )
+						result[x0+k] = counts != null ? binOffset + percentile( counts, k*nBins, nBins, depth, percentile )
+								: percentile( values, k*depth, depth, percentile );
+				}
+				pos[0] = 0;
+				outPosition( pos, dimension, outPos );
+				write( projRA, projection, outPos, result, null );
+			}
+		});
+	}
+
+
+	// median and percentiles for dimension 0, the values of a line are counted or copied before selecting the ranks
+	private static void percentileLines( final RandomAccessibleInterval<? extends RealType<?>> input, final double percentile,
+			final RandomAccessibleInterval<? extends RealType<?>> projection, int nThread )
+	{
+		final int nDim = input.numDimensions();
+		final int depth = (int) Math.min( Integer.MAX_VALUE, input.dimension(0) );
+		final long nPixel = size( input ) / input.dimension(0);
+		final int[] rowDims = rowDimensions( input, 0 );
+		final int nBins = histogramBins( input, depth );
+		final double binOffset = input.randomAccess().get().getMinValue();
+
+		final int nTask = Parallel.nChunk( nPixel, nThread );
+		Parallel.run( nTask, nThread, (task)-> {
+			final long start = nPixel*task/nTask;
+			final long end = nPixel*(task+1)/nTask;
+			final LineReader reader = reader( input );
+			final Cursor<? extends RealType<?>> projCursor = Views.flatIterable( projection ).cursor();
+			projCursor.jumpFwd( start );
+			final int[] counts = nBins > 0 ? new int[nBins] : null;
+			final double[] line = new double[ nBins > 0 ? Math.min( BLOCK, depth ) : depth ];
+			final long[] pos = new long[nDim];
+
+			for( long j=start; j<end; j++ ) {
+				rowPosition( input, rowDims, j, pos );
+				final double value;
+				if( counts != null ) {
+					Arrays.fill( counts, 0 );
+					for( int z0=0; z0<depth; z0+=line.length ) {
+						final int n = Math.min( line.length, depth - z0 );
+						pos[0] = z0;
+						reader.read( pos, n, line );
+						for( int k=0; k<n; k++ )
+							counts[ (int) ( line[k] - binOffset ) ]++;
+					}
+					value = binOffset + percentile( counts, 0, nBins, depth, percentile );
+				}
+				else {
+					pos[0] = 0;
+					reader.read( pos, depth, line );
+					value = percentile( line, 0, depth, percentile );
+				}
+				projCursor.next().setReal( value );
+			}
+		});
+	}
+
+
+	/**
+	 * @return the number of bins of the per pixel histograms of an integer image, 0 if the values should be buffered
+	 * 			instead (non integer types, or value range larger than twice the number of values per pixel)
+	 */
+	static int histogramBins( RandomAccessibleInterval<? extends RealType<?>> input, int depth )
+	{
+		final RealType<?> type = input.randomAccess().get();
+		if( !( type instanceof IntegerType ) )
+			return 0;
+		final double range = type.getMaxValue() - type.getMinValue() + 1;
+		if( range > 1 << 16 || range > 2.0 * depth )
+			return 0;
+		return (int) range;
+	}
+
+
+	/**
+	 * @return the percentile of the values counted in counts[from, from+nBins), as a bin index
+	 */
+	static double percentile( int[] counts, int from, int nBins, int n, double percentile )
+	{
+		final double rank = percentile / 100 * (n-1);
+		final int lo = (int) Math.floor( rank );
+		final double frac = rank - lo;
+		long cumul = 0;
+		int b = 0;
+		while( cumul + counts[from+b] <= lo )
+			cumul += counts[from+b++];
+		if( frac == 0 || cumul + counts[from+b] > lo+1 )
+			return b;
+		// the next rank is in the next non empty bin
+		int b2 = b+1;
+		while( counts[from+b2] == 0 )
+			b2++;
+		return b + frac * ( b2 - b );
+	}
+
+
+	/**
+	 * @return the percentile of values[from, from+n), the order of these values is modified
+	 */
+	static double percentile( double[] values, int from, int n, double percentile )
+	{
+		final double rank = percentile / 100 * (n-1);
+		final int lo = (int) Math.floor( rank );
+		final double frac = rank - lo;
+		select( values, from, from+n-1, from+lo );
+		final double v = values[from+lo];
+		if( frac == 0 )
+			return v;
+		// after the selection the values above rank lo are larger, the next rank is their min
+		double next = values[from+lo+1];
+		for( int i=from+lo+2; i<from+n; i++ )
+			if( values[i] < next )
+				next = values[i];
+		return v + frac * ( next - v );
+	}
+
+
+	// quickselect: values[k] is moved to its position in the sorted values[left, right]
+	private static void select( double[] values, int left, int right, int k )
+	{
+		while( right > left ) {
+			final double pivot = values[ (left+right) >>> 1 ];
+			int i = left;
+			int j = right;
+			while( i <= j ) {
+				while( values[i] < pivot ) i++;
+				while( values[j] > pivot ) j--;
+				if( i <= j ) {
+					final double tmp = values[i];
+					values[i++] = values[j];
+					values[j--] = tmp;
+				}
+			}
+			if( k <= j )
+				right = j;
+			else if( k >= i )
+				left = i;
+			else
+				return;
+		}
+	}
+
+
+	// dimensions of the input, except 0 and the projected one, indexing the rows of the projection
+	private static int[] rowDimensions( RandomAccessibleInterval<?> input, int dimension )
+	{
+		final int nDim = input.numDimensions();
+		final int[] rowDims = new int[ dimension == 0 ? nDim-1 : nDim-2 ];
+		int count = 0;
+		for( int d=1; d<nDim; d++ )
+			if( d != dimension )
+				rowDims[count++] = d;
+		return rowDims;
+	}
+
+
+	private static void rowPosition( RandomAccessibleInterval<?> input, int[] rowDims, long row, long[] pos )
+	{
+		for( int d : rowDims ) {
+			pos[d] = row % input.dimension(d);
+			row /= input.dimension(d);
+		}
+	}
+
+
+	private static void outPosition( long[] pos, int dimension, long[] outPos )
+	{
+		int count = 0;
+		for( int d=0; d<pos.length; d++ )
+			if( d != dimension )
+				outPos[count++] = pos[d];
+	}
+
+
+	private static void write( RandomAccess<? extends RealType<?>> ra, RandomAccessibleInterval<?> img, long[] pos, double[] values, int[] ints )
+	{
+		for( int d=0; d<pos.length; d++ )
+			ra.setPosition( img.min(d) + pos[d], d );
+		final int n = values != null ? values.length : ints.length;
+		for( int k=0; k<n; k++ ) {
+			if( values != null )
+				ra.get().setReal( values[k] );
+			else
+				ra.get().setReal( ints[k] );
+			ra.fwd(0);
+		}
+	}
+
+
+	static long size( RandomAccessibleInterval<?> img )
+	{
+		long size = 1;
+		for( int d=0; d<img.numDimensions(); d++ )
+			size *= img.dimension(d);
+		return size;
+	}
+
+
+
+	/**
+	 * reads the lines of an image along dimension 0, from the primitive array of an ArrayImg or with a RandomAccess.
+	 * A reader is used by a single thread.
+	 */
+	static abstract class LineReader
+	{
+		/** reads n values starting at pos (relative to the image min) along dimension 0 */
+		abstract void read( long[] pos, int n, double[] values );
+	}
+
+
+	static LineReader reader( final RandomAccessibleInterval<? extends RealType<?>> img )
+	{
+		final int nDim = img.numDimensions();
+		final Object type = img.randomAccess().get();
+		Object storage = null;
+		if( img instanceof ArrayImg ) {
+			storage = ( (ArrayDataAccess<?>) ( (ArrayImg<?, ?>) img ).update( null ) ).getCurrentStorageArray();
+			if( storage == null || !storage.getClass().isArray() || Array.getLength( storage ) != size( img ) )
+				storage = null; // packed or complex types
+		}
+
+		if( storage != null && !( storage instanceof long[] ) ) {
+			final long[] strides = new long[nDim];
+			strides[0] = 1;
+			for( int d=1; d<nDim; d++ )
+				strides[d] = strides[d-1] * img.dimension(d-1);
+			final Object array = storage;
+			final boolean unsigned = type instanceof UnsignedByteType || type instanceof UnsignedShortType || type instanceof UnsignedIntType;
+			return new LineReader() {
+				@Override
+				void read( long[] pos, int n, double[] v ) {
+					long offset = 0;
+					for( int d=0; d<nDim; d++ )
+						offset += pos[d] * strides[d];
+					final int o = (int) offset;
+					if( array instanceof float[] ) {
+						final float[] a = (float[]) array;
+						for( int k=0; k<n; k++ ) v[k] = a[o+k];
+					}
+					else if( array instanceof double[] )
+						System.arraycopy( array, o, v, 0, n );
+					else if( array instanceof byte[] ) {
+						final byte[] a = (byte[]) array;
+						if( unsigned )
+							for( int k=0; k<n; k++ ) v[k] = a[o+k] & 0xff;
+						else
+							for( int k=0; k<n; k++ ) v[k] = a[o+k];
+					}
+					else if( array instanceof short[] ) {
+						final short[] a = (short[]) array;
+						if( unsigned )
+							for( int k=0; k<n; k++ ) v[k] = a[o+k] & 0xffff;
+						else
+							for( int k=0; k<n; k++ ) v[k] = a[o+k];
+					}
+					else {
+						final int[] a = (int[]) array;
+						if( unsigned )
+							for( int k=0; k<n; k++ ) v[k] = a[o+k] & 0xffffffffL;
+						else
+							for( int k=0; k<n; k++ ) v[k] = a[o+k];
+					}
+				}
+			};
+		}
+
+		final RandomAccess<? extends RealType<?>> ra = img.randomAccess();
+		return new LineReader() {
+			@Override
+			void read( long[] pos, int n, double[] v ) {
+				for( int d=0; d<nDim; d++ )
+					ra.setPosition( img.min(d) + pos[d], d );
+				for( int k=0; k<n; k++ ) {
+					v[k] = ra.get().getRealDouble();
+					ra.fwd(0);
+				}
+			}
+		};
+	}
+
+}
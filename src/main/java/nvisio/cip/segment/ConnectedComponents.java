@@ -0,0 +1,333 @@
+package nvisio.cip.segment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.Util;
+import nvisio.cip.filter.Parallel;
+
+
+/**
+ *
+ * Block parallel connected component labeling. The image is cut in slabs along its last dimension, each slab is
+ * labeled independently with a sequential union-find. The slab borders are then merged in parallel with a lock-free
+ * union-find on the slab labels and a last parallel pass writes the final labels. Labels are numbered from 1 in the
+ * order of their first pixel in flat iteration order, independently of the number of threads.
+ *
+ * @author Benoit Lombardot
+ *
+ */
+public final class ConnectedComponents {
+
+	private ConnectedComponents() {}
+
+
+	/**
+	 * @param input image, pixels above threshold are foreground
+	 * @param threshold pixels above this value are foreground
+	 * @param full if true pixels touching by an edge or a corner are connected, otherwise only pixels sharing a face
+	 * @param nThread number of threads
+	 * @return a label image, 0 on the background
+	 */
+	public static < T extends RealType<T> > Img<IntType> label( RandomAccessibleInterval<T> input, double threshold, boolean full, int nThread )
+	{
+		Img<IntType> output = Util.getArrayOrCellImgFactory( input, new IntType() ).create( input, new IntType() );
+		label( input, threshold, output, full, nThread );
+		return output;
+	}
+
+
+	/**
+	 * same as {@link #label(RandomAccessibleInterval, double, boolean, int)}, in a given output of the size of the input
+	 */
+	public static < T extends RealType<T> > void label( final RandomAccessibleInterval<T> input, final double threshold,
+			final RandomAccessibleInterval<IntType> output, boolean full, int nThread )
+	{
+		final int nDim = input.numDimensions();
+		final long[] dims = new long[nDim];
+		input.dimensions( dims );
+		final int last = nDim-1;
+		final long[][] offsets = backwardOffsets( nDim, full );
+
+		// slabs along the last dimension
+		final int nSlab = Parallel.nChunk( dims[last], nThread );
+		final long[] slabStart = new long[nSlab+1];
+		for( int s=0; s<=nSlab; s++ )
+			slabStart[s] = dims[last]*s/nSlab;
+
+
+		// label each slab, the output receives slab labels and each slab keeps its own equivalence table
+		final Slab[] slabs = new Slab[nSlab];
+		Parallel.run( nSlab, nThread, (s)-> {
+			slabs[s] = new Slab();
+			slabs[s].label( input, threshold, output, offsets, slabStart[s], slabStart[s+1] );
+		});
+
+		int[] offset = new int[nSlab+1];
+		for( int s=0; s<nSlab; s++ )
+			offset[s+1] = offset[s] + slabs[s].nLabel;
+		final int nLabel = offset[nSlab];
+
+
+		// merge the slab borders, slab labels are made global by adding the slab offset
+		final AtomicIntegerArray parent = new AtomicIntegerArray( nLabel+1 );
+		for( int l=0; l<=nLabel; l++ )
+			parent.set( l, l );
+
+		final List<long[]> across = new ArrayList<long[]>();
+		for( long[] off : offsets )
+			if( off[last] == -1 )
+				across.add( off );
+
+		if( nSlab > 1 )
+			Parallel.run( nSlab-1, nThread, (b)-> {
+				final int s = b+1;
+				final long z = slabStart[s];
+				final RandomAccess<IntType> current = output.randomAccess();
+				final RandomAccess<IntType> neighbor = output.randomAccess();
+				final long[] pos = new long[nDim];
+				final long[] min = new long[nDim];
+				output.min( min );
+				pos[last] = z;
+				final long nPlane = planeSize( dims );
+				for( long i=0; i<nPlane; i++ ) {
+					long l = i;
+					for( int d=0; d<last; d++ ) {
+						pos[d] = l % dims[d];
+						l /= dims[d];
+					}
+					for( int d=0; d<nDim; d++ )
+						current.setPosition( min[d] + pos[d], d );
+					final int label = current.get().get();
+					if( label == 0 )
+						continue;
+					for( long[] off : across ) {
+						if( !inside( pos, off, dims, 0 ) )
+							continue;
+						for( int d=0; d<nDim; d++ )
+							neighbor.setPosition( min[d] + pos[d] + off[d], d );
+						final int nLabel0 = neighbor.get().get();
+						if( nLabel0 != 0 )
+							union( parent, offset[s] + slabs[s].root[label], offset[s-1] + slabs[s-1].root[nLabel0] );
+					}
+				}
+			});
+
+
+		// final labels, roots are the smallest label of their tree hence numbered in order of first appearance
+		final int[] finalLabel = new int[nLabel+1];
+		int count = 0;
+		for( int l=1; l<=nLabel; l++ )
+			finalLabel[l] = find( parent, l ) == l ? ++count : finalLabel[ find( parent, l ) ];
+
+		final int[] slabOffset = offset;
+		Parallel.run( nSlab, nThread, (s)-> {
+			final RandomAccess<IntType> ra = output.randomAccess();
+			final long[] min = new long[nDim];
+			output.min( min );
+			final long nPixel = planeSize( dims ) * ( slabStart[s+1] - slabStart[s] );
+			for( long i=0; i<nPixel; i++ ) {
+				long l = i;
+				for( int d=0; d<nDim; d++ ) {
+					ra.setPosition( min[d] + l % dims[d] + ( d==last ? slabStart[s] : 0 ), d );
+					l /= dims[d];
+				}
+				final IntType label = ra.get();
+				if( label.get() != 0 )
+					label.set( finalLabel[ slabOffset[s] + slabs[s].root[ label.get() ] ] );
+			}
+		});
+	}
+
+
+	/**
+	 * sequential labeling of a slab, labels are local to the slab and root[] maps them to consecutive numbers
+	 * starting from 1 in order of first appearance
+	 */
+	static class Slab
+	{
+		int[] root = new int[64];
+		int nLabel = 0;
+
+		< T extends RealType<T> > void label( RandomAccessibleInterval<T> input, double threshold, RandomAccessibleInterval<IntType> output,
+				long[][] offsets, long start, long end )
+		{
+			final int nDim = input.numDimensions();
+			final int last = nDim-1;
+			final long[] dims = new long[nDim];
+			final long[] inMin = new long[nDim];
+			final long[] outMin = new long[nDim];
+			input.dimensions( dims );
+			input.min( inMin );
+			output.min( outMin );
+
+			final RandomAccess<T> in = input.randomAccess();
+			final RandomAccess<IntType> out = output.randomAccess();
+			final RandomAccess<IntType> neighbor = output.randomAccess();
+			final long[] pos = new long[nDim];
+			final long nPixel = planeSize( dims ) * ( end - start );
+			int n = 0;
+			for( long i=0; i<nPixel; i++ ) {
+				long l = i;
+				for( int d=0; d<nDim; d++ ) {
+					pos[d] = l % dims[d] + ( d==last ? start : 0 );
+					l /= dims[d];
+				}
+				in.setPosition( inMin[0] + pos[0], 0 );
+				out.setPosition( outMin[0] + pos[0], 0 );
+				if( pos[0] == 0 )
+					for( int d=1; d<nDim; d++ ) {
+						in.setPosition( inMin[d] + pos[d], d );
+						out.setPosition( outMin[d] + pos[d], d );
+					}
+
+				if( in.get().getRealDouble() <= threshold ) {
+					out.get().set( 0 );
+					continue;
+				}
+
+				int label = 0;
+				for( long[] off : offsets ) {
+					if( !inside( pos, off, dims, start ) )
+						continue;
+					for( int d=0; d<nDim; d++ )
+						neighbor.setPosition( outMin[d] + pos[d] + off[d], d );
+					final int nLabel0 = neighbor.get().get();
+					if( nLabel0 == 0 )
+						continue;
+					if( label == 0 )
+						label = nLabel0;
+					else
+						label = union( label, nLabel0 );
+				}
+				if( label == 0 ) {
+					n++;
+					if( n >= root.length )
+						root = Arrays.copyOf( root, 2*root.length );
+					root[n] = n;
+					label = n;
+				}
+				out.get().set( label );
+			}
+
+			// flatten the trees and number the roots
+			for( int l=1; l<=n; l++ )
+				root[l] = root[l] == l ? ++nLabel : root[ root[l] ];
+		}
+
+		private int find( int l )
+		{
+			while( root[l] != l ) {
+				root[l] = root[ root[l] ];
+				l = root[l];
+			}
+			return l;
+		}
+
+		private int union( int a, int b )
+		{
+			a = find( a );
+			b = find( b );
+			if( a < b )
+				root[b] = a;
+			else
+				root[a] = b;
+			return Math.min( a, b );
+		}
+	}
+
+
+	/**
+	 * lock-free union, the larger root is attached to the smaller one
+	 */
+	static void union( AtomicIntegerArray parent, int a, int b )
+	{
+		while( true ) {
+			a = find( parent, a );
+			b = find( parent, b );
+			if( a == b )
+				return;
+			if( a < b ) {
+				int tmp = a;
+				a = b;
+				b = tmp;
+			}
+			if( parent.compareAndSet( a, a, b ) )
+				return;
+		}
+	}
+
+
+	static int find( AtomicIntegerArray parent, int l )
+	{
+		int p;
+		while( ( p = parent.get( l ) ) != l ) {
+			final int gp = parent.get( p );
+			parent.compareAndSet( l, p, gp );
+			l = p;
+		}
+		return l;
+	}
+
+
+	/**
+	 * @return the neighbor offsets preceding a pixel in flat iteration order
+	 */
+	static long[][] backwardOffsets( int nDim, boolean full )
+	{
+		List<long[]> offsets = new ArrayList<long[]>();
+		if( !full ) {
+			for( int d=0; d<nDim; d++ ) {
+				long[] off = new long[nDim];
+				off[d] = -1;
+				offsets.add( off );
+			}
+		}
+		else {
+			int n = (int) Math.pow( 3, nDim );
+			for( int i=0; i<n; i++ ) {
+				long[] off = new long[nDim];
+				int j = i;
+				for( int d=0; d<nDim; d++ ) {
+					off[d] = j%3 - 1;
+					j /= 3;
+				}
+				int d = nDim-1;
+				while( d >= 0 && off[d] == 0 )
+					d--;
+				if( d >= 0 && off[d] == -1 )
+					offsets.add( off );
+			}
+		}
+		return offsets.toArray( new long[0][] );
+	}
+
+
+	private static boolean inside( long[] pos, long[] off, long[] dims, long start )
+	{
+		final int last = pos.length-1;
+		for( int d=0; d<pos.length; d++ ) {
+			final long p = pos[d] + off[d];
+			if( p < ( d==last ? start : 0 ) || p >= dims[d] )
+				return false;
+		}
+		return true;
+	}
+
+
+	private static long planeSize( long[] dims )
+	{
+		long size = 1;
+		for( int d=0; d<dims.length-1; d++ )
+			size *= dims[d];
+		return size;
+	}
+
+}
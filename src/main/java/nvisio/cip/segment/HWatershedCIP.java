@@ -1,6 +1,7 @@
 package nvisio.cip.segment;
 
 
+import java.util.Arrays;
 
 import org.scijava.ItemIO;
 import org.scijava.plugin.Parameter;
@@ -14,16 +15,15 @@ import net.imglib2.algorithm.stats.ComputeMinMax;
 import net.imglib2.img.Img;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.type.NativeType;
-import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.IntType;
 import net.imglib2.type.numeric.real.FloatType;
-import net.imglib2.view.Views;
 import invizio.imgalgo.label.HWatershed;
-import invizio.imgalgo.util.RAI;
 import ij.IJ;
 import ij.ImagePlus;
 import nvisio.cip.CIP;
+import nvisio.cip.filter.DistanceTransform;
 
 
 /**
@@ -53,6 +53,9 @@ public class HWatershedCIP  < T extends RealType<T> & NativeType< T > > extends
 	@Parameter( label="Method", choices = {"binary","grey"} , persist=false, required=false ) // with persist and required set to false the parameter become optional
 	private String method = "grey";
 	
+	@Parameter( label="number of Threads", persist=false, required=false ) // with persist and required set to false the parameter become optional
+	private Integer nThread = 1;
+	
 	@Parameter (type = ItemIO.OUTPUT)
 	private	RandomAccessibleInterval<IntType> labelMap;
 	
@@ -91,7 +94,12 @@ public class HWatershedCIP  < T extends RealType<T> & NativeType< T > > extends
 		/////////////////////////////////////////////////////////////////////
 		// process Image  ///////////////////////////////////////////////////
 		/////////////////////////////////////////////////////////////////////
-		if( method.toLowerCase().contains("gray") || method.toLowerCase().contains("grey") )
+		if( ( method.toLowerCase().contains("gray") || method.toLowerCase().contains("grey") ) && isQuantized() )
+		{
+			// 8 and 16 bit images are flooded with a hierarchical queue
+			labelMap = HierarchicalWatershed.hWatershed( inputImage, threshold, hMin, peakFlooding, min.getRealDouble() );
+		}
+		else if( method.toLowerCase().contains("gray") || method.toLowerCase().contains("grey") )
 		{
 			
 			HWatershed<T> hWatershed = new HWatershed<T>( inputImage );
@@ -105,19 +113,14 @@ public class HWatershedCIP  < T extends RealType<T> & NativeType< T > > extends
 		}
 		else if( method.toLowerCase().contains("binary") )
 		{
-			// duplicate the original image
-			RandomAccessibleInterval<T> inputCopy = RAI.duplicate( inputImage );
-			
-			// threshold the input image
-			T T_threshold = inputCopy.randomAccess().get().createVariable();
-			T_threshold.setReal( threshold );
-			@SuppressWarnings("unchecked")
-			RandomAccessibleInterval<BitType> inputThresholded = (RandomAccessibleInterval<BitType>) op.threshold().apply(Views.iterable(inputCopy), T_threshold);
+			// build a distance map of the pixels above threshold
+			int nDim = inputImage.numDimensions();
+			double[] pixelSize = new double[nDim];
+			Arrays.fill( pixelSize, 1 );
+			if( nThread == null || nThread < 1 )
+				nThread = 1;
+			Img<FloatType> distanceMap = DistanceTransform.distance( inputImage, threshold, pixelSize, nThread );
 			
-			// build a distance map
-			RandomAccessibleInterval<FloatType> distanceMap = op.image().distancetransform( inputThresholded );
-			
-			//ImageJFunctions.show(inputThresholded);
 			//ImageJFunctions.show(distanceMap);
 			
 			// calibration could be used as a second parameter
@@ -156,6 +159,14 @@ public class HWatershedCIP  < T extends RealType<T> & NativeType< T > > extends
 		}
 	}
 	
+	private boolean isQuantized(){
+		
+		if( !( inputImage.randomAccess().get() instanceof IntegerType ) )
+			return false;
+		computeMinMax();
+		return HierarchicalWatershed.isSupported( inputImage, min.getRealDouble(), max.getRealDouble() );
+	}
+	
 
 	
 	public static void main(final String... args)
@@ -0,0 +1,300 @@
+package nvisio.cip.segment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+
+/**
+ *
+ * H-watershed for images with at most 2^16 gray levels (8 and 16 bit images). Pixels are sorted with a counting sort
+ * on their gray level. The maxima with a dynamics above hMin are found with a union-find on the sorted pixels, then
+ * the basins are flooded from these maxima with a hierarchical queue (one FIFO per gray level). All the per pixel
+ * data are kept in primitive arrays indexed by the pixel position in flat iteration order.
+ *
+ * Bright objects are segmented: pixels below threshold are background and each basin is only flooded down to
+ * peakFlooding percent of the height of its peak above the threshold. Pixels touching by a face, an edge or a corner
+ * are neighbors.
+ *
+ * @author Benoit Lombardot
+ *
+ */
+public final class HierarchicalWatershed {
+
+	private HierarchicalWatershed() {}
+
+
+	/** maximum number of gray levels handled by the queue */
+	public static final int MAX_LEVEL = 1<<16;
+
+
+	/**
+	 * @return true if the image values are integers spanning at most MAX_LEVEL levels between min and max
+	 */
+	public static boolean isSupported( RandomAccessibleInterval<?> input, double min, double max )
+	{
+		if( !( input.randomAccess().get() instanceof IntegerType ) )
+			return false;
+		long size = 1;
+		for( int d=0; d<input.numDimensions(); d++ )
+			size *= input.dimension(d);
+		return max - min < MAX_LEVEL  &&  size < Integer.MAX_VALUE;
+	}
+
+
+	/**
+	 * @param input an integer image (cf. {@link #isSupported(RandomAccessibleInterval, double, double)})
+	 * @param threshold pixels below threshold are background
+	 * @param hMin minimum dynamics of a maximum to seed a basin
+	 * @param peakFlooding percentage of the height of each peak (above the threshold) that is flooded
+	 * @param min the minimum value of the input
+	 * @return a label map, basins are numbered from 1 in decreasing order of their peak value
+	 */
+	public static < T extends RealType<T> > Img<IntType> hWatershed( RandomAccessibleInterval<T> input, double threshold, double hMin,
+			double peakFlooding, double min )
+	{
+		final int nDim = input.numDimensions();
+		final long[] dims = new long[nDim];
+		input.dimensions( dims );
+		int size = 1;
+		for( int d=0; d<nDim; d++ )
+			size *= (int) dims[d];
+		final int N = size;
+
+		// gray levels and counting sort, brightest first
+		final int[] level = new int[N];
+		final int[] count = new int[MAX_LEVEL+1];
+		final Cursor<T> cursor = Views.flatIterable( input ).cursor();
+		for( int i=0; i<N; i++ ) {
+			level[i] = (int) ( cursor.next().getRealDouble() - min );
+			count[ level[i] ]++;
+		}
+		final double lowest = threshold - min;
+		int[] start = new int[MAX_LEVEL+1];
+		for( int l=MAX_LEVEL-1; l>=0; l-- )
+			start[l] = start[l+1] + count[l+1];
+		final int[] order = new int[N];
+		for( int i=0; i<N; i++ )
+			order[ start[ level[i] ]++ ] = i;
+		start = null;
+
+		final Neighborhood neighborhood = new Neighborhood( dims );
+		final int[] neighbors = new int[ neighborhood.size() ];
+
+
+		// maxima with a dynamics above hMin, the root of each tree knows the peak pixel of its component
+		final int[] parent = new int[N];
+		final int[] peak = new int[N];
+		final boolean[] seed = new boolean[N];
+		Arrays.fill( parent, -1 );
+		for( int i=0; i<N; i++ ) {
+			final int p = order[i];
+			if( level[p] < lowest )
+				break;
+			parent[p] = p;
+			peak[p] = p;
+			final int n = neighborhood.neighbors( p, neighbors );
+			for( int k=0; k<n; k++ ) {
+				final int q = neighbors[k];
+				if( parent[q] < 0 )
+					continue;
+				int rp = find( parent, p );
+				int rq = find( parent, q );
+				if( rp == rq )
+					continue;
+				// the component with the lower peak is absorbed, its peak is kept if its dynamics is large enough
+				if( higher( level, peak[rp], peak[rq] ) ) {
+					int tmp = rp;
+					rp = rq;
+					rq = tmp;
+				}
+				final int dynamics = level[ peak[rp] ] - level[p];
+				if( dynamics > 0  &&  dynamics >= hMin )
+					seed[ peak[rp] ] = true;
+				parent[rp] = rq;
+			}
+		}
+		for( int i=0; i<N; i++ ) {
+			final int p = order[i];
+			if( level[p] < lowest )
+				break;
+			if( parent[p] == p )
+				seed[ peak[p] ] = true;
+		}
+
+		final double[] levelValue = new double[MAX_LEVEL];
+		for( int l=0; l<MAX_LEVEL; l++ )
+			levelValue[l] = min + l;
+		final int[] label = peak;
+		flood( level, levelValue, order, seed, threshold, peakFlooding, neighborhood, label, parent );
+
+
+		Img<IntType> labelMap = Util.getArrayOrCellImgFactory( input, new IntType() ).create( input, new IntType() );
+		final Cursor<IntType> out = Views.flatIterable( labelMap ).cursor();
+		for( int i=0; i<N; i++ )
+			out.next().set( label[i] );
+
+		return labelMap;
+	}
+
+
+	/**
+	 * Flood from the seeds with one FIFO per gray level. Each basin is flooded down to peakFlooding percent of the
+	 * height of its seed above the threshold, seeds are numbered in the order they appear in order.
+	 *
+	 * @param level gray level index of each pixel
+	 * @param levelValue gray value of each level index, increasing
+	 * @param order pixels sorted by decreasing level, ties in increasing index
+	 * @param label receives the labels
+	 * @param next work array of the size of the image
+	 */
+	static void flood( int[] level, double[] levelValue, int[] order, boolean[] seed, double threshold, double peakFlooding,
+			Neighborhood neighborhood, int[] label, int[] next )
+	{
+		final int nLevel = levelValue.length;
+		final int[] neighbors = new int[ neighborhood.size() ];
+		final double flooded = Math.max( 0, Math.min( 100, peakFlooding ) ) / 100;
+
+		Arrays.fill( label, 0 );
+		final int[] head = new int[nLevel];
+		final int[] tail = new int[nLevel];
+		Arrays.fill( head, -1 );
+		List<Double> cutoff = new ArrayList<Double>();
+		cutoff.add( 0d );
+		int nLabel = 0;
+		for( int i=0; i<order.length; i++ ) {
+			final int p = order[i];
+			if( levelValue[ level[p] ] < threshold )
+				break;
+			if( !seed[p] )
+				continue;
+			label[p] = ++nLabel;
+			cutoff.add( threshold + ( 1 - flooded ) * ( levelValue[ level[p] ] - threshold ) );
+			push( p, level[p], head, tail, next );
+		}
+		final double[] labelCutoff = new double[ cutoff.size() ];
+		for( int l=0; l<labelCutoff.length; l++ )
+			labelCutoff[l] = cutoff.get(l);
+
+		for( int l=nLevel-1; l>=0; l-- ) {
+			while( head[l] >= 0 ) {
+				final int p = head[l];
+				head[l] = next[p];
+				final int lab = label[p];
+				final int n = neighborhood.neighbors( p, neighbors );
+				for( int k=0; k<n; k++ ) {
+					final int q = neighbors[k];
+					if( label[q] != 0 || levelValue[ level[q] ] < labelCutoff[lab] )
+						continue;
+					label[q] = lab;
+					push( q, Math.min( level[q], l ), head, tail, next );
+				}
+			}
+		}
+	}
+
+
+	private static void push( int p, int l, int[] head, int[] tail, int[] next )
+	{
+		next[p] = -1;
+		if( head[l] < 0 )
+			head[l] = p;
+		else
+			next[ tail[l] ] = p;
+		tail[l] = p;
+	}
+
+
+	/**
+	 * @return true if pixel p is above pixel q, ties are broken with the flat index so that the result does not
+	 * 			depend on the processing order
+	 */
+	private static boolean higher( int[] level, int p, int q )
+	{
+		return level[p] > level[q]  ||  ( level[p] == level[q] && p < q );
+	}
+
+
+	private static int find( int[] parent, int p )
+	{
+		while( parent[p] != p ) {
+			parent[p] = parent[ parent[p] ];
+			p = parent[p];
+		}
+		return p;
+	}
+
+
+	/**
+	 * full neighborhood of a pixel given by its flat index
+	 */
+	static class Neighborhood
+	{
+		final long[] dims;
+		final int[][] offsets;
+		final int[] steps;
+		final int[] pos;
+
+		Neighborhood( long[] dims )
+		{
+			this.dims = dims;
+			final int nDim = dims.length;
+			pos = new int[nDim];
+			final int n = (int) Math.pow( 3, nDim );
+			offsets = new int[n-1][nDim];
+			steps = new int[n-1];
+			int c = 0;
+			for( int i=0; i<n; i++ ) {
+				if( i == (n-1)/2 )
+					continue; // center
+				int j = i;
+				int stride = 1;
+				for( int d=0; d<nDim; d++ ) {
+					offsets[c][d] = j%3 - 1;
+					j /= 3;
+					steps[c] += offsets[c][d] * stride;
+					stride *= dims[d];
+				}
+				c++;
+			}
+		}
+
+		int size()
+		{
+			return steps.length;
+		}
+
+		/**
+		 * @return the number of neighbors of p within the image, written in neighbors
+		 */
+		int neighbors( int p, int[] neighbors )
+		{
+			int l = p;
+			for( int d=0; d<dims.length; d++ ) {
+				pos[d] = (int) ( l % dims[d] );
+				l /= dims[d];
+			}
+			int n = 0;
+			for( int c=0; c<steps.length; c++ ) {
+				boolean inside = true;
+				for( int d=0; d<dims.length && inside; d++ ) {
+					final int x = pos[d] + offsets[c][d];
+					inside = x >= 0 && x < dims[d];
+				}
+				if( inside )
+					neighbors[n++] = p + steps[c];
+			}
+			return n;
+		}
+	}
+
+}
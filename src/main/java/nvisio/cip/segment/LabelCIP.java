@@ -1,5 +1,7 @@
 package nvisio.cip.segment;
 
+import java.util.Arrays;
+
 import org.scijava.ItemIO;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
@@ -15,7 +17,6 @@ import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.IntType;
 import net.imglib2.type.numeric.real.FloatType;
-import invizio.imgalgo.label.RleCCL;
 import ij.IJ;
 import ij.ImagePlus;
 import nvisio.cip.CIP;
@@ -27,6 +28,9 @@ import nvisio.cip.CIP;
  *
  */
 
+	// connectivity "face" (default): pixels sharing a face are connected
+	// connectivity "full": pixels sharing a face, an edge or a corner are connected
+
 
 @Plugin(type = CIP.WATERSHED.class, name="label", headless = true)
 public class LabelCIP < T extends RealType<T> & NativeType<T> > extends AbstractOp 
@@ -37,6 +41,14 @@ public class LabelCIP < T extends RealType<T> & NativeType<T> > extends Abstract
 	@Parameter( label="Intensity threshold", persist=false, required=false ) // with persist and required set to false the parameter become optional
 	private Float threshold;
 	
+	@Parameter( label="connectivity", persist=false, required=false ) // with persist and required set to false the parameter become optional
+	private String connectivity;
+	
+	String[] connectivities = new String[] { "face", "full" };
+	
+	@Parameter( label="number of Threads", persist=false, required=false ) // with persist and required set to false the parameter become optional
+	private Integer nThread = 1;
+	
 	@Parameter (type = ItemIO.OUTPUT)
 	private	RandomAccessibleInterval<IntType> labelMap;
 	
@@ -63,13 +75,18 @@ public class LabelCIP < T extends RealType<T> & NativeType<T> > extends Abstract
 				return;
 		}
 		
+		if ( connectivity == null  ||  !Arrays.asList( connectivities ).contains( connectivity.toLowerCase() ) )
+			connectivity = "face";
+		connectivity = connectivity.toLowerCase();
+		
+		if( nThread == null || nThread < 1 )
+			nThread = 1;
+		
 		/////////////////////////////////////////////////////////////////////
 		// process image  ///////////////////////////////////////////////////
 		/////////////////////////////////////////////////////////////////////
 		
-		RleCCL<T> labeler = new RleCCL<T>(	inputImage , threshold ); 
-		
-		labelMap =  labeler.getLabelMap();
+		labelMap = ConnectedComponents.label( inputImage, threshold, connectivity.equals("full"), nThread );
 		//ImageJFunctions.show(labelMap);
 		
 	}
@@ -0,0 +1,511 @@
+package nvisio.cip.segment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalDimensions;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+import nvisio.cip.filter.Parallel;
+
+
+/**
+ *
+ * Max-tree (component tree of the upper level sets) of an image, built once and queried for h-maxima, area maxima,
+ * area openings and h-watershed labels.
+ *
+ * The pixels are sorted once. The image is cut in slabs along its last dimension, the tree of each slab is built in
+ * parallel with a union-find on its sorted pixels (Berger et al. 2007) and the slab trees are merged along the slab
+ * borders, pairs of neighboring slabs first (Wilkinson et al. 2008). Each node is represented by one of its pixels,
+ * the canonical pixel, whose parent is the canonical pixel of the parent node. The other pixels of a node point to
+ * its canonical pixel. Node attributes (area, brightest pixel) are stored at the canonical pixel.
+ *
+ * Queries visit the nodes once, from the leaves to the root or from the root to the leaves, and then write one
+ * value per pixel. The h-watershed is the exception: its seeds come from the tree but the basins are split along the
+ * pixel adjacency, so each query floods the pixels above the threshold from the seeds (cf. HierarchicalWatershed.flood)
+ * and allocates two int per pixel for the labels and the flooding queue. Only the gray level of each pixel, which
+ * the flooding needs, is computed once with the tree. Pixels touching by a face, an edge or a corner are connected. Gray values are stored as float and
+ * pixels are indexed with int, the image should have less than 2^31 pixels.
+ *
+ * @author Benoit Lombardot
+ *
+ */
+public class MaxTree {
+
+	final long[] dims;
+	final int size;
+
+	final float[] value;
+	final int[] parent;		// -1 at the root
+	final int[] order;		// pixels by decreasing value, ties by increasing index
+	final int[] nodes;		// canonical pixels by decreasing value
+	final int[] area;
+	final int[] best;		// brightest pixel of the subtree, first one in order
+	final int[] level;		// gray level index of each pixel, increasing with the value
+	final double[] levelValue;
+
+
+	/**
+	 * @param input an image
+	 * @param nThread number of threads
+	 * @return the max-tree of the image
+	 */
+	public static < T extends RealType<T> > MaxTree build( RandomAccessibleInterval<T> input, int nThread )
+	{
+		return new MaxTree( input, nThread );
+	}
+
+
+	/**
+	 * @return a key whose signed order is the order of the pixels in the tree: decreasing value then increasing index
+	 */
+	static long sortKey( float value, int index )
+	{
+		int bits = Float.floatToIntBits( value );
+		bits ^= ( bits >> 31 ) & 0x7fffffff;
+		final long descending = ~( bits ^ 0x80000000 ) & 0xffffffffL;
+		// the unsigned order of the key is the expected one, flipping the sign bit makes the signed sort give it
+		return ( ( descending << 32 ) | index ) ^ Long.MIN_VALUE;
+	}
+
+
+	private < T extends RealType<T> > MaxTree( final RandomAccessibleInterval<T> input, int nThread )
+	{
+		final int nDim = input.numDimensions();
+		dims = new long[nDim];
+		input.dimensions( dims );
+		long nPixel = 1;
+		for( long dim : dims )
+			nPixel *= dim;
+		size = (int) nPixel;
+		final int N = size;
+		nThread = Math.max( 1, nThread );
+
+		// values and sort keys, the key orders by decreasing value then increasing index
+		value = new float[N];
+		final long[] keys = new long[N];
+		final int nChunk = Parallel.nChunk( N, nThread );
+		Parallel.run( nChunk, nThread, (chunk)-> {
+			final int start = (int) ( (long) N*chunk/nChunk );
+			final int end = (int) ( (long) N*(chunk+1)/nChunk );
+			final Cursor<T> cursor = Views.flatIterable( input ).cursor();
+			cursor.jumpFwd( start );
+			for( int i=start; i<end; i++ ) {
+				value[i] = cursor.next().getRealFloat();
+				keys[i] = sortKey( value[i], i );
+			}
+		});
+		if( nThread > 1 )
+			Arrays.parallelSort( keys );
+		else
+			Arrays.sort( keys );
+		order = new int[N];
+		for( int i=0; i<N; i++ )
+			order[i] = (int) keys[i];
+
+
+		// slabs along the last dimension, their pixels are a contiguous range of indices
+		final int last = nDim-1;
+		final int nSlab = (int) Math.max( 1, Math.min( dims[last], nThread ) );
+		final int plane = (int) ( N / dims[last] );
+		final int[] slabStart = new int[nSlab+1];
+		for( int s=0; s<=nSlab; s++ )
+			slabStart[s] = (int) ( dims[last]*s/nSlab ) * plane;
+
+		final int[][] slabOrder = new int[nSlab][];
+		for( int s=0; s<nSlab; s++ )
+			slabOrder[s] = new int[ slabStart[s+1] - slabStart[s] ];
+		final int[] count = new int[nSlab];
+		for( int i=0; i<N; i++ ) {
+			final int p = order[i];
+			int s = (int) ( (long) ( p / plane ) * nSlab / dims[last] );
+			while( p < slabStart[s] )
+				s--;
+			while( p >= slabStart[s+1] )
+				s++;
+			slabOrder[s][ count[s]++ ] = p;
+		}
+
+
+		// tree of each slab
+		parent = new int[N];
+		final int[] zpar = new int[N];
+		Arrays.fill( parent, -2 );
+		Parallel.run( nSlab, nThread, (s)-> {
+			final HierarchicalWatershed.Neighborhood neighborhood = new HierarchicalWatershed.Neighborhood( dims );
+			final int[] neighbors = new int[ neighborhood.size() ];
+			final int lo = slabStart[s];
+			final int hi = slabStart[s+1];
+			for( int p : slabOrder[s] ) {
+				parent[p] = p;
+				zpar[p] = p;
+				final int n = neighborhood.neighbors( p, neighbors );
+				for( int k=0; k<n; k++ ) {
+					final int q = neighbors[k];
+					if( q < lo || q >= hi || parent[q] == -2 )
+						continue;
+					final int r = find( zpar, q );
+					if( r != p ) {
+						parent[r] = p;
+						zpar[r] = p;
+					}
+				}
+			}
+			for( int p=lo; p<hi; p++ )
+				if( parent[p] == p )
+					parent[p] = -1;
+			slabOrder[s] = null;
+		});
+
+
+		// merge the slab trees, groups of slabs double at each round
+		for( int group=1; group<nSlab; group*=2 ) {
+			final int g = group;
+			final List<Integer> borders = new ArrayList<Integer>();
+			for( int s=g; s<nSlab; s+=2*g )
+				borders.add( s );
+			Parallel.run( borders.size(), nThread, (b)-> {
+				final int s = borders.get(b);
+				final HierarchicalWatershed.Neighborhood neighborhood = new HierarchicalWatershed.Neighborhood( dims );
+				final int[] neighbors = new int[ neighborhood.size() ];
+				for( int p=slabStart[s]; p<slabStart[s]+plane; p++ ) {
+					final int n = neighborhood.neighbors( p, neighbors );
+					for( int k=0; k<n; k++ )
+						if( neighbors[k] < slabStart[s] )
+							connect( p, neighbors[k] );
+				}
+			});
+		}
+
+
+		// canonical form, each pixel points to the canonical pixel of its node (zpar is reused for the level roots)
+		final int[] levelRoot = zpar;
+		for( int p=0; p<N; p++ ) {
+			int r = p;
+			while( parent[r] >= 0 && value[ parent[r] ] == value[r] )
+				r = parent[r];
+			int x = p;
+			while( x != r ) {
+				final int next = parent[x];
+				parent[x] = r;
+				x = next;
+			}
+			levelRoot[p] = r;
+		}
+		Parallel.run( nChunk, nThread, (chunk)-> {
+			final int start = (int) ( (long) N*chunk/nChunk );
+			final int end = (int) ( (long) N*(chunk+1)/nChunk );
+			for( int p=start; p<end; p++ )
+				if( levelRoot[p] == p && parent[p] >= 0 )
+					parent[p] = levelRoot[ parent[p] ];
+		});
+
+		int nNode = 0;
+		for( int p : order )
+			if( isCanonical( p ) )
+				nNode++;
+		nodes = new int[nNode];
+		nNode = 0;
+		for( int p : order )
+			if( isCanonical( p ) )
+				nodes[ nNode++ ] = p;
+
+
+		// attributes, from the leaves to the root
+		area = zpar;
+		Arrays.fill( area, 0 );
+		best = new int[N];
+		Arrays.fill( best, -1 );
+		for( int p : order ) {
+			final int c = canonical( p );
+			area[c]++;
+			if( best[c] < 0 )
+				best[c] = p;
+		}
+		for( int c : nodes ) {
+			final int q = parent[c];
+			if( q < 0 )
+				continue;
+			area[q] += area[c];
+			if( higher( best[c], best[q] ) )
+				best[q] = best[c];
+		}
+
+
+		// gray levels, for the flooding of the h-watershed
+		level = new int[N];
+		int nLevel = 0;
+		for( int i=N-1; i>=0; i-- ) {
+			if( i == N-1 || value[ order[i] ] != value[ order[i+1] ] )
+				nLevel++;
+			level[ order[i] ] = nLevel-1;
+		}
+		levelValue = new double[nLevel];
+		for( int p=0; p<N; p++ )
+			levelValue[ level[p] ] = value[p];
+	}
+
+
+	/**
+	 * merge the branches of x and y (Wilkinson et al. 2008)
+	 */
+	private void connect( int x, int y )
+	{
+		x = levelRoot( x );
+		y = levelRoot( y );
+		if( value[y] > value[x] ) {
+			int tmp = x;
+			x = y;
+			y = tmp;
+		}
+		while( x != y && y >= 0 ) {
+			final int z = parent[x] < 0 ? -1 : levelRoot( parent[x] );
+			if( z >= 0 && value[z] >= value[y] )
+				x = z;
+			else {
+				parent[x] = y;
+				x = y;
+				y = z;
+			}
+		}
+	}
+
+
+	private int levelRoot( int x )
+	{
+		while( parent[x] >= 0 && value[ parent[x] ] == value[x] )
+			x = parent[x];
+		return x;
+	}
+
+
+	private static int find( int[] zpar, int p )
+	{
+		while( zpar[p] != p ) {
+			zpar[p] = zpar[ zpar[p] ];
+			p = zpar[p];
+		}
+		return p;
+	}
+
+
+	private boolean isCanonical( int p )
+	{
+		return parent[p] < 0  ||  value[ parent[p] ] < value[p];
+	}
+
+
+	private int canonical( int p )
+	{
+		return isCanonical( p ) ? p : parent[p];
+	}
+
+
+	/**
+	 * @return true if p comes before q in order
+	 */
+	private boolean higher( int p, int q )
+	{
+		return value[p] > value[q]  ||  ( value[p] == value[q] && p < q );
+	}
+
+
+	/**
+	 * @return the number of nodes of the tree
+	 */
+	public int numNodes()
+	{
+		return nodes.length;
+	}
+
+
+	/**
+	 * @return the number of dimensions of the image
+	 */
+	public int numDimensions()
+	{
+		return dims.length;
+	}
+
+
+	/**
+	 * @return the minimum value of the image, i.e. the value of the root
+	 */
+	public double min()
+	{
+		return value[ order[size-1] ];
+	}
+
+
+	/**
+	 * @return the maximum value of the image
+	 */
+	public double max()
+	{
+		return value[ order[0] ];
+	}
+
+
+
+	/////////////////////////////////////////////////////////////////////
+	// queries   ////////////////////////////////////////////////////////
+	/////////////////////////////////////////////////////////////////////
+
+
+	/**
+	 * @return for each pixel above threshold, true if it is the brightest pixel of a maximum whose dynamics is at least
+	 * 			hMin. The brightest maximum of each connected component above threshold is always kept.
+	 */
+	boolean[] seeds( double threshold, double hMin )
+	{
+		final boolean[] seed = new boolean[size];
+		for( int c : nodes ) {
+			if( value[c] < threshold )
+				break;
+			final int q = parent[c];
+			if( q < 0  ||  value[q] < threshold )
+				seed[ best[c] ] = true;
+			else if( best[q] != best[c]  &&  value[ best[c] ] - value[q] >= hMin )
+				seed[ best[c] ] = true;
+		}
+		return seed;
+	}
+
+
+	/**
+	 * @param threshold pixels below threshold are background
+	 * @param hMin minimum dynamics of a maximum
+	 * @return the h-maxima, each region contains the pixels connected to a maximum of dynamics at least hMin and less than
+	 * 			hMin below it. Regions are numbered from 1 in decreasing order of their maximum.
+	 */
+	public Img<IntType> hMaxima( double threshold, double hMin )
+	{
+		final boolean[] seed = seeds( threshold, hMin );
+		final boolean[] marker = new boolean[size];
+		for( int c : nodes ) {
+			if( value[c] < threshold )
+				break;
+			final int b = best[c];
+			final double floor = Math.max( threshold, value[b] - hMin );
+			final int q = parent[c];
+			marker[c] = seed[b]  &&  value[c] >= floor  &&
+					( q < 0  ||  best[q] != b  ||  value[q] < floor );
+		}
+		return markerLabels( marker, threshold );
+	}
+
+
+	/**
+	 * @param threshold pixels below threshold are background
+	 * @param aMin minimum area of a maximum, in pixels
+	 * @return the maxima of the area opening, i.e. the smallest components of area at least aMin not containing another
+	 * 			one. Regions are numbered from 1 in decreasing order of their maximum.
+	 */
+	public Img<IntType> areaMaxima( double threshold, double aMin )
+	{
+		final boolean[] hasLargeChild = new boolean[size];
+		final boolean[] marker = new boolean[size];
+		for( int c : nodes ) {
+			if( value[c] < threshold )
+				break;
+			marker[c] = area[c] >= aMin  &&  !hasLargeChild[c];
+			if( area[c] >= aMin  &&  parent[c] >= 0 )
+				hasLargeChild[ parent[c] ] = true;
+		}
+		return markerLabels( marker, threshold );
+	}
+
+
+	/**
+	 * @param aMin minimum area, in pixels
+	 * @return the area opening of the image, the components with an area below aMin are lowered to the level of their
+	 * 			first ancestor with an area above aMin
+	 */
+	public Img<FloatType> areaOpening( double aMin )
+	{
+		final float[] nodeValue = new float[size];
+		for( int i=nodes.length-1; i>=0; i-- ) {
+			final int c = nodes[i];
+			final int q = parent[c];
+			nodeValue[c] = area[c] >= aMin || q < 0 ? value[c] : nodeValue[q];
+		}
+		final Img<FloatType> output = Util.getArrayOrCellImgFactory( new FinalDimensions( dims ), new FloatType() ).create( dims, new FloatType() );
+		final Cursor<FloatType> cursor = Views.flatIterable( output ).cursor();
+		for( int p=0; p<size; p++ )
+			cursor.next().set( nodeValue[ canonical(p) ] );
+		return output;
+	}
+
+
+	/**
+	 * same as {@link HierarchicalWatershed#hWatershed(RandomAccessibleInterval, double, double, double, double)} with
+	 * the seeds taken from the tree. Unlike the other queries it floods the pixels above threshold and allocates two
+	 * int arrays of the image size.
+	 *
+	 * @param threshold pixels below threshold are background
+	 * @param hMin minimum dynamics of a maximum to seed a basin
+	 * @param peakFlooding percentage of the height of each peak (above the threshold) that is flooded
+	 * @return a label map, basins are numbered from 1 in decreasing order of their peak value
+	 */
+	public Img<IntType> hWatershed( double threshold, double hMin, double peakFlooding )
+	{
+		final boolean[] seed = seeds( threshold, hMin );
+		final int[] label = new int[size];
+		final int[] next = new int[size];
+		HierarchicalWatershed.flood( level, levelValue, order, seed, threshold, peakFlooding,
+				new HierarchicalWatershed.Neighborhood( dims ), label, next );
+		return write( label );
+	}
+
+
+	/**
+	 * label the subtree of each marker node, markers are numbered in the order of their brightest pixel
+	 */
+	private Img<IntType> markerLabels( boolean[] marker, double threshold )
+	{
+		final List<Integer> markers = new ArrayList<Integer>();
+		for( int c : nodes )
+			if( marker[c] )
+				markers.add( best[c] );
+		markers.sort( (p, q) -> p.equals(q) ? 0 : ( higher( p, q ) ? -1 : 1 ) );
+		final Map<Integer, Integer> id = new HashMap<Integer, Integer>();
+		for( int i=0; i<markers.size(); i++ )
+			id.put( markers.get(i), i+1 );
+
+		final int[] nodeLabel = new int[size];
+		for( int i=nodes.length-1; i>=0; i-- ) {
+			final int c = nodes[i];
+			final int q = parent[c];
+			if( value[c] < threshold )
+				nodeLabel[c] = 0;
+			else if( marker[c] )
+				nodeLabel[c] = id.get( best[c] );
+			else
+				nodeLabel[c] = q < 0 ? 0 : nodeLabel[q];
+		}
+		for( int p=0; p<size; p++ )
+			if( !isCanonical( p ) )
+				nodeLabel[p] = nodeLabel[ parent[p] ];
+		return write( nodeLabel );
+	}
+
+
+	private Img<IntType> write( int[] label )
+	{
+		final Img<IntType> output = Util.getArrayOrCellImgFactory( new FinalDimensions( dims ), new IntType() ).create( dims, new IntType() );
+		final Cursor<IntType> cursor = Views.flatIterable( output ).cursor();
+		for( int p=0; p<size; p++ )
+			cursor.next().set( label[p] );
+		return output;
+	}
+
+}
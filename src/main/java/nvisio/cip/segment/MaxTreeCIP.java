@@ -0,0 +1,54 @@
+package nvisio.cip.segment;
+
+import org.scijava.ItemIO;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import net.imagej.ops.AbstractOp;
+import net.imagej.ops.Op;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+
+
+/**
+ *
+ * @author Benoit Lombardot
+ *
+ */
+
+	// the output is a max-tree that can be passed to cip.maxima and cip.watershed in place of the image (cf. MaxTree)
+
+	@Plugin(type = Op.class, name="maxtree", headless = true)
+	public class MaxTreeCIP  < T extends RealType<T> > extends AbstractOp
+	{
+		@Parameter (type = ItemIO.INPUT)
+		private RandomAccessibleInterval<T> inputImage;
+
+		@Parameter( label="number of Threads", persist=false, required=false ) // with persist and required set to false the parameter become optional
+		private Integer nThread = 1;
+
+		@Parameter (type = ItemIO.OUTPUT)
+		private	MaxTree tree;
+
+
+		@Override
+		public void run() {
+
+			if ( inputImage == null){
+				//TODO: Error! no image was provided
+				return;
+			}
+
+			long size = 1;
+			for(int d=0; d<inputImage.numDimensions(); d++)
+				size *= inputImage.dimension(d);
+			if( size >= Integer.MAX_VALUE )
+				return; //TODO: Error! the max-tree is limited to images with less than 2^31 pixels
+
+			if( nThread == null || nThread < 1 )
+				nThread = 1;
+
+			tree = MaxTree.build( inputImage, nThread );
+		}
+
+}
@@ -0,0 +1,104 @@
+package nvisio.cip.segment;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.histogram.Histogram1d;
+import net.imglib2.histogram.Real1dBinMapper;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+import nvisio.cip.filter.Parallel;
+
+
+/**
+ *
+ * Histogram of an image built in two parallel passes: the min and max of the image are gathered first, then each
+ * thread counts its chunk of pixels in its own bins and the bins are summed once all pixels are visited. The bins are
+ * the ones of the imagej-ops histogram (nBins bins between the image min and max, no tail bins) so that the threshold
+ * ops give the same result on both histograms.
+ *
+ * @author Benoit Lombardot
+ *
+ */
+public final class ParallelHistogram {
+
+	private ParallelHistogram() {}
+
+
+	/** number of bins used by the imagej-ops histogram */
+	public static final int DEFAULT_BINS = 256;
+
+
+	/**
+	 * @param input an image
+	 * @param nBins number of bins
+	 * @param nThread number of threads
+	 * @return the histogram of the image values, NaN values are not counted
+	 */
+	public static < T extends RealType<T> > Histogram1d<T> histogram( final RandomAccessibleInterval<T> input, final int nBins, int nThread )
+	{
+		long size = 1;
+		for( int d=0; d<input.numDimensions(); d++ )
+			size *= input.dimension(d);
+		final long nPixel = size;
+		final int nTask = Parallel.nChunk( nPixel, nThread );
+
+		// min and max
+		final double[] taskMin = new double[nTask];
+		final double[] taskMax = new double[nTask];
+		Parallel.run( nTask, nThread, (task)-> {
+			final long start = nPixel*task/nTask;
+			final long end = nPixel*(task+1)/nTask;
+			final Cursor<T> cursor = Views.flatIterable( input ).cursor();
+			cursor.jumpFwd( start );
+			double min = Double.POSITIVE_INFINITY;
+			double max = Double.NEGATIVE_INFINITY;
+			for( long i=start; i<end; i++ ) {
+				final double v = cursor.next().getRealDouble();
+				if( v < min )
+					min = v;
+				if( v > max )
+					max = v;
+			}
+			taskMin[task] = min;
+			taskMax[task] = max;
+		});
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		for( int task=0; task<nTask; task++ ) {
+			min = Math.min( min, taskMin[task] );
+			max = Math.max( max, taskMax[task] );
+		}
+
+		// counts, one set of bins per task
+		final Real1dBinMapper<T> mapper = new Real1dBinMapper<T>( min, max, nBins, false );
+		final long[][] taskCount = new long[nTask][];
+		Parallel.run( nTask, nThread, (task)-> {
+			final long start = nPixel*task/nTask;
+			final long end = nPixel*(task+1)/nTask;
+			final long[] count = new long[nBins];
+			final Cursor<T> cursor = Views.flatIterable( input ).cursor();
+			cursor.jumpFwd( start );
+			for( long i=start; i<end; i++ ) {
+				final T value = cursor.next();
+				if( Double.isNaN( value.getRealDouble() ) )
+					continue;
+				final long bin = mapper.map( value );
+				if( bin >= 0 && bin < nBins )
+					count[(int)bin]++;
+			}
+			taskCount[task] = count;
+		});
+
+		final Histogram1d<T> histogram = new Histogram1d<T>( mapper );
+		final long[] binPos = new long[1];
+		for( int b=0; b<nBins; b++ ) {
+			long count = 0;
+			for( int task=0; task<nTask; task++ )
+				count += taskCount[task][b];
+			binPos[0] = b;
+			histogram.dfd().setFrequency( binPos, count );
+		}
+		return histogram;
+	}
+
+}
@@ -1,5 +1,7 @@
 package nvisio.cip.segment;
 
+import java.util.Arrays;
+
 import org.scijava.ItemIO;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
@@ -17,7 +19,6 @@ import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.IntType;
 import net.imglib2.type.numeric.real.FloatType;
 import invizio.imgalgo.label.HMaxima;
-import invizio.imgalgo.label.SeededWatershed;
 import ij.IJ;
 import ij.ImagePlus;
 import nvisio.cip.CIP;
@@ -30,6 +31,10 @@ import nvisio.cip.CIP;
  *
  */
 
+	// the image is flooded by slabs in parallel, the labels do not depend on nThread (cf. TiledSeededWatershed)
+	// connectivity "face" (default): pixels sharing a face are neighbors
+	// connectivity "full": pixels sharing a face, an edge or a corner are neighbors
+
 
 @Plugin(type = CIP.WATERSHED.class, name=CIP.WATERSHED.NAME, headless = true)
 public class SeededWatershedCIP < T extends RealType<T> & NativeType<T>, U extends IntegerType<U>> extends AbstractOp implements CIP.WATERSHED 
@@ -43,6 +48,14 @@ public class SeededWatershedCIP < T extends RealType<T> & NativeType<T>, U exten
 	@Parameter( label="Intensity threshold", persist=false, required=false ) // with persist and required set to false the parameter become optional
 	private Float threshold;
 	
+	@Parameter( label="connectivity", persist=false, required=false ) // with persist and required set to false the parameter become optional
+	private String connectivity;
+	
+	String[] connectivities = new String[] { "face", "full" };
+	
+	@Parameter( label="number of Threads", persist=false, required=false ) // with persist and required set to false the parameter become optional
+	private Integer nThread = 1;
+	
 	@Parameter (type = ItemIO.OUTPUT)
 	private	RandomAccessibleInterval<IntType> labelMap;
 	
@@ -68,18 +81,18 @@ public class SeededWatershedCIP < T extends RealType<T> & NativeType<T>, U exten
 			threshold = min.getRealFloat();
 		}
 		
+		if ( connectivity == null  ||  !Arrays.asList( connectivities ).contains( connectivity.toLowerCase() ) )
+			connectivity = "face";
+		connectivity = connectivity.toLowerCase();
+		
+		if( nThread == null || nThread < 1 )
+			nThread = 1;
+		
 		/////////////////////////////////////////////////////////////////////
 		// process image  ///////////////////////////////////////////////////
 		/////////////////////////////////////////////////////////////////////
 		
-		SeededWatershed<T,U> seededWatershed = new SeededWatershed<T,U>(
-													inputImage,
-													inputSeed,
-													threshold, 
-													SeededWatershed.WatershedConnectivity.FACE
-													); 
-		
-		labelMap =  seededWatershed.getLabelMap();
+		labelMap = TiledSeededWatershed.watershed( inputImage, inputSeed, threshold, connectivity.equals("full"), nThread );
 		//ImageJFunctions.show(labelMap);
 		
 	}
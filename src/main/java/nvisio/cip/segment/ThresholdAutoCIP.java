@@ -1,8 +1,11 @@
 package nvisio.cip.segment;
 
 import java.util.ArrayList;
-
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import org.scijava.ItemIO;
 import org.scijava.plugin.Parameter;
@@ -42,6 +45,9 @@ import nvisio.cip.CIPService;
 public class ThresholdAutoCIP < T extends RealType<T> & NativeType<T>> extends AbstractOp 
 {
 	
+	// names of the global threshold ops, listed once per op service
+	private static final Map<OpService, List<String>> catalogs = new WeakHashMap<OpService, List<String>>();
+	
 	List<String> methods2;
 	/*String[] methods = {"huang",
 						"ij1",
@@ -73,12 +79,19 @@ public class ThresholdAutoCIP < T extends RealType<T> & NativeType<T>> extends A
 	@Parameter( label="Output type", choices = {"Image","Value","Both"}, persist=false, required=false ) // with persist and required set to false the parameter become optional
 	private String outputType;
 	
+	@Parameter( label="number of Threads", persist=false, required=false ) // with persist and required set to false the parameter become optional
+	private Integer nThread = 1;
+	
 	@Parameter (type = ItemIO.OUTPUT)
 	private	RandomAccessibleInterval<BitType> mask;
 	
 	@Parameter (type = ItemIO.OUTPUT)
 	private Double threshold;
 	
+	// with method "all" (or a comma separated list of methods) the threshold of each method, from a single histogram
+	@Parameter (type = ItemIO.OUTPUT)
+	private LinkedHashMap<String, Double> thresholds;
+	
 	@Parameter OpService op;
 	
 	@Parameter CIPService cipService;
@@ -103,36 +116,52 @@ public class ThresholdAutoCIP < T extends RealType<T> & NativeType<T>> extends A
 			outputType="Image";
 		
 		
-		methods2 = new ArrayList<String>();
-		op.ops().forEach(
-		opStr ->{
-			String namespace = OpUtils.getNamespace(opStr);
-			if ( namespace==null)
-				return;
-			if ( namespace.equals("threshold") ) {
-				String opName = OpUtils.stripNamespace(opStr);
-				if( !opName.contains("local") && !opName.contains("apply") ) {
-					methods2.add(opName.toLowerCase());
+		if( nThread == null || nThread < 1 )
+			nThread = 1;
+		
+		methods2 = methods( op );
+		
+		//System.out.println( methods2.toString() );
+		
+		if( method.toLowerCase().equals("all") || method.contains(",") ) {
+			// all the requested methods share one histogram, only the values are returned
+			List<String> requested = new ArrayList<String>();
+			if( method.toLowerCase().equals("all") )
+				requested.addAll( methods2 );
+			else
+				for( String str : method.split(",") )
+					requested.add( str.trim().toLowerCase() );
+			
+			for( String str : requested )
+				if( !methods2.contains(str) ) {
+					printMethods( str );
+					return;
+				}
+			
+			Histogram1d<T> histogram = ParallelHistogram.histogram( inputImage, ParallelHistogram.DEFAULT_BINS, nThread );
+			thresholds = new LinkedHashMap<String, Double>();
+			for( String str : requested ) {
+				try {
+					thresholds.put( str, ((T) op.run("threshold."+str, histogram )).getRealDouble() );
+				}
+				catch( RuntimeException e ) {
+					// some methods do not converge on some histograms
+					thresholds.put( str, Double.NaN );
 				}
 			}
+			return;
 		}
-		);
-		
-		//System.out.println( methods2.toString() );
 		
 		T threshold_T=null;
 		if ( methods2.contains(method.toLowerCase()) ) {
 			// Calculate the threshold
-			Histogram1d<T> histogram = op.image().histogram( Views.iterable(inputImage) );
+			Histogram1d<T> histogram = ParallelHistogram.histogram( inputImage, ParallelHistogram.DEFAULT_BINS, nThread );
 			
 			threshold_T = (T) op.run("threshold."+method.toLowerCase(), histogram );
 			threshold = threshold_T.getRealDouble();
 		}
 		else {
-			System.err.println("\nMethod " + method.toLowerCase() +" is not a valid thresholding method name.");
-			System.err.println("Possible methods are:");
-			for( String str : methods2)
-				System.err.println(" * " + str.toLowerCase() );
+			printMethods( method );
 			return;
 		}
 		
@@ -161,6 +190,46 @@ public class ThresholdAutoCIP < T extends RealType<T> & NativeType<T>> extends A
 	
 	
 
+	/**
+	 * @return the names of the global threshold ops, in lower case
+	 */
+	static List<String> methods( OpService op )
+	{
+		synchronized( catalogs ) {
+			List<String> methods = catalogs.get( op );
+			if( methods == null ) {
+				final List<String> names = new ArrayList<String>();
+				op.ops().forEach(
+				opStr ->{
+					String namespace = OpUtils.getNamespace(opStr);
+					if ( namespace==null)
+						return;
+					if ( namespace.equals("threshold") ) {
+						String opName = OpUtils.stripNamespace(opStr);
+						if( !opName.contains("local") && !opName.contains("apply") ) {
+							names.add(opName.toLowerCase());
+						}
+					}
+				}
+				);
+				methods = Collections.unmodifiableList( names );
+				catalogs.put( op, methods );
+			}
+			return methods;
+		}
+	}
+	
+	
+	private void printMethods( String method )
+	{
+		System.err.println("\nMethod " + method.toLowerCase() +" is not a valid thresholding method name.");
+		System.err.println("Possible methods are:");
+		for( String str : methods2)
+			System.err.println(" * " + str.toLowerCase() );
+	}
+	
+	
+	
 	@SuppressWarnings("unchecked")
 	public static void main(final String... args)
 	{
@@ -0,0 +1,398 @@
+package nvisio.cip.segment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.Util;
+import nvisio.cip.filter.Parallel;
+
+
+/**
+ *
+ * Seeded watershed computed as an image foresting transform, bright regions are flooded from the seeds downwards.
+ * The cost of a path is the lowest gray level met along the path and, for equal levels, the number of steps since
+ * the path went down to that level. Each pixel receives the label of the cheapest path from a seed, the smallest
+ * label wins between paths of equal cost. That definition has a single solution, it does not depend on the order
+ * in which pixels are processed.
+ *
+ * The image is cut in slabs along its last dimension, each slab is flooded independently from the seeds it contains
+ * and from a one pixel halo holding the costs and labels of the neighboring slabs. The slabs are flooded again as long
+ * as their halo changes. The result is identical to the flood of the whole image in one piece, whatever the number
+ * of threads.
+ *
+ * @author Benoit Lombardot
+ *
+ */
+public final class TiledSeededWatershed {
+
+	private TiledSeededWatershed() {}
+
+
+	/**
+	 * @param input image to flood, pixels below threshold are not flooded
+	 * @param seeds seed image, pixels above 0 are seeds, their value is their label
+	 * @param threshold pixels below threshold are background
+	 * @param full if true pixels touching by an edge or a corner are neighbors, otherwise only pixels sharing a face
+	 * @param nThread number of threads
+	 * @return a label map, 0 for the pixels not reached by the flood
+	 */
+	public static < T extends RealType<T>, U extends RealType<U> > Img<IntType> watershed( final RandomAccessibleInterval<T> input,
+			final RandomAccessibleInterval<U> seeds, final double threshold, boolean full, int nThread )
+	{
+		final int nDim = input.numDimensions();
+		final long[] dims = new long[nDim];
+		input.dimensions( dims );
+		final int last = nDim-1;
+		long size = 1;
+		for( int d=0; d<nDim; d++ )
+			size *= dims[d];
+
+		// slab arrays are indexed with int
+		final long maxSlabSize = 1L<<30;
+		final int nSlab = (int) Math.min( dims[last], Math.max( Math.max( 1, nThread ), ( size + maxSlabSize - 1 ) / maxSlabSize ) );
+		final Slab[] slabs = new Slab[nSlab];
+		for( int s=0; s<nSlab; s++ )
+			slabs[s] = new Slab( dims, dims[last]*s/nSlab, dims[last]*(s+1)/nSlab, full );
+
+		Parallel.run( nSlab, nThread, (s)-> slabs[s].load( input, seeds, threshold ) );
+
+		// flood the slabs until their halos are stable
+		final boolean[] dirty = new boolean[nSlab];
+		Arrays.fill( dirty, true );
+		boolean changed = true;
+		while( changed ) {
+			Parallel.run( nSlab, nThread, (s)-> {
+				if( dirty[s] )
+					slabs[s].flood();
+			});
+
+			changed = false;
+			for( int s=0; s<nSlab; s++ ) {
+				dirty[s] = false;
+				if( s > 0 )
+					dirty[s] |= slabs[s].lower.update( slabs[s-1], slabs[s-1].len-1 );
+				if( s < nSlab-1 )
+					dirty[s] |= slabs[s].upper.update( slabs[s+1], 0 );
+				changed |= dirty[s];
+			}
+		}
+
+		final Img<IntType> labelMap = Util.getArrayOrCellImgFactory( input, new IntType() ).create( input, new IntType() );
+		Parallel.run( nSlab, nThread, (s)-> slabs[s].write( labelMap ) );
+		return labelMap;
+	}
+
+
+	/**
+	 * lexicographic order on (cost, steps, label)
+	 */
+	private static boolean lower( float c1, int d1, int l1, float c2, int d2, int l2 )
+	{
+		if( c1 != c2 )
+			return c1 < c2;
+		if( d1 != d2 )
+			return d1 < d2;
+		return l1 < l2;
+	}
+
+
+	/**
+	 * a plane of costs and labels taken from a neighboring slab
+	 */
+	static class Halo
+	{
+		final float[] c;
+		final int[] d;
+		final int[] label;
+
+		Halo( int size )
+		{
+			c = new float[size];
+			d = new int[size];
+			label = new int[size];
+			Arrays.fill( c, Float.POSITIVE_INFINITY );
+		}
+
+		/**
+		 * copy the plane z of a slab, return true if it differs from the current content
+		 */
+		boolean update( Slab slab, long z )
+		{
+			boolean changed = false;
+			final int offset = (int) ( z * c.length );
+			for( int i=0; i<c.length; i++ ) {
+				final int p = offset + i;
+				if( c[i] != slab.c[p] || d[i] != slab.d[p] || label[i] != slab.label[p] ) {
+					c[i] = slab.c[p];
+					d[i] = slab.d[p];
+					label[i] = slab.label[p];
+					changed = true;
+				}
+			}
+			return changed;
+		}
+	}
+
+
+	/**
+	 * a part of the image along its last dimension, all arrays are indexed in flat iteration order within the slab
+	 */
+	static class Slab
+	{
+		final long[] dims;
+		final long start;
+		final int len;
+		final int planeSize;
+		final int size;
+		final int[][] offsets;
+
+		float[] h;			// opposite of the gray level, infinite below the threshold
+		int[] seed;
+		float[] c;
+		int[] d;
+		int[] label;
+		final Halo lower;
+		final Halo upper;
+
+		Slab( long[] dims, long start, long end, boolean full )
+		{
+			this.dims = dims;
+			this.start = start;
+			this.len = (int) ( end - start );
+			long plane = 1;
+			for( int e=0; e<dims.length-1; e++ )
+				plane *= dims[e];
+			this.planeSize = (int) plane;
+			this.size = planeSize * len;
+			this.offsets = offsets( dims.length, full );
+			lower = new Halo( planeSize );
+			upper = new Halo( planeSize );
+		}
+
+		< T extends RealType<T>, U extends RealType<U> > void load( RandomAccessibleInterval<T> input, RandomAccessibleInterval<U> seeds, double threshold )
+		{
+			final int nDim = dims.length;
+			h = new float[size];
+			seed = new int[size];
+			c = new float[size];
+			d = new int[size];
+			label = new int[size];
+			final RandomAccess<T> in = input.randomAccess();
+			final RandomAccess<U> sd = seeds.randomAccess();
+			for( int i=0; i<size; i++ ) {
+				long l = i;
+				for( int e=0; e<nDim; e++ ) {
+					final long x = l % dims[e] + ( e==nDim-1 ? start : 0 );
+					in.setPosition( input.min(e) + x, e );
+					sd.setPosition( seeds.min(e) + x, e );
+					l /= dims[e];
+				}
+				final double value = in.get().getRealDouble();
+				h[i] = value < threshold ? Float.POSITIVE_INFINITY : (float) -value;
+				if( h[i] != Float.POSITIVE_INFINITY )
+					seed[i] = Math.max( 0, (int) sd.get().getRealDouble() );
+			}
+		}
+
+		/**
+		 * Dijkstra flooding of the slab from its seeds and its halo
+		 */
+		void flood()
+		{
+			final int nDim = dims.length;
+			final int last = nDim-1;
+			Arrays.fill( c, Float.POSITIVE_INFINITY );
+			Arrays.fill( d, Integer.MAX_VALUE );
+			Arrays.fill( label, 0 );
+			final boolean[] done = new boolean[size];
+			final Heap heap = new Heap();
+
+			for( int p=0; p<size; p++ )
+				if( seed[p] > 0 ) {
+					c[p] = h[p];
+					d[p] = 0;
+					label[p] = seed[p];
+					heap.push( p, c[p], 0, seed[p] );
+				}
+
+			final long[] pos = new long[nDim];
+			for( Halo halo : new Halo[] { lower, upper } ) {
+				final long z = halo == lower ? -1 : len;
+				for( int i=0; i<planeSize; i++ ) {
+					if( halo.label[i] == 0 )
+						continue;
+					long l = i;
+					for( int e=0; e<last; e++ ) {
+						pos[e] = l % dims[e];
+						l /= dims[e];
+					}
+					pos[last] = z;
+					for( int[] off : offsets )
+						relax( pos, off, halo.c[i], halo.d[i], halo.label[i], heap );
+				}
+			}
+
+			while( heap.size > 0 ) {
+				final int p = heap.pixel[0];
+				final float pc = heap.c[0];
+				final int pd = heap.d[0];
+				final int pl = heap.label[0];
+				heap.pop();
+				if( done[p] )
+					continue;
+				done[p] = true;
+				long l = p;
+				for( int e=0; e<nDim; e++ ) {
+					pos[e] = l % dims[e];
+					l /= dims[e];
+				}
+				for( int[] off : offsets )
+					relax( pos, off, pc, pd, pl, heap );
+			}
+		}
+
+		private void relax( long[] pos, int[] off, float pc, int pd, int pl, Heap heap )
+		{
+			int q = 0;
+			int stride = 1;
+			for( int e=0; e<dims.length; e++ ) {
+				final long x = pos[e] + off[e];
+				if( x < 0 || x >= ( e==dims.length-1 ? len : dims[e] ) )
+					return;
+				q += x * stride;
+				stride *= dims[e];
+			}
+			if( seed[q] > 0 || h[q] == Float.POSITIVE_INFINITY )
+				return;
+			final float qc;
+			final int qd;
+			if( h[q] > pc ) {
+				qc = h[q];
+				qd = 0;
+			}
+			else {
+				qc = pc;
+				qd = pd + 1;
+			}
+			if( lower( qc, qd, pl, c[q], d[q], label[q] == 0 ? Integer.MAX_VALUE : label[q] ) ) {
+				c[q] = qc;
+				d[q] = qd;
+				label[q] = pl;
+				heap.push( q, qc, qd, pl );
+			}
+		}
+
+		void write( RandomAccessibleInterval<IntType> labelMap )
+		{
+			final int nDim = dims.length;
+			final RandomAccess<IntType> out = labelMap.randomAccess();
+			for( int i=0; i<size; i++ ) {
+				long l = i;
+				for( int e=0; e<nDim; e++ ) {
+					out.setPosition( labelMap.min(e) + l % dims[e] + ( e==nDim-1 ? start : 0 ), e );
+					l /= dims[e];
+				}
+				out.get().set( label[i] );
+			}
+		}
+	}
+
+
+	/**
+	 * binary heap of (pixel, cost) entries ordered by cost, with lazy deletion
+	 */
+	static class Heap
+	{
+		int size = 0;
+		int[] pixel = new int[256];
+		float[] c = new float[256];
+		int[] d = new int[256];
+		int[] label = new int[256];
+
+		void push( int p, float pc, int pd, int pl )
+		{
+			if( size == pixel.length ) {
+				pixel = Arrays.copyOf( pixel, 2*size );
+				c = Arrays.copyOf( c, 2*size );
+				d = Arrays.copyOf( d, 2*size );
+				label = Arrays.copyOf( label, 2*size );
+			}
+			int i = size++;
+			while( i > 0 ) {
+				final int parent = (i-1)/2;
+				if( !lower( pc, pd, pl, c[parent], d[parent], label[parent] ) )
+					break;
+				set( i, parent );
+				i = parent;
+			}
+			pixel[i] = p;
+			c[i] = pc;
+			d[i] = pd;
+			label[i] = pl;
+		}
+
+		void pop()
+		{
+			size--;
+			final int p = pixel[size];
+			final float pc = c[size];
+			final int pd = d[size];
+			final int pl = label[size];
+			int i = 0;
+			while( true ) {
+				int child = 2*i+1;
+				if( child >= size )
+					break;
+				if( child+1 < size && lower( c[child+1], d[child+1], label[child+1], c[child], d[child], label[child] ) )
+					child++;
+				if( !lower( c[child], d[child], label[child], pc, pd, pl ) )
+					break;
+				set( i, child );
+				i = child;
+			}
+			pixel[i] = p;
+			c[i] = pc;
+			d[i] = pd;
+			label[i] = pl;
+		}
+
+		private void set( int i, int j )
+		{
+			pixel[i] = pixel[j];
+			c[i] = c[j];
+			d[i] = d[j];
+			label[i] = label[j];
+		}
+	}
+
+
+	/**
+	 * @return the offsets to the neighbors of a pixel
+	 */
+	static int[][] offsets( int nDim, boolean full )
+	{
+		List<int[]> offsets = new ArrayList<int[]>();
+		final int n = (int) Math.pow( 3, nDim );
+		for( int i=0; i<n; i++ ) {
+			int[] off = new int[nDim];
+			int j = i;
+			int nonZero = 0;
+			for( int e=0; e<nDim; e++ ) {
+				off[e] = j%3 - 1;
+				j /= 3;
+				if( off[e] != 0 )
+					nonZero++;
+			}
+			if( nonZero == 1 || ( full && nonZero > 1 ) )
+				offsets.add( off );
+		}
+		return offsets.toArray( new int[0][] );
+	}
+
+}
@@ -0,0 +1,99 @@
+package nvisio.cip.filter;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+
+
+/**
+ *
+ * @author Benoit Lombardot
+ *
+ */
+public class DistanceTransformTest {
+
+	@Test
+	public void sameAsBruteForce()
+	{
+		check( new long[] { 29, 23 }, new double[] { 1, 1 }, 0.9 );
+		check( new long[] { 29, 23 }, new double[] { 0.5, 2 }, 0.97 );
+		check( new long[] { 11, 9, 13 }, new double[] { 1, 1.5, 3 }, 0.95 );
+	}
+
+
+	private static void check( long[] dims, double[] pixelSize, double foreground )
+	{
+		final Img<FloatType> input = ArrayImgs.floats( dims );
+		final Random random = new Random( 1 );
+		for( FloatType t : input )
+			t.set( random.nextFloat() < foreground ? 1 : 0 );
+		final double threshold = 0.5;
+
+		final Img<FloatType> inside = bruteForce( input, pixelSize, threshold, true );
+		final Img<FloatType> outside = bruteForce( input, pixelSize, threshold, false );
+		for( int nThread : new int[] { 1, 3 } ) {
+			final RandomAccess<FloatType> distance = DistanceTransform.distance( input, threshold, pixelSize, nThread ).randomAccess();
+			final RandomAccess<FloatType> signed = DistanceTransform.signedDistance( input, threshold, pixelSize, nThread ).randomAccess();
+			final Cursor<FloatType> in = inside.localizingCursor();
+			final RandomAccess<FloatType> out = outside.randomAccess();
+			while( in.hasNext() ) {
+				in.fwd();
+				distance.setPosition( in );
+				signed.setPosition( in );
+				out.setPosition( in );
+				final double expected = in.get().get();
+				assertEquals( "distance, " + nThread + " threads", expected, distance.get().get(), 1e-5 * expected );
+				final double expectedSigned = expected > 0 ? -expected : out.get().get();
+				assertEquals( "signed distance, " + nThread + " threads", expectedSigned, signed.get().get(), 1e-5 * Math.abs( expectedSigned ) );
+			}
+		}
+	}
+
+
+	// distance of each foreground (or background) pixel to the closest pixel of the other phase, 0 elsewhere
+	private static Img<FloatType> bruteForce( Img<FloatType> input, double[] pixelSize, double threshold, boolean foreground )
+	{
+		final int nDim = input.numDimensions();
+		final Img<FloatType> output = ArrayImgs.floats( dimensions( input ) );
+		final Cursor<FloatType> cursor = input.localizingCursor();
+		final RandomAccess<FloatType> out = output.randomAccess();
+		while( cursor.hasNext() ) {
+			cursor.fwd();
+			if( ( cursor.get().get() > threshold ) != foreground )
+				continue;
+			double min = Double.POSITIVE_INFINITY;
+			final Cursor<FloatType> other = input.localizingCursor();
+			while( other.hasNext() ) {
+				other.fwd();
+				if( ( other.get().get() > threshold ) == foreground )
+					continue;
+				double d2 = 0;
+				for( int d=0; d<nDim; d++ ) {
+					final double dx = ( cursor.getLongPosition(d) - other.getLongPosition(d) ) * pixelSize[d];
+					d2 += dx*dx;
+				}
+				min = Math.min( min, d2 );
+			}
+			out.setPosition( cursor );
+			out.get().setReal( Math.sqrt( min ) );
+		}
+		return output;
+	}
+
+
+	private static long[] dimensions( Img<?> img )
+	{
+		final long[] dims = new long[ img.numDimensions() ];
+		img.dimensions( dims );
+		return dims;
+	}
+
+}
@@ -0,0 +1,115 @@
+package nvisio.cip.filter;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+
+/**
+ *
+ * @author Benoit Lombardot
+ *
+ */
+public class HistogramMedianTest {
+
+	@Test
+	public void sameAsSortedWindow()
+	{
+		// small and large rectangles (Huang and Perreault-Hebert), ellipses and ellipsoids, 8 and 16 bits ranges
+		check( new long[] { 37, 29 }, new int[] { 2, 1 }, false, 256, "same" );
+		check( new long[] { 37, 29 }, new int[] { 6, 9 }, false, 256, "mirror" );
+		check( new long[] { 37, 29 }, new int[] { 5, 3 }, true, 256, "periodic" );
+		check( new long[] { 150, 7 }, new int[] { 4, 2 }, false, 60000, "mirror" );
+		check( new long[] { 13, 11, 9 }, new int[] { 3, 2, 2 }, true, 256, "value" );
+		check( new long[] { 13, 11, 9 }, new int[] { 2, 3, 1 }, false, 1000, "same" );
+	}
+
+
+	private static void check( long[] dims, int[] radius, boolean ellipsoid, int range, String boundary )
+	{
+		final Img<UnsignedShortType> input = ArrayImgs.unsignedShorts( dims );
+		final Random random = new Random( 1 );
+		for( UnsignedShortType t : input )
+			t.set( random.nextInt( range ) );
+		final UnsignedShortType value = new UnsignedShortType( 7 );
+
+		final Img<FloatType> expected = naiveMedian( input, radius, ellipsoid, boundary, value.get() );
+		for( int nThread : new int[] { 1, 3 } ) {
+			final Img<FloatType> output = ArrayImgs.floats( dims );
+			HistogramMedian.median( input, output, radius, ellipsoid, boundary, value, nThread );
+			final Cursor<FloatType> cursor = expected.localizingCursor();
+			final RandomAccess<FloatType> ra = output.randomAccess();
+			while( cursor.hasNext() ) {
+				cursor.fwd();
+				ra.setPosition( cursor );
+				assertEquals( Arrays.toString( radius ) + " " + boundary + " " + nThread + " threads", cursor.get().get(), ra.get().get(), 0 );
+			}
+		}
+	}
+
+
+	// the window rows of HistogramMedian, the values out of the image are given by Boundary.map
+	private static Img<FloatType> naiveMedian( Img<UnsignedShortType> input, int[] radius, boolean ellipsoid, String boundary, double constant )
+	{
+		final int nDim = input.numDimensions();
+		final long[] dims = new long[nDim];
+		input.dimensions( dims );
+		final int rx = radius[0];
+		final int ry = nDim > 1 ? radius[1] : 0;
+		final int rz = nDim > 2 ? radius[2] : 0;
+		final Img<FloatType> output = ArrayImgs.floats( dims );
+		final Cursor<FloatType> cursor = output.localizingCursor();
+		final RandomAccess<UnsignedShortType> in = input.randomAccess();
+		final double[] window = new double[ (2*rx+1) * (2*ry+1) * (2*rz+1) ];
+		final long[] pos = new long[nDim];
+		final long[] q = new long[nDim];
+		while( cursor.hasNext() ) {
+			cursor.fwd();
+			cursor.localize( pos );
+			int n = 0;
+			for( int z=-rz; z<=rz; z++ )
+				for( int y=-ry; y<=ry; y++ ) {
+					int halfWidth = rx;
+					if( ellipsoid ) {
+						double t = 1.0;
+						if( ry > 0 )
+							t -= ( (double) y/ry ) * ( (double) y/ry );
+						if( rz > 0 )
+							t -= ( (double) z/rz ) * ( (double) z/rz );
+						if( t < -1e-9 )
+							continue;
+						halfWidth = (int) Math.floor( rx * Math.sqrt( Math.max( 0, t ) ) + 1e-9 );
+					}
+					for( int x=-halfWidth; x<=halfWidth; x++ ) {
+						final int[] offset = { x, y, z };
+						boolean inside = true;
+						for( int d=0; d<nDim; d++ ) {
+							final int p = Boundary.map( boundary, pos[d] + offset[d], dims[d] );
+							inside &= p >= 0;
+							q[d] = p;
+						}
+						if( inside ) {
+							in.setPosition( q );
+							window[ n++ ] = in.get().get();
+						}
+						else
+							window[ n++ ] = constant;
+					}
+				}
+			Arrays.sort( window, 0, n );
+			cursor.get().setReal( window[ n/2 ] );
+		}
+		return output;
+	}
+
+}
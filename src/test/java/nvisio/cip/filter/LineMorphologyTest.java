@@ -0,0 +1,130 @@
+package nvisio.cip.filter;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.morphology.Dilation;
+import net.imglib2.algorithm.morphology.Erosion;
+import net.imglib2.algorithm.morphology.StructuringElements;
+import net.imglib2.algorithm.neighborhood.Shape;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.IntervalView;
+import net.imglib2.view.Views;
+
+
+/**
+ *
+ * @author Benoit Lombardot
+ *
+ */
+public class LineMorphologyTest {
+
+	@Test
+	public void rectangleSameAsImglib2()
+	{
+		check( new long[] { 31, 26 }, new int[] { 3, 5 } );
+		check( new long[] { 12, 10, 9 }, new int[] { 2, 1, 3 } );
+	}
+
+
+	private static void check( long[] dims, int[] radius )
+	{
+		final Img<FloatType> input = ArrayImgs.floats( dims );
+		final Random random = new Random( 1 );
+		for( FloatType t : input )
+			t.set( random.nextFloat() );
+
+		for( LineMorphology.Operation operation : LineMorphology.Operation.values() ) {
+			final RandomAccessibleInterval<FloatType> expected = reference( input, radius, operation );
+			for( int nThread : new int[] { 1, 3 } ) {
+				final Img<FloatType> output = LineMorphology.create( input, new long[ dims.length ] );
+				LineMorphology.apply( input, output, LineMorphology.rectangle( radius ), operation, "same", null, nThread );
+				final Cursor<FloatType> cursor = output.localizingCursor();
+				final RandomAccess<FloatType> ra = expected.randomAccess();
+				while( cursor.hasNext() ) {
+					cursor.fwd();
+					ra.setPosition( cursor );
+					assertEquals( operation + " " + Arrays.toString( radius ) + ", " + nThread + " threads", ra.get().get(), cursor.get().get(), 0 );
+				}
+			}
+		}
+	}
+
+
+	// the erodeFull/dilateFull chain of the morphological ops: the first operation of opening, closing and tophat is
+	// computed over the source extended by the radius, the result of the second one is cropped to the source
+	private static RandomAccessibleInterval<FloatType> reference( Img<FloatType> input, int[] radius, LineMorphology.Operation operation )
+	{
+		final int nDim = input.numDimensions();
+		final long[] none = new long[nDim];
+		final long[] grow = new long[nDim];
+		for( int d=0; d<nDim; d++ )
+			grow[d] = radius[d];
+
+		switch( operation ) {
+		case erosion:
+			return filter( input, radius, false, none );
+		case dilation:
+			return filter( input, radius, true, none );
+		case closing:
+			return Views.interval( filter( filter( input, radius, true, grow ), radius, false, none ), input );
+		default:
+			final RandomAccessibleInterval<FloatType> opening = Views.interval( filter( filter( input, radius, false, grow ), radius, true, none ), input );
+			if( operation == LineMorphology.Operation.opening )
+				return opening;
+			final Img<FloatType> residue = ArrayImgs.floats( dimensions( input ) );
+			final Cursor<FloatType> cursor = residue.localizingCursor();
+			final RandomAccess<FloatType> in = input.randomAccess();
+			final RandomAccess<FloatType> open = opening.randomAccess();
+			while( cursor.hasNext() ) {
+				cursor.fwd();
+				in.setPosition( cursor );
+				open.setPosition( cursor );
+				cursor.get().set( in.get().get() - open.get().get() );
+			}
+			return residue;
+		}
+	}
+
+
+	// imglib2 dilation or erosion by the rectangle, the source being extended with its border, over the interval of
+	// the source enlarged by padding
+	private static RandomAccessibleInterval<FloatType> filter( RandomAccessibleInterval<FloatType> source, int[] radius, boolean dilate, long[] padding )
+	{
+		final int nDim = source.numDimensions();
+		final long[] min = new long[nDim];
+		final long[] dims = new long[nDim];
+		for( int d=0; d<nDim; d++ ) {
+			min[d] = source.min(d) - padding[d];
+			dims[d] = source.dimension(d) + 2*padding[d];
+		}
+		RandomAccessibleInterval<FloatType> current = source;
+		for( Shape strel : StructuringElements.rectangle( radius ) ) {
+			final IntervalView<FloatType> target = Views.translate( ArrayImgs.floats( dims ), min );
+			if( dilate )
+				Dilation.dilate( Views.extendBorder( current ), target, strel, 1 );
+			else
+				Erosion.erode( Views.extendBorder( current ), target, strel, 1 );
+			current = target;
+		}
+		return current;
+	}
+
+
+	private static long[] dimensions( RandomAccessibleInterval<?> img )
+	{
+		final long[] dims = new long[ img.numDimensions() ];
+		img.dimensions( dims );
+		return dims;
+	}
+
+}
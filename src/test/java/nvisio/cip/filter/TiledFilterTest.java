@@ -0,0 +1,72 @@
+package nvisio.cip.filter;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import nvisio.cip.misc.DiskCellImg;
+
+
+/**
+ *
+ * @author Benoit Lombardot
+ *
+ */
+public class TiledFilterTest {
+
+	@Test
+	public void anisotropicDiskMatchesWholeImage() throws IOException
+	{
+		// the zonotope of these radii reaches 27 pixels along x
+		final double[] radius = { 25.55, 18.98 };
+		final Img<FloatType> input = ArrayImgs.floats( 90, 70 );
+		final Random random = new Random( 1 );
+		// sparse peaks lower than a band starting 27 pixels after the first cell, which the dilation of the cell must reach
+		final Cursor<FloatType> c = input.localizingCursor();
+		while( c.hasNext() ) {
+			c.fwd();
+			c.get().set( c.getIntPosition(0) >= 46 && c.getIntPosition(0) < 50 ? 1 : random.nextFloat() < 0.02 ? random.nextFloat() : 0 );
+		}
+
+		final List<LineMorphology.Segment> segments = LineMorphology.ellipsoid( radius );
+		final String[] filters = { "dilate", "erode", "opening", "tophat" };
+		final LineMorphology.Operation[] operations = { LineMorphology.Operation.dilation, LineMorphology.Operation.erosion,
+				LineMorphology.Operation.opening, LineMorphology.Operation.tophat };
+		for( int f=0; f<filters.length; f++ ) {
+			final LineMorphology.Operation operation = operations[f];
+			final Img<FloatType> expected = morphology( input, segments, operation );
+
+			final DiskCellImg<?, ?> tiled = TiledFilter.process( input, TiledFilter.halo( filters[f], radius, "disk" ),
+					(block)-> morphology( block, segments, operation ), new int[] { 20, 20 }, null, 1L << 20, null );
+
+			final Cursor<FloatType> cursor = expected.localizingCursor();
+			@SuppressWarnings("unchecked")
+			final RandomAccess<FloatType> ra = ((RandomAccessibleInterval<FloatType>) tiled).randomAccess();
+			while( cursor.hasNext() ) {
+				cursor.fwd();
+				ra.setPosition( cursor );
+				assertEquals( filters[f], cursor.get().get(), ra.get().get(), 0 );
+			}
+			tiled.close();
+		}
+	}
+
+
+	private static Img<FloatType> morphology( RandomAccessibleInterval<FloatType> source, List<LineMorphology.Segment> segments, LineMorphology.Operation operation )
+	{
+		final Img<FloatType> target = LineMorphology.create( source, new long[ source.numDimensions() ] );
+		LineMorphology.apply( source, target, segments, operation, "same", null, 2 );
+		return target;
+	}
+
+}
@@ -0,0 +1,134 @@
+package nvisio.cip.math;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+
+
+/**
+ *
+ * @author Benoit Lombardot
+ *
+ */
+public class ArrayMathTest {
+
+	// not a multiple of the chunks nor of a vector width
+	static final long[] dims = { 37, 13 };
+
+
+	@Test
+	public void sameAsTypeOperations()
+	{
+		check( new UnsignedByteType() );
+		check( new ByteType() );
+		check( new UnsignedShortType() );
+		check( new ShortType() );
+		check( new UnsignedIntType() );
+		check( new IntType() );
+		check( new UnsignedLongType() );
+		check( new LongType() );
+		check( new FloatType() );
+		check( new DoubleType() );
+	}
+
+
+	private static < T extends RealType<T> & NativeType<T> > void check( T type )
+	{
+		final Random random = new Random( 1 );
+		final Img<T> a = random( type, random );
+		final Img<T> b = random( type, random );
+		for( String operation : ArrayMath.operations ) {
+			if( !ArrayMath.isSupported( operation, a, b ) )
+				continue;
+			final Img<T> expected = perPixel( operation, a, b );
+			for( int nThread : new int[] { 1, 3 } )
+				assertSame( type.getClass().getSimpleName() + " " + operation + ", " + nThread + " threads", expected, ArrayMath.compute( operation, a, b, nThread ) );
+		}
+
+		// in place
+		final Img<T> expected = perPixel( "subtract", a, b );
+		ArrayMath.compute( "subtract", a, b, a, 3 );
+		assertSame( type.getClass().getSimpleName() + " in place", expected, a );
+	}
+
+
+	// integers cover the whole range of the type so that sums and products wrap around, reals are positive for pow
+	private static < T extends RealType<T> & NativeType<T> > Img<T> random( T type, Random random )
+	{
+		final Img<T> img = new ArrayImgFactory<T>().create( dims, type );
+		for( T t : img ) {
+			if( t instanceof IntegerType )
+				( (IntegerType<?>) t ).setInteger( random.nextLong() );
+			else
+				t.setReal( 0.1 + 10*random.nextDouble() );
+		}
+		return img;
+	}
+
+
+	// plain java arithmetic, integers wrap around when they are written back in the type (the imglib2 operations of
+	// some types are not used as reference, e.g. ShortType.sub truncates to a byte in imglib2 4.2)
+	private static < T extends RealType<T> & NativeType<T> > Img<T> perPixel( String operation, Img<T> a, Img<T> b )
+	{
+		final Img<T> output = a.factory().create( dims, a.firstElement() );
+		final Cursor<T> ca = a.cursor();
+		final Cursor<T> cb = b.cursor();
+		for( T c : output ) {
+			final T x = ca.next();
+			final T y = cb.next();
+			if( operation.equals("min") || operation.equals("max") ) {
+				c.set( ( x.compareTo( y ) <= 0 ) == operation.equals("min") ? x : y );
+				continue;
+			}
+			if( c instanceof IntegerType ) {
+				final long p = ( (IntegerType<?>) x ).getIntegerLong();
+				final long q = ( (IntegerType<?>) y ).getIntegerLong();
+				final long r = operation.equals("add") ? p + q : operation.equals("subtract") ? p - q : p * q;
+				( (IntegerType<?>) c ).setInteger( r );
+				continue;
+			}
+			final double p = x.getRealDouble();
+			final double q = y.getRealDouble();
+			switch( operation ) {
+			case "add":			c.setReal( p + q ); break;
+			case "subtract":	c.setReal( p - q ); break;
+			case "multiply":	c.setReal( p * q ); break;
+			case "divide":		c.setReal( p / q ); break;
+			default:			c.setReal( Math.pow( p, q ) );
+			}
+		}
+		return output;
+	}
+
+
+	private static < T extends RealType<T> > void assertSame( String message, Img<T> expected, Img<T> actual )
+	{
+		final Cursor<T> ce = expected.cursor();
+		final Cursor<T> ca = actual.cursor();
+		while( ce.hasNext() ) {
+			final T e = ce.next();
+			final T a = ca.next();
+			assertEquals( message + ", " + e + " vs " + a, 0, e.compareTo( a ) );
+		}
+	}
+
+}
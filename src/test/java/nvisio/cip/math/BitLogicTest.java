@@ -0,0 +1,113 @@
+package nvisio.cip.math;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+
+/**
+ *
+ * @author Benoit Lombardot
+ *
+ */
+public class BitLogicTest {
+
+	// 201 pixels, the last word holds 9 of them
+	static final long[] dims = { 67, 3 };
+
+
+	@Test
+	public void sameAsPerPixelLoop()
+	{
+		final Random random = new Random( 1 );
+		final ArrayImg<BitType, LongArray> bits1 = ArrayImgs.bits( dims );
+		final ArrayImg<BitType, LongArray> bits2 = ArrayImgs.bits( dims );
+		for( BitType t : bits1 )
+			t.set( random.nextBoolean() );
+		for( BitType t : bits2 )
+			t.set( random.nextBoolean() );
+		final Img<UnsignedByteType> bytes = ArrayImgs.unsignedBytes( dims );
+		for( UnsignedByteType t : bytes )
+			t.set( random.nextInt(3) == 0 ? 0 : random.nextBoolean() ? 1 : 255 );
+		final Img<FloatType> floats = ArrayImgs.floats( dims );
+		for( FloatType t : floats )
+			t.set( random.nextInt(4) );
+		// read with a cursor
+		final Img<FloatType> large = ArrayImgs.floats( dims[0]+2, dims[1]+2 );
+		for( FloatType t : large )
+			t.set( random.nextInt(4) );
+		final RandomAccessibleInterval<FloatType> view = Views.zeroMin( Views.interval( large, new long[] { 1, 1 }, new long[] { dims[0], dims[1] } ) );
+
+		for( int nThread : new int[] { 1, 3 } ) {
+			for( String operation : BitLogic.logicOperations ) {
+				check( operation, bits1, bits2, 0, nThread );
+				check( operation, bits1, bytes, 0, nThread );
+				check( operation, floats, view, 0, nThread );
+			}
+			for( String operation : BitLogic.comparisons ) {
+				check( operation, floats, bytes, 0, nThread );
+				check( operation, view, floats, 0, nThread );
+				check( operation, floats, null, 2, nThread );
+			}
+		}
+	}
+
+
+	private static void check( String operation, RandomAccessibleInterval<? extends RealType<?>> img1,
+			RandomAccessibleInterval<? extends RealType<?>> img2, double value, int nThread )
+	{
+		final boolean logic = BitLogic.logicOperations.contains( operation );
+		final ArrayImg<BitType, LongArray> output = logic ? BitLogic.logic( operation, img1, img2, nThread ) : BitLogic.compare( operation, img1, img2, value, nThread );
+		final String message = operation + " " + name( img1 ) + " " + name( img2 ) + ", " + nThread + " threads";
+
+		final Cursor<? extends RealType<?>> c1 = Views.flatIterable( img1 ).cursor();
+		final Cursor<? extends RealType<?>> c2 = img2 == null ? null : Views.flatIterable( img2 ).cursor();
+		final Cursor<BitType> out = Views.flatIterable( output ).cursor();
+		while( out.hasNext() ) {
+			final double x = c1.next().getRealDouble();
+			final double y = c2 == null ? value : c2.next().getRealDouble();
+			final boolean p = x != 0;
+			final boolean q = y != 0;
+			final boolean expected;
+			switch( operation ) {
+			case "and":		expected = p && q; break;
+			case "or":		expected = p || q; break;
+			case "xor":		expected = p != q; break;
+			case "andnot":	expected = p && !q; break;
+			case "not":		expected = !p; break;
+			case "gt":		expected = x > y; break;
+			case "ge":		expected = x >= y; break;
+			case "eq":		expected = x == y; break;
+			case "lt":		expected = x < y; break;
+			case "le":		expected = x <= y; break;
+			default:		expected = x != y;
+			}
+			assertEquals( message, expected, out.next().get() );
+		}
+
+		// the bits after the last pixel stay at 0
+		final long[] words = BitLogic.words( output );
+		assertEquals( message + ", tail", 0, words[ words.length-1 ] >>> ( output.size() & 63 ) );
+	}
+
+
+	private static String name( RandomAccessibleInterval<?> img )
+	{
+		return img == null ? "value" : img.randomAccess().get().getClass().getSimpleName() + ( img instanceof ArrayImg ? "" : " view" );
+	}
+
+}
@@ -0,0 +1,85 @@
+package nvisio.cip.misc;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+
+
+/**
+ *
+ * @author Benoit Lombardot
+ *
+ */
+public class ProjectionTest {
+
+	// 130 values per pixel along z let the 8 bit image use the per pixel histograms, the other dimensions are buffered
+	static final long[] dims = { 10, 7, 130 };
+
+
+	@Test
+	public void medianSameAsSortedValues()
+	{
+		final Random random = new Random( 1 );
+		final Img<FloatType> floats = ArrayImgs.floats( dims );
+		for( FloatType t : floats )
+			t.set( random.nextFloat() );
+		final Img<UnsignedByteType> bytes = ArrayImgs.unsignedBytes( dims );
+		for( UnsignedByteType t : bytes )
+			t.set( random.nextInt( 256 ) );
+
+		for( int dimension=0; dimension<dims.length; dimension++ )
+			for( int nThread : new int[] { 1, 3 } ) {
+				check( floats, dimension, "median", 50, nThread );
+				check( floats, dimension, "percentile", 30, nThread );
+				check( bytes, dimension, "median", 50, nThread );
+				check( bytes, dimension, "percentile", 30, nThread );
+			}
+	}
+
+
+	private static < T extends RealType<T> > void check( Img<T> input, int dimension, String method, double percentile, int nThread )
+	{
+		final long[] projDims = new long[ dims.length-1 ];
+		for( int d=0, e=0; d<dims.length; d++ )
+			if( d != dimension )
+				projDims[e++] = dims[d];
+		final Img<FloatType> projection = ArrayImgs.floats( projDims );
+		Projection.project( input, dimension, method, percentile, projection, null, nThread );
+
+		final String message = input.firstElement().getClass().getSimpleName() + " " + method + " along " + dimension + ", " + nThread + " threads";
+		final int depth = (int) dims[dimension];
+		final double[] values = new double[depth];
+		final long[] pos = new long[ dims.length ];
+		final RandomAccess<T> in = input.randomAccess();
+		final Cursor<FloatType> cursor = projection.localizingCursor();
+		while( cursor.hasNext() ) {
+			cursor.fwd();
+			for( int d=0, e=0; d<dims.length; d++ )
+				if( d != dimension )
+					pos[d] = cursor.getLongPosition( e++ );
+			for( int k=0; k<depth; k++ ) {
+				pos[dimension] = k;
+				in.setPosition( pos );
+				values[k] = in.get().getRealDouble();
+			}
+			// linear interpolation between the two closest ranks
+			Arrays.sort( values );
+			final double rank = percentile / 100 * ( depth-1 );
+			final int lo = (int) Math.floor( rank );
+			final double expected = lo+1 < depth ? values[lo] + ( rank - lo ) * ( values[lo+1] - values[lo] ) : values[lo];
+			assertEquals( message, expected, cursor.get().get(), 1e-5 );
+		}
+	}
+
+}
@@ -0,0 +1,106 @@
+package nvisio.cip.segment;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+
+/**
+ *
+ * @author Benoit Lombardot
+ *
+ */
+public class ConnectedComponentsTest {
+
+	@Test
+	public void sameLabelsAsSerialFloodFill()
+	{
+		final long[] dims = { 23, 17, 9 };
+		final Img<FloatType> input = ArrayImgs.floats( dims );
+		final Random random = new Random( 1 );
+		for( FloatType t : input )
+			t.set( random.nextFloat() );
+		final double threshold = 0.6;
+
+		for( boolean full : new boolean[] { false, true } ) {
+			final int[] expected = floodFill( input, dims, threshold, full );
+			for( int nThread : new int[] { 1, 4 } )
+				assertArrayEquals( "full " + full + ", " + nThread + " threads", expected,
+						values( ConnectedComponents.label( input, threshold, full, nThread ) ) );
+		}
+	}
+
+
+	// labels numbered in the order of their first pixel in flat iteration order
+	private static int[] floodFill( Img<FloatType> input, long[] dims, double threshold, boolean full )
+	{
+		final int nDim = dims.length;
+		final int size = (int) input.size();
+		final boolean[] foreground = new boolean[size];
+		final Cursor<FloatType> cursor = Views.flatIterable( input ).cursor();
+		for( int p=0; p<size; p++ )
+			foreground[p] = cursor.next().get() > threshold;
+
+		final int[] label = new int[size];
+		final int[] pos = new int[nDim];
+		final int[] q = new int[nDim];
+		final ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+		int nLabel = 0;
+		for( int p=0; p<size; p++ ) {
+			if( !foreground[p] || label[p] != 0 )
+				continue;
+			label[p] = ++nLabel;
+			queue.add( p );
+			while( !queue.isEmpty() ) {
+				int x = queue.poll();
+				for( int d=0; d<nDim; d++ ) {
+					pos[d] = (int) ( x % dims[d] );
+					x /= dims[d];
+				}
+				// all the offsets in {-1,0,1}^nDim, the face neighbors have a single non zero coordinate
+				for( int k=0; k<Math.pow( 3, nDim ); k++ ) {
+					int code = k, nonZero = 0, index = 0, stride = 1;
+					boolean inside = true;
+					for( int d=0; d<nDim; d++ ) {
+						final int offset = code % 3 - 1;
+						code /= 3;
+						if( offset != 0 )
+							nonZero++;
+						q[d] = pos[d] + offset;
+						inside &= q[d] >= 0 && q[d] < dims[d];
+						index += q[d] * stride;
+						stride *= dims[d];
+					}
+					if( !inside || nonZero == 0 || ( !full && nonZero > 1 ) )
+						continue;
+					if( foreground[index] && label[index] == 0 ) {
+						label[index] = nLabel;
+						queue.add( index );
+					}
+				}
+			}
+		}
+		return label;
+	}
+
+
+	static int[] values( Img<IntType> img )
+	{
+		final int[] values = new int[ (int) img.size() ];
+		final Cursor<IntType> cursor = Views.flatIterable( img ).cursor();
+		for( int i=0; i<values.length; i++ )
+			values[i] = cursor.next().get();
+		return values;
+	}
+
+}
@@ -0,0 +1,33 @@
+package nvisio.cip.segment;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+
+/**
+ *
+ * @author Benoit Lombardot
+ *
+ */
+public class MaxTreeTest {
+
+	@Test
+	public void sortKeysOrderNegativeValues()
+	{
+		final float[] values = { 3, 1, 0, -1, -5, 2.5f, 1 };
+		final long[] keys = new long[ values.length ];
+		for( int i=0; i<values.length; i++ )
+			keys[i] = MaxTree.sortKey( values[i], i );
+		Arrays.sort( keys );
+
+		final int[] order = new int[ keys.length ];
+		for( int i=0; i<keys.length; i++ )
+			order[i] = (int) keys[i];
+		// decreasing value, increasing index for equal values
+		assertArrayEquals( new int[] { 0, 5, 1, 6, 2, 3, 4 }, order );
+	}
+
+}
@@ -0,0 +1,52 @@
+package nvisio.cip.segment;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.real.FloatType;
+
+
+/**
+ *
+ * @author Benoit Lombardot
+ *
+ */
+public class TiledSeededWatershedTest {
+
+	@Test
+	public void labelsDoNotDependOnTheNumberOfThreads()
+	{
+		for( long[] dims : new long[][] { { 41, 37 }, { 13, 11, 19 } } ) {
+			// few gray levels so that many paths have equal costs
+			final Img<FloatType> input = ArrayImgs.floats( dims );
+			final Img<IntType> seeds = ArrayImgs.ints( dims );
+			final Random random = new Random( 1 );
+			for( FloatType t : input )
+				t.set( random.nextInt( 8 ) );
+			int nSeed = 0;
+			for( IntType t : seeds )
+				if( random.nextFloat() < 0.01 )
+					t.set( ++nSeed );
+
+			for( boolean full : new boolean[] { false, true } ) {
+				final int[] expected = ConnectedComponentsTest.values( TiledSeededWatershed.watershed( input, seeds, 2, full, 1 ) );
+				int nLabeled = 0;
+				for( int l : expected )
+					if( l > 0 )
+						nLabeled++;
+				assertTrue( nLabeled > expected.length / 2 );
+				for( int nThread : new int[] { 2, 3, 8 } )
+					assertArrayEquals( dims.length + "D, full " + full + ", " + nThread + " threads", expected,
+							ConnectedComponentsTest.values( TiledSeededWatershed.watershed( input, seeds, 2, full, nThread ) ) );
+			}
+		}
+	}
+
+}